@@ -20,8 +20,11 @@ package org.apache.maven.mercury.ant.tasks;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,6 +40,7 @@ import org.apache.maven.mercury.logging.IMercuryLogger;
 import org.apache.maven.mercury.logging.MercuryLoggerManager;
 import org.apache.maven.mercury.metadata.DependencyBuilder;
 import org.apache.maven.mercury.metadata.DependencyBuilderFactory;
+import org.apache.maven.mercury.metadata.DependencyLock;
 import org.apache.maven.mercury.repository.api.ArtifactResults;
 import org.apache.maven.mercury.repository.api.Repository;
 import org.apache.maven.mercury.repository.api.RepositoryException;
@@ -81,6 +85,11 @@ public class Dep
 
     private Dependency _sourceDependency;
 
+    /** lock file: locked scopes are replayed from it, the rest are recorded into it */
+    private File _lockFile;
+
+    private DependencyLock _lock;
+
     List<String> _inclusions;
 
     List<String> _exclusions;
@@ -184,19 +193,16 @@ public class Dep
 
         List<Repository> repos = config.getRepositories();
 
-        DependencyProcessor dp = new MavenDependencyProcessor();
-
         DependencyBuilder db = DependencyBuilderFactory.create( DependencyBuilderFactory.JAVA_DEPENDENCY_MODEL, repos );
 
-        _pomStorage = new DefaultStorage();
-
-        _pomRepo = new LocalRepositoryMap( "inMemMdRepo", dp, _pomStorage );
+        _lock = openLock();
 
-        repos.add( 0, _pomRepo );
-
-        VirtualRepositoryReader vr = new VirtualRepositoryReader( repos );
+        if ( _lock != null )
+        {
+            db.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, _lock );
+        }
 
-        _pomRepo.setMetadataReader( vr );
+        VirtualRepositoryReader vr = createReader( repos );
 
         List<ArtifactMetadata> depList = getDependencies( vr );
 
@@ -211,6 +217,114 @@ public class Dep
 
         db.close();
 
+        _artifacts = readArtifacts( config, vr, scope, depList, res );
+
+        if ( _lock != null )
+        {
+            _lock.write( _lockFile );
+        }
+
+        return _artifacts;
+    }
+
+    // ----------------------------------------------------------------------------------------
+    /**
+     * resolves all the scopes with one dependency tree
+     */
+    protected Map<ArtifactScopeEnum, List<Artifact>> resolve( Config config, Collection<ArtifactScopeEnum> scopes )
+        throws Exception
+    {
+        Map<ArtifactScopeEnum, List<Artifact>> resMap =
+            new LinkedHashMap<ArtifactScopeEnum, List<Artifact>>( scopes.size() );
+
+        if ( !Util.isEmpty( _artifacts ) )
+        {
+            for ( ArtifactScopeEnum scope : scopes )
+                resMap.put( scope, _artifacts );
+
+            return resMap;
+        }
+
+        if ( Util.isEmpty( _dependencies ) )
+        {
+            return resMap;
+        }
+
+        List<Repository> repos = config.getRepositories();
+
+        DependencyBuilder db = DependencyBuilderFactory.create( DependencyBuilderFactory.JAVA_DEPENDENCY_MODEL, repos );
+
+        _lock = openLock();
+
+        if ( _lock != null )
+        {
+            db.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, _lock );
+        }
+
+        VirtualRepositoryReader vr = createReader( repos );
+
+        List<ArtifactMetadata> depList = getDependencies( vr );
+
+        Map<ArtifactScopeEnum, List<ArtifactMetadata>> cpMap = null;
+
+        if ( _transitive )
+        {
+            cpMap = db.resolveConflicts( scopes, new ArtifactQueryList( depList ), getInclusions(), getExclusions() );
+        }
+
+        db.close();
+
+        for ( ArtifactScopeEnum scope : scopes )
+        {
+            List<ArtifactMetadata> res = _transitive ? cpMap.get( scope ) : toArtifactMetadataList( depList );
+
+            resMap.put( scope, readArtifacts( config, vr, scope, depList, res ) );
+        }
+
+        if ( _lock != null )
+        {
+            _lock.write( _lockFile );
+        }
+
+        return resMap;
+    }
+
+    // ----------------------------------------------------------------------------------------
+    private DependencyLock openLock()
+        throws IOException
+    {
+        if ( _lockFile == null )
+        {
+            return null;
+        }
+
+        return _lockFile.exists() ? DependencyLock.read( _lockFile ) : new DependencyLock();
+    }
+
+    // ----------------------------------------------------------------------------------------
+    private VirtualRepositoryReader createReader( List<Repository> repos )
+        throws RepositoryException
+    {
+        DependencyProcessor dp = new MavenDependencyProcessor();
+
+        _pomStorage = new DefaultStorage();
+
+        _pomRepo = new LocalRepositoryMap( "inMemMdRepo", dp, _pomStorage );
+
+        repos.add( 0, _pomRepo );
+
+        VirtualRepositoryReader vr = new VirtualRepositoryReader( repos );
+
+        _pomRepo.setMetadataReader( vr );
+
+        return vr;
+    }
+
+    // ----------------------------------------------------------------------------------------
+    private List<Artifact> readArtifacts( Config config, VirtualRepositoryReader vr, ArtifactScopeEnum scope,
+                                          List<ArtifactMetadata> depList, List<ArtifactMetadata> res )
+        throws Exception
+    {
         if ( Util.isEmpty( res ) )
         {
             throw new BuildException( LANG.getMessage( "resolve.empty.classpath", scope.toString(), depList.toString() ) );
@@ -223,11 +337,6 @@ public class Dep
             throw new BuildException( LANG.getMessage( "resolve.cannot.read", config.getId(), res.toString() ) );
         }
 
-        if ( aRes == null )
-        {
-            throw new Exception( LANG.getMessage( "vr.error", aRes.getExceptions().toString() ) );
-        }
-
         if ( !aRes.hasResults() )
         {
             if ( aRes.hasExceptions() )
@@ -238,6 +347,11 @@ public class Dep
 
         Map<ArtifactMetadata, List<Artifact>> resMap = aRes.getResults();
 
+        if ( _lock != null )
+        {
+            _lock.verifyChecksums( resMap );
+        }
+
         int count = 0;
         for ( ArtifactMetadata key : resMap.keySet() )
         {
@@ -253,7 +367,7 @@ public class Dep
             return null;
         }
 
-        _artifacts = new ArrayList<Artifact>( count );
+        List<Artifact> artifactList = new ArrayList<Artifact>( count );
 
         for ( ArtifactMetadata key : resMap.keySet() )
         {
@@ -263,12 +377,12 @@ public class Dep
             {
                 for ( Artifact a : artifacts )
                 {
-                    _artifacts.add( a );
+                    artifactList.add( a );
                 }
             }
         }
 
-        return _artifacts;
+        return artifactList;
     }
 
     private ArtifactExclusionList getExclusions()
@@ -336,6 +450,11 @@ public class Dep
         this._transitive = val;
     }
 
+    public void setLockfile( String lockFile )
+    {
+        this._lockFile = lockFile == null ? null : new File( lockFile );
+    }
+
     public void addConfiguredExclusions( Exclusions ex )
     {
         _exclusions = ex._list;
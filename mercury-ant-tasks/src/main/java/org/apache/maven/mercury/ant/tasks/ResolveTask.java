@@ -22,8 +22,11 @@ package org.apache.maven.mercury.ant.tasks;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.maven.mercury.artifact.Artifact;
 import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
@@ -68,6 +71,8 @@ public class ResolveTask
 
     private boolean _transitive = true;
 
+    private String _lockFile;
+
     private ArtifactScopeEnum _scope;
 
     private List<Dependency> _dependencies;
@@ -167,15 +172,32 @@ public class ResolveTask
 
             dep.setTransitive( _transitive );
 
+            if ( _lockFile != null )
+            {
+                dep.setLockfile( _lockFile );
+            }
+
             dep.setInclusions( _inclusions );
 
             dep.setExclusions( _exclusions );
 
-            ArtifactScopeEnum[] scopes = _scope == null ? SCOPES : new ArtifactScopeEnum[] { _scope };
+            Map<ArtifactScopeEnum, List<Artifact>> resolved;
 
-            for ( ArtifactScopeEnum sc : scopes )
+            if ( _scope == null )
             {
-                Collection<Artifact> artifacts = dep.resolve( config, sc );
+                resolved = dep.resolve( config, Arrays.asList( SCOPES ) );
+            }
+            else
+            {
+                resolved = new HashMap<ArtifactScopeEnum, List<Artifact>>( 1 );
+                resolved.put( _scope, dep.resolve( config, _scope ) );
+            }
+
+            for ( Map.Entry<ArtifactScopeEnum, List<Artifact>> e : resolved.entrySet() )
+            {
+                ArtifactScopeEnum sc = e.getKey();
+
+                Collection<Artifact> artifacts = e.getValue();
 
                 if ( Util.isEmpty( artifacts ) )
                 {
@@ -358,6 +380,11 @@ public class ResolveTask
         this._transitive = transitive;
     }
 
+    public void setLockfile( String lockFile )
+    {
+        this._lockFile = lockFile;
+    }
+
     public Dependency createDependency()
     {
         if ( Util.isEmpty( _dependencies ) )
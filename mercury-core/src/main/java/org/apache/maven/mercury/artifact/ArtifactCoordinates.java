@@ -19,6 +19,8 @@
 package org.apache.maven.mercury.artifact;
 
 /**
+ * coordinates are mutable, so only the strings are pooled, not the instances
+ *
  * @author Oleg Gusakov
  * @version $Id$
  */
@@ -39,21 +41,21 @@ public class ArtifactCoordinates
 
     public ArtifactCoordinates( String groupId, String artifactId, String version )
     {
-        this.groupId = groupId;
-        this.artifactId = artifactId;
-        this.version = version;
+        this.groupId = CoordinatePool.intern( groupId );
+        this.artifactId = CoordinatePool.intern( artifactId );
+        this.version = CoordinatePool.intern( version );
     }
 
     public ArtifactCoordinates( String groupId, String artifactId, String version, String type )
     {
         this( groupId, artifactId, version );
-        this.type = type;
+        this.type = CoordinatePool.intern( type );
     }
 
     public ArtifactCoordinates( String groupId, String artifactId, String version, String type, String classifier )
     {
         this( groupId, artifactId, version, type );
-        this.classifier = classifier;
+        this.classifier = CoordinatePool.intern( classifier );
     }
 
     public String getGroupId()
@@ -63,7 +65,7 @@ public class ArtifactCoordinates
 
     public void setGroupId( String groupId )
     {
-        this.groupId = groupId;
+        this.groupId = CoordinatePool.intern( groupId );
     }
 
     public String getArtifactId()
@@ -73,7 +75,7 @@ public class ArtifactCoordinates
 
     public void setArtifactId( String artifactId )
     {
-        this.artifactId = artifactId;
+        this.artifactId = CoordinatePool.intern( artifactId );
     }
 
     public String getVersion()
@@ -83,7 +85,7 @@ public class ArtifactCoordinates
 
     public void setVersion( String version )
     {
-        this.version = version;
+        this.version = CoordinatePool.intern( version );
     }
 
     public String getClassifier()
@@ -93,7 +95,7 @@ public class ArtifactCoordinates
 
     public void setClassifier( String classifier )
     {
-        this.classifier = classifier;
+        this.classifier = CoordinatePool.intern( classifier );
     }
 
     public String getType()
@@ -103,7 +105,7 @@ public class ArtifactCoordinates
 
     public void setType( String type )
     {
-        this.type = type;
+        this.type = CoordinatePool.intern( type );
     }
 
     @Override
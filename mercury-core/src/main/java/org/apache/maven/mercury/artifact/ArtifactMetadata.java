@@ -46,11 +46,11 @@ public class ArtifactMetadata
     private static final Language LANG = new DefaultLanguage( ArtifactMetadata.class );
 
     /**
-     * standard glorified artifact coordinates
+     * standard glorified artifact coordinates, private - the setters drop the cached key
      */
-    protected String groupId;
+    private String groupId;
 
-    protected String artifactId;
+    private String artifactId;
 
     private String version;
 
@@ -66,11 +66,11 @@ public class ArtifactMetadata
     protected ArtifactCoordinates effectiveCoordinates;
 
     // This is Maven specific. jvz/
-    protected String classifier;
+    private String classifier;
 
-    protected String type = DEFAULT_ARTIFACT_TYPE;
+    private String type = DEFAULT_ARTIFACT_TYPE;
 
-    protected ArtifactScopeEnum artifactScope;
+    private ArtifactScopeEnum artifactScope;
 
 //    protected String scope;
 
@@ -80,6 +80,12 @@ public class ArtifactMetadata
 
     protected Collection<ArtifactMetadata> exclusions;
 
+    /** inclusions by GA, parsed once. Volatile - the dependencies are vetted on several threads */
+    private transient volatile Map<String, List<FilterEntry>> compiledInclusions;
+
+    /** exclusions by GA, parsed once */
+    private transient volatile Map<String, List<FilterEntry>> compiledExclusions;
+
     protected Map<String, String> attributes;
 
     /** conveniency for SNAPSHOT file timestamp */
@@ -97,6 +103,9 @@ public class ArtifactMetadata
      */
     transient Object datum;
 
+    /** identity - toString() - for equals() and hashCode(), dropped by the coordinate setters */
+    private transient String key;
+
     /** dependencies of the artifact behind this metadata */
     protected List<ArtifactMetadata> dependencies;
 
@@ -199,21 +208,21 @@ public class ArtifactMetadata
 
         int count = tokens.length;
 
-        this.groupId = nullify( tokens[0] );
+        this.groupId = CoordinatePool.intern( nullify( tokens[0] ) );
 
         if ( count > 1 )
         {
-            this.artifactId = nullify( tokens[1] );
+            this.artifactId = CoordinatePool.intern( nullify( tokens[1] ) );
         }
 
         if ( count > 2 )
         {
-            this.version = nullify( tokens[2] );
+            this.version = CoordinatePool.intern( nullify( tokens[2] ) );
         }
 
         if ( count > 3 )
         {
-            this.classifier = nullify( tokens[3] );
+            this.classifier = CoordinatePool.intern( nullify( tokens[3] ) );
         }
 
         if ( count > 4 )
@@ -383,7 +392,8 @@ public class ArtifactMetadata
 
     public void setGroupId( String groupId )
     {
-        this.groupId = groupId;
+        this.groupId = CoordinatePool.intern( groupId );
+        this.key = null;
     }
 
     public String getArtifactId()
@@ -393,7 +403,8 @@ public class ArtifactMetadata
 
     public void setArtifactId( String artifactId )
     {
-        this.artifactId = artifactId;
+        this.artifactId = CoordinatePool.intern( artifactId );
+        this.key = null;
     }
 
     public String getVersion()
@@ -408,7 +419,8 @@ public class ArtifactMetadata
 
     public void setVersion( String version )
     {
-        this.version = version;
+        this.version = CoordinatePool.intern( version );
+        this.key = null;
     }
 
     private void checkRangeExists()
@@ -474,7 +486,8 @@ public class ArtifactMetadata
 
     public void setClassifier( String classifier )
     {
-        this.classifier = classifier;
+        this.classifier = CoordinatePool.intern( classifier );
+        this.key = null;
     }
 
     public String getType()
@@ -490,7 +503,9 @@ public class ArtifactMetadata
             setType( "jar" );
         }
         else
-            this.type = type;
+            this.type = CoordinatePool.intern( type );
+
+        this.key = null;
     }
 
     public Map<String, String> getAttributes()
@@ -516,11 +531,14 @@ public class ArtifactMetadata
     public void setArtifactScope( ArtifactScopeEnum artifactScope )
     {
         this.artifactScope = artifactScope;
+        // subclasses might have it in toString()
+        this.key = null;
     }
 
     public void setScope( String scope )
     {
         this.artifactScope = scope == null ? ArtifactScopeEnum.DEFAULT_SCOPE : ArtifactScopeEnum.valueOf( scope );
+        this.key = null;
     }
 
     public boolean isOptional()
@@ -659,6 +677,7 @@ public class ArtifactMetadata
     public void setInclusions( Collection<ArtifactMetadata> inclusions )
     {
         this.inclusions = inclusions;
+        this.compiledInclusions = null;
     }
 
     public boolean hasExclusions()
@@ -674,6 +693,7 @@ public class ArtifactMetadata
     public void setExclusions( Collection<ArtifactMetadata> exclusions )
     {
         this.exclusions = exclusions;
+        this.compiledExclusions = null;
     }
 
     /**
@@ -690,7 +710,15 @@ public class ArtifactMetadata
         boolean includeDependency = true;
         if ( hasInclusions() )
         {
-            includeDependency = !passesFilter( inclusions, dep );
+            Map<String, List<FilterEntry>> filter = compiledInclusions;
+
+            if ( filter == null )
+            {
+                filter = compileFilter( inclusions );
+                compiledInclusions = filter;
+            }
+
+            includeDependency = !passesFilter( filter, dep );
         }
 
         if ( !includeDependency )
@@ -703,7 +731,15 @@ public class ArtifactMetadata
             return true;
         }
 
-        if ( passesFilter( exclusions, dep ) )
+        Map<String, List<FilterEntry>> filter = compiledExclusions;
+
+        if ( filter == null )
+        {
+            filter = compileFilter( exclusions );
+            compiledExclusions = filter;
+        }
+
+        if ( passesFilter( filter, dep ) )
         {
             return true;
         }
@@ -712,22 +748,99 @@ public class ArtifactMetadata
 
     }
 
-    private boolean passesFilter( Collection<ArtifactMetadata> filter, ArtifactMetadata dep )
-        throws VersionException
+    private static String filterKey( String groupId, String artifactId )
+    {
+        return groupId + ":" + artifactId;
+    }
+
+    /**
+     * one filter entry: no version catches any version, the range is parsed once. A version that is not a valid
+     * range fails only when a dependency of it's GA gets to it - same as before the filters were compiled
+     */
+    private static final class FilterEntry
     {
+        final String version;
+
+        final VersionRange range;
+
+        FilterEntry( String version, VersionRange range )
+        {
+            this.version = version;
+            this.range = range;
+        }
+    }
+
+    /**
+     * filter entries by GA, with the version ranges parsed once - not on every dependency
+     */
+    private static Map<String, List<FilterEntry>> compileFilter( Collection<ArtifactMetadata> filter )
+    {
+        Map<String, List<FilterEntry>> res = new HashMap<String, List<FilterEntry>>( 2 * filter.size() );
+
         for ( ArtifactMetadata filterMd : filter )
         {
-            if ( filterMd.sameGA( dep ) )
+            // sameGA() never matches these
+            if ( filterMd.getGroupId() == null || filterMd.getArtifactId() == null )
             {
-                if ( !filterMd.hasVersion() )
-                {
-                    return false; // no version in the filter - catch by GA
-                }
-                VersionRange vr = VersionRangeFactory.create( filterMd.getVersion() );
-                if ( vr.includes( dep.getVersion() ) )
-                {
-                    return false; // catch by version query
-                }
+                continue;
+            }
+
+            String key = filterKey( filterMd.getGroupId(), filterMd.getArtifactId() );
+
+            List<FilterEntry> entries = res.get( key );
+
+            if ( entries == null )
+            {
+                entries = new ArrayList<FilterEntry>( 1 );
+                res.put( key, entries );
+            }
+
+            if ( !filterMd.hasVersion() )
+            {
+                entries.add( new FilterEntry( null, null ) );
+                continue;
+            }
+
+            VersionRange range = null;
+
+            try
+            {
+                range = VersionRangeFactory.create( filterMd.getVersion() );
+            }
+            catch ( VersionException e )
+            {
+                // reported by passesFilter()
+            }
+
+            entries.add( new FilterEntry( filterMd.getVersion(), range ) );
+        }
+
+        return res;
+    }
+
+    private static boolean passesFilter( Map<String, List<FilterEntry>> filter, ArtifactMetadata dep )
+        throws VersionException
+    {
+        List<FilterEntry> entries = filter.get( filterKey( dep.getGroupId(), dep.getArtifactId() ) );
+
+        if ( entries == null )
+        {
+            return true;
+        }
+
+        for ( FilterEntry e : entries )
+        {
+            if ( e.version == null )
+            {
+                return false; // no version in the filter - catch by GA
+            }
+
+            // not a valid range - throws the parse error
+            VersionRange vr = e.range == null ? VersionRangeFactory.create( e.version ) : e.range;
+
+            if ( vr.includes( dep.getVersion() ) )
+            {
+                return false; // catch by version query
             }
         }
 
@@ -742,13 +855,35 @@ public class ArtifactMetadata
             return false;
         }
 
-        return toString().equals( obj.toString() );
+        if ( obj == this )
+        {
+            return true;
+        }
+
+        // String caches it's hash, so different keys are told apart cheaply
+        String k1 = getKey();
+        String k2 = ( (ArtifactMetadata) obj ).getKey();
+
+        return k1.hashCode() == k2.hashCode() && k1.equals( k2 );
     }
 
     @Override
     public int hashCode()
     {
-        return toString().hashCode();
+        return getKey().hashCode();
+    }
+
+    private String getKey()
+    {
+        String k = key;
+
+        if ( k == null )
+        {
+            k = toString();
+            key = k;
+        }
+
+        return k;
     }
 
     public List<ArtifactMetadata> getDependencies()
@@ -0,0 +1,1234 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.artifact;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+
+/**
+ * compact store for very large metadata trees. A node is an int index into parallel arrays, metadata objects and
+ * their GAV coordinates are interned and referred to by id, flags are kept in bit sets. A shared subtree is stored
+ * once: every other path to it is a single reference node.
+ * <p/>
+ * The tree is walked through MetadataTreeNode compatible views - created on first access and cached until
+ * releaseViews(), so the node identity is stable while the tree is solved. Nodes are normally stored in pre-order,
+ * then every subtree is a contiguous index range and counting and numbering are array scans
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class CompactMetadataTree
+{
+    /** no node, no metadata */
+    public static final int NONE = -1;
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private static final Language LANG = new DefaultLanguage( CompactMetadataTree.class );
+
+    /** interned metadata, nodes and queries refer to it by id */
+    private List<ArtifactMetadata> _mds;
+
+    private Map<ArtifactMetadata, Integer> _mdIds;
+
+    /** coordinate id of each interned metadata */
+    private int[] _mdCoordinates;
+
+    /** interned GAV coordinates */
+    private List<String> _coordinates;
+
+    private Map<String, Integer> _coordinateIds;
+
+    /** number of nodes */
+    private int _size;
+
+    private int[] _md;
+
+    private int[] _query;
+
+    private int[] _parent;
+
+    private int[] _firstChild;
+
+    private int[] _lastChild;
+
+    private int[] _nextSibling;
+
+    /** position among the siblings */
+    private int[] _seq;
+
+    private int[] _id;
+
+    private int[] _firstQuery;
+
+    private int[] _lastQuery;
+
+    /** shared node of a reference, NONE for the regular nodes */
+    private int[] _shared;
+
+    /** number of reference nodes */
+    private int _references;
+
+    /** query lists: entries of all the nodes */
+    private int _queryCount;
+
+    private int[] _queryMd;
+
+    private int[] _nextQuery;
+
+    private BitSet _optional;
+
+    /** nodes without a real artifact behind them */
+    private BitSet _helper;
+
+    /** nodes were added in pre-order, so that every subtree is a contiguous index range */
+    private boolean _preorder = true;
+
+    /** parents of the roots, when they are parts of regular trees */
+    private Map<Integer, MetadataTreeNode> _rootParents;
+
+    /** createNames() level and sequence of the roots */
+    private int _rootLevel;
+
+    private int _rootSeq;
+
+    private Node[] _views;
+
+    /** targets visited by the current counting or numbering pass, the pass is identified by its visited map */
+    private Object _pass;
+
+    private BitSet _passTargets;
+
+    // ------------------------------------------------------------------------
+    /**
+     * MetadataTreeNode view of a compact tree node
+     */
+    public static class Node
+        extends MetadataTreeNode
+    {
+        private final CompactMetadataTree _tree;
+
+        private final int _index;
+
+        /** parent of a path view - a node of a shared subtree, as seen through a reference. Null otherwise */
+        private final MetadataTreeNode _pathParent;
+
+        /** children of a shared view, created on first access */
+        private List<MetadataTreeNode> _kids;
+
+        Node( CompactMetadataTree tree, int index, MetadataTreeNode pathParent )
+        {
+            _tree = tree;
+            _index = index;
+            _pathParent = pathParent;
+        }
+
+        public CompactMetadataTree getTree()
+        {
+            return _tree;
+        }
+
+        public int getIndex()
+        {
+            return _index;
+        }
+
+        private int target()
+        {
+            return _tree.getTarget( _index );
+        }
+
+        @Override
+        public boolean isShared()
+        {
+            return _pathParent != null || _tree._shared[_index] != NONE;
+        }
+
+        /**
+         * the cached view of the shared node for the views and references, the cached view of this node otherwise
+         */
+        @Override
+        public MetadataTreeNode getTarget()
+        {
+            return _tree.getNode( target() );
+        }
+
+        @Override
+        public ArtifactMetadata getMd()
+        {
+            return _tree.getMd( _index );
+        }
+
+        @Override
+        public ArtifactMetadata getQuery()
+        {
+            return _tree.getQuery( _index );
+        }
+
+        @Override
+        public List<ArtifactMetadata> getQueries()
+        {
+            return _tree.getQueries( _index );
+        }
+
+        @Override
+        public MetadataTreeNode getParent()
+        {
+            if ( _pathParent != null )
+                return _pathParent;
+
+            int p = _tree._parent[_index];
+
+            return p == NONE ? _tree.getRootParent( _index ) : _tree.getNode( p );
+        }
+
+        /**
+         * only a root can be attached to a new parent
+         */
+        @Override
+        public void setParent( MetadataTreeNode parent )
+        {
+            if ( _pathParent != null || _tree._parent[_index] != NONE )
+                throw new UnsupportedOperationException( LANG.getMessage( "compact.tree.reparent", toString() ) );
+
+            _tree.setRootParent( _index, parent );
+        }
+
+        /**
+         * the list is created on every call for the regular nodes, changes in it are not reflected in the tree.
+         * Children of a shared view are path views of the shared node's children
+         *
+         * @return null if there are no children
+         */
+        @Override
+        public List<MetadataTreeNode> getChildren()
+        {
+            if ( !isShared() )
+                return _tree.getChildren( _index );
+
+            if ( _kids == null )
+            {
+                int target = target();
+
+                if ( _tree._firstChild[target] == NONE )
+                    return null;
+
+                _kids = new ArrayList<MetadataTreeNode>( _tree._seq[_tree._lastChild[target]] + 1 );
+
+                for ( int kid = _tree._firstChild[target]; kid != NONE; kid = _tree._nextSibling[kid] )
+                    _kids.add( new Node( _tree, kid, this ) );
+            }
+
+            return _kids;
+        }
+
+        @Override
+        List<MetadataTreeNode> kids()
+        {
+            return getChildren();
+        }
+
+        @Override
+        public boolean hasChildren()
+        {
+            return _tree._firstChild[target()] != NONE;
+        }
+
+        /**
+         * the kid's subtree is copied into the store, kid itself is not attached. A kid, created in the store
+         * under this node, is already there
+         */
+        @Override
+        public MetadataTreeNode addChild( MetadataTreeNode kid )
+        {
+            if ( kid == null )
+                return this;
+
+            if ( isShared() )
+                throw new UnsupportedOperationException( LANG.getMessage( "compact.tree.shared.change", toString() ) );
+
+            if ( kid instanceof Node && ( (Node) kid )._tree == _tree )
+            {
+                Node node = (Node) kid;
+
+                if ( node._pathParent == null && _tree._parent[node._index] == _index )
+                    return this;
+
+                throw new IllegalArgumentException( LANG.getMessage( "compact.tree.own.child", kid.toString() ) );
+            }
+
+            _tree.append( _index, kid, new IdentityHashMap<MetadataTreeNode, Integer>() );
+
+            return this;
+        }
+
+        @Override
+        public MetadataTreeNode addQuery( ArtifactMetadata query )
+        {
+            if ( query == null )
+                return this;
+
+            if ( isShared() )
+                throw new UnsupportedOperationException( LANG.getMessage( "compact.tree.shared.change", toString() ) );
+
+            _tree.addQuery( _index, query );
+
+            return this;
+        }
+
+        @Override
+        public boolean isOptional()
+        {
+            return _tree.isOptional( _index );
+        }
+
+        @Override
+        public boolean isReal()
+        {
+            return _tree.isReal( _index );
+        }
+
+        @Override
+        public void setReal( boolean real )
+        {
+            _tree.setReal( _index, real );
+        }
+
+        /**
+         * all the paths to a shared node have it's id
+         */
+        @Override
+        public int getId()
+        {
+            return _tree._id[target()];
+        }
+
+        @Override
+        public void setId( int id )
+        {
+            _tree._id[target()] = id;
+        }
+
+        @Override
+        public int getDepth()
+        {
+            if ( _pathParent != null )
+                return _pathParent.getDepth() + 1;
+
+            int depth = _tree.getDepth( _index );
+
+            MetadataTreeNode rootParent = _tree.getRootParent( _index );
+
+            return rootParent == null ? depth : depth + rootParent.getDepth() + 1;
+        }
+
+        private int getLevel()
+        {
+            if ( _pathParent instanceof Node )
+                return ( (Node) _pathParent ).getLevel() + 1;
+
+            return _tree._rootLevel + _tree.getDepth( _index );
+        }
+
+        /**
+         * names are not stored, they are derived from the depth and the position among the siblings
+         */
+        @Override
+        public String getName()
+        {
+            int seq = _pathParent == null && _tree._parent[_index] == NONE ? _tree._rootSeq : _tree._seq[_index];
+
+            return getMd().toScopedString() + ":" + getLevel() + "." + seq;
+        }
+
+        @Override
+        public void createNames( int level, int seq )
+        {
+            if ( _pathParent == null && _tree._parent[_index] == NONE )
+            {
+                _tree._rootLevel = level;
+                _tree._rootSeq = seq;
+            }
+        }
+
+        @Override
+        public int countNodes()
+        {
+            return _tree.countNodes( _index );
+        }
+
+        @Override
+        int count( Map<MetadataTreeNode, Integer> counts )
+        {
+            return _tree.countNodes( _index );
+        }
+
+        @Override
+        public int countDistinctNodes()
+        {
+            return _tree.countDistinctNodes( _index );
+        }
+
+        @Override
+        void distinct( TreeSet<String> nodes, Map<MetadataTreeNode, MetadataTreeNode> visited )
+        {
+            _tree.getCoordinates( _index, nodes, _tree.getPassTargets( visited ) );
+        }
+
+        @Override
+        void reNum( Counter num, Map<MetadataTreeNode, MetadataTreeNode> visited )
+        {
+            num.n = _tree.walkTargets( _index, num.n, _tree.getPassTargets( visited ), true );
+        }
+
+        @Override
+        int targets( Map<MetadataTreeNode, MetadataTreeNode> visited )
+        {
+            return _tree.walkTargets( _index, 0, _tree.getPassTargets( visited ), false );
+        }
+
+        @Override
+        public String toString()
+        {
+            return getMd() + ":d=" + getDepth();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    public CompactMetadataTree()
+    {
+        this( DEFAULT_SIZE );
+    }
+
+    // ------------------------------------------------------------------------
+    public CompactMetadataTree( int expectedSize )
+    {
+        int size = expectedSize < 16 ? 16 : expectedSize;
+
+        _mds = new ArrayList<ArtifactMetadata>( size / 4 );
+        _mdIds = new IdentityHashMap<ArtifactMetadata, Integer>( size / 4 );
+        _mdCoordinates = new int[size / 4];
+        _coordinates = new ArrayList<String>( size / 4 );
+        _coordinateIds = new HashMap<String, Integer>( size / 4 );
+
+        _md = new int[size];
+        _query = new int[size];
+        _parent = new int[size];
+        _firstChild = new int[size];
+        _lastChild = new int[size];
+        _nextSibling = new int[size];
+        _seq = new int[size];
+        _id = new int[size];
+        _firstQuery = new int[size];
+        _lastQuery = new int[size];
+        _shared = new int[size];
+
+        _queryMd = new int[size];
+        _nextQuery = new int[size];
+
+        _optional = new BitSet( size );
+        _helper = new BitSet( size );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * copy a tree into a compact store. A shared subtree is copied once, other paths to it become references
+     *
+     * @return the store, its root view is a replacement for the tree root
+     */
+    public static CompactMetadataTree compact( MetadataTreeNode root )
+    {
+        if ( root == null )
+            throw new IllegalArgumentException( LANG.getMessage( "compact.tree.null.root" ) );
+
+        CompactMetadataTree res = new CompactMetadataTree( DEFAULT_SIZE );
+
+        int n = res.append( NONE, root, new IdentityHashMap<MetadataTreeNode, Integer>() );
+
+        res.setRootParent( n, root.getParent() );
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * copy the subtree under the parent node. A view of an already copied node becomes a reference to the copy
+     *
+     * @param copied copies of the nodes by the node
+     * @return index of the copied subtree root
+     */
+    int append( int parent, MetadataTreeNode node, Map<MetadataTreeNode, Integer> copied )
+    {
+        MetadataTreeNode target = node.getTarget();
+
+        Integer copy = node.isShared() ? copied.get( target ) : null;
+
+        if ( copy != null )
+            return addReference( parent, copy, node.getQuery() );
+
+        int n = addNode( parent, node.getMd(), node.getQuery(), node.isOptional(), node.isReal() );
+
+        _id[n] = node.getId();
+
+        List<ArtifactMetadata> queries = node.getQueries();
+
+        if ( queries != null )
+            for ( ArtifactMetadata q : queries )
+                addQuery( n, q );
+
+        List<MetadataTreeNode> kids = node.kids();
+
+        if ( kids != null )
+            for ( MetadataTreeNode kid : kids )
+                append( n, kid, copied );
+
+        copied.put( target, n );
+
+        return n;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * builds the tree in the store: the new node is added under the parent right away
+     *
+     * @param parent node of this store, anything else makes the new node a root
+     */
+    public Node createNode( MetadataTreeNode parent, ArtifactMetadata md, ArtifactMetadata query )
+    {
+        if ( md != null )
+            md.setArtifactScope( ArtifactScopeEnum.checkScope( md.getArtifactScope() ) );
+
+        int p = findParent( parent );
+
+        int n = addNode( p, md, query, false, true );
+
+        if ( p == NONE )
+            setRootParent( n, parent );
+
+        return getNode( n );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * builds the tree in the store: one more path to an already built node of the store
+     *
+     * @param parent node of this store, anything else makes the reference a root
+     */
+    public Node share( MetadataTreeNode node, MetadataTreeNode parent, ArtifactMetadata query )
+    {
+        if ( !( node instanceof Node ) || ( (Node) node )._tree != this )
+            throw new IllegalArgumentException( LANG.getMessage( "compact.tree.foreign.node", "" + node ) );
+
+        int p = findParent( parent );
+
+        int n = addReference( p, ( (Node) node )._index, query );
+
+        if ( p == NONE )
+            setRootParent( n, parent );
+
+        return getNode( n );
+    }
+
+    // ------------------------------------------------------------------------
+    private int findParent( MetadataTreeNode parent )
+    {
+        if ( !( parent instanceof Node ) || ( (Node) parent )._tree != this )
+            return NONE;
+
+        if ( parent.isShared() )
+            throw new IllegalArgumentException( LANG.getMessage( "compact.tree.shared.change", parent.toString() ) );
+
+        return ( (Node) parent )._index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * children are ordered - they should be added in the POM order
+     *
+     * @param parent parent node index, NONE for a root
+     * @return new node index
+     */
+    public int addNode( int parent, ArtifactMetadata md, ArtifactMetadata query, boolean optional, boolean real )
+    {
+        if ( parent != NONE && ( parent < 0 || parent >= _size || _shared[parent] != NONE ) )
+            throw new IllegalArgumentException( LANG.getMessage( "compact.tree.bad.parent", "" + parent ) );
+
+        if ( _preorder && parent != NONE && !isOnLastPath( parent ) )
+            _preorder = false;
+
+        ensureCapacity( _size + 1 );
+
+        int n = _size++;
+
+        _md[n] = intern( md );
+        _query[n] = intern( query );
+        _parent[n] = parent;
+        _firstChild[n] = NONE;
+        _lastChild[n] = NONE;
+        _nextSibling[n] = NONE;
+        _firstQuery[n] = NONE;
+        _lastQuery[n] = NONE;
+        _shared[n] = NONE;
+        _id[n] = 0;
+        _seq[n] = 0;
+
+        if ( parent != NONE )
+        {
+            int last = _lastChild[parent];
+
+            if ( last == NONE )
+                _firstChild[parent] = n;
+            else
+            {
+                _nextSibling[last] = n;
+                _seq[n] = _seq[last] + 1;
+            }
+
+            _lastChild[parent] = n;
+        }
+
+        if ( optional )
+            _optional.set( n );
+
+        if ( !real )
+            _helper.set( n );
+
+        return n;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * one more path to a node: the reference has it's own parent and query, everything else is the shared node's
+     *
+     * @return new node index
+     */
+    public int addReference( int parent, int node, ArtifactMetadata query )
+    {
+        if ( node < 0 || node >= _size )
+            throw new IllegalArgumentException( LANG.getMessage( "compact.tree.bad.parent", "" + node ) );
+
+        int target = getTarget( node );
+
+        int n = addNode( parent, getMd( target ), query, isOptional( target ), isReal( target ) );
+
+        _shared[n] = target;
+
+        _references++;
+
+        return n;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * a child keeps the pre-order only if it's parent is the last added node or one of it's ancestors
+     */
+    private boolean isOnLastPath( int node )
+    {
+        for ( int p = _size - 1; p != NONE; p = _parent[p] )
+            if ( p == node )
+                return true;
+
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    public void addQuery( int node, ArtifactMetadata query )
+    {
+        if ( query == null )
+            return;
+
+        if ( _queryCount == _queryMd.length )
+        {
+            int len = _queryCount * 2;
+
+            _queryMd = grow( _queryMd, len );
+            _nextQuery = grow( _nextQuery, len );
+        }
+
+        int q = _queryCount++;
+
+        _queryMd[q] = intern( query );
+        _nextQuery[q] = NONE;
+
+        if ( _lastQuery[node] == NONE )
+            _firstQuery[node] = q;
+        else
+            _nextQuery[_lastQuery[node]] = q;
+
+        _lastQuery[node] = q;
+    }
+
+    // ------------------------------------------------------------------------
+    private int intern( ArtifactMetadata md )
+    {
+        if ( md == null )
+            return NONE;
+
+        Integer id = _mdIds.get( md );
+
+        if ( id != null )
+            return id;
+
+        int res = _mds.size();
+
+        _mds.add( md );
+        _mdIds.put( md, res );
+
+        if ( res == _mdCoordinates.length )
+            _mdCoordinates = grow( _mdCoordinates, res * 2 );
+
+        String gav = md.getGAV();
+
+        Integer coordinate = _coordinateIds.get( gav );
+
+        if ( coordinate == null )
+        {
+            coordinate = _coordinates.size();
+            _coordinates.add( gav );
+            _coordinateIds.put( gav, coordinate );
+        }
+
+        _mdCoordinates[res] = coordinate;
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    private void ensureCapacity( int size )
+    {
+        if ( size <= _md.length )
+            return;
+
+        int len = _md.length * 2;
+
+        _md = grow( _md, len );
+        _query = grow( _query, len );
+        _parent = grow( _parent, len );
+        _firstChild = grow( _firstChild, len );
+        _lastChild = grow( _lastChild, len );
+        _nextSibling = grow( _nextSibling, len );
+        _seq = grow( _seq, len );
+        _id = grow( _id, len );
+        _firstQuery = grow( _firstQuery, len );
+        _lastQuery = grow( _lastQuery, len );
+        _shared = grow( _shared, len );
+
+        if ( _views != null )
+        {
+            Node[] views = new Node[len];
+            System.arraycopy( _views, 0, views, 0, _views.length );
+            _views = views;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    private static int[] grow( int[] a, int len )
+    {
+        int[] res = new int[len];
+
+        System.arraycopy( a, 0, res, 0, a.length );
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * next node of the subtree in pre-order
+     *
+     * @return NONE when the subtree is over
+     */
+    private int next( int n, int top )
+    {
+        if ( _firstChild[n] != NONE )
+            return _firstChild[n];
+
+        return skip( n, top );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * next node of the subtree in pre-order, after the subtree of n
+     *
+     * @return NONE when the subtree is over
+     */
+    private int skip( int n, int top )
+    {
+        for ( ; n != top; n = _parent[n] )
+            if ( _nextSibling[n] != NONE )
+                return _nextSibling[n];
+
+        return NONE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * first index after the subtree, only valid for the pre-ordered store
+     */
+    private int subtreeEnd( int node )
+    {
+        int last = node;
+
+        while ( _lastChild[last] != NONE )
+            last = _lastChild[last];
+
+        return last + 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of stored nodes, a shared subtree is stored once
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of reference nodes - additional paths to the shared subtrees
+     */
+    public int getReferenceCount()
+    {
+        return _references;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of distinct metadata objects, referred to by the nodes
+     */
+    public int getMetadataCount()
+    {
+        return _mds.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of distinct GAVs in the store
+     */
+    public int getCoordinateCount()
+    {
+        return _coordinates.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * interned GAV id of the node, NONE if the node has no metadata
+     */
+    public int getCoordinateId( int node )
+    {
+        int md = _md[node];
+
+        return md == NONE ? NONE : _mdCoordinates[md];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * the first root
+     */
+    public MetadataTreeNode getRoot()
+    {
+        return _size == 0 ? null : getNode( 0 );
+    }
+
+    // ------------------------------------------------------------------------
+    public Node getNode( int node )
+    {
+        if ( _views == null )
+            _views = new Node[_md.length];
+
+        Node res = _views[node];
+
+        if ( res == null )
+        {
+            res = new Node( this, node, null );
+            _views[node] = res;
+        }
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * drop the cached views, once the tree is solved. The store is intact, views taken before still work, but they
+     * are not the objects getNode() returns after this call
+     */
+    public void releaseViews()
+    {
+        _views = null;
+        _pass = null;
+        _passTargets = null;
+    }
+
+    // ------------------------------------------------------------------------
+    private MetadataTreeNode getRootParent( int node )
+    {
+        if ( _rootParents == null )
+            return null;
+
+        int root = node;
+
+        while ( _parent[root] != NONE )
+            root = _parent[root];
+
+        return _rootParents.get( root );
+    }
+
+    // ------------------------------------------------------------------------
+    private void setRootParent( int root, MetadataTreeNode parent )
+    {
+        if ( parent == null && _rootParents == null )
+            return;
+
+        if ( _rootParents == null )
+            _rootParents = new HashMap<Integer, MetadataTreeNode>( 4 );
+
+        _rootParents.put( root, parent );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * the shared node of a reference, the node itself otherwise
+     */
+    public int getTarget( int node )
+    {
+        int target = _shared[node];
+
+        return target == NONE ? node : target;
+    }
+
+    // ------------------------------------------------------------------------
+    public ArtifactMetadata getMd( int node )
+    {
+        int md = _md[node];
+
+        return md == NONE ? null : _mds.get( md );
+    }
+
+    // ------------------------------------------------------------------------
+    public ArtifactMetadata getQuery( int node )
+    {
+        int md = _query[node];
+
+        return md == NONE ? null : _mds.get( md );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * a reference has the queries of the shared node
+     *
+     * @return null if the node has no queries
+     */
+    public List<ArtifactMetadata> getQueries( int node )
+    {
+        int target = getTarget( node );
+
+        if ( _firstQuery[target] == NONE )
+            return null;
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( 8 );
+
+        for ( int q = _firstQuery[target]; q != NONE; q = _nextQuery[q] )
+            res.add( _mds.get( _queryMd[q] ) );
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    public int getParent( int node )
+    {
+        return _parent[node];
+    }
+
+    // ------------------------------------------------------------------------
+    public int getFirstChild( int node )
+    {
+        return _firstChild[node];
+    }
+
+    // ------------------------------------------------------------------------
+    public int getNextSibling( int node )
+    {
+        return _nextSibling[node];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @return views of the stored children, null if there are none. A reference has no stored children
+     */
+    public List<MetadataTreeNode> getChildren( int node )
+    {
+        if ( _firstChild[node] == NONE )
+            return null;
+
+        List<MetadataTreeNode> res = new ArrayList<MetadataTreeNode>( _seq[_lastChild[node]] + 1 );
+
+        for ( int kid = _firstChild[node]; kid != NONE; kid = _nextSibling[kid] )
+            res.add( getNode( kid ) );
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    public int getId( int node )
+    {
+        return _id[getTarget( node )];
+    }
+
+    // ------------------------------------------------------------------------
+    public boolean isOptional( int node )
+    {
+        return _optional.get( node );
+    }
+
+    // ------------------------------------------------------------------------
+    public boolean isReal( int node )
+    {
+        return !_helper.get( node );
+    }
+
+    // ------------------------------------------------------------------------
+    public void setReal( int node, boolean real )
+    {
+        _helper.set( node, !real );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * depth in this store, a root is 0
+     */
+    public int getDepth( int node )
+    {
+        int depth = 0;
+
+        for ( int p = _parent[node]; p != NONE; p = _parent[p] )
+            ++depth;
+
+        return depth;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of nodes in the subtree, a shared subtree is counted on every path to it
+     */
+    public int countNodes( int node )
+    {
+        if ( _references > 0 )
+            return countPaths( node, new int[_size] );
+
+        if ( _preorder )
+            return subtreeEnd( node ) - node;
+
+        int res = 0;
+
+        for ( int n = node; n != NONE; n = next( n, node ) )
+            ++res;
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @param counts subtree sizes of the shared nodes counted so far, 0 if not counted yet
+     */
+    private int countPaths( int node, int[] counts )
+    {
+        int target = getTarget( node );
+
+        if ( counts[target] > 0 )
+            return counts[target];
+
+        int res = 1;
+
+        for ( int kid = _firstChild[target]; kid != NONE; kid = _nextSibling[kid] )
+            res += countPaths( kid, counts );
+
+        counts[target] = res;
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of distinct GAVs in the subtree
+     */
+    public int countDistinctNodes( int node )
+    {
+        BitSet seen = new BitSet( _coordinates.size() );
+
+        if ( _preorder && _references == 0 )
+            for ( int n = node, end = subtreeEnd( node ); n < end; n++ )
+                markCoordinate( n, seen );
+        else
+            markCoordinates( node, seen, new BitSet( _size ) );
+
+        return seen.cardinality();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * mark GAVs of the subtree, shared subtrees are looked at once
+     *
+     * @param visited shared nodes already looked at
+     */
+    private void markCoordinates( int node, BitSet seen, BitSet visited )
+    {
+        for ( int n = node; n != NONE; n = next( n, node ) )
+        {
+            markCoordinate( n, seen );
+
+            int target = _shared[n];
+
+            if ( target != NONE && !visited.get( target ) )
+            {
+                visited.set( target );
+                markCoordinates( target, seen, visited );
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    private void markCoordinate( int node, BitSet seen )
+    {
+        int coordinate = getCoordinateId( node );
+
+        if ( coordinate == NONE )
+            throw new IllegalArgumentException( "tree node without metadata" );
+
+        seen.set( coordinate );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * add GAVs of the subtree to the set
+     */
+    public void getCoordinates( int node, TreeSet<String> nodes )
+    {
+        getCoordinates( node, nodes, new BitSet( _size ) );
+    }
+
+    // ------------------------------------------------------------------------
+    private void getCoordinates( int node, TreeSet<String> nodes, BitSet visited )
+    {
+        BitSet seen = new BitSet( _coordinates.size() );
+
+        markCoordinates( node, seen, visited );
+
+        for ( int c = seen.nextSetBit( 0 ); c >= 0; c = seen.nextSetBit( c + 1 ) )
+            nodes.add( _coordinates.get( c ) );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number the subtree in pre-order, a shared node gets one number - on the first path to it
+     *
+     * @return next free number
+     */
+    public int reNumber( int node, int startNum )
+    {
+        if ( _preorder && _references == 0 )
+        {
+            int num = startNum;
+
+            for ( int n = node, end = subtreeEnd( node ); n < end; n++ )
+                _id[n] = num++;
+
+            return num;
+        }
+
+        return walkTargets( node, startNum, new BitSet( _size ), true );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of the shared and regular nodes, reachable from this one. Shared subtrees are counted once
+     */
+    public int countTargets( int node )
+    {
+        return walkTargets( node, 0, new BitSet( _size ), false );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * visits the targets - stored nodes, reachable from the node - in pre-order, a reference leads to it's shared
+     * node. Every target is visited once
+     *
+     * @param visited targets visited so far
+     * @param number set the ids
+     * @return num increased by the number of visited targets
+     */
+    private int walkTargets( int node, int num, BitSet visited, boolean number )
+    {
+        int top = getTarget( node );
+
+        int n = top;
+
+        while ( n != NONE )
+        {
+            if ( _shared[n] != NONE )
+            {
+                num = walkTargets( _shared[n], num, visited, number );
+                n = skip( n, top );
+                continue;
+            }
+
+            if ( visited.get( n ) )
+            {
+                n = skip( n, top );
+                continue;
+            }
+
+            visited.set( n );
+
+            if ( number )
+                _id[n] = num;
+
+            num++;
+
+            n = next( n, top );
+        }
+
+        return num;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * targets, visited by the pass. Numbering and counting of a tree, that has several entries into this store, is
+     * one pass: it has one visited map
+     */
+    private BitSet getPassTargets( Object pass )
+    {
+        if ( _pass != pass )
+        {
+            _pass = pass;
+            _passTargets = new BitSet( _size );
+        }
+
+        return _passTargets;
+    }
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+}
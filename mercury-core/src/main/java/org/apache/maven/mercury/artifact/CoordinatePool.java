@@ -0,0 +1,91 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.artifact;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * flyweight pool for the coordinate strings - groupId, artifactId, version, classifier, type. A big tree has tens of
+ * thousands of metadata objects, most of them repeat the same few hundred strings, so equal coordinates share one
+ * instance and String.equals() mostly stops at the reference check.
+ * <p/>
+ * Bounded - the pool starts over when it grows beyond the limit, the strings handed out so far stay valid
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class CoordinatePool
+{
+    public static final String SYSTEM_PARAMETER_COORDINATE_POOL_SIZE = "mercury.coordinate.pool.size";
+
+    public static final String SYSTEM_PARAMETER_COORDINATE_POOL_SIZE_DEFAULT = "65536";
+
+    private static final int _maxSize =
+        Integer.parseInt( System.getProperty( SYSTEM_PARAMETER_COORDINATE_POOL_SIZE,
+                                              SYSTEM_PARAMETER_COORDINATE_POOL_SIZE_DEFAULT ) );
+
+    private static final ConcurrentMap<String, String> _pool = new ConcurrentHashMap<String, String>( 1024 );
+
+    // ---------------------------------------------------------------------------
+    private CoordinatePool()
+    {
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * @return the pooled instance equal to s, s itself if there was none
+     */
+    public static String intern( String s )
+    {
+        if ( s == null || _maxSize < 1 )
+        {
+            return s;
+        }
+
+        String res = _pool.get( s );
+
+        if ( res != null )
+        {
+            return res;
+        }
+
+        if ( _pool.size() >= _maxSize )
+        {
+            _pool.clear();
+        }
+
+        res = _pool.putIfAbsent( s, s );
+
+        return res == null ? s : res;
+    }
+
+    // ---------------------------------------------------------------------------
+    public static int size()
+    {
+        return _pool.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    public static void clear()
+    {
+        _pool.clear();
+    }
+    // ---------------------------------------------------------------------------
+}
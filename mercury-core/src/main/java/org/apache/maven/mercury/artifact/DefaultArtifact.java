@@ -61,12 +61,12 @@ public class DefaultArtifact
                              boolean optional, String scope, String inheritedScope )
     {
         this.inheritedScope = inheritedScope;
-        this.groupId = groupId;
-        this.artifactId = artifactId;
+        setGroupId( groupId );
+        setArtifactId( artifactId );
         setVersion( version );
         // this.scope = scope;
-        this.type = type;
-        this.classifier = classifier;
+        setType( type );
+        setClassifier( classifier );
         this.optional = optional;
 
         String desiredScope = Artifact.SCOPE_RUNTIME;
@@ -107,24 +107,24 @@ public class DefaultArtifact
             }
         }
 
-        this.artifactScope = ArtifactScopeEnum.valueOf( desiredScope );
+        setArtifactScope( ArtifactScopeEnum.valueOf( desiredScope ) );
 
         validateIdentity();
     }
 
     private void validateIdentity()
     {
-        if ( empty( groupId ) )
+        if ( empty( getGroupId() ) )
         {
             throw new IllegalArgumentException( "The groupId cannot be empty." );
         }
 
-        if ( artifactId == null )
+        if ( getArtifactId() == null )
         {
             throw new IllegalArgumentException( "The artifactId cannot be empty." );
         }
 
-        if ( type == null )
+        if ( getType() == null )
         {
             throw new IllegalArgumentException( "The type cannot be empty." );
         }
@@ -230,11 +230,8 @@ public class DefaultArtifact
             sb.append( getVersion() );
         }
 
-        if ( artifactScope != null )
-        {
-            sb.append( ":" );
-            sb.append( artifactScope.toString() );
-        }
+        sb.append( ":" );
+        sb.append( getArtifactScope().toString() );
         return sb.toString();
     }
 
@@ -242,14 +239,14 @@ public class DefaultArtifact
     public int hashCode()
     {
         int result = 17;
-        result = 37 * result + groupId.hashCode();
-        result = 37 * result + artifactId.hashCode();
-        result = 37 * result + type.hashCode();
+        result = 37 * result + getGroupId().hashCode();
+        result = 37 * result + getArtifactId().hashCode();
+        result = 37 * result + getType().hashCode();
         if ( getVersion() != null )
         {
             result = 37 * result + getVersion().hashCode();
         }
-        result = 37 * result + ( classifier != null ? classifier.hashCode() : 0 );
+        result = 37 * result + ( getClassifier() != null ? getClassifier().hashCode() : 0 );
         return result;
     }
 
@@ -268,11 +265,11 @@ public class DefaultArtifact
 
         Artifact a = (Artifact) o;
 
-        if ( !a.getGroupId().equals( groupId ) )
+        if ( !a.getGroupId().equals( getGroupId() ) )
         {
             return false;
         }
-        else if ( !a.getArtifactId().equals( artifactId ) )
+        else if ( !a.getArtifactId().equals( getArtifactId() ) )
         {
             return false;
         }
@@ -280,11 +277,11 @@ public class DefaultArtifact
         {
             return false;
         }
-        else if ( !a.getType().equals( type ) )
+        else if ( !a.getType().equals( getType() ) )
         {
             return false;
         }
-        else if ( a.getClassifier() == null ? classifier != null : !a.getClassifier().equals( classifier ) )
+        else if ( a.getClassifier() == null ? getClassifier() != null : !a.getClassifier().equals( getClassifier() ) )
         {
             return false;
         }
@@ -298,16 +295,16 @@ public class DefaultArtifact
     {
         Artifact a = (Artifact) o;
 
-        int result = groupId.compareTo( a.getGroupId() );
+        int result = getGroupId().compareTo( a.getGroupId() );
         if ( result == 0 )
         {
-            result = artifactId.compareTo( a.getArtifactId() );
+            result = getArtifactId().compareTo( a.getArtifactId() );
             if ( result == 0 )
             {
-                result = type.compareTo( a.getType() );
+                result = getType().compareTo( a.getType() );
                 if ( result == 0 )
                 {
-                    if ( classifier == null )
+                    if ( getClassifier() == null )
                     {
                         if ( a.getClassifier() != null )
                         {
@@ -318,7 +315,7 @@ public class DefaultArtifact
                     {
                         if ( a.getClassifier() != null )
                         {
-                            result = classifier.compareTo( a.getClassifier() );
+                            result = getClassifier().compareTo( a.getClassifier() );
                         }
                         else
                         {
@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
 import org.codehaus.plexus.lang.DefaultLanguage;
@@ -86,22 +88,77 @@ public class MetadataTreeNode
     /** unique name of this node. Used in SAT solver */
     String name;
 
+    /**
+     * if not null - this node is a path view of a shared, already built subtree. Children of the view are created
+     * lazily, the shared subtree is never modified
+     */
+    MetadataTreeNode shared;
+
+    // ------------------------------------------------------------------------
+    /**
+     * running number of reNumber()
+     */
+    static class Counter
+    {
+        int n;
+
+        Counter( int n )
+        {
+            this.n = n;
+        }
+
+        int next()
+        {
+            return n++;
+        }
+    }
+
     // ------------------------------------------------------------------------
     public int countNodes()
     {
-        return countNodes( this );
+        return count( new IdentityHashMap<MetadataTreeNode, Integer>() );
     }
 
     // ------------------------------------------------------------------------
     public static int countNodes( MetadataTreeNode node )
     {
+        return node.countNodes();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * shared subtrees are counted once and remembered in counts, so it stays linear in the number of distinct nodes
+     */
+    int count( Map<MetadataTreeNode, Integer> counts )
+    {
+        return countNodes( this, counts );
+    }
+
+    // ------------------------------------------------------------------------
+    private static int countNodes( MetadataTreeNode node, Map<MetadataTreeNode, Integer> counts )
+    {
+        MetadataTreeNode target = node.target();
+
+        if ( node.children == null && target != node )
+        {
+            Integer cnt = counts.get( target );
+
+            if ( cnt == null )
+            {
+                cnt = target.count( counts );
+                counts.put( target, cnt );
+            }
+
+            return cnt;
+        }
+
         int res = 1;
 
         if ( node.children != null && node.children.size() > 0 )
         {
             for ( MetadataTreeNode child : node.children )
             {
-                res += countNodes( child );
+                res += child.count( counts );
             }
         }
 
@@ -120,15 +177,36 @@ public class MetadataTreeNode
 
     // ------------------------------------------------------------------------
     public static void getDistinctNodes( MetadataTreeNode node, TreeSet<String> nodes )
+    {
+        node.distinct( nodes, new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+    }
+
+    // ------------------------------------------------------------------------
+    void distinct( TreeSet<String> nodes, Map<MetadataTreeNode, MetadataTreeNode> visited )
+    {
+        getDistinctNodes( this, nodes, visited );
+    }
+
+    // ------------------------------------------------------------------------
+    private static void getDistinctNodes( MetadataTreeNode node, TreeSet<String> nodes,
+                                          Map<MetadataTreeNode, MetadataTreeNode> visited )
     {
         if ( node.getMd() == null )
             throw new IllegalArgumentException( "tree node without metadata" );
 
         nodes.add( node.getMd().getGAV() );
 
-        if ( node.children != null && node.children.size() > 0 )
-            for ( MetadataTreeNode child : node.children )
-                getDistinctNodes( child, nodes );
+        MetadataTreeNode target = node.target();
+
+        // shared subtree has the same GAVs on every path
+        if ( target != node && visited.put( target, target ) != null )
+            return;
+
+        List<MetadataTreeNode> kids = node.kids();
+
+        if ( kids != null && kids.size() > 0 )
+            for ( MetadataTreeNode child : kids )
+                child.distinct( nodes, visited );
     }
 
     // ------------------------------------------------------------------------
@@ -152,6 +230,100 @@ public class MetadataTreeNode
         this.query = query;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * create a path view of an already built subtree, to be attached to a new parent. Unlike deepCopy() it does not
+     * copy anything - the view's children are created on first access. The shared subtree should not be changed after
+     * it's been shared
+     */
+    public static final MetadataTreeNode share( MetadataTreeNode node, MetadataTreeNode parent, ArtifactMetadata query )
+    {
+        MetadataTreeNode res = new MetadataTreeNode();
+
+        res.md = node.getMd();
+        res.parent = parent;
+        res.query = query;
+        res.optional = node.isOptional();
+        res.real = node.isReal();
+        res.shared = node.getTarget();
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * is this node a path view of a shared subtree
+     */
+    public boolean isShared()
+    {
+        return shared != null;
+    }
+
+    // ------------------------------------------------------------------------
+    private MetadataTreeNode target()
+    {
+        return shared == null ? this : shared;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * the node behind this one: the shared node for a view, the node itself otherwise. All the views of a shared
+     * subtree have the same target - and the same id
+     */
+    public MetadataTreeNode getTarget()
+    {
+        return target();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * children, as they are seen from this node, without creating the views
+     */
+    List<MetadataTreeNode> kids()
+    {
+        return children == null && shared != null ? shared.kids() : children;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * a view that gets changed is not a view any more: it gets its own children - views of the shared node's
+     * children - and its own queries
+     */
+    private void detach()
+    {
+        if ( shared == null )
+            return;
+
+        expand();
+
+        List<ArtifactMetadata> sharedQueries = shared.getQueries();
+
+        if ( queries == null && sharedQueries != null )
+            queries = new ArrayList<ArtifactMetadata>( sharedQueries );
+
+        shared = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * create this view's children - views of the shared node's children
+     */
+    private void expand()
+    {
+        if ( shared == null || children != null )
+            return;
+
+        List<MetadataTreeNode> sharedKids = shared.kids();
+
+        if ( sharedKids == null )
+            return;
+
+        children = new ArrayList<MetadataTreeNode>( sharedKids.size() );
+
+        for ( MetadataTreeNode kid : sharedKids )
+            children.add( share( kid, this, kid.getQuery() ) );
+    }
+
     // ------------------------------------------------------------------------
     /**
      * dependencies are ordered in the POM - they should be added in the POM order
@@ -163,6 +335,8 @@ public class MetadataTreeNode
             return this;
         }
 
+        detach();
+
         if ( children == null )
         {
             children = new ArrayList<MetadataTreeNode>( DEFAULT_CHILDREN_COUNT );
@@ -185,10 +359,10 @@ public class MetadataTreeNode
             return this;
         }
 
+        detach();
+
         if ( queries == null )
-        {
             queries = new ArrayList<ArtifactMetadata>( DEFAULT_QUERY_COUNT );
-        }
 
         queries.add( query );
 
@@ -206,7 +380,7 @@ public class MetadataTreeNode
     // ------------------------------------------------------------------------
     public boolean hasChildren()
     {
-        return children != null;
+        return kids() != null;
     }
 
     // ------------------------------------------------------------------------
@@ -224,7 +398,7 @@ public class MetadataTreeNode
     {
         int depth = 0;
 
-        for ( MetadataTreeNode p = parent; p != null; p = p.parent )
+        for ( MetadataTreeNode p = parent; p != null; p = p.getParent() )
             ++depth;
 
         return depth;
@@ -237,7 +411,7 @@ public class MetadataTreeNode
         if ( !hasChildren() )
             return depth + 1;
 
-        for ( MetadataTreeNode kid : children )
+        for ( MetadataTreeNode kid : kids() )
         {
             int kidDepth = kid.getMaxDepth( depth + 1 );
             if ( kidDepth > res )
@@ -254,6 +428,8 @@ public class MetadataTreeNode
 
     public List<MetadataTreeNode> getChildren()
     {
+        expand();
+
         return children;
     }
 
@@ -279,7 +455,7 @@ public class MetadataTreeNode
 
     public List<ArtifactMetadata> getQueries()
     {
-        return queries;
+        return queries == null && shared != null ? shared.getQueries() : queries;
     }
 
     // ------------------------------------------------------------------------
@@ -289,7 +465,7 @@ public class MetadataTreeNode
         res.setId( node.getId() );
 
         if ( node.hasChildren() )
-            for ( MetadataTreeNode kid : node.children )
+            for ( MetadataTreeNode kid : node.getChildren() )
             {
                 MetadataTreeNode deepKid = deepCopy( kid );
                 res.addChild( deepKid );
@@ -317,7 +493,7 @@ public class MetadataTreeNode
 
         if ( n.hasChildren() )
         {
-            for ( MetadataTreeNode kid : n.getChildren() )
+            for ( MetadataTreeNode kid : n.kids() )
                 showNode( kid, level + 1, wr );
         }
     }
@@ -337,7 +513,7 @@ public class MetadataTreeNode
     // ------------------------------------------------------------------------
     public int getId()
     {
-        return id;
+        return shared == null ? id : shared.getId();
     }
 
     public void setId( int id )
@@ -346,19 +522,58 @@ public class MetadataTreeNode
     }
 
     // ------------------------------------------------------------------------
+    /**
+     * one number per target: the views are not numbered, they have the id of the shared node
+     */
     public static void reNumber( MetadataTreeNode node, int startNum )
     {
-        reNum( node, new Counter( startNum ) );
+        node.reNum( new Counter( startNum ), new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
     }
 
     // ------------------------------------------------------------------------
-    private static void reNum( MetadataTreeNode node, Counter num )
+    void reNum( Counter num, Map<MetadataTreeNode, MetadataTreeNode> visited )
     {
-        node.setId( num.next() );
+        if ( shared != null )
+        {
+            shared.reNum( num, visited );
+            return;
+        }
 
-        if ( node.hasChildren() )
-            for ( MetadataTreeNode kid : node.getChildren() )
-                reNum( kid, num );
+        if ( visited.put( this, this ) != null )
+            return;
+
+        setId( num.next() );
+
+        if ( children != null )
+            for ( MetadataTreeNode kid : children )
+                kid.reNum( num, visited );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * number of targets in the tree - what reNumber() numbers
+     */
+    public int countTargets()
+    {
+        return targets( new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+    }
+
+    // ------------------------------------------------------------------------
+    int targets( Map<MetadataTreeNode, MetadataTreeNode> visited )
+    {
+        if ( shared != null )
+            return shared.targets( visited );
+
+        if ( visited.put( this, this ) != null )
+            return 0;
+
+        int res = 1;
+
+        if ( children != null )
+            for ( MetadataTreeNode kid : children )
+                res += kid.targets( visited );
+
+        return res;
     }
 
     public String getName()
@@ -366,11 +581,14 @@ public class MetadataTreeNode
         return name;
     }
 
+    /**
+     * views are named, but not expanded - the shared subtree keeps the names of the path it was built on
+     */
     public void createNames( int level, int seq )
     {
         name = md.toScopedString() + ":" + level + "." + seq;
 
-        if ( hasChildren() )
+        if ( shared == null && children != null )
         {
             int no = 0;
 
@@ -381,19 +599,3 @@ public class MetadataTreeNode
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 }
-
-// ------------------------------------------------------------------------
-class Counter
-{
-    int n;
-
-    public Counter( int n )
-    {
-        this.n = n;
-    }
-
-    int next()
-    {
-        return n++;
-    }
-}
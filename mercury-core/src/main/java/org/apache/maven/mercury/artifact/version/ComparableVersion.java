@@ -82,20 +82,46 @@ public class ComparableVersion
     private static class IntegerItem
         implements Item
     {
-        private static final BigInteger BigInteger_ZERO = new BigInteger( "0" );
+        /** longer numbers might not fit in a long */
+        private static final int MAX_LONG_DIGITS = 18;
 
-        private final BigInteger value;
+        /** the value if it fits in a long */
+        private final long value;
+
+        /** the value if it does not fit in a long, null otherwise */
+        private final BigInteger bigValue;
 
         public static final IntegerItem ZERO = new IntegerItem();
 
         private IntegerItem()
         {
-            this.value = BigInteger_ZERO;
+            this.value = 0;
+            this.bigValue = null;
         }
 
         public IntegerItem( String str )
         {
-            this.value = new BigInteger( str );
+            if ( str.length() <= MAX_LONG_DIGITS )
+            {
+                this.value = Long.parseLong( str );
+                this.bigValue = null;
+            }
+            else
+            {
+                BigInteger big = new BigInteger( str );
+
+                // leading zeroes
+                if ( big.bitLength() < 64 )
+                {
+                    this.value = big.longValue();
+                    this.bigValue = null;
+                }
+                else
+                {
+                    this.value = 0;
+                    this.bigValue = big;
+                }
+            }
         }
 
         public int getType()
@@ -105,20 +131,20 @@ public class ComparableVersion
 
         public boolean isNull()
         {
-            return BigInteger_ZERO.equals( value );
+            return bigValue == null && value == 0;
         }
 
         public int compareTo( Item item )
         {
             if ( item == null )
             {
-                return BigInteger_ZERO.equals( value ) ? 0 : 1; // 1.0 == 1, 1.1 > 1
+                return isNull() ? 0 : 1; // 1.0 == 1, 1.1 > 1
             }
 
             switch ( item.getType() )
             {
                 case INTEGER_ITEM:
-                    return value.compareTo( ( (IntegerItem) item ).value );
+                    return compareTo( (IntegerItem) item );
 
                 case STRING_ITEM:
                     return 1; // 1.1 > 1-sp
@@ -131,9 +157,24 @@ public class ComparableVersion
             }
         }
 
+        private int compareTo( IntegerItem item )
+        {
+            if ( bigValue == null && item.bigValue == null )
+                return value < item.value ? -1 : ( value == item.value ? 0 : 1 );
+
+            // a big value is bigger than any long one
+            if ( bigValue == null )
+                return -1;
+
+            if ( item.bigValue == null )
+                return 1;
+
+            return bigValue.compareTo( item.bigValue );
+        }
+
         public String toString()
         {
-            return value.toString();
+            return bigValue == null ? Long.toString( value ) : bigValue.toString();
         }
     }
 
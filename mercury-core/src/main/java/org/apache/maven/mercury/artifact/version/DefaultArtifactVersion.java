@@ -19,6 +19,8 @@ import java.util.StringTokenizer;
 
 import org.apache.maven.mercury.artifact.Artifact;
 import org.apache.maven.mercury.artifact.Quality;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
 
 /**
  * Default implementation of artifact versioning.
@@ -30,6 +32,8 @@ import org.apache.maven.mercury.artifact.Quality;
 public class DefaultArtifactVersion
     implements ArtifactVersion
 {
+    private static final Language LANG = new DefaultLanguage( DefaultArtifactVersion.class );
+
     private String version;
 
     private Integer majorVersion;
@@ -48,6 +52,9 @@ public class DefaultArtifactVersion
 
     private Quality quality = Quality.UNKNOWN_QUALITY;
 
+    /** shared by VersionCache, cannot be parsed again */
+    private boolean frozen;
+
     public DefaultArtifactVersion( String version )
     {
         this.version = version;
@@ -67,7 +74,7 @@ public class DefaultArtifactVersion
 
     public boolean sameBase( String vs )
     {
-        DefaultArtifactVersion v = new DefaultArtifactVersion( vs );
+        DefaultArtifactVersion v = VersionCache.getVersion( vs );
         return base.equals( v.base );
     }
 
@@ -159,8 +166,21 @@ public class DefaultArtifactVersion
         return false;
     }
 
+    /**
+     * make this version immutable before it is shared
+     */
+    final DefaultArtifactVersion freeze()
+    {
+        frozen = true;
+
+        return this;
+    }
+
     public final void parseVersion( String version )
     {
+        if ( frozen )
+            throw new UnsupportedOperationException( LANG.getMessage( "shared.version", this.version, version ) );
+
         comparable = new ComparableVersion( version );
 
         int index = version.indexOf( "-" );
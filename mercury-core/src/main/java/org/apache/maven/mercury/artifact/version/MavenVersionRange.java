@@ -121,7 +121,7 @@ class MavenVersionRange
                         throw new VersionException( _lang.getMessage( "bad.version.sn", sFromT ) );
                     }
 
-                    _fromVersion = new DefaultArtifactVersion( sFromT );
+                    _fromVersion = VersionCache.getVersion( sFromT );
                 }
             }
 
@@ -132,7 +132,7 @@ class MavenVersionRange
                 if ( sToT != null && sToT.length() > 0 )
                 {
                     checkForValidCharacters( sToT );
-                    _toVersion = new DefaultArtifactVersion( sToT );
+                    _toVersion = VersionCache.getVersion( sToT );
                 }
             }
 
@@ -151,7 +151,7 @@ class MavenVersionRange
         {
 
             checkForValidCharacters( range );
-            _fromVersion = new DefaultArtifactVersion( range );
+            _fromVersion = VersionCache.getVersion( range );
 
             _singleton = true;
 
@@ -217,7 +217,7 @@ class MavenVersionRange
      */
     public boolean includes( String version )
     {
-        DefaultArtifactVersion ver = new DefaultArtifactVersion( version );
+        DefaultArtifactVersion ver = VersionCache.getVersion( version );
 
         int cmp1 = ver.compareTo( _fromVersion );
 
@@ -43,8 +43,8 @@ public class MetadataVersionComparator
                             : v1.toString(), v2 == null ? "null" : v2.toString() ) );
         }
 
-        DefaultArtifactVersion av1 = new DefaultArtifactVersion( v1.getVersion() );
-        DefaultArtifactVersion av2 = new DefaultArtifactVersion( v2.getVersion() );
+        DefaultArtifactVersion av1 = VersionCache.getVersion( v1.getVersion() );
+        DefaultArtifactVersion av2 = VersionCache.getVersion( v2.getVersion() );
 
         return av1.compareTo( av2 );
     }
@@ -0,0 +1,91 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.artifact.version;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * parsed versions by version string, shared by the comparators and the ranges, so that the same string is parsed
+ * once and not on every comparison. Bounded - the cache starts over when it grows beyond the limit.
+ * <p/>
+ * The versions are shared, so they are immutable: parseVersion() on them throws UnsupportedOperationException
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class VersionCache
+{
+    /**
+     * max number of parsed version strings kept, 0 - versions are parsed every time. Not the same as
+     * VirtualRepositoryReader.SYSTEM_PROPERTY_VERSION_CACHE_SIZE, that limits the cached version lists of the queries
+     */
+    public static final String SYSTEM_PARAMETER_VERSION_PARSE_CACHE_SIZE = "mercury.version.parse.cache.size";
+
+    public static final String SYSTEM_PARAMETER_VERSION_PARSE_CACHE_SIZE_DEFAULT = "4096";
+
+    private static final int _maxSize =
+        Integer.parseInt( System.getProperty( SYSTEM_PARAMETER_VERSION_PARSE_CACHE_SIZE,
+                                              SYSTEM_PARAMETER_VERSION_PARSE_CACHE_SIZE_DEFAULT ) );
+
+    private static final ConcurrentMap<String, DefaultArtifactVersion> _versions =
+        new ConcurrentHashMap<String, DefaultArtifactVersion>( 256 );
+
+    // --------------------------------------------------------------------------------------------
+    private VersionCache()
+    {
+    }
+
+    // --------------------------------------------------------------------------------------------
+    /**
+     * parsed version, the same instance for the same string as long as it stays in the cache
+     */
+    public static DefaultArtifactVersion getVersion( String version )
+    {
+        if ( version == null || _maxSize < 1 )
+            return new DefaultArtifactVersion( version );
+
+        DefaultArtifactVersion res = _versions.get( version );
+
+        if ( res != null )
+            return res;
+
+        res = new DefaultArtifactVersion( version ).freeze();
+
+        if ( _versions.size() >= _maxSize )
+            _versions.clear();
+
+        DefaultArtifactVersion prev = _versions.putIfAbsent( version, res );
+
+        return prev == null ? res : prev;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    public static int size()
+    {
+        return _versions.size();
+    }
+
+    // --------------------------------------------------------------------------------------------
+    public static void clear()
+    {
+        _versions.clear();
+    }
+    // --------------------------------------------------------------------------------------------
+}
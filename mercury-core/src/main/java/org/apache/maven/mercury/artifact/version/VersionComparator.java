@@ -41,8 +41,8 @@ public class VersionComparator
             throw new IllegalArgumentException( LANG.getMessage( "null.version.to.compare", v1, v2 ) );
         }
 
-        DefaultArtifactVersion av1 = new DefaultArtifactVersion( v1 );
-        DefaultArtifactVersion av2 = new DefaultArtifactVersion( v2 );
+        DefaultArtifactVersion av1 = VersionCache.getVersion( v1 );
+        DefaultArtifactVersion av2 = VersionCache.getVersion( v2 );
 
         return av1.compareTo( av2 );
     }
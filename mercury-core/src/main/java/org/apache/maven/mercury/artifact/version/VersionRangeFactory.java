@@ -71,11 +71,11 @@ public class VersionRangeFactory
             if ( version == null )
             {
                 version = vn;
-                tempDav = new DefaultArtifactVersion( vn );
+                tempDav = VersionCache.getVersion( vn );
                 continue;
             }
 
-            tempDav2 = new DefaultArtifactVersion( vn );
+            tempDav2 = VersionCache.getVersion( vn );
             if ( tempDav2.compareTo( tempDav ) > 0 )
             {
                 version = vn;
@@ -42,6 +42,11 @@ public class ClassicDepthComparator
         _closerBetter = closerBetter;
     }
 
+    public boolean isCloserBetter()
+    {
+        return _closerBetter;
+    }
+
     public int compare( MetadataTreeNode n1, MetadataTreeNode n2 )
     {
         return _closerBetter ? n2.getDepth() - n1.getDepth() : n1.getDepth() - n2.getDepth();
@@ -23,6 +23,7 @@ import java.util.Comparator;
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
 import org.apache.maven.mercury.artifact.MetadataTreeNode;
 import org.apache.maven.mercury.artifact.version.DefaultArtifactVersion;
+import org.apache.maven.mercury.artifact.version.VersionCache;
 
 /**
  * classical version comparator: newer is better by default, but that could be changed by appropriate constructor
@@ -44,13 +45,18 @@ public class ClassicVersionComparator
         _newerBetter = newerBetter;
     }
 
+    public boolean isNewerBetter()
+    {
+        return _newerBetter;
+    }
+
     public int compare( MetadataTreeNode n1, MetadataTreeNode n2 )
     {
         ArtifactMetadata md1 = n1.getMd();
-        DefaultArtifactVersion v1 = new DefaultArtifactVersion( md1.getVersion() );
+        DefaultArtifactVersion v1 = VersionCache.getVersion( md1.getVersion() );
 
         ArtifactMetadata md2 = n2.getMd();
-        DefaultArtifactVersion v2 = new DefaultArtifactVersion( md2.getVersion() );
+        DefaultArtifactVersion v2 = VersionCache.getVersion( md2.getVersion() );
 
         return _newerBetter ? v1.compareTo( v2 ) : v2.compareTo( v1 );
     }
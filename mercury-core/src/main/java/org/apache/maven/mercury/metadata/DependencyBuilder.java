@@ -18,7 +18,9 @@
  */
 package org.apache.maven.mercury.metadata;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.maven.mercury.artifact.ArtifactExclusionList;
 import org.apache.maven.mercury.artifact.ArtifactInclusionList;
@@ -42,10 +44,46 @@ public interface DependencyBuilder
 
     public static final String TREE_NODE_VERSION_REPLACE_EVENT = "tree.node.build.version.replace";
 
+    public static final String TREE_LEVEL_PREFETCH_EVENT = "tree.level.prefetch";
+
+    public static final String TREE_NODE_PRUNE_EVENT = "tree.node.build.prune";
+
     public static final String SYSTEM_PROPERTY_ALLOW_CIRCULAR_DEPENDENCIES = "mercury.circular.allow";
 
     public static final String CONFIGURATION_PROPERTY_VERSION_MAP = "mercury.version.map";
 
+    /** DependencyGraphCache instance to share dependencies with other builders */
+    public static final String CONFIGURATION_PROPERTY_GRAPH_CACHE = "mercury.graph.cache";
+
+    /** ResolutionCache instance to look the resolved classpaths up in */
+    public static final String CONFIGURATION_PROPERTY_RESOLUTION_CACHE = "mercury.resolution.cache";
+
+    /** DependencyLock instance to replay the locked scopes from and record the others into */
+    public static final String CONFIGURATION_PROPERTY_LOCK = "mercury.lock";
+
+    /** SatSession instance to keep the conflict resolution constraints in between the resolutions */
+    public static final String CONFIGURATION_PROPERTY_SAT_SESSION = "mercury.sat.session";
+
+    /** number of threads to expand the tree with, level by level. 0 or 1 - build sequentially */
+    public static final String SYSTEM_PROPERTY_TREE_BUILD_THREADS = "mercury.tree.build.threads";
+
+    /** "true" - keep the built trees in a CompactMetadataTree store, for very large graphs */
+    public static final String SYSTEM_PROPERTY_COMPACT_TREE = "mercury.tree.compact";
+
+    /**
+     * "true" - nearest wins while building: deeper versions of a GA, committed closer to the root, are not expanded.
+     * Works with the default comparators only. It makes the tree and the conflict resolution smaller, not the I/O: the
+     * POMs under the dropped versions are still read to prove the pruned tree resolves the same way. If it might not,
+     * the dropped versions are added to the tree
+     */
+    public static final String SYSTEM_PROPERTY_PRUNE_TREE = "mercury.tree.prune";
+
+    /** number of threads to solve independent conflict clusters with, each on it's own solver. 0 or 1 - single solver */
+    public static final String SYSTEM_PROPERTY_SAT_THREADS = "mercury.sat.threads";
+
+    /** millis the conflict resolution may search for the optimum. Then the best solution so far is used. 0 - no limit */
+    public static final String SYSTEM_PROPERTY_SAT_TIMEOUT = "mercury.sat.timeout";
+
     // ------------------------------------------------------------------------
     /**
      * build the tree, using the repositories specified in the constructor
@@ -81,6 +119,34 @@ public interface DependencyBuilder
 
         throws MetadataTreeException;
 
+    /**
+     * consolidated entry point for several scopes at once: the widest tree is built only once and each scope's
+     * classpath is cut out of it
+     * 
+     * @param scopes scopes to resolve
+     * @return scope to list of resolved GAVs, in the order of supplied scopes
+     * @throws MetadataTreeException
+     */
+    public abstract Map<ArtifactScopeEnum, List<ArtifactMetadata>> resolveConflicts( Collection<ArtifactScopeEnum> scopes,
+                                                                                     ArtifactQueryList artifacts,
+                                                                                     ArtifactInclusionList inclusions,
+                                                                                     ArtifactExclusionList exclusions )
+        throws MetadataTreeException;
+
+    /**
+     * batch entry point for many independent requests, like reactor modules: the trees of all the roots are built
+     * with one reader and share the common subtrees
+     * 
+     * @param roots dependencies of each root
+     * @param jointly if true - all roots are solved together, getting the same version of every GA
+     * @return classpath of each root, in the order of roots
+     * @throws MetadataTreeException
+     */
+    public abstract List<List<ArtifactMetadata>> resolveConflicts( ArtifactScopeEnum scope, List<ArtifactQueryList> roots,
+                                                                   ArtifactInclusionList inclusions,
+                                                                   ArtifactExclusionList exclusions, boolean jointly )
+        throws MetadataTreeException;
+
     /**
      * consolidated entry point: give it a collection of GAVs, it will create a tree out of it
      * 
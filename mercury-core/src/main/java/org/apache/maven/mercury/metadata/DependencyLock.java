@@ -0,0 +1,619 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.mercury.artifact.Artifact;
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.ArtifactQueryList;
+import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
+import org.apache.maven.mercury.artifact.MetadataTreeNode;
+import org.apache.maven.mercury.artifact.Quality;
+import org.apache.maven.mercury.artifact.QualityEnum;
+import org.apache.maven.mercury.builder.api.MetadataReaderException;
+import org.apache.maven.mercury.crypto.basic.ChecksumCalculator;
+import org.apache.maven.mercury.repository.api.RepositoryReader;
+import org.apache.maven.mercury.util.FileUtil;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+
+/**
+ * resolution lock: resolved classpath of each request together with the fingerprint of the request, the repository
+ * each artifact came from and it's SHA-1. DependencyTreeBuilder, configured with a lock, replays the locked requests
+ * without reading any metadata and records the rest.
+ * <p/>
+ * A request is owned by the GAs it queries: one lock holds any number of requests in a scope, but a changed request
+ * of the same owner - new version, different management or policies - makes the lock stale.
+ * <p/>
+ * File format is one line per record:
+ *
+ * <pre>
+ * request  &lt;resolution scope&gt; &lt;owner&gt; &lt;fingerprint&gt;
+ * artifact &lt;fingerprint&gt; &lt;G:A:V:C:T&gt; &lt;scope&gt; &lt;repository id&gt; &lt;sha1&gt;
+ * </pre>
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class DependencyLock
+{
+    public static final String LOCK_FILE_HEADER = "# mercury dependency lock";
+
+    /** resolution scope of the requests, made without a scope */
+    private static final String ALL_SCOPES = "all";
+
+    private static final String NONE = "-";
+
+    private static final String REQUEST = "request";
+
+    private static final String ARTIFACT = "artifact";
+
+    private static final Language LANG = new DefaultLanguage( DependencyLock.class );
+
+    /** resolution scope + fingerprint to the request */
+    private Map<String, Request> _requests = new LinkedHashMap<String, Request>( 4 );
+
+    /** resolution scope + owner to the request */
+    private Map<String, Request> _owners = new HashMap<String, Request>( 4 );
+
+    /** entries of all the requests by GAV, built on first verification */
+    private Map<String, List<Entry>> _index;
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * one locked resolution
+     */
+    static class Request
+    {
+        String scope;
+
+        String owner;
+
+        String fingerprint;
+
+        List<Entry> entries = new ArrayList<Entry>( 32 );
+
+        Request( String scope, String owner, String fingerprint )
+        {
+            this.scope = scope;
+            this.owner = owner;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * one locked artifact
+     */
+    static class Entry
+    {
+        ArtifactMetadata md;
+
+        String repoId;
+
+        String sha1;
+
+        /** request this artifact was locked for */
+        Request request;
+
+        Entry( ArtifactMetadata md, String repoId, String sha1 )
+        {
+            this.md = md;
+            this.repoId = repoId;
+            this.sha1 = sha1;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public boolean isLocked( ArtifactScopeEnum scope )
+    {
+        String scopeName = getScopeName( scope );
+
+        for ( Request r : _requests.values() )
+            if ( r.scope.equals( scopeName ) )
+                return true;
+
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * owner of the request: the GAs it queries, versions and order aside
+     */
+    public static String getOwner( ArtifactQueryList artifacts )
+    {
+        List<String> gas = new ArrayList<String>( artifacts.size() );
+
+        for ( ArtifactMetadata md : artifacts.getMetadataList() )
+            gas.add( md.getGA() );
+
+        Collections.sort( gas );
+
+        try
+        {
+            return sha1( gas.toString().getBytes( FileUtil.DEFAULT_CHARSET ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * locked classpath of the request
+     *
+     * @param owner owner of the request to replay
+     * @param fingerprint fingerprint of the request to replay
+     * @return copy of the locked classpath with trackers not set, null if this request is not locked
+     * @throws MetadataTreeException if the owner locked a different request in this scope
+     */
+    public List<ArtifactMetadata> getClasspath( ArtifactScopeEnum scope, String owner, String fingerprint )
+        throws MetadataTreeException
+    {
+        Request r = _requests.get( getKey( scope, fingerprint ) );
+
+        if ( r == null )
+        {
+            if ( _owners.containsKey( getKey( scope, owner ) ) )
+                throw new MetadataTreeException( LANG.getMessage( "lock.stale", getScopeName( scope ) ) );
+
+            return null;
+        }
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( r.entries.size() );
+
+        for ( Entry e : r.entries )
+            res.add( new ArtifactMetadata( e.md ) );
+
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * repository the locked artifact was resolved from
+     *
+     * @param fingerprint fingerprint of the request the artifact was locked for
+     * @return repository id or null if unknown
+     */
+    public String getRepositoryId( ArtifactScopeEnum scope, String fingerprint, ArtifactMetadata md )
+    {
+        Request r = _requests.get( getKey( scope, fingerprint ) );
+
+        if ( r == null )
+            return null;
+
+        List<Entry> entries = getIndex().get( md.toString() );
+
+        if ( entries == null )
+            return null;
+
+        for ( Entry e : entries )
+            if ( e.request == r )
+                return e.repoId;
+
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * lock the classpath, resolved for the scope. SHA-1 of each binary is taken from the repository the artifact was
+     * resolved from
+     */
+    public void lock( ArtifactScopeEnum scope, String owner, String fingerprint, List<ArtifactMetadata> classpath )
+    {
+        Request r = new Request( getScopeName( scope ), owner, fingerprint );
+
+        if ( classpath != null )
+            for ( ArtifactMetadata md : classpath )
+                r.entries.add( createEntry( md, r ) );
+
+        add( r );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * lock all the nodes of the resolved tree. Tree structure is not preserved
+     */
+    public void lock( ArtifactScopeEnum scope, String owner, String fingerprint, MetadataTreeNode root )
+    {
+        List<ArtifactMetadata> classpath = new ArrayList<ArtifactMetadata>( 32 );
+
+        if ( root != null )
+            collect( root, classpath, new HashSet<String>( 32 ) );
+
+        lock( scope, owner, fingerprint, classpath );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * the owner's previous request in this scope, if any, is replaced
+     */
+    private void add( Request r )
+    {
+        Request old = _owners.put( r.scope + " " + r.owner, r );
+
+        if ( old != null )
+            _requests.remove( old.scope + " " + old.fingerprint );
+
+        _requests.put( r.scope + " " + r.fingerprint, r );
+
+        _index = null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * check the binaries read for the locked classpath. Missing checksums are recorded
+     *
+     * @param results results of VirtualRepositoryReader.readArtifacts()
+     * @throws MetadataTreeException if a binary differs from the locked one
+     */
+    public void verifyChecksums( Map<ArtifactMetadata, List<Artifact>> results )
+        throws MetadataTreeException
+    {
+        if ( results == null )
+            return;
+
+        Map<String, List<Entry>> index = getIndex();
+
+        for ( Map.Entry<ArtifactMetadata, List<Artifact>> re : results.entrySet() )
+        {
+            List<Artifact> artifacts = re.getValue();
+
+            if ( artifacts == null )
+                continue;
+
+            for ( Artifact a : artifacts )
+            {
+                File f = a.getFile();
+
+                if ( f == null || !f.exists() || isSnapshot( re.getKey() ) )
+                    continue;
+
+                String gav = re.getKey().toString();
+
+                List<Entry> entries = index.get( gav );
+
+                if ( entries == null )
+                    continue;
+
+                String sha1 = sha1( f );
+
+                for ( Entry e : entries )
+                {
+                    if ( e.sha1 == null )
+                        e.sha1 = sha1;
+                    else if ( !e.sha1.equalsIgnoreCase( sha1 ) )
+                        throw new MetadataTreeException( LANG.getMessage( "lock.checksum.mismatch", gav, e.sha1,
+                                                                          sha1, f.getAbsolutePath() ) );
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private Map<String, List<Entry>> getIndex()
+    {
+        if ( _index != null )
+            return _index;
+
+        Map<String, List<Entry>> index = new HashMap<String, List<Entry>>( 64 );
+
+        for ( Request r : _requests.values() )
+            for ( Entry e : r.entries )
+            {
+                String gav = e.md.toString();
+
+                List<Entry> entries = index.get( gav );
+
+                if ( entries == null )
+                {
+                    entries = new ArrayList<Entry>( 2 );
+                    index.put( gav, entries );
+                }
+
+                entries.add( e );
+            }
+
+        _index = index;
+
+        return index;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public static DependencyLock read( File f )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( f );
+
+        try
+        {
+            return read( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public static DependencyLock read( InputStream in )
+        throws IOException
+    {
+        DependencyLock lock = new DependencyLock();
+
+        BufferedReader br = new BufferedReader( new InputStreamReader( in, FileUtil.DEFAULT_CHARSET ) );
+
+        Map<String, Request> fingerprints = new HashMap<String, Request>( 4 );
+
+        int lineNo = 0;
+
+        for ( String line = br.readLine(); line != null; line = br.readLine() )
+        {
+            lineNo++;
+
+            line = line.trim();
+
+            if ( line.length() < 1 || line.startsWith( "#" ) )
+                continue;
+
+            String[] tokens = line.split( "\\s+" );
+
+            if ( REQUEST.equals( tokens[0] ) && tokens.length == 4 )
+            {
+                Request r = new Request( tokens[1], tokens[2], tokens[3] );
+
+                lock.add( r );
+
+                fingerprints.put( r.fingerprint, r );
+
+                continue;
+            }
+
+            Request r = tokens.length == 6 ? fingerprints.get( tokens[1] ) : null;
+
+            if ( !ARTIFACT.equals( tokens[0] ) || r == null )
+                throw new IOException( LANG.getMessage( "lock.bad.line", "" + lineNo, line ) );
+
+            ArtifactMetadata md = new ArtifactMetadata( tokens[2] );
+            md.setScope( tokens[3] );
+
+            Entry e = new Entry( md, nullify( tokens[4] ), nullify( tokens[5] ) );
+            e.request = r;
+
+            r.entries.add( e );
+        }
+
+        return lock;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public void write( File f )
+        throws IOException
+    {
+        if ( f.getParentFile() != null )
+            f.getParentFile().mkdirs();
+
+        OutputStream out = new FileOutputStream( f );
+
+        try
+        {
+            write( out );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public void write( OutputStream out )
+        throws IOException
+    {
+        Writer w = new OutputStreamWriter( out, FileUtil.DEFAULT_CHARSET );
+
+        w.write( LOCK_FILE_HEADER + "\n" );
+
+        for ( Request r : _requests.values() )
+        {
+            w.write( REQUEST + " " + r.scope + " " + r.owner + " " + r.fingerprint + "\n" );
+
+            for ( Entry e : r.entries )
+                w.write( ARTIFACT + " " + r.fingerprint + " " + e.md.toString() + " " + e.md.getArtifactScope().name() + " "
+                    + nvl( e.repoId ) + " " + nvl( e.sha1 ) + "\n" );
+        }
+
+        w.flush();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static Entry createEntry( ArtifactMetadata md, Request r )
+    {
+        ArtifactMetadata lmd = new ArtifactMetadata( md );
+        lmd.setTracker( null );
+
+        Object tracker = md.getTracker();
+
+        RepositoryReader rr = tracker instanceof RepositoryReader ? (RepositoryReader) tracker : null;
+
+        Entry e = new Entry( lmd, rr == null ? null : rr.getRepository().getId(), findSha1( md, rr ) );
+        e.request = r;
+
+        return e;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * SHA-1 the repository publishes for the binary. A local repository without one gets its binary hashed, a remote
+     * one is not asked for the binary - the checksum is recorded when the binary is verified
+     *
+     * @return null if unknown
+     */
+    private static String findSha1( ArtifactMetadata md, RepositoryReader rr )
+    {
+        if ( rr == null || isSnapshot( md ) )
+            return null;
+
+        try
+        {
+            byte[] published = rr.readRawData( md, md.getClassifier(), md.getCheckedType() + ".sha1" );
+
+            if ( published != null )
+            {
+                // sha1sum format: the checksum may be followed by the file name
+                String[] tokens = new String( published, FileUtil.DEFAULT_CHARSET ).trim().split( "\\s+" );
+
+                if ( tokens[0].length() == 40 )
+                    return tokens[0].toLowerCase();
+            }
+
+            if ( !rr.getRepository().isLocal() )
+                return null;
+
+            byte[] binary = rr.readRawData( md, md.getClassifier(), md.getCheckedType() );
+
+            return binary == null ? null : sha1( binary );
+        }
+        catch ( MetadataReaderException e )
+        {
+            return null;
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            return null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static void collect( MetadataTreeNode node, List<ArtifactMetadata> classpath, Set<String> seen )
+    {
+        ArtifactMetadata md = node.getMd();
+
+        if ( md != null && !DependencyTreeBuilder.isVirtual( md ) && seen.add( md.toString() ) )
+            classpath.add( md );
+
+        if ( node.hasChildren() )
+            for ( MetadataTreeNode kid : node.getChildren() )
+                collect( kid, classpath, seen );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String sha1( File f )
+        throws MetadataTreeException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+
+            InputStream in = new FileInputStream( f );
+
+            try
+            {
+                byte[] buf = new byte[FileUtil.DEFAULT_BUFFER_SIZE];
+
+                for ( int n = in.read( buf ); n != -1; n = in.read( buf ) )
+                    digest.update( buf, 0, n );
+            }
+            finally
+            {
+                in.close();
+            }
+
+            return ChecksumCalculator.encodeToAsciiHex( digest.digest() );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+        catch ( IOException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String sha1( byte[] bytes )
+        throws NoSuchAlgorithmException
+    {
+        MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+
+        return ChecksumCalculator.encodeToAsciiHex( digest.digest( bytes ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static boolean isSnapshot( ArtifactMetadata md )
+    {
+        return md.getVersion() == null || new Quality( md.getVersion() ).getQuality() == QualityEnum.snapshot;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String getScopeName( ArtifactScopeEnum scope )
+    {
+        return scope == null ? ALL_SCOPES : scope.name();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String getKey( ArtifactScopeEnum scope, String id )
+    {
+        return getScopeName( scope ) + " " + id;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String nvl( String s )
+    {
+        return s == null ? NONE : s;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String nullify( String s )
+    {
+        return NONE.equals( s ) ? null : s;
+    }
+    // ----------------------------------------------------------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------------------------------------------------------
+}
@@ -21,17 +21,21 @@ package org.apache.maven.mercury.metadata;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.maven.mercury.artifact.ArtifactExclusionList;
 import org.apache.maven.mercury.artifact.ArtifactInclusionList;
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
 import org.apache.maven.mercury.artifact.ArtifactQueryList;
 import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
+import org.apache.maven.mercury.artifact.CompactMetadataTree;
 import org.apache.maven.mercury.artifact.MetadataTreeNode;
 import org.apache.maven.mercury.artifact.api.ArtifactListProcessor;
 import org.apache.maven.mercury.artifact.api.ConfigurationException;
@@ -44,10 +48,14 @@ import org.apache.maven.mercury.event.MercuryEventListener;
 import org.apache.maven.mercury.logging.IMercuryLogger;
 import org.apache.maven.mercury.logging.MercuryLoggerManager;
 import org.apache.maven.mercury.metadata.sat.DefaultSatSolver;
+import org.apache.maven.mercury.metadata.sat.NearestWinsSatSolver;
 import org.apache.maven.mercury.metadata.sat.SatException;
+import org.apache.maven.mercury.metadata.sat.SatSession;
+import org.apache.maven.mercury.metadata.sat.SatSolver;
 import org.apache.maven.mercury.repository.api.MetadataResults;
 import org.apache.maven.mercury.repository.api.Repository;
 import org.apache.maven.mercury.repository.api.RepositoryException;
+import org.apache.maven.mercury.repository.virtual.DependencyGraphCache;
 import org.apache.maven.mercury.repository.virtual.VirtualRepositoryReader;
 import org.apache.maven.mercury.util.Util;
 import org.codehaus.plexus.lang.DefaultLanguage;
@@ -64,6 +72,11 @@ class DependencyTreeBuilder
 {
     public static final ArtifactMetadata DUMMY_ROOT = new ArtifactMetadata( "__fake:__fake:1.0" );
 
+    /** roots of the batch resolution are named after it, followed by the root's index */
+    private static final String BATCH_ROOT_ARTIFACT_ID = "__root";
+
+    private static final String REACTOR_ROOT_ARTIFACT_ID = "__reactor";
+
     private static final Language LANG = new DefaultLanguage( DependencyTreeBuilder.class );
 
     public static final String SYSTEM_PROPERTY_DUMP_DEPENDENCY_TREE = "mercury.dump.tree";
@@ -83,8 +96,19 @@ class DependencyTreeBuilder
 
     private Map<String, ArtifactListProcessor> _processors;
 
+    private Collection<Repository> _repositories;
+
     private VirtualRepositoryReader _reader;
 
+    /** resolved classpaths, null if not cached */
+    private ResolutionCache _resolutionCache;
+
+    /** if not null - locked scopes are replayed, the rest is recorded */
+    private DependencyLock _lock;
+
+    /** if not null - conflicts are resolved incrementally, in this session */
+    private SatSession _satSession;
+
     private Map<String, MetadataTreeNode> _existingNodes;
 
     private EventManager _eventManager;
@@ -95,6 +119,28 @@ class DependencyTreeBuilder
     /** mandated versions in the format G:A:T[:C] -> V */
     private Map<String, ArtifactMetadata> _versionMap;
 
+    private int _buildThreads = Util.getIntProperty( SYSTEM_PROPERTY_TREE_BUILD_THREADS, 0 );
+
+    private boolean _compactTree = Boolean.parseBoolean( System.getProperty( SYSTEM_PROPERTY_COMPACT_TREE, "false" ) );
+
+    /** store the current tree is built into, null if it's built of regular nodes */
+    private CompactMetadataTree _store;
+
+    private boolean _pruneTree = Boolean.parseBoolean( System.getProperty( SYSTEM_PROPERTY_PRUNE_TREE, "false" ) );
+
+    private int _satThreads = Util.getIntProperty( SYSTEM_PROPERTY_SAT_THREADS, 0 );
+
+    private long _satTimeout = Util.getLongProperty( SYSTEM_PROPERTY_SAT_TIMEOUT, 0L );
+
+    /** GA to it's committed version - the only choice all the way from the root. Null if not pruning */
+    private Map<String, Commitment> _commitments;
+
+    /** candidates dropped while building the current trees, null if not pruning */
+    private List<Pruned> _pruned;
+
+    /** parallel reads of the current tree, null if the tree is built sequentially */
+    private DependencyTreePrefetcher _prefetcher;
+
     class TruckLoad
     {
         List<ArtifactMetadata> cp;
@@ -151,6 +197,8 @@ class DependencyTreeBuilder
         if ( processors != null )
             _processors = processors;
 
+        this._repositories = repositories;
+
         this._reader = new VirtualRepositoryReader( repositories );
     }
 
@@ -161,24 +209,41 @@ class DependencyTreeBuilder
         if ( startMD == null )
             throw new MetadataTreeException( "null start point" );
 
-        try
-        {
-            _reader.setEventManager( _eventManager );
-            _reader.setProcessors( _processors );
-            _reader.init();
-        }
-        catch ( RepositoryException e )
-        {
-            throw new MetadataTreeException( e );
-        }
+        initReader();
 
         _existingNodes = new HashMap<String, MetadataTreeNode>( 256 );
 
+        initPruning();
+
         GenericEvent treeBuildEvent = null;
         if ( _eventManager != null )
             treeBuildEvent = new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_BUILD_EVENT, startMD.getGAV() );
 
-        MetadataTreeNode root = createNode( startMD, null, startMD, treeScope );
+        MetadataTreeNode root;
+
+        try
+        {
+            if ( _buildThreads > 1 )
+            {
+                _prefetcher = new DependencyTreePrefetcher( _reader, _buildThreads, _versionMap, _filters, _eventManager );
+                _prefetcher.setPruning( _commitments != null );
+                _prefetcher.prefetch( startMD, treeScope );
+            }
+
+            if ( _compactTree )
+                _store = new CompactMetadataTree();
+
+            root = createNode( startMD, null, startMD, treeScope );
+
+            if ( !isPruningExact( root, treeScope ) )
+                unprune( root, treeScope );
+        }
+        finally
+        {
+            _prefetcher = null;
+
+            releaseStore();
+        }
 //
 //try
 //{
@@ -201,398 +266,1486 @@ class DependencyTreeBuilder
     }
 
     // ------------------------------------------------------------------------
-    public List<ArtifactMetadata> resolveConflicts( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
-                                                    ArtifactInclusionList inclusions, ArtifactExclusionList exclusions )
-        throws MetadataTreeException
+    /**
+     * the compact tree is built: the node map holds it's views, they go
+     */
+    private void releaseStore()
     {
-        TruckLoad tl = resolveConflictsInternally( scope, artifacts, inclusions, exclusions, false );
+        if ( _store == null )
+            return;
+
+        _existingNodes.clear();
 
-        return tl == null ? null : tl.cp;
+        _store = null;
     }
 
     // ------------------------------------------------------------------------
-    public MetadataTreeNode resolveConflictsAsTree( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
-                                                    ArtifactInclusionList inclusions, ArtifactExclusionList exclusions )
-        throws MetadataTreeException
+    /**
+     * cached views of a compact tree are only needed while it's solved
+     */
+    private static void releaseViews( MetadataTreeNode root )
     {
-        TruckLoad tl = resolveConflictsInternally( scope, artifacts, inclusions, exclusions, true );
-
-        return tl == null ? null : tl.root;
+        if ( root instanceof CompactMetadataTree.Node )
+            ( (CompactMetadataTree.Node) root ).getTree().releaseViews();
     }
 
     // ------------------------------------------------------------------------
-    public TruckLoad resolveConflictsInternally( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
-                                                 ArtifactInclusionList inclusions, ArtifactExclusionList exclusions,
-                                                 boolean asTree )
+    private void initReader()
+        throws MetadataTreeException
+    {
+        try
+        {
+            _reader.setEventManager( _eventManager );
+            _reader.setProcessors( _processors );
+            _reader.init();
+        }
+        catch ( RepositoryException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+    }
 
+    // ------------------------------------------------------------------------
+    public List<List<ArtifactMetadata>> resolveConflicts( ArtifactScopeEnum scope, List<ArtifactQueryList> roots,
+                                                          ArtifactInclusionList inclusions,
+                                                          ArtifactExclusionList exclusions, boolean jointly )
         throws MetadataTreeException
     {
-        if ( artifacts == null )
+        if ( Util.isEmpty( roots ) )
             throw new MetadataTreeException( LANG.getMessage( "empty.md.collection" ) );
 
-        List<ArtifactMetadata> startMDs = artifacts.getMetadataList();
+        List<ArtifactMetadata> rootMDs = new ArrayList<ArtifactMetadata>( roots.size() );
 
-        if ( Util.isEmpty( startMDs ) )
-            throw new MetadataTreeException( LANG.getMessage( "empty.md.collection" ) );
+        for ( ArtifactQueryList artifacts : roots )
+        {
+            if ( artifacts == null || artifacts.isEmpty() )
+                throw new MetadataTreeException( LANG.getMessage( "empty.md.collection" ) );
 
-        int nodeCount = startMDs.size();
+            ArtifactMetadata rmd = createVirtualRoot( BATCH_ROOT_ARTIFACT_ID + rootMDs.size() );
+            rmd.setInclusions( Util.isEmpty( inclusions ) ? null : inclusions.getMetadataList() );
+            rmd.setExclusions( Util.isEmpty( exclusions ) ? null : exclusions.getMetadataList() );
+            rmd.setDependencies( new ArrayList<ArtifactMetadata>( artifacts.getMetadataList() ) );
 
-        if ( nodeCount == 1 && inclusions == null && exclusions == null )
-        {
-            ArtifactMetadata bmd = startMDs.get( 0 );
-            MetadataTreeNode rooty = buildTree( bmd, scope );
+            rootMDs.add( rmd );
+        }
 
-            TruckLoad tl = null;
+        List<List<ArtifactMetadata>> res = new ArrayList<List<ArtifactMetadata>>( roots.size() );
 
-            if ( asTree )
-            {
-                MetadataTreeNode tr = resolveConflictsAsTree( rooty );
+        if ( !jointly )
+        {
+            List<MetadataTreeNode> trees = buildTrees( rootMDs, null, scope );
 
-                tl = new TruckLoad( tr );
-            }
-            else
+            for ( int i = 0; i < trees.size(); i++ )
             {
-                List<ArtifactMetadata> res = resolveConflicts( rooty );
+                // the trees share subtrees, each one is numbered right before it's solved
+                MetadataTreeNode.reNumber( trees.get( i ), 1 );
+
+                List<ArtifactMetadata> cp = resolveConflicts( trees.get( i ) );
 
-                tl = new TruckLoad( res );
+                if ( cp != null )
+                    cp.remove( rootMDs.get( i ) );
 
-                if ( _dumpDepTree )
-                    _dumper.dump( scope, artifacts, inclusions, exclusions, rooty, res );
+                res.add( cp );
             }
 
-            return tl;
+            return res;
         }
 
-        DUMMY_ROOT.setInclusions( Util.isEmpty(inclusions) ? null : inclusions.getMetadataList() );
-        DUMMY_ROOT.setExclusions( Util.isEmpty(exclusions) ? null : exclusions.getMetadataList() );
+        MetadataTreeNode reactor = buildReactor( rootMDs, scope );
 
-        MetadataTreeNode root = null;
+        MetadataTreeNode.reNumber( reactor, 1 );
 
-        // dependencyManagement
-        applyVersionManagement( startMDs, _versionMap );
+        MetadataTreeNode solution = resolveConflictsAsTree( reactor );
 
-        // apply scoping & inclusions/exclusions
-        List<ArtifactMetadata> filteredMDs = filterScopeAndLusions( startMDs, scope, new MetadataTreeNode( DUMMY_ROOT, null, null  ));
-        
-        if( Util.isEmpty( filteredMDs ) )
-            return null;
-        
-        nodeCount = filteredMDs.size();
-        
-        DUMMY_ROOT.setDependencies( filteredMDs );
-        root = buildTree( DUMMY_ROOT, scope );
+        Map<String, MetadataTreeNode> solvedRoots = new HashMap<String, MetadataTreeNode>( rootMDs.size() );
 
-        TruckLoad tl = null;
+        if ( solution != null && solution.hasChildren() )
+            for ( MetadataTreeNode solvedRoot : solution.getChildren() )
+                solvedRoots.put( solvedRoot.getMd().toString(), solvedRoot );
 
-        if ( asTree )
+        for ( ArtifactMetadata rmd : rootMDs )
         {
-            MetadataTreeNode tr = resolveConflictsAsTree( root );
+            MetadataTreeNode solvedRoot = solvedRoots.get( rmd.toString() );
 
-            tl = new TruckLoad( tr );
-        }
-        else
-        {
-            List<ArtifactMetadata> cp = resolveConflicts( root );
+            if ( solvedRoot == null )
+            {
+                res.add( null );
+                continue;
+            }
 
-            if ( cp != null )
-                cp.remove( DUMMY_ROOT );
+            List<ArtifactMetadata> cp = new ArrayList<ArtifactMetadata>( 32 );
 
-            if ( _dumpDepTree )
-                _dumper.dump( scope, artifacts, inclusions, exclusions, root, cp );
+            collectClasspath( solvedRoot, cp, new HashSet<String>( 64 ) );
 
-            tl = new TruckLoad( cp );
+            res.add( cp );
         }
 
-        return tl;
+        return res;
     }
 
+    // ------------------------------------------------------------------------
     /**
-     * @param startMDs
-     * @param scope
-     * @param dummyRoot
-     * @return
-     * @throws MetadataTreeException 
+     * one more virtual root on top of all: every GA gets one version for all the roots
      */
-    private List<ArtifactMetadata> filterScopeAndLusions( List<ArtifactMetadata> startMDs
-                                                          , ArtifactScopeEnum scope
-                                                          , MetadataTreeNode node
-                                                        )
-    throws MetadataTreeException
+    private MetadataTreeNode buildReactor( List<ArtifactMetadata> rootMDs, ArtifactScopeEnum scope )
+        throws MetadataTreeException
     {
-        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( startMDs.size() );
-        
-        int depth = node.getDepth() + 1;
-        
-        ArtifactMetadata [] parents = new ArtifactMetadata[ depth ];
+        ArtifactMetadata reactorMD = createVirtualRoot( REACTOR_ROOT_ARTIFACT_ID );
 
-        int i=0;
-        
-        for( MetadataTreeNode n = node; n != null; n = n.getParent() )
-            parents[i++] = n.getMd();
-        
-        for( ArtifactMetadata md : startMDs )
-        {
-            // scoping
-            if ( scope != null && !scope.encloses( md.getArtifactScope() ) )
-                continue;
+        MetadataTreeNode reactor =
+            _compactTree ? new CompactMetadataTree().createNode( null, reactorMD, reactorMD )
+                            : new MetadataTreeNode( reactorMD, null, reactorMD );
 
-            try
-            {
-                // inclusions / exclusions to the top
-                for( ArtifactMetadata nMd : parents)
-                    if ( !nMd.allowDependency( md ) )
-                        continue;
-            }
-            catch ( VersionException e )
-            {
-                throw new MetadataTreeException( e );
-            }
-            
-            res.add( md );
-        }
-        return res;
+        buildTrees( rootMDs, reactor, scope );
+
+        return reactor;
     }
 
+    // ------------------------------------------------------------------------
     /**
-     * @param startMDs
-     * @param map
+     * builds the trees of all the roots with one node map, so that the common subtrees are built only once
+     * 
+     * @param parent parent of all the roots, they are added to it. Null if they are independent
      */
-    private void applyVersionManagement( List<ArtifactMetadata> dependencies, Map<String, ArtifactMetadata> versionMap )
+    private List<MetadataTreeNode> buildTrees( List<ArtifactMetadata> rootMDs, MetadataTreeNode parent,
+                                               ArtifactScopeEnum scope )
+        throws MetadataTreeException
     {
-        if ( Util.isEmpty( versionMap ) || Util.isEmpty( dependencies ) )
-            return;
-        
-        for ( ArtifactMetadata am : dependencies )
-        {
-            String key = am.toManagementString();
-            ArtifactMetadata ver = versionMap.get( key );
-            if ( ver != null )
-            {
-                if ( LOG.isDebugEnabled() )
-                    LOG.debug( "managed replacement: " + am + " -> " + ver );
+        initReader();
 
-                if ( _eventManager != null )
-                {
-                    GenericEvent replaceEvent =
-                        new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_NODE_VERSION_REPLACE_EVENT,
-                                          "managed replacement: " + am + " -> " + ver );
-                    replaceEvent.stop();
-                    _eventManager.fireEvent( replaceEvent );
-                }
+        _existingNodes = new HashMap<String, MetadataTreeNode>( 256 * rootMDs.size() );
 
-                am.setVersion( ver.getVersion() );
-                am.setInclusions( ver.getInclusions() );
-                am.setExclusions( ver.getExclusions() );
-                am.setOptional( ver.isOptional() );
-            }
-        }
-    }
-
-    // -----------------------------------------------------
-    private MetadataTreeNode createNode( ArtifactMetadata nodeMD, MetadataTreeNode parent, ArtifactMetadata nodeQuery,
-                                         ArtifactScopeEnum globalScope )
-        throws MetadataTreeException
-    {
-        GenericEvent nodeBuildEvent = null;
+        initPruning();
 
+        GenericEvent treeBuildEvent = null;
         if ( _eventManager != null )
-            nodeBuildEvent = new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_NODE_BUILD_EVENT, nodeMD.getGAV() );
+            treeBuildEvent =
+                new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_BUILD_EVENT, "batch of " + rootMDs.size() );
+
+        List<MetadataTreeNode> trees = new ArrayList<MetadataTreeNode>( rootMDs.size() );
 
         try
         {
-            try
+            if ( _buildThreads > 1 )
             {
-                checkForCircularDependency( nodeMD, parent );
+                _prefetcher = new DependencyTreePrefetcher( _reader, _buildThreads, _versionMap, _filters, _eventManager );
+                _prefetcher.setPruning( _commitments != null );
+                _prefetcher.prefetch( rootMDs, scope );
             }
-            catch ( MetadataTreeCircularDependencyException e )
+
+            // all the trees go into one store - they share the node map
+            if ( parent instanceof CompactMetadataTree.Node )
+                _store = ( (CompactMetadataTree.Node) parent ).getTree();
+            else if ( _compactTree )
+                _store = new CompactMetadataTree( 256 * rootMDs.size() );
+
+            for ( ArtifactMetadata rmd : rootMDs )
             {
-                if ( _allowCircularDependencies )
+                // independent trees do not compete
+                if ( _commitments != null && parent == null )
+                    _commitments.clear();
+
+                MetadataTreeNode tree = createNode( rmd, parent, rmd, scope );
+
+                // the trees under a common parent are checked together, once they are all in
+                if ( parent == null && !isPruningExact( tree, scope ) )
                 {
-                    String line = LANG.getMessage( "attention.line" );
-                    LOG.info( line + e.getMessage() + line );
-                    return null;
+                    unprune( tree, scope );
+
+                    initPruning();
+
+                    if ( _prefetcher != null )
+                        _prefetcher.setPruning( _commitments != null );
                 }
-                else
-                    throw e;
+
+                trees.add( tree );
             }
 
-            ArtifactMetadata mr;
+            if ( parent != null )
+            {
+                for ( MetadataTreeNode tree : trees )
+                {
+                    parent.addQuery( tree.getQuery() );
+                    parent.addChild( tree );
+                }
 
-            MetadataTreeNode existingNode = _existingNodes.get( nodeQuery.toString() );
+                if ( !isPruningExact( parent, scope ) )
+                    unprune( parent, scope );
+            }
+        }
+        finally
+        {
+            _prefetcher = null;
 
-            if ( existingNode != null )
-                return MetadataTreeNode.deepCopy( existingNode );
+            releaseStore();
 
-            if ( DUMMY_ROOT.equals( nodeMD ) )
-                mr = DUMMY_ROOT;
-            else
-                mr = _reader.readDependencies( nodeMD );
+            if ( _eventManager != null )
+            {
+                treeBuildEvent.stop();
+                _eventManager.fireEvent( treeBuildEvent );
+            }
+        }
 
-            if ( mr == null )
-                throw new MetadataTreeException( LANG.getMessage( "artifact.md.not.found", nodeMD.toString() ) );
+        return trees;
+    }
 
-            MetadataTreeNode node = new MetadataTreeNode( mr, parent, nodeQuery );
+    // ------------------------------------------------------------------------
+    private static ArtifactMetadata createVirtualRoot( String artifactId )
+    {
+        return new ArtifactMetadata( DUMMY_ROOT.getGroupId() + ":" + artifactId + ":" + DUMMY_ROOT.getVersion() );
+    }
 
-            List<ArtifactMetadata> allDependencies = mr.getDependencies();
+    // ------------------------------------------------------------------------
+    /**
+     * virtual nodes - the dummy root and the batch roots - carry their dependencies, nothing is read for them
+     */
+    static boolean isVirtual( ArtifactMetadata md )
+    {
+        return DUMMY_ROOT.getGroupId().equals( md.getGroupId() );
+    }
 
-            if ( allDependencies == null || allDependencies.size() < 1 )
-                return node;
+    // ------------------------------------------------------------------------
+    private static void collectClasspath( MetadataTreeNode node, List<ArtifactMetadata> cp, Set<String> seen )
+    {
+        ArtifactMetadata md = node.getMd();
 
-            // first time filtering, ranges will pass 
-            // through here, unless map is a GA entry
-            applyVersionManagement( allDependencies, _versionMap );
+        if ( !isVirtual( md ) && seen.add( md.toString() ) )
+            cp.add( md );
 
-            List<ArtifactMetadata> dependencies = filterScopeAndLusions( allDependencies, globalScope, node );
-            
-//                new ArrayList<ArtifactMetadata>( allDependencies.size() );
-//            
-//            if ( globalScope != null )
-//                for ( ArtifactMetadata md : allDependencies )
-//                {
-//                    ArtifactScopeEnum mdScope = md.getArtifactScope();
-//                    if ( globalScope.encloses( mdScope ) )
+        if ( node.hasChildren() )
+            for ( MetadataTreeNode kid : node.getChildren() )
+                collectClasspath( kid, cp, seen );
+    }
+
+    // ------------------------------------------------------------------------
+    public List<ArtifactMetadata> resolveConflicts( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                                    ArtifactInclusionList inclusions, ArtifactExclusionList exclusions )
+        throws MetadataTreeException
+    {
+        String lockOwner = null;
+
+        String lockKey = null;
+
+        List<ArtifactMetadata> cp = null;
+
+        if ( _lock != null )
+        {
+            lockOwner = DependencyLock.getOwner( artifacts );
+
+            lockKey = fingerprint( scope, artifacts, inclusions, exclusions, null );
+
+            cp = replay( scope, lockOwner, lockKey );
+
+            if ( cp != null )
+                return cp;
+        }
+
+        String key = null;
+
+        if ( _resolutionCache != null )
+        {
+            key = fingerprint( scope, artifacts, inclusions, exclusions, _repositories );
+
+            cp = _resolutionCache.find( key, _repositories, _reader );
+        }
+
+        if ( cp == null )
+        {
+            TruckLoad tl = resolveConflictsInternally( scope, artifacts, inclusions, exclusions, false );
+
+            cp = tl == null ? null : tl.cp;
+
+            if ( key != null )
+                _resolutionCache.save( key, cp );
+        }
+
+        if ( lockKey != null )
+            _lock.lock( scope, lockOwner, lockKey, cp );
+
+        return cp;
+    }
+
+    // ------------------------------------------------------------------------
+    public MetadataTreeNode resolveConflictsAsTree( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                                    ArtifactInclusionList inclusions, ArtifactExclusionList exclusions )
+        throws MetadataTreeException
+    {
+        String lockOwner = null;
+
+        String lockKey = null;
+
+        if ( _lock != null )
+        {
+            lockOwner = DependencyLock.getOwner( artifacts );
+
+            lockKey = fingerprint( scope, artifacts, inclusions, exclusions, null );
+
+            List<ArtifactMetadata> cp = replay( scope, lockOwner, lockKey );
+
+            if ( cp != null )
+                return createFlatTree( artifacts, inclusions, exclusions, cp );
+        }
+
+        TruckLoad tl = resolveConflictsInternally( scope, artifacts, inclusions, exclusions, true );
+
+        MetadataTreeNode root = tl == null ? null : tl.root;
+
+        if ( lockKey != null )
+            _lock.lock( scope, lockOwner, lockKey, root );
+
+        return root;
+    }
+
+    // ------------------------------------------------------------------------
+    public Map<ArtifactScopeEnum, List<ArtifactMetadata>> resolveConflicts( Collection<ArtifactScopeEnum> scopes,
+                                                                            ArtifactQueryList artifacts,
+                                                                            ArtifactInclusionList inclusions,
+                                                                            ArtifactExclusionList exclusions )
+        throws MetadataTreeException
+    {
+        if ( Util.isEmpty( scopes ) )
+            throw new MetadataTreeException( LANG.getMessage( "empty.scope.collection" ) );
+
+        Map<ArtifactScopeEnum, List<ArtifactMetadata>> res =
+            new LinkedHashMap<ArtifactScopeEnum, List<ArtifactMetadata>>( scopes.size() );
+
+        // only the scopes that take in the default one can be cut out of the wide tree
+        List<ArtifactScopeEnum> shared = new ArrayList<ArtifactScopeEnum>( scopes.size() );
+
+        Map<ArtifactScopeEnum, List<ArtifactMetadata>> cached = new HashMap<ArtifactScopeEnum, List<ArtifactMetadata>>( 4 );
+
+        // version management changes the query while building, so the keys are calculated upfront
+        Map<ArtifactScopeEnum, String> keys = new HashMap<ArtifactScopeEnum, String>( 4 );
+
+        Map<ArtifactScopeEnum, String> lockKeys = new HashMap<ArtifactScopeEnum, String>( 4 );
+
+        String lockOwner = _lock == null ? null : DependencyLock.getOwner( artifacts );
+
+        for ( ArtifactScopeEnum scope : scopes )
+        {
+            if ( scope == null || !scope.encloses( ArtifactScopeEnum.DEFAULT_SCOPE ) || shared.contains( scope )
+                || cached.containsKey( scope ) )
+                continue;
+
+            List<ArtifactMetadata> cp = null;
+
+            if ( _lock != null )
+            {
+                String lockKey = fingerprint( scope, artifacts, inclusions, exclusions, null );
+
+                cp = replay( scope, lockOwner, lockKey );
+
+                if ( cp == null )
+                    lockKeys.put( scope, lockKey );
+            }
+
+            if ( cp == null && _resolutionCache != null )
+            {
+                String key = fingerprint( scope, artifacts, inclusions, exclusions, _repositories );
+
+                cp = _resolutionCache.find( key, _repositories, _reader );
+
+                keys.put( scope, key );
+            }
+
+            if ( cp == null )
+                shared.add( scope );
+            else
+            {
+                cached.put( scope, cp );
+
+                if ( lockKeys.containsKey( scope ) )
+                    _lock.lock( scope, lockOwner, lockKeys.get( scope ), cp );
+            }
+        }
+
+        MetadataTreeNode root = null;
+
+        boolean wideTree = shared.size() > 1;
+
+        if ( wideTree )
+        {
+            // commitments of one scope would prune the versions of another: a pruned version could be the only one
+            // left after the scope is cut out, so the wide tree is always built in full
+            boolean pruneTree = _pruneTree;
+
+            _pruneTree = false;
+
+            try
+            {
+                root = buildTree( null, artifacts, inclusions, exclusions );
+            }
+            catch ( MetadataTreeException e )
+            {
+                // something outside of the requested scopes may be broken, resolve them one by one
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( LANG.getMessage( "wide.tree.failed", e.getMessage() ) );
+
+                wideTree = false;
+            }
+            finally
+            {
+                _pruneTree = pruneTree;
+            }
+        }
+
+        for ( ArtifactScopeEnum scope : scopes )
+        {
+            if ( res.containsKey( scope ) )
+                continue;
+
+            if ( cached.containsKey( scope ) )
+            {
+                res.put( scope, cached.get( scope ) );
+                continue;
+            }
+
+            if ( !wideTree || !shared.contains( scope ) )
+            {
+                res.put( scope, resolveConflicts( scope, artifacts, inclusions, exclusions ) );
+                continue;
+            }
+
+            if ( root == null )
+            {
+                res.put( scope, null );
+                continue;
+            }
+
+            MetadataTreeNode scopedRoot = filterScope( root, scope );
+
+            List<ArtifactMetadata> cp = resolveConflicts( scopedRoot );
+
+            if ( cp != null )
+                cp.remove( DUMMY_ROOT );
+
+            if ( _dumpDepTree )
+                _dumper.dump( scope, artifacts, inclusions, exclusions, scopedRoot, cp );
+
+            if ( _resolutionCache != null )
+                _resolutionCache.save( keys.get( scope ), cp );
+
+            if ( _lock != null )
+                _lock.lock( scope, lockOwner, lockKeys.get( scope ), cp );
+
+            res.put( scope, cp );
+        }
+
+        releaseViews( root );
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    public TruckLoad resolveConflictsInternally( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                                 ArtifactInclusionList inclusions, ArtifactExclusionList exclusions,
+                                                 boolean asTree )
+
+        throws MetadataTreeException
+    {
+        MetadataTreeNode root = buildTree( scope, artifacts, inclusions, exclusions );
+
+        if ( root == null )
+            return null;
+
+        TruckLoad tl = null;
+
+        if ( asTree )
+        {
+            MetadataTreeNode tr = resolveConflictsAsTree( root );
+
+            tl = new TruckLoad( tr );
+        }
+        else
+        {
+            List<ArtifactMetadata> cp = resolveConflicts( root );
+
+            if ( cp != null )
+                cp.remove( DUMMY_ROOT );
+
+            if ( _dumpDepTree )
+                _dumper.dump( scope, artifacts, inclusions, exclusions, root, cp );
+
+            tl = new TruckLoad( cp );
+        }
+
+        return tl;
+    }
+
+    // ------------------------------------------------------------------------
+    private String fingerprint( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                ArtifactInclusionList inclusions, ArtifactExclusionList exclusions,
+                                Collection<Repository> repositories )
+    {
+        List<Object> policies = new ArrayList<Object>( _comparators );
+
+        if ( _filters != null )
+            policies.addAll( _filters );
+
+        return ResolutionCache.fingerprint( scope, artifacts, inclusions, exclusions, _versionMap, repositories,
+                                            policies );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * locked classpath with trackers pointing to the repositories it was resolved from. Nothing is read
+     * 
+     * @return null if the request is not locked
+     */
+    private List<ArtifactMetadata> replay( ArtifactScopeEnum scope, String lockOwner, String lockKey )
+        throws MetadataTreeException
+    {
+        List<ArtifactMetadata> cp = _lock.getClasspath( scope, lockOwner, lockKey );
+
+        if ( cp == null )
+            return null;
+
+        try
+        {
+            for ( ArtifactMetadata md : cp )
+            {
+                String repoId = _lock.getRepositoryId( scope, lockKey, md );
+
+                md.setTracker( repoId == null ? null : _reader.getReader( repoId ) );
+            }
+        }
+        catch ( RepositoryException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+
+        return cp;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * lock does not keep the tree structure: the replayed tree has the locked classpath right under the root
+     */
+    private MetadataTreeNode createFlatTree( ArtifactQueryList artifacts, ArtifactInclusionList inclusions,
+                                             ArtifactExclusionList exclusions, List<ArtifactMetadata> cp )
+    {
+        if ( cp.isEmpty() )
+            return null;
+
+        boolean singleRoot = artifacts.size() == 1 && inclusions == null && exclusions == null;
+
+        MetadataTreeNode root = new MetadataTreeNode( singleRoot ? cp.get( 0 ) : DUMMY_ROOT, null, null );
+
+        for ( int i = singleRoot ? 1 : 0; i < cp.size(); i++ )
+        {
+            ArtifactMetadata md = cp.get( i );
+
+            root.addQuery( md );
+            root.addChild( new MetadataTreeNode( md, root, md ) );
+        }
+
+        MetadataTreeNode.reNumber( root, 1 );
+
+        return root;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * builds the tree for the consolidated entry points: a single GAV becomes the root, several GAVs or any
+     * inclusions/exclusions are hung under the dummy root
+     * 
+     * @return the root of the tree built, or null if nothing survived scoping
+     */
+    private MetadataTreeNode buildTree( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                        ArtifactInclusionList inclusions, ArtifactExclusionList exclusions )
+        throws MetadataTreeException
+    {
+        if ( artifacts == null )
+            throw new MetadataTreeException( LANG.getMessage( "empty.md.collection" ) );
+
+        List<ArtifactMetadata> startMDs = artifacts.getMetadataList();
+
+        if ( Util.isEmpty( startMDs ) )
+            throw new MetadataTreeException( LANG.getMessage( "empty.md.collection" ) );
+
+        if ( startMDs.size() == 1 && inclusions == null && exclusions == null )
+            return buildTree( startMDs.get( 0 ), scope );
+
+        DUMMY_ROOT.setInclusions( Util.isEmpty(inclusions) ? null : inclusions.getMetadataList() );
+        DUMMY_ROOT.setExclusions( Util.isEmpty(exclusions) ? null : exclusions.getMetadataList() );
+
+        // dependencyManagement
+        applyVersionManagement( startMDs, _versionMap );
+
+        // apply scoping & inclusions/exclusions
+        List<ArtifactMetadata> filteredMDs = filterScopeAndLusions( startMDs, scope, new MetadataTreeNode( DUMMY_ROOT, null, null  ));
+        
+        if( Util.isEmpty( filteredMDs ) )
+            return null;
+        
+        DUMMY_ROOT.setDependencies( filteredMDs );
+
+        return buildTree( DUMMY_ROOT, scope );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * copies the part of the tree, visible in the given scope. Same filter as the one used by buildTree: the
+     * scope of the query that brought the node in. Every target is copied once, a shared subtree stays shared in the
+     * copy. The tree itself is not changed - the views are not expanded
+     */
+    static MetadataTreeNode filterScope( MetadataTreeNode root, ArtifactScopeEnum scope )
+    {
+        return filterScope( root, null, root.getQuery(), scope,
+                            new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>( 256 ) );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @param copies targets to their copies
+     */
+    private static MetadataTreeNode filterScope( MetadataTreeNode node, MetadataTreeNode parent,
+                                                 ArtifactMetadata query, ArtifactScopeEnum scope,
+                                                 Map<MetadataTreeNode, MetadataTreeNode> copies )
+    {
+        MetadataTreeNode target = node.getTarget();
+
+        MetadataTreeNode copy = copies.get( target );
+
+        if ( copy != null )
+            return MetadataTreeNode.share( copy, parent, query );
+
+        MetadataTreeNode res = new MetadataTreeNode( target.getMd(), parent, query );
+
+        copies.put( target, res );
+
+        List<ArtifactMetadata> queries = target.getQueries();
+
+        if ( queries != null )
+            for ( ArtifactMetadata q : queries )
+                if ( scope.encloses( q.getArtifactScope() ) )
+                    res.addQuery( q );
+
+        // children of a target are never views to expand
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+                if ( kid.getQuery() == null || scope.encloses( kid.getQuery().getArtifactScope() ) )
+                    res.addChild( filterScope( kid, res, kid.getQuery(), scope, copies ) );
+
+        return res;
+    }
+
+    /**
+     * @param startMDs
+     * @param scope
+     * @param dummyRoot
+     * @return
+     * @throws MetadataTreeException 
+     */
+    private List<ArtifactMetadata> filterScopeAndLusions( List<ArtifactMetadata> startMDs
+                                                          , ArtifactScopeEnum scope
+                                                          , MetadataTreeNode node
+                                                        )
+    throws MetadataTreeException
+    {
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( startMDs.size() );
+        
+        int depth = node.getDepth() + 1;
+        
+        ArtifactMetadata [] parents = new ArtifactMetadata[ depth ];
+
+        int i=0;
+        
+        for( MetadataTreeNode n = node; n != null; n = n.getParent() )
+            parents[i++] = n.getMd();
+        
+        for( ArtifactMetadata md : startMDs )
+        {
+            // scoping
+            if ( scope != null && !scope.encloses( md.getArtifactScope() ) )
+                continue;
+
+            try
+            {
+                // inclusions / exclusions to the top
+                for( ArtifactMetadata nMd : parents)
+                    if ( !nMd.allowDependency( md ) )
+                        continue;
+            }
+            catch ( VersionException e )
+            {
+                throw new MetadataTreeException( e );
+            }
+            
+            res.add( md );
+        }
+        return res;
+    }
+
+    /**
+     * @param startMDs
+     * @param map
+     */
+    private void applyVersionManagement( List<ArtifactMetadata> dependencies, Map<String, ArtifactMetadata> versionMap )
+    {
+        if ( Util.isEmpty( versionMap ) || Util.isEmpty( dependencies ) )
+            return;
+        
+        for ( ArtifactMetadata am : dependencies )
+        {
+            String key = am.toManagementString();
+            ArtifactMetadata ver = versionMap.get( key );
+            if ( ver != null )
+            {
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( "managed replacement: " + am + " -> " + ver );
+
+                if ( _eventManager != null )
+                {
+                    GenericEvent replaceEvent =
+                        new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_NODE_VERSION_REPLACE_EVENT,
+                                          "managed replacement: " + am + " -> " + ver );
+                    replaceEvent.stop();
+                    _eventManager.fireEvent( replaceEvent );
+                }
+
+                applyVersionManagement( am, ver );
+            }
+        }
+    }
+
+    /**
+     * managed version, inclusions, exclusions and optional flag replace the ones of the dependency
+     */
+    static void applyVersionManagement( ArtifactMetadata am, ArtifactMetadata ver )
+    {
+        am.setVersion( ver.getVersion() );
+        am.setInclusions( ver.getInclusions() );
+        am.setExclusions( ver.getExclusions() );
+        am.setOptional( ver.isOptional() );
+    }
+
+    // -----------------------------------------------------
+    private MetadataTreeNode createNode( ArtifactMetadata nodeMD, MetadataTreeNode parent, ArtifactMetadata nodeQuery,
+                                         ArtifactScopeEnum globalScope )
+        throws MetadataTreeException
+    {
+        GenericEvent nodeBuildEvent = null;
+
+        if ( _eventManager != null )
+            nodeBuildEvent = new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_NODE_BUILD_EVENT, nodeMD.getGAV() );
+
+        try
+        {
+            try
+            {
+                checkForCircularDependency( nodeMD, parent );
+            }
+            catch ( MetadataTreeCircularDependencyException e )
+            {
+                if ( _allowCircularDependencies )
+                {
+                    String line = LANG.getMessage( "attention.line" );
+                    LOG.info( line + e.getMessage() + line );
+                    return null;
+                }
+                else
+                    throw e;
+            }
+
+            ArtifactMetadata mr;
+
+            MetadataTreeNode existingNode = _existingNodes.get( nodeQuery.toString() );
+
+            // already built subtrees are shared, not copied
+            if ( existingNode != null )
+                return _store == null ? MetadataTreeNode.share( existingNode, parent, nodeQuery )
+                                : _store.share( existingNode, parent, nodeQuery );
+
+            if ( isVirtual( nodeMD ) )
+                mr = nodeMD;
+            else
+                mr = _prefetcher == null ? _reader.readDependencies( nodeMD ) : _prefetcher.readDependencies( nodeMD );
+
+            if ( mr == null )
+                throw new MetadataTreeException( LANG.getMessage( "artifact.md.not.found", nodeMD.toString() ) );
+
+            // a compact node is in the tree right away, addChild() does not add it again
+            MetadataTreeNode node =
+                _store == null ? new MetadataTreeNode( mr, parent, nodeQuery ) : _store.createNode( parent, mr, nodeQuery );
+
+            List<ArtifactMetadata> allDependencies = mr.getDependencies();
+
+            if ( allDependencies == null || allDependencies.size() < 1 )
+                return node;
+
+            // first time filtering, ranges will pass 
+            // through here, unless map is a GA entry
+            applyVersionManagement( allDependencies, _versionMap );
+
+            List<ArtifactMetadata> dependencies = filterScopeAndLusions( allDependencies, globalScope, node );
+            
+//                new ArrayList<ArtifactMetadata>( allDependencies.size() );
+//            
+//            if ( globalScope != null )
+//                for ( ArtifactMetadata md : allDependencies )
+//                {
+//                    ArtifactScopeEnum mdScope = md.getArtifactScope();
+//                    if ( globalScope.encloses( mdScope ) )
 //                        dependencies.add( md );
 //                }
 //            else
 //                dependencies.addAll( allDependencies );
 
-            if ( Util.isEmpty( dependencies ) )
-                return node;
+            if ( Util.isEmpty( dependencies ) )
+                return node;
+
+            MetadataResults res =
+                _prefetcher == null ? _reader.readVersions( dependencies ) : _prefetcher.readVersions( dependencies );
+
+            if ( res == null )
+                throw new MetadataTreeException( LANG.getMessage( "no.versions", dependencies.toString() ) );
+
+            // all virtuals/ranges are gone at this point
+            
+            Map<ArtifactMetadata, List<ArtifactMetadata>> expandedDeps = res.getResults();
+
+            for ( ArtifactMetadata md : dependencies )
+            {
+
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( "node " + nodeQuery + ", dep " + md );
+
+                List<ArtifactMetadata> versions = expandedDeps.get( md );
+
+                // filter actual versions now
+                if( ! Util.isEmpty( versions ) )
+                    versions = filterScopeAndLusions( versions, globalScope, node );
+
+                if ( _commitments != null && !Util.isEmpty( versions ) )
+                {
+                    versions = prune( md, versions, node );
+
+                    // all lost to a closer version
+                    if ( versions.isEmpty() )
+                        continue;
+                }
+                
+                if ( versions == null || versions.size() < 1 )
+                {
+                    if ( md.isOptional() || checkOptional( node ) )
+                        continue;
+
+                    throw new MetadataTreeException( LANG.getMessage( "not.optional.missing" ) + md + " <== "
+                        + showPath( node ) );
+                }
+
+                boolean noVersions = true;
+                boolean noGoodVersions = true;
+
+                for ( ArtifactMetadata ver : versions )
+                {
+                    if ( veto( ver, _filters ) || vetoInclusionsExclusions( node, ver ) )
+                    {
+                        // there were good versions, but this one is filtered out
+                        noGoodVersions = false;
+                        continue;
+                    }
+                    
+                    ver.setArtifactScope( md.getArtifactScope() );
+
+                    if ( _commitments != null && versions.size() == 1 && !md.isOptional() && isCommitted( node ) )
+                        commit( ver, node.getDepth() + 1 );
+
+                    MetadataTreeNode kid = createNode( ver, node, md, globalScope );
+                    if ( kid != null )
+                        node.addChild( kid );
+
+                    noVersions = false;
+
+                    noGoodVersions = false;
+                }
+
+                if ( noVersions && !noGoodVersions )
+                {
+                    // there were good versions, but they were all filtered out
+                    continue;
+                }
+                else if ( noGoodVersions )
+                {
+                    if ( md.isOptional() )
+                        continue;
+
+                    throw new MetadataTreeException( LANG.getMessage( "not.optional.missing" ) + md + " <== "
+                        + showPath( node ) );
+                }
+                else
+                    node.addQuery( md );
+            }
+
+            _existingNodes.put( nodeQuery.toString(), node );
+
+            return node;
+        }
+        catch ( RepositoryException e )
+        {
+            if ( _eventManager != null )
+                nodeBuildEvent.setResult( e.getMessage() );
+
+            throw new MetadataTreeException( e );
+        }
+        catch ( VersionException e )
+        {
+            if ( _eventManager != null )
+                nodeBuildEvent.setResult( e.getMessage() );
+
+            throw new MetadataTreeException( e );
+        }
+        catch ( MetadataTreeException e )
+        {
+            if ( _eventManager != null )
+                nodeBuildEvent.setResult( e.getMessage() );
+            throw e;
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                nodeBuildEvent.stop();
+                _eventManager.fireEvent( nodeBuildEvent );
+            }
+        }
+    }
+
+    // -----------------------------------------------------
+    private void checkForCircularDependency( ArtifactMetadata md, MetadataTreeNode parent )
+        throws MetadataTreeCircularDependencyException
+    {
+        MetadataTreeNode p = parent;
+        int count = 0;
+        while ( p != null )
+        {
+            count++;
+            // System.out.println("circ "+md+" vs "+p.md);
+            if ( md.sameGA( p.getMd() ) )
+            {
+                p = parent;
+                StringBuilder sb = new StringBuilder( 128 );
+                sb.append( md.toString() );
+                while ( p != null )
+                {
+                    sb.append( " <- " + p.getMd().toString() );
+
+                    if ( md.sameGA( p.getMd() ) )
+                    {
+                        throw new MetadataTreeCircularDependencyException( "circular dependency " + count
+                            + " levels up. " + sb.toString() + " <= "
+                            + ( p.getParent() == null ? "no parent" : p.getParent().getMd() ) );
+                    }
+                    p = p.getParent();
+                }
+            }
+            p = p.getParent();
+        }
+    }
+
+    // -----------------------------------------------------
+    /**
+     * version of a GA, that is the only choice all the way from the root
+     */
+    static class Commitment
+    {
+        String version;
+
+        int depth;
+
+        Commitment( String version, int depth )
+        {
+            this.version = version;
+            this.depth = depth;
+        }
+    }
+
+    // -----------------------------------------------------
+    /**
+     * candidate, that was not expanded, the dependency it was found for and the node it was not expanded under
+     */
+    private static class Pruned
+    {
+        ArtifactMetadata query;
+
+        ArtifactMetadata md;
+
+        MetadataTreeNode owner;
+
+        Pruned( ArtifactMetadata query, ArtifactMetadata md, MetadataTreeNode owner )
+        {
+            this.query = query;
+            this.md = md;
+            this.owner = owner;
+        }
+    }
+
+    // -----------------------------------------------------
+    /**
+     * pruning only reproduces the solution if closer is better and, at the same depth, newer is better
+     */
+    private void initPruning()
+    {
+        _commitments = null;
+
+        _pruned = null;
+
+        if ( !_pruneTree || _comparators == null || _comparators.size() != 2 )
+            return;
+
+        if ( NearestWinsSatSolver.isNearestWins( _comparators ) )
+        {
+            _commitments = new HashMap<String, Commitment>( 128 );
+
+            _pruned = new ArrayList<Pruned>( 32 );
+        }
+    }
+
+    // -----------------------------------------------------
+    /**
+     * the pruned tree might resolve differently from the full one: the dropped candidates are built into it, without
+     * pruning, and it becomes the full tree. Nothing built so far is built again
+     */
+    private void unprune( MetadataTreeNode root, ArtifactScopeEnum scope )
+        throws MetadataTreeException
+    {
+        List<Pruned> pruned = _pruned;
+
+        _commitments = null;
+
+        _pruned = null;
+
+        // pruned in another tree
+        Map<MetadataTreeNode, MetadataTreeNode> targets =
+            new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>( 256 );
+
+        collectTargets( root.getTarget(), targets );
+
+        List<ArtifactMetadata> mds = new ArrayList<ArtifactMetadata>( pruned.size() );
+
+        for ( Pruned p : pruned )
+            if ( targets.containsKey( p.owner ) )
+                mds.add( p.md );
+
+        if ( LOG.isDebugEnabled() )
+            LOG.debug( "pruned tree of " + root.getMd() + " might resolve differently, adding " + mds.size()
+                + " dropped candidates" );
+
+        if ( _prefetcher != null )
+        {
+            _prefetcher.setPruning( false );
+            _prefetcher.prefetch( mds, scope );
+        }
+
+        try
+        {
+            for ( Pruned p : pruned )
+            {
+                if ( !targets.containsKey( p.owner ) )
+                    continue;
+
+                if ( veto( p.md, _filters ) || vetoInclusionsExclusions( p.owner, p.md ) )
+                    continue;
+
+                p.md.setArtifactScope( p.query.getArtifactScope() );
+
+                MetadataTreeNode kid = createNode( p.md, p.owner, p.query, scope );
+                if ( kid != null )
+                    p.owner.addChild( kid );
+
+                // all the versions were dropped - the query is not there yet
+                if ( !hasQuery( p.owner, p.query ) )
+                    p.owner.addQuery( p.query );
+            }
+        }
+        catch ( VersionException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+    }
+
+    // -----------------------------------------------------
+    private static void collectTargets( MetadataTreeNode target, Map<MetadataTreeNode, MetadataTreeNode> targets )
+    {
+        if ( targets.put( target, target ) != null || !target.hasChildren() )
+            return;
+
+        for ( MetadataTreeNode kid : target.getChildren() )
+            collectTargets( kid.getTarget(), targets );
+    }
+
+    // -----------------------------------------------------
+    private static boolean hasQuery( MetadataTreeNode node, ArtifactMetadata query )
+    {
+        List<ArtifactMetadata> queries = node.getQueries();
+
+        if ( queries != null )
+            for ( ArtifactMetadata q : queries )
+                if ( q == query )
+                    return true;
+
+        return false;
+    }
+
+    // -----------------------------------------------------
+    private boolean isCommitted( MetadataTreeNode node )
+    {
+        ArtifactMetadata md = node.getMd();
 
-            MetadataResults res = _reader.readVersions( dependencies );
+        if ( node.getParent() == null || isVirtual( md ) )
+            return true;
 
-            if ( res == null )
-                throw new MetadataTreeException( LANG.getMessage( "no.versions", dependencies.toString() ) );
+        Commitment c = _commitments.get( md.getGA() );
 
-            // all virtuals/ranges are gone at this point
-            
-            Map<ArtifactMetadata, List<ArtifactMetadata>> expandedDeps = res.getResults();
+        return c != null && c.depth == node.getDepth() && c.version.equals( md.getVersion() );
+    }
 
-            for ( ArtifactMetadata md : dependencies )
+    // -----------------------------------------------------
+    private void commit( ArtifactMetadata md, int depth )
+    {
+        Commitment c = _commitments.get( md.getGA() );
+
+        if ( c == null || c.depth > depth )
+            _commitments.put( md.getGA(), new Commitment( md.getVersion(), depth ) );
+    }
+
+    // -----------------------------------------------------
+    /**
+     * nearest wins: a version, committed closer to the root, leaves no chance to the other versions of the GA. A range
+     * without the committed version could still force a deeper one - it is left alone
+     * 
+     * @return versions to expand
+     */
+    private List<ArtifactMetadata> prune( ArtifactMetadata query, List<ArtifactMetadata> versions,
+                                          MetadataTreeNode node )
+    {
+        Commitment c = _commitments.get( query.getGA() );
+
+        // kids are one level deeper than the node
+        if ( c == null || c.depth > node.getDepth() )
+            return versions;
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( 1 );
+
+        for ( ArtifactMetadata ver : versions )
+            if ( c.version.equals( ver.getVersion() ) )
+                res.add( ver );
+
+        if ( res.size() == versions.size() || ( res.isEmpty() && query.isRange() ) )
+            return versions;
+
+        for ( ArtifactMetadata ver : versions )
+            if ( !c.version.equals( ver.getVersion() ) )
+                _pruned.add( new Pruned( query, ver, node.getTarget() ) );
+
+        if ( _eventManager != null )
+        {
+            GenericEvent pruneEvent =
+                new GenericEvent( EventTypeEnum.dependencyBuilder, TREE_NODE_PRUNE_EVENT, query + " <= "
+                    + showPath( node ) + ": " + c.version + " at depth " + c.depth );
+            pruneEvent.stop();
+            _eventManager.fireEvent( pruneEvent );
+        }
+
+        return res;
+    }
+
+    // -----------------------------------------------------
+    /**
+     * the pruned tree resolves the same way as the full one, if nearest wins resolves it exactly and nothing under the
+     * pruned candidates could change that: every GA down there is already in the tree - closer to the root, or at the
+     * same depth with the same version - and there are no ranges, cycles or missing artifacts. Exclusions are not
+     * applied under the pruned candidates: paths there are at least as many and at most as long as in the full tree.
+     * The metadata under the pruned candidates is read, so pruning saves the tree nodes, not the reads
+     */
+    private boolean isPruningExact( MetadataTreeNode root, ArtifactScopeEnum scope )
+        throws MetadataTreeException
+    {
+        if ( Util.isEmpty( _pruned ) )
+            return true;
+
+        List<Comparator<MetadataTreeNode>> comparators = getComparators();
+
+        if ( !NearestWinsSatSolver.canSolve( root, comparators ) )
+            return false;
+
+        try
+        {
+            NearestWinsSatSolver nearest = new NearestWinsSatSolver( root );
+
+            nearest.applyPolicies( comparators );
+
+            if ( !nearest.isExact() )
+                return false;
+        }
+        catch ( SatException e )
+        {
+            throw new MetadataTreeException( e );
+        }
+
+        // the tree as built, breadth first: closest depth of every target and of every GA
+        Map<MetadataTreeNode, Integer> depths = new IdentityHashMap<MetadataTreeNode, Integer>( 256 );
+        Map<String, Integer> gaDepths = new HashMap<String, Integer>( 128 );
+
+        // GAVs at the closest depth of their GA
+        Set<String> closest = new HashSet<String>( 128 );
+
+        Map<String, ArtifactMetadata> kept = new HashMap<String, ArtifactMetadata>( 256 );
+        Set<String> queries = new HashSet<String>( 256 );
+        Map<String, Set<String>> graph = _allowCircularDependencies ? null : new HashMap<String, Set<String>>( 128 );
+
+        boolean lusions = hasLusions( root.getQuery() );
+
+        List<MetadataTreeNode> level = new ArrayList<MetadataTreeNode>( 1 );
+        level.add( root.getTarget() );
+
+        depths.put( root.getTarget(), root.getDepth() );
+
+        for ( int depth = root.getDepth(); !level.isEmpty(); depth++ )
+        {
+            List<MetadataTreeNode> next = new ArrayList<MetadataTreeNode>( 2 * level.size() );
+
+            for ( MetadataTreeNode n : level )
             {
+                ArtifactMetadata md = n.getMd();
 
-                if ( LOG.isDebugEnabled() )
-                    LOG.debug( "node " + nodeQuery + ", dep " + md );
+                if ( !gaDepths.containsKey( md.getGA() ) )
+                    gaDepths.put( md.getGA(), depth );
 
-                List<ArtifactMetadata> versions = expandedDeps.get( md );
+                if ( gaDepths.get( md.getGA() ) == depth )
+                    closest.add( md.getGAV() );
 
-                // filter actual versions now
-                if( ! Util.isEmpty( versions ) )
-                    versions = filterScopeAndLusions( versions, globalScope, node );
-                
-                if ( versions == null || versions.size() < 1 )
+                kept.put( md.getGAV(), md );
+
+                if ( !n.hasChildren() )
+                    continue;
+
+                for ( MetadataTreeNode kid : n.getChildren() )
                 {
-                    if ( md.isOptional() || checkOptional( node ) )
+                    // a shared subtree was built under the first path to it, exclusions of the others did not apply
+                    lusions |= hasLusions( kid.getQuery() );
+
+                    queries.add( kid.getQuery().toString() );
+
+                    addEdge( graph, md.getGA(), kid.getMd().getGA() );
+
+                    MetadataTreeNode target = kid.getTarget();
+
+                    if ( depths.containsKey( target ) )
                         continue;
 
-                    throw new MetadataTreeException( LANG.getMessage( "not.optional.missing" ) + md + " <== "
-                        + showPath( node ) );
+                    depths.put( target, depth + 1 );
+                    next.add( target );
                 }
+            }
 
-                boolean noVersions = true;
-                boolean noGoodVersions = true;
+            level = next;
+        }
 
-                for ( ArtifactMetadata ver : versions )
-                {
-                    if ( veto( ver, _filters ) || vetoInclusionsExclusions( node, ver ) )
-                    {
-                        // there were good versions, but this one is filtered out
-                        noGoodVersions = false;
-                        continue;
-                    }
-                    
-                    ver.setArtifactScope( md.getArtifactScope() );
+        // everything under the pruned candidates, closest first
+        List<List<ArtifactMetadata>> levels = new ArrayList<List<ArtifactMetadata>>( 16 );
 
-                    MetadataTreeNode kid = createNode( ver, node, md, globalScope );
-                    if ( kid != null )
-                        node.addChild( kid );
+        for ( Pruned p : _pruned )
+        {
+            Integer depth = depths.get( p.owner );
 
-                    noVersions = false;
+            // pruned in another tree
+            if ( depth == null )
+                continue;
 
-                    noGoodVersions = false;
-                }
+            addEdge( graph, p.owner.getMd().getGA(), p.md.getGA() );
 
-                if ( noVersions && !noGoodVersions )
-                {
-                    // there were good versions, but they were all filtered out
+            addAt( levels, depth + 1, p.md );
+        }
+
+        Set<String> visited = new HashSet<String>( 128 );
+
+        boolean overlap = false;
+
+        try
+        {
+            for ( int depth = 0; depth < levels.size(); depth++ )
+            {
+                if ( levels.get( depth ) == null )
                     continue;
-                }
-                else if ( noGoodVersions )
+
+                for ( ArtifactMetadata md : levels.get( depth ) )
                 {
-                    if ( md.isOptional() )
+                    String gav = md.getGAV();
+
+                    if ( !visited.add( gav ) )
                         continue;
 
-                    throw new MetadataTreeException( LANG.getMessage( "not.optional.missing" ) + md + " <== "
-                        + showPath( node ) );
-                }
-                else
-                    node.addQuery( md );
-            }
+                    Integer gaDepth = gaDepths.get( md.getGA() );
 
-            _existingNodes.put( nodeQuery.toString(), node );
+                    if ( gaDepth == null || depth < gaDepth || ( depth == gaDepth && !closest.contains( gav ) ) )
+                        return false;
 
-            return node;
+                    // the full tree might build it here first - under different exclusions
+                    overlap |= queries.contains( md.toString() );
+
+                    ArtifactMetadata mr = kept.get( gav );
+
+                    if ( mr == null )
+                        mr = _prefetcher == null ? _reader.readDependencies( md ) : _prefetcher.readDependencies( md );
+
+                    if ( mr == null )
+                        return false;
+
+                    if ( Util.isEmpty( mr.getDependencies() ) )
+                        continue;
+
+                    List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>( mr.getDependencies().size() );
+
+                    for ( ArtifactMetadata dep : mr.getDependencies() )
+                    {
+                        ArtifactMetadata managed =
+                            _versionMap == null ? null : _versionMap.get( dep.toManagementString() );
+
+                        if ( managed != null )
+                        {
+                            dep = new ArtifactMetadata( dep );
+                            applyVersionManagement( dep, managed );
+                        }
+
+                        if ( scope != null && !scope.encloses( dep.getArtifactScope() ) )
+                            continue;
+
+                        if ( dep.isRange() )
+                            return false;
+
+                        lusions |= hasLusions( dep );
+
+                        addEdge( graph, md.getGA(), dep.getGA() );
+
+                        if ( kept.containsKey( dep.getGAV() ) )
+                            addAt( levels, depth + 1, dep );
+                        else
+                            query.add( dep );
+                    }
+
+                    if ( query.isEmpty() )
+                        continue;
+
+                    MetadataResults res =
+                        _prefetcher == null ? _reader.readVersions( query ) : _prefetcher.readVersions( query );
+
+                    for ( ArtifactMetadata dep : query )
+                    {
+                        List<ArtifactMetadata> versions = res == null ? null : res.getResult( dep );
+
+                        if ( Util.isEmpty( versions ) )
+                        {
+                            if ( dep.isOptional() )
+                                continue;
+
+                            return false;
+                        }
+
+                        for ( ArtifactMetadata ver : versions )
+                            if ( !veto( ver, _filters ) )
+                                addAt( levels, depth + 1, ver );
+                    }
+                }
+            }
         }
         catch ( RepositoryException e )
         {
-            if ( _eventManager != null )
-                nodeBuildEvent.setResult( e.getMessage() );
-
-            throw new MetadataTreeException( e );
+            // the full build reports it
+            return false;
         }
-        catch ( VersionException e )
-        {
-            if ( _eventManager != null )
-                nodeBuildEvent.setResult( e.getMessage() );
 
-            throw new MetadataTreeException( e );
-        }
-        catch ( MetadataTreeException e )
+        if ( lusions && overlap )
+            return false;
+
+        return graph == null || !hasCycles( graph );
+    }
+
+    // -----------------------------------------------------
+    private static boolean hasLusions( ArtifactMetadata md )
+    {
+        return md != null && ( !Util.isEmpty( md.getInclusions() ) || !Util.isEmpty( md.getExclusions() ) );
+    }
+
+    // -----------------------------------------------------
+    private static void addAt( List<List<ArtifactMetadata>> levels, int depth, ArtifactMetadata md )
+    {
+        while ( levels.size() <= depth )
+            levels.add( null );
+
+        List<ArtifactMetadata> level = levels.get( depth );
+
+        if ( level == null )
         {
-            if ( _eventManager != null )
-                nodeBuildEvent.setResult( e.getMessage() );
-            throw e;
+            level = new ArrayList<ArtifactMetadata>( 16 );
+            levels.set( depth, level );
         }
-        finally
+
+        level.add( md );
+    }
+
+    // -----------------------------------------------------
+    private static void addEdge( Map<String, Set<String>> graph, String from, String to )
+    {
+        if ( graph == null )
+            return;
+
+        Set<String> kids = graph.get( from );
+
+        if ( kids == null )
         {
-            if ( _eventManager != null )
-            {
-                nodeBuildEvent.stop();
-                _eventManager.fireEvent( nodeBuildEvent );
-            }
+            kids = new HashSet<String>( 8 );
+            graph.put( from, kids );
         }
+
+        kids.add( to );
     }
 
     // -----------------------------------------------------
-    private void checkForCircularDependency( ArtifactMetadata md, MetadataTreeNode parent )
-        throws MetadataTreeCircularDependencyException
+    /**
+     * GA graph has a cycle, if it cannot be taken apart from the GAs nobody depends on
+     */
+    private static boolean hasCycles( Map<String, Set<String>> graph )
     {
-        MetadataTreeNode p = parent;
-        int count = 0;
-        while ( p != null )
+        Map<String, Integer> dependents = new HashMap<String, Integer>( 2 * graph.size() );
+
+        for ( String ga : graph.keySet() )
+            dependents.put( ga, 0 );
+
+        for ( Set<String> kids : graph.values() )
+            for ( String kid : kids )
+                dependents.put( kid, dependents.containsKey( kid ) ? dependents.get( kid ) + 1 : 1 );
+
+        List<String> free = new ArrayList<String>( dependents.size() );
+
+        for ( Map.Entry<String, Integer> e : dependents.entrySet() )
+            if ( e.getValue() == 0 )
+                free.add( e.getKey() );
+
+        int taken = 0;
+
+        while ( !free.isEmpty() )
         {
-            count++;
-            // System.out.println("circ "+md+" vs "+p.md);
-            if ( md.sameGA( p.getMd() ) )
+            Set<String> kids = graph.get( free.remove( free.size() - 1 ) );
+
+            ++taken;
+
+            if ( kids == null )
+                continue;
+
+            for ( String kid : kids )
             {
-                p = parent;
-                StringBuilder sb = new StringBuilder( 128 );
-                sb.append( md.toString() );
-                while ( p != null )
-                {
-                    sb.append( " <- " + p.getMd().toString() );
+                int count = dependents.get( kid ) - 1;
 
-                    if ( md.sameGA( p.getMd() ) )
-                    {
-                        throw new MetadataTreeCircularDependencyException( "circular dependency " + count
-                            + " levels up. " + sb.toString() + " <= "
-                            + ( p.getParent() == null ? "no parent" : p.getParent().getMd() ) );
-                    }
-                    p = p.getParent();
-                }
+                dependents.put( kid, count );
+
+                if ( count == 0 )
+                    free.add( kid );
             }
-            p = p.getParent();
         }
+
+        return taken < dependents.size();
     }
 
     // -----------------------------------------------------
@@ -630,9 +1783,7 @@ class DependencyTreeBuilder
 
         try
         {
-            DefaultSatSolver solver = new DefaultSatSolver( root, _eventManager );
-
-            solver.applyPolicies( getComparators() );
+            SatSolver solver = createSolver( root );
 
             List<ArtifactMetadata> res = solver.solve();
 
@@ -642,6 +1793,10 @@ class DependencyTreeBuilder
         {
             throw new MetadataTreeException( e );
         }
+        finally
+        {
+            releaseViews( root );
+        }
 
     }
 
@@ -654,9 +1809,7 @@ class DependencyTreeBuilder
 
         try
         {
-            DefaultSatSolver solver = new DefaultSatSolver( root, _eventManager );
-
-            solver.applyPolicies( getComparators() );
+            SatSolver solver = createSolver( root );
 
             MetadataTreeNode res = solver.solveAsTree();
 
@@ -666,7 +1819,50 @@ class DependencyTreeBuilder
         {
             throw new MetadataTreeException( e );
         }
+        finally
+        {
+            releaseViews( root );
+        }
+
+    }
+
+    // -----------------------------------------------------
+    /**
+     * nearest wins is enough for the trees without ranges, resolved with the default policies
+     */
+    private SatSolver createSolver( MetadataTreeNode root )
+        throws SatException
+    {
+        List<Comparator<MetadataTreeNode>> comparators = getComparators();
+
+        if ( NearestWinsSatSolver.canSolve( root, comparators ) )
+        {
+            NearestWinsSatSolver nearest = new NearestWinsSatSolver( root, _eventManager );
+
+            nearest.applyPolicies( comparators );
+
+            if ( nearest.isExact() )
+                return nearest;
+        }
+
+        if ( _satSession != null )
+        {
+            SatSolver solver = _satSession.createSolver( root );
+
+            solver.applyPolicies( comparators );
+
+            return solver;
+        }
+
+        DefaultSatSolver solver = new DefaultSatSolver( root, _eventManager );
+
+        solver.setThreads( _satThreads );
+
+        solver.setTimeout( _satTimeout );
+
+        solver.applyPolicies( comparators );
 
+        return solver;
     }
 
     // -----------------------------------------------------
@@ -758,5 +1954,23 @@ class DependencyTreeBuilder
             _allowCircularDependencies = Boolean.parseBoolean( (String) val );
         else if ( CONFIGURATION_PROPERTY_VERSION_MAP.equals( name ) )
             _versionMap = (Map<String, ArtifactMetadata>) val;
+        else if ( SYSTEM_PROPERTY_TREE_BUILD_THREADS.equals( name ) )
+            _buildThreads = val == null ? 0 : Integer.parseInt( val.toString() );
+        else if ( CONFIGURATION_PROPERTY_GRAPH_CACHE.equals( name ) )
+            _reader.setGraphCache( (DependencyGraphCache) val );
+        else if ( CONFIGURATION_PROPERTY_RESOLUTION_CACHE.equals( name ) )
+            _resolutionCache = (ResolutionCache) val;
+        else if ( CONFIGURATION_PROPERTY_LOCK.equals( name ) )
+            _lock = (DependencyLock) val;
+        else if ( CONFIGURATION_PROPERTY_SAT_SESSION.equals( name ) )
+            _satSession = (SatSession) val;
+        else if ( SYSTEM_PROPERTY_COMPACT_TREE.equals( name ) )
+            _compactTree = Boolean.parseBoolean( (String) val );
+        else if ( SYSTEM_PROPERTY_PRUNE_TREE.equals( name ) )
+            _pruneTree = Boolean.parseBoolean( (String) val );
+        else if ( SYSTEM_PROPERTY_SAT_THREADS.equals( name ) )
+            _satThreads = val == null ? 0 : Integer.parseInt( val.toString() );
+        else if ( SYSTEM_PROPERTY_SAT_TIMEOUT.equals( name ) )
+            _satTimeout = val == null ? 0L : Long.parseLong( val.toString() );
     }
 }
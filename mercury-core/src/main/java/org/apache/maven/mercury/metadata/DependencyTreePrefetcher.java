@@ -0,0 +1,549 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
+import org.apache.maven.mercury.artifact.version.VersionException;
+import org.apache.maven.mercury.event.EventManager;
+import org.apache.maven.mercury.event.EventTypeEnum;
+import org.apache.maven.mercury.event.GenericEvent;
+import org.apache.maven.mercury.logging.IMercuryLogger;
+import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.apache.maven.mercury.repository.api.MetadataResults;
+import org.apache.maven.mercury.repository.api.RepositoryException;
+import org.apache.maven.mercury.repository.virtual.VirtualRepositoryReader;
+import org.apache.maven.mercury.util.Util;
+
+/**
+ * frontier based parallel expansion of the dependency graph. Walks the graph level by level and reads POMs and
+ * version lists of all unexpanded nodes of a level concurrently on a bounded pool. Results are memoized, so that
+ * DependencyTreeBuilder can then assemble the tree in the usual depth-first order without any network round-trips -
+ * which keeps the tree shape, circular and optional dependency semantics exactly as they are in sequential mode.
+ * <p/>
+ * Everything here is best effort: whatever could not be read is left out of the memo, and tree builder reads it again
+ * and reports the error in a usual way. Same goes for pruning: versions, that lost to a closer one, are not read, and
+ * if the tree builder needs them after all - it reads them itself.
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+class DependencyTreePrefetcher
+{
+    private static final IMercuryLogger LOG = MercuryLoggerManager.getLogger( DependencyTreePrefetcher.class );
+
+    private VirtualRepositoryReader _reader;
+
+    private int _threads;
+
+    private Map<String, ArtifactMetadata> _versionMap;
+
+    private Collection<MetadataTreeArtifactFilter> _filters;
+
+    private EventManager _eventManager;
+
+    /** if true - deeper versions of a GA, committed closer to the start point, are not expanded */
+    private boolean _pruning;
+
+    /** start point index and GA -> version, that is the only choice all the way from that start point */
+    private Map<String, DependencyTreeBuilder.Commitment> _commitments =
+        new HashMap<String, DependencyTreeBuilder.Commitment>( 128 );
+
+    /** GAV -> dependencies, as read by the virtual reader */
+    private Map<String, ArtifactMetadata> _dependencies = new ConcurrentHashMap<String, ArtifactMetadata>( 256 );
+
+    /** version query -> found versions, empty list if none found */
+    private Map<ArtifactMetadata, List<ArtifactMetadata>> _versions =
+        new ConcurrentHashMap<ArtifactMetadata, List<ArtifactMetadata>>( 256 );
+
+    /** one step in the graph: the node's metadata and the query path up to the root */
+    class FrontierNode
+    {
+        ArtifactMetadata md;
+
+        ArtifactMetadata query;
+
+        FrontierNode parent;
+
+        /** index of the start point */
+        int root;
+
+        int depth;
+
+        FrontierNode( ArtifactMetadata md, ArtifactMetadata query, FrontierNode parent )
+        {
+            this.md = md;
+            this.query = query;
+            this.parent = parent;
+
+            if ( parent != null )
+            {
+                root = parent.root;
+                depth = parent.depth + 1;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    public DependencyTreePrefetcher( VirtualRepositoryReader reader, int threads, Map<String, ArtifactMetadata> versionMap,
+                                     Collection<MetadataTreeArtifactFilter> filters, EventManager eventManager )
+    {
+        _reader = reader;
+        _threads = threads;
+        _versionMap = versionMap;
+        _filters = filters;
+        _eventManager = eventManager;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * nearest wins pruning, the same the tree builder does
+     */
+    public void setPruning( boolean pruning )
+    {
+        _pruning = pruning;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * expand the graph under startMD level by level, filling the memo
+     */
+    public void prefetch( ArtifactMetadata startMD, ArtifactScopeEnum scope )
+    {
+        List<ArtifactMetadata> startMDs = new ArrayList<ArtifactMetadata>( 1 );
+        startMDs.add( startMD );
+
+        prefetch( startMDs, scope );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * expand the union graph of all the start points at once
+     */
+    public void prefetch( Collection<ArtifactMetadata> startMDs, ArtifactScopeEnum scope )
+    {
+        ExecutorService pool = Executors.newFixedThreadPool( _threads );
+
+        try
+        {
+            Set<String> seen = new HashSet<String>( 256 );
+
+            List<FrontierNode> level = new ArrayList<FrontierNode>( startMDs.size() );
+
+            _commitments.clear();
+
+            for ( ArtifactMetadata startMD : startMDs )
+                if ( seen.add( startMD.toString() ) )
+                {
+                    FrontierNode fn = new FrontierNode( startMD, startMD, null );
+                    fn.root = level.size();
+
+                    level.add( fn );
+                }
+
+            int depth = 0;
+
+            while ( !level.isEmpty() )
+            {
+                GenericEvent event = null;
+
+                if ( _eventManager != null )
+                    event =
+                        new GenericEvent( EventTypeEnum.dependencyBuilder, DependencyBuilder.TREE_LEVEL_PREFETCH_EVENT,
+                                          "level " + depth + ", nodes " + level.size() );
+
+                try
+                {
+                    readDependencies( pool, level );
+
+                    readVersions( pool, level, scope );
+
+                    level = nextLevel( level, scope, seen );
+                }
+                finally
+                {
+                    if ( _eventManager != null )
+                    {
+                        event.stop();
+                        _eventManager.fireEvent( event );
+                    }
+                }
+
+                ++depth;
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    private void readDependencies( ExecutorService pool, List<FrontierNode> level )
+        throws InterruptedException
+    {
+        List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>( level.size() );
+
+        Set<String> requested = new HashSet<String>( level.size() * 2 );
+
+        for ( FrontierNode fn : level )
+        {
+            String key = fn.md.toString();
+
+            if ( DependencyTreeBuilder.isVirtual( fn.md ) || _dependencies.containsKey( key )
+                || !requested.add( key ) )
+                continue;
+
+            query.add( fn.md );
+        }
+
+        if ( query.isEmpty() )
+            return;
+
+        // siblings are read in batches - one batch per thread, the reader groups each batch by repository
+        int batchSize = ( query.size() + _threads - 1 ) / _threads;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>( _threads );
+
+        for ( int i = 0; i < query.size(); i += batchSize )
+        {
+            final List<ArtifactMetadata> batch = query.subList( i, Math.min( i + batchSize, query.size() ) );
+
+            futures.add( pool.submit( new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    for ( ArtifactMetadata mr : _reader.readDependencies( batch ) )
+                        _dependencies.put( mr.toString(), mr );
+
+                    return null;
+                }
+            } ) );
+        }
+
+        waitFor( futures );
+    }
+
+    // ------------------------------------------------------------------------
+    private void readVersions( ExecutorService pool, List<FrontierNode> level, ArtifactScopeEnum scope )
+        throws InterruptedException
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>( level.size() );
+
+        Set<ArtifactMetadata> requested = new HashSet<ArtifactMetadata>( level.size() * 8 );
+
+        for ( FrontierNode fn : level )
+        {
+            List<ArtifactMetadata> deps = getDependencies( fn, scope );
+
+            if ( Util.isEmpty( deps ) )
+                continue;
+
+            final List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>( deps.size() );
+
+            for ( ArtifactMetadata dep : deps )
+                if ( !_versions.containsKey( dep ) && requested.add( dep ) )
+                    query.add( dep );
+
+            if ( query.isEmpty() )
+                continue;
+
+            futures.add( pool.submit( new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    MetadataResults res = _reader.readVersions( query );
+
+                    for ( ArtifactMetadata q : query )
+                    {
+                        List<ArtifactMetadata> vl = res == null ? null : res.getResult( q );
+
+                        _versions.put( q, vl == null ? new ArrayList<ArtifactMetadata>( 0 ) : vl );
+                    }
+
+                    return null;
+                }
+            } ) );
+        }
+
+        waitFor( futures );
+    }
+
+    // ------------------------------------------------------------------------
+    private List<FrontierNode> nextLevel( List<FrontierNode> level, ArtifactScopeEnum scope, Set<String> seen )
+    {
+        List<FrontierNode> next = new ArrayList<FrontierNode>( level.size() * 4 );
+
+        for ( FrontierNode fn : level )
+        {
+            List<ArtifactMetadata> deps = getDependencies( fn, scope );
+
+            if ( Util.isEmpty( deps ) )
+                continue;
+
+            boolean committed = _pruning && isCommitted( fn );
+
+            for ( ArtifactMetadata dep : deps )
+            {
+                List<ArtifactMetadata> versions = _versions.get( dep );
+
+                if ( Util.isEmpty( versions ) )
+                    continue;
+
+                if ( _pruning )
+                {
+                    versions = prune( fn, dep, versions );
+
+                    if ( committed && versions.size() == 1 && !dep.isOptional() )
+                        commit( fn, versions.get( 0 ) );
+                }
+
+                for ( ArtifactMetadata ver : versions )
+                {
+                    if ( vetoed( fn, ver ) || isCircular( fn, ver ) )
+                        continue;
+
+                    if ( !seen.add( ver.toString() ) )
+                        continue;
+
+                    ArtifactMetadata kid = new ArtifactMetadata( ver );
+                    kid.setArtifactScope( dep.getArtifactScope() );
+
+                    next.add( new FrontierNode( kid, dep, fn ) );
+                }
+            }
+        }
+
+        return next;
+    }
+
+    // ------------------------------------------------------------------------
+    private List<ArtifactMetadata> getDependencies( FrontierNode fn, ArtifactScopeEnum scope )
+    {
+        ArtifactMetadata mr =
+            DependencyTreeBuilder.isVirtual( fn.md ) ? fn.md : _dependencies.get( fn.md.toString() );
+
+        if ( mr == null || Util.isEmpty( mr.getDependencies() ) )
+            return null;
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( mr.getDependencies().size() );
+
+        for ( ArtifactMetadata dep : mr.getDependencies() )
+        {
+            ArtifactMetadata managed = _versionMap == null ? null : _versionMap.get( dep.toManagementString() );
+
+            if ( managed != null )
+            {
+                // same as the tree builder sees it - exclusions and inclusions included
+                dep = new ArtifactMetadata( dep );
+                DependencyTreeBuilder.applyVersionManagement( dep, managed );
+            }
+
+            if ( scope != null && !scope.encloses( dep.getArtifactScope() ) )
+                continue;
+
+            res.add( dep );
+        }
+
+        return res;
+    }
+
+    // ------------------------------------------------------------------------
+    private boolean isCommitted( FrontierNode fn )
+    {
+        if ( fn.parent == null || DependencyTreeBuilder.isVirtual( fn.md ) )
+            return true;
+
+        DependencyTreeBuilder.Commitment c = _commitments.get( fn.root + ":" + fn.md.getGA() );
+
+        return c != null && c.depth == fn.depth && c.version.equals( fn.md.getVersion() );
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * levels go one after another, so the first commitment of a GA is the closest one
+     */
+    private void commit( FrontierNode fn, ArtifactMetadata ver )
+    {
+        String key = fn.root + ":" + ver.getGA();
+
+        if ( !_commitments.containsKey( key ) )
+            _commitments.put( key, new DependencyTreeBuilder.Commitment( ver.getVersion(), fn.depth + 1 ) );
+    }
+
+    // ------------------------------------------------------------------------
+    private List<ArtifactMetadata> prune( FrontierNode fn, ArtifactMetadata dep, List<ArtifactMetadata> versions )
+    {
+        DependencyTreeBuilder.Commitment c = _commitments.get( fn.root + ":" + dep.getGA() );
+
+        if ( c == null || c.depth > fn.depth )
+            return versions;
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( 1 );
+
+        for ( ArtifactMetadata ver : versions )
+            if ( c.version.equals( ver.getVersion() ) )
+                res.add( ver );
+
+        return res.isEmpty() && dep.isRange() ? versions : res;
+    }
+
+    // ------------------------------------------------------------------------
+    private boolean vetoed( FrontierNode fn, ArtifactMetadata ver )
+    {
+        if ( _filters != null )
+            for ( MetadataTreeArtifactFilter filter : _filters )
+                if ( filter.veto( ver ) )
+                    return true;
+
+        try
+        {
+            for ( FrontierNode p = fn; p != null; p = p.parent )
+                if ( p.query != null && !p.query.allowDependency( ver ) )
+                    return true;
+        }
+        catch ( VersionException e )
+        {
+            // let the tree builder report it
+            return true;
+        }
+
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    private boolean isCircular( FrontierNode fn, ArtifactMetadata ver )
+    {
+        for ( FrontierNode p = fn; p != null; p = p.parent )
+            if ( ver.sameGA( p.md ) )
+                return true;
+
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    private void waitFor( List<Future<?>> futures )
+        throws InterruptedException
+    {
+        for ( Future<?> f : futures )
+            try
+            {
+                f.get();
+            }
+            catch ( ExecutionException e )
+            {
+                // not fatal - the tree builder will read it again and report properly
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( "prefetch failed: " + e.getCause() );
+            }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * same as VirtualRepositoryReader.readDependencies(), but served from the memo if possible
+     */
+    public ArtifactMetadata readDependencies( ArtifactMetadata bmd )
+        throws RepositoryException
+    {
+        ArtifactMetadata found = _dependencies.get( bmd.toString() );
+
+        if ( found == null )
+            return _reader.readDependencies( bmd );
+
+        ArtifactMetadata md = new ArtifactMetadata( bmd );
+        md.setDependencies( found.getDependencies() );
+        md.setTracker( found.getTracker() );
+
+        return md;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * same as VirtualRepositoryReader.readVersions(), but served from the memo if possible. Each call gets its own
+     * copies of the found versions because tree builder modifies them
+     */
+    public MetadataResults readVersions( List<ArtifactMetadata> query )
+        throws RepositoryException
+    {
+        List<ArtifactMetadata> leftOvers = new ArrayList<ArtifactMetadata>( query.size() );
+
+        MetadataResults res = null;
+
+        for ( ArtifactMetadata q : query )
+        {
+            List<ArtifactMetadata> vl = _versions.get( q );
+
+            if ( vl == null )
+            {
+                leftOvers.add( q );
+                continue;
+            }
+
+            if ( vl.isEmpty() )
+                continue;
+
+            List<ArtifactMetadata> copy = new ArrayList<ArtifactMetadata>( vl.size() );
+
+            for ( ArtifactMetadata v : vl )
+            {
+                ArtifactMetadata vc = new ArtifactMetadata( v );
+                vc.setTimeStamp( v.getTimeStamp() );
+                copy.add( vc );
+            }
+
+            res = MetadataResults.add( res, q, copy );
+        }
+
+        if ( leftOvers.isEmpty() )
+            return res;
+
+        MetadataResults more = _reader.readVersions( leftOvers );
+
+        if ( more == null || !more.hasResults() )
+            return res;
+
+        if ( res == null )
+            return more;
+
+        for ( Map.Entry<ArtifactMetadata, List<ArtifactMetadata>> e : more.getResults().entrySet() )
+            res.add( e.getKey(), e.getValue() );
+
+        return res;
+    }
+}
@@ -0,0 +1,604 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.mercury.artifact.ArtifactExclusionList;
+import org.apache.maven.mercury.artifact.ArtifactInclusionList;
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.ArtifactMetadataList;
+import org.apache.maven.mercury.artifact.ArtifactQueryList;
+import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
+import org.apache.maven.mercury.artifact.Quality;
+import org.apache.maven.mercury.artifact.QualityEnum;
+import org.apache.maven.mercury.crypto.basic.ChecksumCalculator;
+import org.apache.maven.mercury.logging.IMercuryLogger;
+import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.apache.maven.mercury.repository.api.RemoteRepository;
+import org.apache.maven.mercury.repository.api.Repository;
+import org.apache.maven.mercury.repository.api.RepositoryException;
+import org.apache.maven.mercury.repository.api.RepositoryReader;
+import org.apache.maven.mercury.repository.api.RepositoryUpdatePolicy;
+import org.apache.maven.mercury.repository.virtual.VirtualRepositoryReader;
+import org.apache.maven.mercury.util.FileLockBundle;
+import org.apache.maven.mercury.util.FileUtil;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+
+/**
+ * resolution result cache: query fingerprint -> classpath. The fingerprint covers the query, inclusions/exclusions,
+ * scope, version management map, the resolution policies and the ordered repositories with their update policies.
+ * Entries expire according to the update policies of the remote repositories. Classpaths with snapshots are never
+ * cached.
+ * <p/>
+ * Keeps up to a fixed number of most recently used entries in memory, optionally persisted under the local
+ * repository's metadata cache folder. Thread safe.
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class ResolutionCache
+{
+    /** subfolder of the metadata cache folder */
+    public static final String RESOLUTION_CACHE_DIR = "resolution";
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private static final String CP_EXT = ".cp";
+
+    private static final IMercuryLogger LOG = MercuryLoggerManager.getLogger( ResolutionCache.class );
+
+    private static final Language LANG = new DefaultLanguage( ResolutionCache.class );
+
+    static volatile Map<String, ResolutionCache> fsCaches =
+        Collections.synchronizedMap( new HashMap<String, ResolutionCache>( 2 ) );
+
+    private final Map<String, Entry> _entries;
+
+    /** if not null - persist entries here */
+    private File _root;
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * one cached classpath
+     */
+    static class Entry
+    {
+        /** when the classpath was saved, millis - the update policies compare millis */
+        long timestamp;
+
+        List<ArtifactMetadata> classpath;
+
+        /** id of the repository each classpath member came from, null if unknown */
+        List<String> repoIds;
+
+        Entry( long timestamp, List<ArtifactMetadata> classpath, List<String> repoIds )
+        {
+            this.timestamp = timestamp;
+            this.classpath = classpath;
+            this.repoIds = repoIds;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * in-memory only cache of the default size
+     */
+    public ResolutionCache()
+    {
+        this( DEFAULT_SIZE );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * in-memory only cache
+     *
+     * @param maxEntries how many classpaths to keep in memory
+     */
+    public ResolutionCache( final int maxEntries )
+    {
+        if ( maxEntries < 1 )
+            throw new IllegalArgumentException( LANG.getMessage( "bad.resolution.cache.size", "" + maxEntries ) );
+
+        _entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, ResolutionCache.Entry> eldest )
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private ResolutionCache( File root, int maxEntries )
+    {
+        this( maxEntries );
+
+        _root = root;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * access to all known persistent resolution caches
+     *
+     * @param localRepositoryRoot root folder of the local repository. Cache is stored in it's metadata cache folder
+     */
+    public static ResolutionCache getCache( File localRepositoryRoot )
+        throws IOException
+    {
+        if ( localRepositoryRoot == null || ( localRepositoryRoot.exists() && localRepositoryRoot.isFile() ) )
+            throw new IllegalArgumentException( LANG.getMessage( "bad.resolution.cache.root",
+                                                                 localRepositoryRoot == null ? "null"
+                                                                                 : localRepositoryRoot.getAbsolutePath() ) );
+
+        File root =
+            new File( new File( localRepositoryRoot, VirtualRepositoryReader.METADATA_CACHE_DIR ), RESOLUTION_CACHE_DIR );
+
+        String key = root.getCanonicalPath();
+
+        synchronized ( fsCaches )
+        {
+            ResolutionCache rc = fsCaches.get( key );
+
+            if ( rc == null )
+            {
+                rc = new ResolutionCache( root, DEFAULT_SIZE );
+                fsCaches.put( key, rc );
+            }
+
+            return rc;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public boolean isPersistent()
+    {
+        return _root != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * calculate the key of a resolution request
+     *
+     * @param policies conflict resolution policies and filters - their classes, and the settings of the classic
+     *            comparators
+     * @return hex encoded SHA-1 of everything that affects the resolution
+     */
+    public static String fingerprint( ArtifactScopeEnum scope, ArtifactQueryList artifacts,
+                                      ArtifactInclusionList inclusions, ArtifactExclusionList exclusions,
+                                      Map<String, ArtifactMetadata> versionMap, Collection<Repository> repositories,
+                                      Collection<?> policies )
+    {
+        StringBuilder sb = new StringBuilder( 512 );
+
+        sb.append( "scope=" ).append( scope == null ? "" : scope.getScope() );
+
+        sb.append( "\nquery=" );
+        if ( artifacts != null )
+            for ( ArtifactMetadata md : artifacts.getMetadataList() )
+                appendDependency( sb, md ).append( ';' );
+
+        append( sb.append( "\ninclusions=" ), inclusions );
+        append( sb.append( "\nexclusions=" ), exclusions );
+
+        sb.append( "\nversions=" );
+        if ( versionMap != null )
+            for ( Map.Entry<String, ArtifactMetadata> e : new TreeMap<String, ArtifactMetadata>( versionMap ).entrySet() )
+            {
+                // the whole management entry is applied, not just the version
+                sb.append( e.getKey() ).append( '=' );
+                appendDependency( sb, e.getValue() ).append( ';' );
+            }
+
+        sb.append( "\nrepositories=" );
+        if ( repositories != null )
+            for ( Repository r : repositories )
+            {
+                sb.append( r.getId() );
+
+                if ( r instanceof RemoteRepository )
+                {
+                    RepositoryUpdatePolicy up = ( (RemoteRepository) r ).getUpdatePolicy();
+
+                    if ( up != null )
+                        sb.append( '/' ).append( up.getClass().getName() ).append( '/' ).append( up.toString() );
+                }
+
+                sb.append( ';' );
+            }
+
+        sb.append( "\npolicies=" );
+        if ( policies != null )
+            for ( Object p : policies )
+            {
+                sb.append( p == null ? "null" : p.getClass().getName() );
+
+                if ( p instanceof ClassicVersionComparator )
+                    sb.append( "/newer=" ).append( ( (ClassicVersionComparator) p ).isNewerBetter() );
+                else if ( p instanceof ClassicDepthComparator )
+                    sb.append( "/closer=" ).append( ( (ClassicDepthComparator) p ).isCloserBetter() );
+
+                sb.append( ';' );
+            }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+
+            return ChecksumCalculator.encodeToAsciiHex( digest.digest( sb.toString().getBytes( "UTF-8" ) ) );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * find the cached classpath
+     *
+     * @param key resolution fingerprint
+     * @param repositories repositories of this resolution - to check the expiration
+     * @param reader if not null - used to restore the trackers of the classpath members
+     * @return copy of the classpath, or null if there is no valid entry
+     */
+    public List<ArtifactMetadata> find( String key, Collection<Repository> repositories,
+                                        VirtualRepositoryReader reader )
+    {
+        Entry e;
+
+        synchronized ( _entries )
+        {
+            e = _entries.get( key );
+        }
+
+        if ( e == null && _root != null )
+        {
+            e = load( key );
+
+            if ( e != null )
+                synchronized ( _entries )
+                {
+                    _entries.put( key, e );
+                }
+        }
+
+        if ( e == null )
+            return null;
+
+        if ( expired( e, repositories ) )
+        {
+            synchronized ( _entries )
+            {
+                _entries.remove( key );
+            }
+
+            return null;
+        }
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( e.classpath.size() );
+
+        int i = 0;
+
+        for ( ArtifactMetadata cmd : e.classpath )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( cmd );
+
+            String repoId = e.repoIds.get( i++ );
+
+            RepositoryReader rr = null;
+
+            if ( reader != null && repoId != null )
+                try
+                {
+                    rr = reader.getReader( repoId );
+                }
+                catch ( RepositoryException ex )
+                {
+                    rr = null;
+                }
+
+            md.setTracker( rr );
+
+            res.add( md );
+        }
+
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * remember the classpath, resolved for the request with this key
+     */
+    public void save( String key, List<ArtifactMetadata> classpath )
+    {
+        if ( classpath == null )
+            return;
+
+        List<ArtifactMetadata> cp = new ArrayList<ArtifactMetadata>( classpath.size() );
+
+        List<String> repoIds = new ArrayList<String>( classpath.size() );
+
+        for ( ArtifactMetadata md : classpath )
+        {
+            // snapshots get rebuilt all the time
+            if ( isSnapshot( md ) )
+                return;
+
+            ArtifactMetadata cmd = new ArtifactMetadata( md );
+            cmd.setTracker( null );
+
+            cp.add( cmd );
+
+            Object tracker = md.getTracker();
+
+            repoIds.add( tracker instanceof RepositoryReader ? ( (RepositoryReader) tracker ).getRepository().getId()
+                            : null );
+        }
+
+        Entry e = new Entry( System.currentTimeMillis(), cp, repoIds );
+
+        synchronized ( _entries )
+        {
+            _entries.put( key, e );
+        }
+
+        if ( _root != null )
+            store( key, e );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * clear in-memory entries. Persisted ones stay on disk and still obey repository update policies
+     */
+    public void clear()
+    {
+        synchronized ( _entries )
+        {
+            _entries.clear();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public int size()
+    {
+        synchronized ( _entries )
+        {
+            return _entries.size();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static boolean expired( Entry e, Collection<Repository> repositories )
+    {
+        if ( repositories == null )
+            return false;
+
+        for ( Repository repo : repositories )
+        {
+            if ( !( repo instanceof RemoteRepository ) )
+                continue;
+
+            RepositoryUpdatePolicy up = ( (RemoteRepository) repo ).getUpdatePolicy();
+
+            if ( up == null )
+                continue;
+
+            for ( ArtifactMetadata md : e.classpath )
+                if ( up.timestampExpired( e.timestamp, new Quality( md.getVersion() ) ) )
+                    return true;
+        }
+
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static boolean isSnapshot( ArtifactMetadata md )
+    {
+        return md.getVersion() == null || new Quality( md.getVersion() ).getQuality() == QualityEnum.snapshot;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * GAV, scope, optional flag, inclusions and exclusions
+     */
+    private static StringBuilder appendDependency( StringBuilder sb, ArtifactMetadata md )
+    {
+        if ( md == null )
+            return sb.append( "null" );
+
+        sb.append( md.toString() ).append( '/' ).append( md.getArtifactScope().getScope() ).append( '/' ).append( md.isOptional() );
+        append( sb.append( "/+" ), md.getInclusions() );
+        append( sb.append( "/-" ), md.getExclusions() );
+
+        return sb;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static void append( StringBuilder sb, ArtifactMetadataList mds )
+    {
+        if ( mds != null )
+            append( sb, mds.getMetadataList() );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static void append( StringBuilder sb, Collection<ArtifactMetadata> mds )
+    {
+        if ( mds == null )
+            return;
+
+        String comma = "";
+
+        for ( ArtifactMetadata md : mds )
+        {
+            sb.append( comma ).append( md.toString() );
+            comma = ",";
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private File getFile( String key )
+    {
+        return new File( new File( _root, key.substring( 0, 2 ) ), key + CP_EXT );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private Entry load( String key )
+    {
+        File f = getFile( key );
+
+        if ( !f.exists() )
+            return null;
+
+        InputStream in = null;
+
+        try
+        {
+            Properties p = new Properties();
+
+            in = new FileInputStream( f );
+
+            p.load( in );
+
+            int count = Integer.parseInt( p.getProperty( "count" ) );
+
+            List<ArtifactMetadata> cp = new ArrayList<ArtifactMetadata>( count );
+
+            List<String> repoIds = new ArrayList<String>( count );
+
+            for ( int i = 0; i < count; i++ )
+            {
+                String prefix = "cp." + i;
+
+                ArtifactMetadata md = new ArtifactMetadata( p.getProperty( prefix ) );
+                md.setScope( p.getProperty( prefix + ".scope" ) );
+
+                cp.add( md );
+
+                repoIds.add( p.getProperty( prefix + ".repository" ) );
+            }
+
+            return new Entry( Long.parseLong( p.getProperty( "timestamp" ) ), cp, repoIds );
+        }
+        catch ( Exception e )
+        {
+            if ( LOG.isWarnEnabled() )
+                LOG.warn( LANG.getMessage( "resolution.cache.read.error", f.getAbsolutePath(), e.getMessage() ) );
+
+            return null;
+        }
+        finally
+        {
+            if ( in != null )
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException e )
+                {
+                }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private void store( String key, Entry e )
+    {
+        File f = getFile( key );
+
+        FileLockBundle lock = null;
+
+        OutputStream out = null;
+
+        try
+        {
+            f.getParentFile().mkdirs();
+
+            lock = FileUtil.lockDir( f.getParentFile().getCanonicalPath(), 500L, 5L );
+
+            Properties p = new Properties();
+
+            p.setProperty( "timestamp", "" + e.timestamp );
+            p.setProperty( "count", "" + e.classpath.size() );
+
+            int i = 0;
+
+            for ( ArtifactMetadata md : e.classpath )
+            {
+                String repoId = e.repoIds.get( i );
+
+                String prefix = "cp." + i++;
+
+                p.setProperty( prefix, md.toString() );
+                p.setProperty( prefix + ".scope", md.getScope() );
+
+                if ( repoId != null )
+                    p.setProperty( prefix + ".repository", repoId );
+            }
+
+            out = new FileOutputStream( f );
+
+            p.store( out, key );
+        }
+        catch ( IOException ex )
+        {
+            if ( LOG.isWarnEnabled() )
+                LOG.warn( LANG.getMessage( "resolution.cache.write.error", f.getAbsolutePath(), ex.getMessage() ) );
+        }
+        finally
+        {
+            if ( out != null )
+                try
+                {
+                    out.close();
+                }
+                catch ( IOException ex )
+                {
+                }
+
+            if ( lock != null )
+                lock.release();
+        }
+    }
+    // ----------------------------------------------------------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------------------------------------------------------
+}
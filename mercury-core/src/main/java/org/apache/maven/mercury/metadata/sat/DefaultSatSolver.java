@@ -23,9 +23,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
 import org.apache.maven.mercury.artifact.MetadataTreeNode;
@@ -36,16 +47,18 @@ import org.apache.maven.mercury.event.MercuryEventListener;
 import org.apache.maven.mercury.logging.IMercuryLogger;
 import org.apache.maven.mercury.logging.MercuryLoggerManager;
 import org.apache.maven.mercury.metadata.MetadataTreeNodeGAComparator;
-import org.apache.maven.mercury.metadata.MetadataTreeNodeGAVComparator;
+import org.apache.maven.mercury.util.Util;
 import org.codehaus.plexus.lang.DefaultLanguage;
 import org.codehaus.plexus.lang.Language;
 import org.sat4j.core.Vec;
 import org.sat4j.core.VecInt;
 import org.sat4j.pb.IPBSolver;
 import org.sat4j.pb.ObjectiveFunction;
+import org.sat4j.pb.OptToPBSATAdapter;
+import org.sat4j.pb.PseudoOptDecorator;
 import org.sat4j.pb.SolverFactory;
+import org.sat4j.pb.core.PBSolverResolution;
 import org.sat4j.specs.ContradictionException;
-import org.sat4j.specs.IConstr;
 import org.sat4j.specs.IVec;
 import org.sat4j.specs.IVecInt;
 import org.sat4j.specs.TimeoutException;
@@ -65,7 +78,28 @@ public class DefaultSatSolver
 
     protected SatContext _context;
 
-    protected IPBSolver _solver = SolverFactory.newEclipseP2();
+    /** the optimization behind _solver, driven step by step when there is a deadline */
+    private final PseudoOptDecorator _optimizer = newOptimizer();
+
+    protected IPBSolver _solver = new OptToPBSATAdapter( _optimizer );
+
+    /** all the constraints go here first, sat4j only gets what's left open after propagation */
+    SatSimplifier _simplifier;
+
+    /** buckets of the applied policies, the objective is set on the open part of them */
+    private Map<String, List<MetadataTreeNode>> _buckets;
+
+    /** complete model, once found */
+    private int[] _model;
+
+    /** more than 1 - solve independent components of the residual problem in parallel, on their own solvers */
+    private int _threads;
+
+    /** millis to find the optimum in, 0 - no limit */
+    private long _timeout;
+
+    /** false if the deadline cut the search short */
+    private boolean _optimal = true;
 
     protected MetadataTreeNode _root;
 
@@ -75,6 +109,42 @@ public class DefaultSatSolver
 
     protected static final Comparator<MetadataTreeNode> gaComparator = new MetadataTreeNodeGAComparator();
 
+    /** smallest number of residual constraints worth a solver of it's own */
+    public static final String SYSTEM_PROPERTY_MIN_COMPONENT_SIZE = "mercury.sat.component.min";
+
+    private static final int MIN_COMPONENT_SIZE = Util.getIntProperty( SYSTEM_PROPERTY_MIN_COMPONENT_SIZE, 512 );
+
+    /** shared by all the solvers, idle threads go away */
+    private static ExecutorService _solvePool;
+
+    private int _minComponentSize = MIN_COMPONENT_SIZE;
+
+    // -----------------------------------------------------------------------
+    /**
+     * best model found before the deadline
+     */
+    private static final class Optimum
+    {
+        /** null if none was found */
+        int[] model;
+
+        /** there is no better model - or no model at all */
+        boolean proven;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same solver as SolverFactory.newEclipseP2(), with the optimization part accessible
+     */
+    private static PseudoOptDecorator newOptimizer()
+    {
+        PBSolverResolution solver = SolverFactory.newCompetPBResMixedConstraintsObjective();
+
+        solver.setTimeoutOnConflicts( 300 );
+
+        return new PseudoOptDecorator( solver );
+    }
+
     // -----------------------------------------------------------------------
     public static SatSolver create( MetadataTreeNode tree )
         throws SatException
@@ -107,22 +177,17 @@ public class DefaultSatSolver
             if ( tree.getId() == 0 )
                 MetadataTreeNode.reNumber( tree, 1 );
 
-            int nNodes = tree.countDistinctNodes();
+            // shared subtrees are one set of variables, whatever the number of paths to them
+            int nVars = tree.countTargets();
 
-            LOG.debug( "SatContext: # of variables: " + nNodes );
+            LOG.debug( "SatContext: # of variables: " + nVars );
 
-            _context = new SatContext( nNodes );
-            _solver.newVar( tree.countNodes() );
+            _context = new SatContext( nVars );
+            _solver.newVar( nVars );
+            _simplifier = new SatSimplifier( nVars );
             _root = tree;
 
-            try
-            {
-                addNode( tree );
-            }
-            catch ( ContradictionException e )
-            {
-                throw new SatException( e );
-            }
+            addTree( tree );
         }
         finally
         {
@@ -154,8 +219,9 @@ public class DefaultSatSolver
         // TODO og: assumption - around 128 GA's per tree. If more - map reallocates - slow down.
         // TODO og: MERCURY-40
         Map<String, List<MetadataTreeNode>> buckets = new LinkedHashMap<String, List<MetadataTreeNode>>( 128 );
-        fillBuckets( buckets, _root );
-        sortBuckets( buckets, comparators );
+        Map<MetadataTreeNode, Integer> depths = getDepths( _root );
+        fillTargetBuckets( buckets, _root, new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+        sortBuckets( buckets, comparators, depths );
         useBuckets( buckets );
     }
 
@@ -166,26 +232,16 @@ public class DefaultSatSolver
         if ( buckets == null || buckets.size() < 1 )
             return;
 
-        IVecInt vars = new VecInt( 128 );
-        IVec<BigInteger> coeffs = new Vec<BigInteger>( 128 );
-
-        int count = 0;
-
         for ( String key : buckets.keySet() )
         {
             List<MetadataTreeNode> bucket = buckets.get( key );
 
-            // oleg: ? this is needed if optimization is "maximize"
-            // Collections.reverse( bucket );
-
             int bucketSize = bucket.size();
 
-            boolean bigBucket = bucketSize > 1;
-
             if ( LOG.isDebugEnabled() )
                 LOG.debug( "\n\nBucket " + key );
 
-            IVecInt bucketVars = new VecInt( bucketSize );
+            int[] bucketVars = new int[bucketSize];
 
             for ( int i = 0; i < bucketSize; i++ )
             {
@@ -194,176 +250,144 @@ public class DefaultSatSolver
                 if ( LOG.isDebugEnabled() )
                     LOG.debug( n.toString() );
 
-                SatVar var = _context.findOrAdd( n );
-                int varLiteral = var.getLiteral();
-
-                bucketVars.push( varLiteral );
-
-                if ( bigBucket )
-                {
-                    vars.push( varLiteral );
-
-                    BigInteger cf = TWO.pow( count++ );
-
-                    coeffs.push( cf );
-
-                    if ( LOG.isDebugEnabled() )
-                        LOG.debug( "    " + cf + " x" + var.getLiteral() );
-                }
-
+                bucketVars[i] = _context.findOrAdd( n ).getLiteral();
             }
 
-            try
-            {
-                if ( bucketVars != null && !bucketVars.isEmpty() )
-                {
-                    _solver.addAtMost( bucketVars, 1 );
-                    _solver.addAtLeast( bucketVars, 1 );
-                }
-            }
-            catch ( ContradictionException e )
+            if ( bucketSize > 0 )
             {
-                throw new SatException( e );
+                _simplifier.addAtMost( bucketVars, 1 );
+                _simplifier.addAtLeast( bucketVars, 1 );
             }
 
             if ( LOG.isDebugEnabled() )
                 LOG.debug( "\n" );
         }
 
-        if ( vars.isEmpty() )
-            return;
-
-        _solver.setObjectiveFunction( new ObjectiveFunction( vars, coeffs ) );
+        _buckets = buckets;
     }
 
     // -----------------------------------------------------------------------
-    protected static final void sortBuckets( Map<String, List<MetadataTreeNode>> buckets,
-                                             List<Comparator<MetadataTreeNode>> comparators )
+    /**
+     * lexicographic preference: a later bucket outweighs all the earlier ones together, inside a bucket the first
+     * candidate is the best. Exactly one candidate per bucket is selected, so the candidate's rank in the bucket,
+     * scaled by the product of the earlier bucket sizes, gives the same optimum as a power of two per candidate -
+     * with about log2(bucket size) bits per bucket instead of bucket size. Best candidates cost nothing and are
+     * left out.
+     */
+    protected void setObjective( Map<String, List<MetadataTreeNode>> buckets )
+        throws SatException
     {
-        Comparator<MetadataTreeNode> lastComparator;
-        for ( List<MetadataTreeNode> bucket : buckets.values() )
-        {
-            lastComparator = gaComparator;
-            for ( Comparator<MetadataTreeNode> comparator : comparators )
-            {
-                sortBucket( bucket, comparator, lastComparator );
-                lastComparator = comparator;
-            }
-            // due to the nature of Comparator need to reverse the result
-            // as the best fit is now last
-            Collections.reverse( bucket );
+        ObjectiveFunction objective = createObjective( buckets, null );
 
-            // the best fit now first, and we don't need duplicate GAVs
-            removeDuplicateGAVs( bucket );
-
-        }
+        if ( objective != null )
+            _solver.setObjectiveFunction( objective );
     }
 
     // -----------------------------------------------------------------------
-    // remove duplicates, preserving the order. The first one is the most fit,
-    // so need to delete from tail
-    protected static final void removeDuplicateGAVs( List<MetadataTreeNode> bucket )
+    /**
+     * @param local literal numbering of the solver, null if it uses the tree literals
+     * @return null if there is nothing to optimize
+     */
+    private ObjectiveFunction createObjective( Map<String, List<MetadataTreeNode>> buckets, int[] local )
+        throws SatException
     {
-        if ( bucket == null || bucket.size() < 2 )
-            return;
-
-        Comparator<MetadataTreeNode> gav = new MetadataTreeNodeGAVComparator();
+        IVecInt vars = new VecInt( 128 );
+        IVec<BigInteger> coeffs = new Vec<BigInteger>( 128 );
 
-        int len = bucket.size();
-        int[] dups = new int[len - 1];
-        int cnt = 0;
+        BigInteger weight = BigInteger.ONE;
 
-        for ( int i = 1; i < len; i++ )
+        for ( List<MetadataTreeNode> bucket : buckets.values() )
         {
-            MetadataTreeNode ti = bucket.get( i );
+            int bucketSize = bucket.size();
 
-            for ( int j = 0; j < i; j++ )
-                if ( gav.compare( ti, bucket.get( j ) ) == 0 )
-                {
-                    dups[cnt++] = i;
-                    break;
-                }
+            if ( bucketSize < 2 )
+                continue;
+
+            for ( int i = 1; i < bucketSize; i++ )
+            {
+                SatVar var = _context.findOrAdd( bucket.get( i ) );
+
+                BigInteger cf = weight.multiply( BigInteger.valueOf( i ) );
+
+                vars.push( local == null ? var.getLiteral() : local[var.getLiteral()] );
+                coeffs.push( cf );
+
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( "    " + cf + " x" + var.getLiteral() );
+            }
+
+            weight = weight.multiply( BigInteger.valueOf( bucketSize ) );
         }
 
-        if ( cnt > 0 )
-            for ( int i = 0; i < cnt; i++ )
-                bucket.remove( dups[cnt - i - 1] );
+        if ( vars.isEmpty() )
+            return null;
+
+        return new ObjectiveFunction( vars, coeffs );
     }
 
     // -----------------------------------------------------------------------
     /**
-     * reorders the bucket's lastComparator equal subsets with comparator.
+     * one sort per bucket with all the comparators, the best fit first, duplicate GAVs removed
      */
-    protected static final void sortBucket( List<MetadataTreeNode> bucket, Comparator<MetadataTreeNode> comparator,
-                                            Comparator<MetadataTreeNode> lastComparator )
+    protected static final void sortBuckets( Map<String, List<MetadataTreeNode>> buckets,
+                                             List<Comparator<MetadataTreeNode>> comparators )
     {
-        if ( bucket == null || bucket.size() < 2 )
-            return;
-
-        int bLen = bucket.size();
-        MetadataTreeNode[] temp = bucket.toArray( new MetadataTreeNode[bLen] );
+        sortBuckets( buckets, comparators, null );
+    }
 
-        int wStart = -1;
-        int wLen = 0;
-        MetadataTreeNode[] work = new MetadataTreeNode[bLen];
+    // -----------------------------------------------------------------------
+    /**
+     * @param depths depth of the nodes to compare by, if null - the node's own depth
+     */
+    static final void sortBuckets( Map<String, List<MetadataTreeNode>> buckets,
+                                   List<Comparator<MetadataTreeNode>> comparators,
+                                   Map<MetadataTreeNode, Integer> depths )
+    {
+        PolicyComparator policy = new PolicyComparator( comparators );
 
-        MetadataTreeNode lastNode = null;
-        for ( int i = 0; i < bLen; i++ )
+        for ( List<MetadataTreeNode> bucket : buckets.values() )
         {
-            MetadataTreeNode n = temp[i];
+            int len = bucket.size();
 
-            if ( lastNode == null )
-            {
-                lastNode = n;
+            if ( len < 2 )
                 continue;
-            }
 
-            if ( lastComparator.compare( lastNode, n ) == 0 )
+            PolicyComparator.Key[] keys = new PolicyComparator.Key[len];
+
+            for ( int i = 0; i < len; i++ )
             {
-                if ( wLen == 0 )
-                {
-                    work[wLen++] = lastNode;
-                    wStart = i - 1;
-                }
+                MetadataTreeNode n = bucket.get( i );
+                Integer depth = depths == null ? null : depths.get( n );
 
-                work[wLen++] = n;
+                keys[i] = depth == null ? policy.getKey( n ) : policy.getKey( n, depth );
+            }
 
-                lastNode = n;
+            Arrays.sort( keys, policy );
 
-                if ( i < ( bLen - 1 ) )
-                    continue;
-            }
+            // due to the nature of Comparator the best fit is now last
+            bucket.clear();
 
-            if ( wLen > 0 ) // eq list formed
-            {
-                reorder( work, wLen, comparator );
-                for ( int j = 0; j < wLen; j++ )
-                    temp[wStart + j] = work[j];
-                wLen = 0;
-                wStart = -1;
-            }
+            Set<String> gavs = new HashSet<String>( 2 * len );
 
-            lastNode = n;
+            for ( int i = len - 1; i >= 0; i-- )
+                if ( gavs.add( keys[i].gav ) )
+                    bucket.add( keys[i].node );
         }
-
-        bucket.clear();
-        for ( int i = 0; i < bLen; i++ )
-            bucket.add( temp[i] );
     }
 
     // -----------------------------------------------------------------------
-    private static final void reorder( MetadataTreeNode[] work, int wLen, Comparator<MetadataTreeNode> comparator )
+    // remove duplicates, preserving the order. The first one is the most fit,
+    // so the later ones go
+    protected static final void removeDuplicateGAVs( List<MetadataTreeNode> bucket )
     {
-        MetadataTreeNode[] temp = new MetadataTreeNode[wLen];
-
-        for ( int i = 0; i < wLen; i++ )
-            temp[i] = work[i];
-
-        Arrays.sort( temp, comparator );
+        if ( bucket == null || bucket.size() < 2 )
+            return;
 
-        for ( int i = 0; i < wLen; i++ )
-            work[i] = temp[i];
+        Set<String> gavs = new HashSet<String>( 2 * bucket.size() );
 
+        for ( Iterator<MetadataTreeNode> i = bucket.iterator(); i.hasNext(); )
+            if ( !gavs.add( i.next().getMd().getGAV() ) )
+                i.remove();
     }
 
     // -----------------------------------------------------------------------
@@ -389,11 +413,94 @@ public class DefaultSatSolver
         }
     }
 
+    // -----------------------------------------------------------------------
+    /**
+     * same as fillBuckets(), but a shared subtree is visited once - through the first path to it
+     */
+    static final void fillTargetBuckets( Map<String, List<MetadataTreeNode>> buckets, MetadataTreeNode node,
+                                         Map<MetadataTreeNode, MetadataTreeNode> visited )
+    {
+        MetadataTreeNode target = node.getTarget();
+
+        if ( visited.put( target, target ) != null )
+            return;
+
+        String ga = target.getMd().getGA();
+        List<MetadataTreeNode> bucket = buckets.get( ga );
+        if ( bucket == null )
+        {
+            bucket = new ArrayList<MetadataTreeNode>( 32 );
+            buckets.put( ga, bucket );
+        }
+
+        bucket.add( target );
+
+        if ( !target.hasChildren() )
+            return;
+
+        for ( MetadataTreeNode kid : target.getChildren() )
+        {
+            fillTargetBuckets( buckets, kid, visited );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * the closest depth of every target - breadth first, so the first path to a shared node is the shortest one
+     */
+    static final Map<MetadataTreeNode, Integer> getDepths( MetadataTreeNode root )
+    {
+        Map<MetadataTreeNode, Integer> res = new IdentityHashMap<MetadataTreeNode, Integer>( 256 );
+
+        List<MetadataTreeNode> level = new ArrayList<MetadataTreeNode>( 1 );
+        level.add( root.getTarget() );
+
+        int depth = root.getDepth();
+
+        res.put( root.getTarget(), depth );
+
+        while ( !level.isEmpty() )
+        {
+            ++depth;
+
+            List<MetadataTreeNode> next = new ArrayList<MetadataTreeNode>( 2 * level.size() );
+
+            for ( MetadataTreeNode n : level )
+            {
+                if ( !n.hasChildren() )
+                    continue;
+
+                for ( MetadataTreeNode kid : n.getChildren() )
+                {
+                    MetadataTreeNode target = kid.getTarget();
+
+                    if ( res.containsKey( target ) )
+                        continue;
+
+                    res.put( target, depth );
+                    next.add( target );
+                }
+            }
+
+            level = next;
+        }
+
+        return res;
+    }
+
     // -----------------------------------------------------------------------
     private final void addPB( IVecInt lits, IVec<BigInteger> coeff, boolean ge, BigInteger cardinality )
-        throws ContradictionException
     {
-        _solver.addPseudoBoolean( lits, coeff, ge, cardinality );
+        int[] ls = new int[lits.size()];
+        int[] cs = new int[lits.size()];
+
+        for ( int i = 0; i < ls.length; i++ )
+        {
+            ls[i] = lits.get( i );
+            cs[i] = ge ? coeff.get( i ).intValue() : -coeff.get( i ).intValue();
+        }
+
+        _simplifier.add( ls, cs, ge ? cardinality.intValue() : -cardinality.intValue() );
 
         if ( LOG.isDebugEnabled() )
             LOG.debug( "PB: " );
@@ -453,8 +560,67 @@ public class DefaultSatSolver
     }
 
     // -----------------------------------------------------------------------
-    private final void addNode( MetadataTreeNode node )
-        throws ContradictionException, SatException
+    /**
+     * every target is encoded once: the literals are per target, so all the paths to a shared subtree produce the
+     * same constraints. A view stands for its own path, so a node seen through views implies one of its parents. A
+     * node added to several parents as is implies all of them - same as before the views
+     */
+    private final void addTree( MetadataTreeNode tree )
+        throws SatException
+    {
+        Map<SatVar, Set<Integer>> parents = new LinkedHashMap<SatVar, Set<Integer>>( 256 );
+
+        Set<SatVar> viewed = new HashSet<SatVar>( 256 );
+
+        Map<MetadataTreeNode, MetadataTreeNode> visited = new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>( 256 );
+
+        MetadataTreeNode root = tree.getTarget();
+
+        visited.put( root, root );
+
+        addNode( root, parents, viewed, visited );
+
+        for ( Map.Entry<SatVar, Set<Integer>> e : parents.entrySet() )
+        {
+            int kid = e.getKey().getLiteral();
+
+            Set<Integer> ps = e.getValue();
+
+            if ( !viewed.contains( e.getKey() ) )
+            {
+                for ( Integer p : ps )
+                    addPB( SatHelper.getSmallOnes( new int[] { p, kid } ), SatHelper.getBigOnes( 1, -1 ), true,
+                           BigInteger.ZERO );
+
+                continue;
+            }
+
+            int[] lits = new int[ps.size() + 1];
+            int[] coeffs = new int[lits.length];
+
+            int i = 0;
+
+            for ( Integer p : ps )
+            {
+                lits[i] = p;
+                coeffs[i++] = 1;
+            }
+
+            // Sparents - kid >= 0
+            lits[i] = kid;
+            coeffs[i] = -1;
+
+            _simplifier.add( lits, coeffs, 0 );
+
+            if ( LOG.isDebugEnabled() )
+                LOG.debug( "implication: " + Arrays.toString( lits ) + " " + Arrays.toString( coeffs ) + " >= 0" );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    private final void addNode( MetadataTreeNode node, Map<SatVar, Set<Integer>> parents, Set<SatVar> viewed,
+                                Map<MetadataTreeNode, MetadataTreeNode> visited )
+        throws SatException
     {
         if ( node == null )
             return;
@@ -484,48 +650,48 @@ public class DefaultSatSolver
 
             List<MetadataTreeNode> range = kid.getValue();
 
-            if ( range.size() > 1 )
+            int[] literals = new int[range.size()];
+
+            int count = 0;
+
+            for ( MetadataTreeNode tn : range )
             {
-                addRange( nodeLit.getLiteral(), range, query.isOptional() );
-                for ( MetadataTreeNode tn : range )
+                SatVar kidLit = _context.findOrAdd( tn.getTarget() );
+
+                literals[count++] = kidLit.getLiteral();
+
+                // implication to parent
+                Set<Integer> ps = parents.get( kidLit );
+
+                if ( ps == null )
                 {
-                    addNode( tn );
+                    ps = new LinkedHashSet<Integer>( 4 );
+                    parents.put( kidLit, ps );
                 }
+
+                ps.add( nodeLit.getLiteral() );
+
+                if ( tn.isShared() )
+                    viewed.add( kidLit );
             }
-            else
+
+            if ( range.size() > 1 )
+                addRange( literals, query.isOptional() );
+
+            for ( MetadataTreeNode tn : range )
             {
-                MetadataTreeNode child = range.get( 0 );
-                SatVar kidLit = _context.findOrAdd( child );
+                MetadataTreeNode target = tn.getTarget();
 
-                addPB( SatHelper.getSmallOnes( new int[] { nodeLit.getLiteral(), kidLit.getLiteral() } ),
-                       SatHelper.getBigOnes( 1, -1 ), true, BigInteger.ZERO );
-                // addRange( nodeLit.getLiteral(), range, query.isOptional() );
-                addNode( child );
+                if ( visited.put( target, target ) == null )
+                    addNode( target, parents, viewed, visited );
             }
-
         }
     }
 
     // -----------------------------------------------------------------------
-    private final int[] addRange( int parentLiteral, List<MetadataTreeNode> range, boolean optional )
-        throws ContradictionException, SatException
+    private final void addRange( int[] literals, boolean optional )
+        throws SatException
     {
-        SatVar literal;
-
-        int[] literals = new int[range.size()];
-
-        int count = 0;
-
-        for ( MetadataTreeNode tn : range )
-        {
-            literal = _context.findOrAdd( tn );
-            literals[count++] = literal.getLiteral();
-
-            // implication to parent
-            addPB( SatHelper.getSmallOnes( new int[] { parentLiteral, literal.getLiteral() } ),
-                   SatHelper.getBigOnes( 1, -1 ), true, BigInteger.ZERO );
-        }
-
         IVecInt rangeVector = SatHelper.getSmallOnes( literals );
 
         if ( optional ) // Sxi >= 0
@@ -533,7 +699,7 @@ public class DefaultSatSolver
             if ( LOG.isDebugEnabled() )
                 LOG.debug( "optional range: atMost 1: " + SatHelper.vectorToString( rangeVector ) );
 
-            _solver.addAtMost( rangeVector, 1 );
+            _simplifier.addAtMost( literals, 1 );
         }
         else
         // Sxi = 1
@@ -541,111 +707,670 @@ public class DefaultSatSolver
             if ( LOG.isDebugEnabled() )
                 LOG.debug( "range: " + SatHelper.vectorToString( rangeVector ) );
 
-            IConstr atLeast = _solver.addAtLeast( rangeVector, 1 );
-            if ( LOG.isDebugEnabled() )
-                LOG.debug( "atLeast: " + SatHelper.vectorToString( atLeast ) );
-
-            IConstr atMost = _solver.addAtMost( rangeVector, 1 );
-            if ( LOG.isDebugEnabled() )
-                LOG.debug( "atMost: " + SatHelper.vectorToString( atMost ) );
-
+            _simplifier.addAtLeast( literals, 1 );
+            _simplifier.addAtMost( literals, 1 );
         }
-
-        return literals;
     }
 
     // -----------------------------------------------------------------------
-    public final List<ArtifactMetadata> solve()
+    /**
+     * fix the forced literals first, sat4j gets only the constraints left open - if any - and the objective over the
+     * buckets without a fixed candidate
+     * 
+     * @return complete model, null if there is no solution
+     */
+    private int[] findModel()
         throws SatException
     {
-        List<ArtifactMetadata> res = null;
+        if ( _model != null )
+            return _model;
+
+        long deadline = System.currentTimeMillis() + _timeout;
+
         GenericEvent event = null;
 
         try
         {
             if ( _eventManager != null )
-                event = new GenericEvent( EventTypeEnum.satSolver, EVENT_SOLVE, _root.toString() );
+                event = new GenericEvent( EventTypeEnum.satSolver, EVENT_PRESOLVE, _root.toString() );
 
-            if ( _solver.isSatisfiable() )
+            if ( !_simplifier.propagate() )
             {
-                res = new ArrayList<ArtifactMetadata>( _root.countNodes() );
+                if ( _eventManager != null )
+                    event.setResult( "contradiction" );
 
-                int[] model = _solver.model();
+                return null;
+            }
 
-                if ( LOG.isDebugEnabled() )
-                    if ( model != null )
-                    {
-                        StringBuilder sb = new StringBuilder();
-                        String comma = "";
-                        for ( int m : model )
-                        {
-                            sb.append( comma + m );
-                            comma = ", ";
-                        }
-                        LOG.debug( '[' + sb.toString() + ']' );
-                    }
-                    else
-                        LOG.debug( "model is null" );
+            List<SatSimplifier.Constraint> residual = _simplifier.getResidual();
+
+            if ( LOG.isDebugEnabled() )
+                LOG.debug( "presolve: fixed " + _simplifier.getFixedCount() + " literals, " + residual.size()
+                    + " constraints left" );
 
-                for ( int i : model )
-                    if ( i > 0 )
-                        res.add( _context.getMd( i ) );
-            }
-            else
-            // not satisfied
-            {
-                throw new SatException( LANG.getMessage( "no.solution", _root.toString() ) );
-            }
-        }
-        catch ( TimeoutException e )
-        {
-            throw new SatException( e );
-        }
-        finally
-        {
+            if ( _eventManager != null )
+                event.setResult( "fixed " + _simplifier.getFixedCount() + " literals, " + residual.size()
+                    + " constraints left" );
+
+            int[] model = null;
+
+            Map<String, List<MetadataTreeNode>> openBuckets = null;
+
+            if ( !residual.isEmpty() )
+            {
+                if ( _buckets != null )
+                    openBuckets = getOpenBuckets();
+
+                List<List<SatSimplifier.Constraint>> batches = _threads > 1 ? split( residual ) : null;
+
+                if ( batches != null )
+                {
+                    if ( _eventManager != null )
+                        event.setResult( "fixed " + _simplifier.getFixedCount() + " literals, " + residual.size()
+                            + " constraints left in " + batches.size() + " batches" );
+
+                    Optimum optimum = solveComponents( batches, openBuckets, deadline );
+
+                    model = optimum.model;
+                    _optimal = optimum.proven;
+                }
+                else
+                {
+                    try
+                    {
+                        for ( SatSimplifier.Constraint c : residual )
+                            SatSimplifier.addTo( c, _solver );
+                    }
+                    catch ( ContradictionException e )
+                    {
+                        return null;
+                    }
+
+                    if ( openBuckets != null )
+                        setObjective( openBuckets );
+
+                    if ( _timeout > 0 )
+                    {
+                        Optimum optimum = optimize( _optimizer, deadline );
+
+                        model = optimum.model;
+                        _optimal = optimum.proven;
+                    }
+                    else if ( _solver.isSatisfiable() )
+                        model = _solver.model();
+                }
+
+                if ( model == null && _optimal )
+                    return null;
+            }
+
+            if ( model == null && !residual.isEmpty() )
+            {
+                // out of time before the first model
+                _model = greedy( openBuckets );
+
+                if ( _model == null )
+                    throw new SatException( LANG.getMessage( "no.solution.in.time", "" + _timeout, _root.toString() ) );
+            }
+            else
+                _model = _simplifier.getModel( model, residual );
+
+            if ( _timeout > 0 )
+                fireOptimality( model == null && !residual.isEmpty(), deadline );
+
+            if ( LOG.isDebugEnabled() )
+            {
+                StringBuilder sb = new StringBuilder();
+                String comma = "";
+                for ( int m : _model )
+                {
+                    sb.append( comma + m );
+                    comma = ", ";
+                }
+                LOG.debug( '[' + sb.toString() + ']' );
+            }
+
+            return _model;
+        }
+        catch ( TimeoutException e )
+        {
+            throw new SatException( e );
+        }
+        finally
+        {
             if ( _eventManager != null )
             {
                 event.stop();
                 _eventManager.fireEvent( event );
             }
         }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * improve the model until there is no better one or the time is up. Every step gets what's left of the time
+     */
+    private static Optimum optimize( PseudoOptDecorator optimizer, long deadline )
+    {
+        Optimum res = new Optimum();
+
+        try
+        {
+            for ( ;; )
+            {
+                long left = deadline - System.currentTimeMillis();
+
+                if ( left <= 0 )
+                    return res;
+
+                optimizer.setTimeoutMs( left );
+
+                if ( !optimizer.admitABetterSolution() )
+                {
+                    res.proven = true;
+                    return res;
+                }
+
+                res.model = optimizer.model();
+
+                if ( optimizer.hasNoObjectiveFunction() )
+                {
+                    res.proven = true;
+                    return res;
+                }
+
+                // next one should be better
+                optimizer.discard();
+            }
+        }
+        catch ( ContradictionException e )
+        {
+            // nothing better is possible
+            res.proven = true;
+        }
+        catch ( TimeoutException e )
+        {
+            if ( LOG.isDebugEnabled() )
+                LOG.debug( "out of time, " + ( res.model == null ? "no model" : "using the best model so far" ) );
+        }
+
         return res;
     }
 
     // -----------------------------------------------------------------------
-    public final MetadataTreeNode solveAsTree()
+    /**
+     * last resort when the time is up: the best open candidate of every bucket that fits, the most important
+     * buckets first
+     */
+    private int[] greedy( Map<String, List<MetadataTreeNode>> openBuckets )
         throws SatException
     {
-        try
+        List<int[]> buckets = new ArrayList<int[]>( openBuckets == null ? 0 : openBuckets.size() );
+
+        if ( openBuckets != null )
         {
-            if ( _solver.isSatisfiable() )
+            List<List<MetadataTreeNode>> values = new ArrayList<List<MetadataTreeNode>>( openBuckets.values() );
+
+            // later buckets outweigh the earlier ones
+            for ( int i = values.size() - 1; i >= 0; i-- )
             {
-                int[] model = _solver.model();
+                List<MetadataTreeNode> bucket = values.get( i );
 
-                if ( LOG.isDebugEnabled() )
-                    if ( model != null )
+                int[] lits = new int[bucket.size()];
+
+                for ( int j = 0; j < lits.length; j++ )
+                    lits[j] = _context.findOrAdd( bucket.get( j ) ).getLiteral();
+
+                buckets.add( lits );
+            }
+        }
+
+        return _simplifier.dive( buckets );
+    }
+
+    // -----------------------------------------------------------------------
+    private void fireOptimality( boolean greedy, long deadline )
+    {
+        if ( LOG.isDebugEnabled() )
+            LOG.debug( greedy ? "greedy model" : _optimal ? "optimal model" : "best model found in " + _timeout
+                + " millis" );
+
+        if ( _eventManager == null )
+            return;
+
+        GenericEvent event = new GenericEvent( EventTypeEnum.satSolver, EVENT_BOUNDED_SOLVE, _root.toString() );
+
+        event.setResult( greedy ? BOUNDED_SOLVE_GREEDY : _optimal ? BOUNDED_SOLVE_OPTIMAL : BOUNDED_SOLVE_BEST );
+
+        event.setInfo( "deadline " + _timeout + " millis, " + ( deadline - System.currentTimeMillis() ) + " left" );
+
+        event.stop();
+
+        _eventManager.fireEvent( event );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * connected components of the residual problem: constraints sharing a literal belong to the same component
+     */
+    private List<List<SatSimplifier.Constraint>> partition( List<SatSimplifier.Constraint> residual )
+    {
+        int[] parent = new int[_simplifier.getVarCount() + 1];
+
+        for ( int i = 0; i < parent.length; i++ )
+            parent[i] = i;
+
+        for ( SatSimplifier.Constraint c : residual )
+            for ( int i = 1; i < c.lits.length; i++ )
+            {
+                int a = find( parent, c.lits[0] );
+                int b = find( parent, c.lits[i] );
+
+                if ( a != b )
+                    parent[b] = a;
+            }
+
+        Map<Integer, List<SatSimplifier.Constraint>> components =
+            new LinkedHashMap<Integer, List<SatSimplifier.Constraint>>( 16 );
+
+        for ( SatSimplifier.Constraint c : residual )
+        {
+            Integer root = find( parent, c.lits[0] );
+
+            List<SatSimplifier.Constraint> component = components.get( root );
+
+            if ( component == null )
+            {
+                component = new ArrayList<SatSimplifier.Constraint>( 8 );
+                components.put( root, component );
+            }
+
+            component.add( c );
+        }
+
+        return new ArrayList<List<SatSimplifier.Constraint>>( components.values() );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * independent components of the residual problem, packed into at most as many batches as there are threads: the
+     * biggest component goes to the smallest batch. Every batch has to be worth it's own solver, otherwise there are
+     * fewer batches
+     * 
+     * @return null if the residual problem is better solved in one piece
+     */
+    private List<List<SatSimplifier.Constraint>> split( List<SatSimplifier.Constraint> residual )
+    {
+        int nBatches = Math.min( _threads, residual.size() / Math.max( 1, _minComponentSize ) );
+
+        if ( nBatches < 2 )
+            return null;
+
+        List<List<SatSimplifier.Constraint>> components = partition( residual );
+
+        Collections.sort( components, new Comparator<List<SatSimplifier.Constraint>>()
+        {
+            public int compare( List<SatSimplifier.Constraint> c1, List<SatSimplifier.Constraint> c2 )
+            {
+                return c2.size() - c1.size();
+            }
+        } );
+
+        for ( nBatches = Math.min( nBatches, components.size() ); nBatches > 1; nBatches-- )
+        {
+            List<List<SatSimplifier.Constraint>> batches = new ArrayList<List<SatSimplifier.Constraint>>( nBatches );
+
+            for ( int i = 0; i < nBatches; i++ )
+                batches.add( new ArrayList<SatSimplifier.Constraint>( residual.size() / nBatches + 1 ) );
+
+            for ( List<SatSimplifier.Constraint> component : components )
+            {
+                List<SatSimplifier.Constraint> smallest = batches.get( 0 );
+
+                for ( List<SatSimplifier.Constraint> batch : batches )
+                    if ( batch.size() < smallest.size() )
+                        smallest = batch;
+
+                smallest.addAll( component );
+            }
+
+            boolean big = true;
+
+            for ( List<SatSimplifier.Constraint> batch : batches )
+                if ( batch.size() < _minComponentSize )
+                    big = false;
+
+            if ( big )
+                return batches;
+        }
+
+        return null;
+    }
+
+    // -----------------------------------------------------------------------
+    private static int find( int[] parent, int lit )
+    {
+        while ( parent[lit] != lit )
+        {
+            parent[lit] = parent[parent[lit]];
+            lit = parent[lit];
+        }
+
+        return lit;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * every batch of components gets it's own solver with the buckets it contains, the solver is built and run on a
+     * pooled thread. The objective is a sum over independent components, so the merged batch optima are the optimum
+     * of the whole residual problem
+     * 
+     * @return positive literals of the merged model. Null if any of the batches has no solution - proven, so the
+     *         whole problem is unsatisfiable - or if one did not find it in time - not proven
+     */
+    private Optimum solveComponents( List<List<SatSimplifier.Constraint>> batches,
+                                     Map<String, List<MetadataTreeNode>> openBuckets, final long deadline )
+        throws SatException
+    {
+        int nBatches = batches.size();
+
+        int nVars = _simplifier.getVarCount();
+
+        // literal -> batch index + 1
+        int[] owner = new int[nVars + 1];
+
+        // literal -> it's number in the batch's solver, the batch solvers are as small as the batches
+        final int[] local = new int[nVars + 1];
+
+        // batch's literal numbers -> tree literals
+        int[][] global = new int[nBatches][];
+
+        for ( int i = 0; i < nBatches; i++ )
+        {
+            int count = 0;
+
+            for ( SatSimplifier.Constraint c : batches.get( i ) )
+                for ( int lit : c.lits )
+                    if ( owner[lit] == 0 )
                     {
-                        StringBuilder sb = new StringBuilder();
-                        String comma = "";
-                        for ( int m : model )
+                        owner[lit] = i + 1;
+                        local[lit] = ++count;
+                    }
+
+            global[i] = new int[count + 1];
+        }
+
+        for ( int lit = 1; lit <= nVars; lit++ )
+            if ( owner[lit] != 0 )
+                global[owner[lit] - 1][local[lit]] = lit;
+
+        List<Map<String, List<MetadataTreeNode>>> batchBuckets =
+            new ArrayList<Map<String, List<MetadataTreeNode>>>( nBatches );
+
+        for ( int i = 0; i < nBatches; i++ )
+            batchBuckets.add( new LinkedHashMap<String, List<MetadataTreeNode>>( 8 ) );
+
+        // an open bucket is an atMost constraint, all of it's candidates are in one component
+        if ( openBuckets != null )
+            for ( Map.Entry<String, List<MetadataTreeNode>> e : openBuckets.entrySet() )
+            {
+                int lit = _context.findOrAdd( e.getValue().get( 0 ) ).getLiteral();
+
+                batchBuckets.get( owner[lit] - 1 ).put( e.getKey(), e.getValue() );
+            }
+
+        List<Callable<Optimum>> tasks = new ArrayList<Callable<Optimum>>( nBatches );
+
+        for ( int i = 0; i < nBatches; i++ )
+        {
+            final List<SatSimplifier.Constraint> batch = batches.get( i );
+
+            final int batchVars = global[i].length - 1;
+
+            // the context is not thread safe - objective is taken here
+            final ObjectiveFunction objective = createObjective( batchBuckets.get( i ), local );
+
+            tasks.add( new Callable<Optimum>()
+            {
+                public Optimum call()
+                    throws Exception
+                {
+                    PseudoOptDecorator optimizer = newOptimizer();
+
+                    IPBSolver solver = new OptToPBSATAdapter( optimizer );
+
+                    solver.newVar( batchVars );
+
+                    Optimum optimum = new Optimum();
+
+                    optimum.proven = true;
+
+                    try
+                    {
+                        for ( SatSimplifier.Constraint c : batch )
                         {
-                            sb.append( comma + m );
-                            comma = ", ";
+                            int[] lits = new int[c.lits.length];
+
+                            for ( int j = 0; j < lits.length; j++ )
+                                lits[j] = local[c.lits[j]];
+
+                            SatSimplifier.addTo( new SatSimplifier.Constraint( lits, c.coeffs, c.degree ), solver );
                         }
-                        LOG.debug( '[' + sb.toString() + ']' );
                     }
-                    else
-                        LOG.debug( "model is null" );
+                    catch ( ContradictionException e )
+                    {
+                        return optimum;
+                    }
+
+                    if ( objective != null )
+                        solver.setObjectiveFunction( objective );
+
+                    if ( _timeout > 0 )
+                        return optimize( optimizer, deadline );
+
+                    if ( solver.isSatisfiable() )
+                        optimum.model = solver.model();
+
+                    return optimum;
+                }
+            } );
+        }
+
+        try
+        {
+            List<Future<Optimum>> optima = getSolvePool().invokeAll( tasks );
+
+            Optimum res = new Optimum();
+            res.proven = true;
+
+            int[] model = new int[nVars];
+            int count = 0;
+
+            boolean complete = true;
+
+            for ( int i = 0; i < nBatches; i++ )
+            {
+                Optimum optimum = optima.get( i ).get();
+
+                if ( optimum.model == null )
+                {
+                    // one unsatisfiable batch decides, whatever the others did in time
+                    if ( optimum.proven )
+                        return optimum;
+
+                    complete = false;
+                    continue;
+                }
+
+                res.proven &= optimum.proven;
 
-                return _context.getSolutionSubtree( _root, model );
+                for ( int m : optimum.model )
+                    if ( m > 0 && m < global[i].length )
+                        model[count++] = global[i][m];
             }
-            return null;
+
+            if ( !complete )
+            {
+                // no time to find a model of some batch
+                res.proven = false;
+                return res;
+            }
+
+            res.model = new int[count];
+            System.arraycopy( model, 0, res.model, 0, count );
+
+            return res;
         }
-        catch ( TimeoutException e )
+        catch ( InterruptedException e )
         {
+            Thread.currentThread().interrupt();
             throw new SatException( e );
         }
+        catch ( ExecutionException e )
+        {
+            throw new SatException( e.getCause() );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    private static synchronized ExecutorService getSolvePool()
+    {
+        if ( _solvePool == null )
+        {
+            _solvePool = Executors.newCachedThreadPool( new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "mercury-sat" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        }
+
+        return _solvePool;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * buckets without a fixed candidate, reduced to their open candidates
+     */
+    private Map<String, List<MetadataTreeNode>> getOpenBuckets()
+        throws SatException
+    {
+        Map<String, List<MetadataTreeNode>> res = new LinkedHashMap<String, List<MetadataTreeNode>>( _buckets.size() );
+
+        for ( Map.Entry<String, List<MetadataTreeNode>> e : _buckets.entrySet() )
+        {
+            List<MetadataTreeNode> bucket = e.getValue();
+
+            List<MetadataTreeNode> open = new ArrayList<MetadataTreeNode>( bucket.size() );
+
+            boolean fixed = false;
+
+            for ( MetadataTreeNode n : bucket )
+            {
+                byte value = _simplifier.getValue( _context.findOrAdd( n ).getLiteral() );
+
+                if ( value == SatSimplifier.TRUE )
+                {
+                    fixed = true;
+                    break;
+                }
+                else if ( value == SatSimplifier.UNDEFINED )
+                    open.add( n );
+            }
+
+            if ( !fixed && open.size() > 1 )
+                res.put( e.getKey(), open );
+        }
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @param threads more than 1 - split the residual problem into independent components and solve them in
+     *            parallel, on up to that many threads
+     */
+    public void setThreads( int threads )
+    {
+        _threads = threads;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @param minComponentSize smallest number of residual constraints, that gets a solver and a thread of it's own
+     */
+    public void setMinComponentSize( int minComponentSize )
+    {
+        _minComponentSize = minComponentSize;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @param timeout millis to search for the optimal solution in. When they are up the best solution found so far is
+     *            used, or a greedy one if there is none. 0 - no limit
+     */
+    public void setTimeout( long timeout )
+    {
+        _timeout = timeout;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return false if the deadline cut the search short and the solution might not be the best one
+     */
+    public boolean isOptimal()
+    {
+        return _optimal;
+    }
+
+    // -----------------------------------------------------------------------
+    public final List<ArtifactMetadata> solve()
+        throws SatException
+    {
+        List<ArtifactMetadata> res = null;
+        GenericEvent event = null;
+
+        try
+        {
+            if ( _eventManager != null )
+                event = new GenericEvent( EventTypeEnum.satSolver, EVENT_SOLVE, _root.toString() );
+
+            int[] model = findModel();
+
+            // not satisfied
+            if ( model == null )
+                throw new SatException( LANG.getMessage( "no.solution", _root.toString() ) );
+
+            res = new ArrayList<ArtifactMetadata>( model.length );
+
+            for ( int i : model )
+                if ( i > 0 )
+                    res.add( _context.getMd( i ) );
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                event.stop();
+                _eventManager.fireEvent( event );
+            }
+        }
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    public final MetadataTreeNode solveAsTree()
+        throws SatException
+    {
+        int[] model = findModel();
+
+        if ( model == null )
+            return null;
 
+        return _context.getSolutionSubtree( _root, model );
     }
 
     // -----------------------------------------------------------------------
@@ -0,0 +1,366 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata.sat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.MetadataTreeNode;
+import org.apache.maven.mercury.event.EventManager;
+import org.apache.maven.mercury.event.EventTypeEnum;
+import org.apache.maven.mercury.event.GenericEvent;
+import org.apache.maven.mercury.event.MercuryEventListener;
+import org.apache.maven.mercury.logging.IMercuryLogger;
+import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.apache.maven.mercury.metadata.ClassicDepthComparator;
+import org.apache.maven.mercury.metadata.ClassicVersionComparator;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+
+/**
+ * Maven 2 nearest wins, no pseudo boolean solving: the tree is walked level by level, the first level a GA shows up
+ * on decides it, newer version wins on that level. Applies to the trees without ranges and the default policies
+ * only, and only if every GA's best candidate is reachable - see isExact(). Otherwise DefaultSatSolver should be used
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class NearestWinsSatSolver
+    implements SatSolver
+{
+    private static final IMercuryLogger LOG = MercuryLoggerManager.getLogger( NearestWinsSatSolver.class );
+
+    private static final Language LANG = new DefaultLanguage( NearestWinsSatSolver.class );
+
+    protected MetadataTreeNode _root;
+
+    protected EventManager _eventManager;
+
+    private Comparator<MetadataTreeNode> _versionComparator;
+
+    /** GA -> selected node, null until policies are applied. Nodes are targets, shared subtrees are not expanded */
+    private Map<String, MetadataTreeNode> _winners;
+
+    /** selected node -> the node it was selected under */
+    private Map<MetadataTreeNode, MetadataTreeNode> _winnerParents;
+
+    private boolean _exact;
+
+    // -----------------------------------------------------------------------
+    public NearestWinsSatSolver( MetadataTreeNode tree, EventManager eventManager )
+        throws SatException
+    {
+        if ( tree == null )
+            throw new SatException( LANG.getMessage( "null.tree.arg" ) );
+
+        _root = tree;
+        _eventManager = eventManager;
+    }
+
+    // -----------------------------------------------------------------------
+    public NearestWinsSatSolver( MetadataTreeNode tree )
+        throws SatException
+    {
+        this( tree, null );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * closer is better, then newer is better - the default policies
+     */
+    public static boolean isNearestWins( List<Comparator<MetadataTreeNode>> comparators )
+    {
+        if ( comparators == null || comparators.size() != 2 )
+            return false;
+
+        Comparator<MetadataTreeNode> depth = comparators.get( 0 );
+        Comparator<MetadataTreeNode> version = comparators.get( 1 );
+
+        return depth instanceof ClassicDepthComparator && ( (ClassicDepthComparator) depth ).isCloserBetter()
+            && version instanceof ClassicVersionComparator && ( (ClassicVersionComparator) version ).isNewerBetter();
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * the default policies and no version ranges in the tree
+     */
+    public static boolean canSolve( MetadataTreeNode tree, List<Comparator<MetadataTreeNode>> comparators )
+    {
+        return tree != null && isNearestWins( comparators ) && !hasRanges( tree );
+    }
+
+    // -----------------------------------------------------------------------
+    private static boolean hasRanges( MetadataTreeNode node )
+    {
+        return hasRanges( node, new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * a shared subtree is looked at once, its views are not expanded
+     */
+    private static boolean hasRanges( MetadataTreeNode node, Map<MetadataTreeNode, MetadataTreeNode> visited )
+    {
+        MetadataTreeNode target = node.getTarget();
+
+        if ( !target.hasChildren() || visited.put( target, target ) != null )
+            return false;
+
+        for ( MetadataTreeNode kid : target.getChildren() )
+        {
+            ArtifactMetadata query = kid.getQuery();
+
+            if ( query != null && !query.isVirtual() && query.isRange() )
+                return true;
+
+            if ( hasRanges( kid, visited ) )
+                return true;
+        }
+
+        return false;
+    }
+
+    // -----------------------------------------------------------------------
+    public void applyPolicies( List<Comparator<MetadataTreeNode>> comparators )
+        throws SatException
+    {
+        if ( !isNearestWins( comparators ) )
+            throw new SatException( LANG.getMessage( "not.nearest.wins", "" + comparators ) );
+
+        _versionComparator = comparators.get( 1 );
+
+        resolve();
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * breadth first: a GA is decided on the first level it shows up on, only the winners are expanded further
+     */
+    private void resolve()
+    {
+        MetadataTreeNode root = _root.getTarget();
+
+        _winners = new LinkedHashMap<String, MetadataTreeNode>( 128 );
+        _winnerParents = new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>( 128 );
+
+        _winners.put( root.getMd().getGA(), root );
+
+        List<MetadataTreeNode> level = new ArrayList<MetadataTreeNode>( 1 );
+        level.add( root );
+
+        while ( !level.isEmpty() )
+        {
+            Map<String, MetadataTreeNode> levelWinners = new LinkedHashMap<String, MetadataTreeNode>( 32 );
+
+            for ( MetadataTreeNode n : level )
+            {
+                if ( !n.hasChildren() )
+                    continue;
+
+                for ( MetadataTreeNode kid : n.getChildren() )
+                {
+                    MetadataTreeNode target = kid.getTarget();
+
+                    String ga = target.getMd().getGA();
+
+                    if ( _winners.containsKey( ga ) )
+                        continue;
+
+                    MetadataTreeNode best = levelWinners.get( ga );
+
+                    if ( best == null || _versionComparator.compare( target, best ) > 0 )
+                    {
+                        // the replaced candidate is not copied by solveAsTree()
+                        if ( best != null )
+                            _winnerParents.remove( best );
+
+                        levelWinners.put( ga, target );
+                        _winnerParents.put( target, n );
+                    }
+                }
+            }
+
+            _winners.putAll( levelWinners );
+
+            level = new ArrayList<MetadataTreeNode>( levelWinners.values() );
+        }
+
+        _exact = checkWinners();
+
+        if ( LOG.isDebugEnabled() )
+            LOG.debug( "nearest wins: " + _winners.size() + " GAs, " + ( _exact ? "exact" : "not exact" ) );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * the walk is exact if every GA of the tree got it's best candidate, whereever in the tree that candidate is
+     */
+    private boolean checkWinners()
+    {
+        Map<String, MetadataTreeNode> best = new LinkedHashMap<String, MetadataTreeNode>( _winners.size() );
+
+        fillBest( best, DefaultSatSolver.getDepths( _root ) );
+
+        if ( best.size() != _winners.size() )
+            return false;
+
+        for ( Map.Entry<String, MetadataTreeNode> e : best.entrySet() )
+        {
+            MetadataTreeNode winner = _winners.get( e.getKey() );
+
+            if ( winner == null || !winner.getMd().getGAV().equals( e.getValue().getMd().getGAV() ) )
+                return false;
+        }
+
+        return true;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * every target once, at it's closest depth: closer is better, then newer is better
+     */
+    private void fillBest( Map<String, MetadataTreeNode> best, Map<MetadataTreeNode, Integer> depths )
+    {
+        Map<String, Integer> bestDepths = new HashMap<String, Integer>( 2 * depths.size() );
+
+        for ( Map.Entry<MetadataTreeNode, Integer> e : depths.entrySet() )
+        {
+            MetadataTreeNode node = e.getKey();
+
+            int depth = e.getValue();
+
+            String ga = node.getMd().getGA();
+
+            MetadataTreeNode b = best.get( ga );
+
+            if ( b != null )
+            {
+                int bDepth = bestDepths.get( ga );
+
+                if ( depth > bDepth || ( depth == bDepth && _versionComparator.compare( node, b ) <= 0 ) )
+                    continue;
+            }
+
+            best.put( ga, node );
+            bestDepths.put( ga, depth );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return true if the result is the same the pseudo boolean solution would be
+     */
+    public boolean isExact()
+    {
+        return _winners != null && _exact;
+    }
+
+    // -----------------------------------------------------------------------
+    public List<ArtifactMetadata> solve()
+        throws SatException
+    {
+        GenericEvent event = null;
+
+        try
+        {
+            if ( _eventManager != null )
+                event = new GenericEvent( EventTypeEnum.satSolver, EVENT_SOLVE, _root.toString() );
+
+            if ( !isExact() )
+                throw new SatException( LANG.getMessage( "no.nearest.solution", _root.toString() ) );
+
+            List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( _winners.size() );
+
+            for ( MetadataTreeNode n : _winners.values() )
+                res.add( n.getMd() );
+
+            return res;
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                event.stop();
+                _eventManager.fireEvent( event );
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    public MetadataTreeNode solveAsTree()
+        throws SatException
+    {
+        if ( !isExact() )
+            return null;
+
+        return copySolution( _root, _root.getTarget(), _root.getParent(), _winnerParents );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * a winner is copied under the node it was selected under only
+     *
+     * @param selected selected nodes to their parents, all targets
+     */
+    private static MetadataTreeNode copySolution( MetadataTreeNode tn, MetadataTreeNode target,
+                                                  MetadataTreeNode parent,
+                                                  Map<MetadataTreeNode, MetadataTreeNode> selected )
+    {
+        MetadataTreeNode res = new MetadataTreeNode( tn.getMd(), parent, tn.getQuery() );
+        res.setId( tn.getId() );
+
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+            {
+                MetadataTreeNode kidTarget = kid.getTarget();
+
+                if ( selected.get( kidTarget ) == target )
+                    res.addChild( copySolution( kid, kidTarget, res, selected ) );
+            }
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    public void register( MercuryEventListener listener )
+    {
+        if ( _eventManager == null )
+            _eventManager = new EventManager();
+
+        _eventManager.register( listener );
+    }
+
+    public void setEventManager( EventManager eventManager )
+    {
+        _eventManager = eventManager;
+    }
+
+    public void unRegister( MercuryEventListener listener )
+    {
+        if ( _eventManager != null )
+            _eventManager.unRegister( listener );
+    }
+    // -----------------------------------------------------------------------
+}
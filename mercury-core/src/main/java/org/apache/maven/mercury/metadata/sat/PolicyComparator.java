@@ -0,0 +1,168 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata.sat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.maven.mercury.artifact.MetadataTreeNode;
+import org.apache.maven.mercury.artifact.version.DefaultArtifactVersion;
+import org.apache.maven.mercury.artifact.version.VersionCache;
+import org.apache.maven.mercury.metadata.ClassicDepthComparator;
+import org.apache.maven.mercury.metadata.ClassicVersionComparator;
+
+/**
+ * all the policies in one pass: the comparators are applied one after the other, the next one only breaks the ties
+ * of the previous. Depth and version of the classic comparators are taken from the sort key, calculated once per node,
+ * any other comparator - subclasses included - gets the nodes
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+class PolicyComparator
+    implements Comparator<PolicyComparator.Key>
+{
+    private static final int DEPTH = 1;
+
+    private static final int VERSION = 2;
+
+    private static final int OTHER = 0;
+
+    private final List<Comparator<MetadataTreeNode>> _comparators;
+
+    /** DEPTH, VERSION or OTHER for each comparator */
+    private final int[] _kinds;
+
+    /** false if the comparator prefers the smaller value */
+    private final boolean[] _bigBetter;
+
+    private final boolean _needsVersion;
+
+    // -----------------------------------------------------------------------
+    /**
+     * node with everything the comparison needs
+     */
+    static final class Key
+    {
+        final MetadataTreeNode node;
+
+        final int depth;
+
+        final String gav;
+
+        /** parsed only if a version policy is in use */
+        final DefaultArtifactVersion version;
+
+        Key( MetadataTreeNode node, int depth, boolean needsVersion )
+        {
+            this.node = node;
+            this.depth = depth;
+            this.gav = node.getMd().getGAV();
+            this.version = needsVersion ? VersionCache.getVersion( node.getMd().getVersion() ) : null;
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    PolicyComparator( List<Comparator<MetadataTreeNode>> comparators )
+    {
+        int len = comparators.size();
+
+        _comparators = new ArrayList<Comparator<MetadataTreeNode>>( comparators );
+        _kinds = new int[len];
+        _bigBetter = new boolean[len];
+
+        boolean needsVersion = false;
+
+        for ( int i = 0; i < len; i++ )
+        {
+            Comparator<MetadataTreeNode> c = _comparators.get( i );
+
+            if ( c.getClass() == ClassicDepthComparator.class )
+            {
+                _kinds[i] = DEPTH;
+                // closer is better - smaller depth compares bigger
+                _bigBetter[i] = !( (ClassicDepthComparator) c ).isCloserBetter();
+            }
+            else if ( c.getClass() == ClassicVersionComparator.class )
+            {
+                _kinds[i] = VERSION;
+                _bigBetter[i] = ( (ClassicVersionComparator) c ).isNewerBetter();
+                needsVersion = true;
+            }
+            else
+                _kinds[i] = OTHER;
+        }
+
+        _needsVersion = needsVersion;
+    }
+
+    // -----------------------------------------------------------------------
+    Key getKey( MetadataTreeNode node )
+    {
+        return getKey( node, node.getDepth() );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @param depth depth to compare by - the closest one for a shared node
+     */
+    Key getKey( MetadataTreeNode node, int depth )
+    {
+        return new Key( node, depth, _needsVersion );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same order as the comparators one by one: the best is the biggest
+     */
+    public int compare( Key k1, Key k2 )
+    {
+        for ( int i = 0; i < _kinds.length; i++ )
+        {
+            int res;
+
+            switch ( _kinds[i] )
+            {
+                case DEPTH:
+                    res = k1.depth < k2.depth ? -1 : ( k1.depth == k2.depth ? 0 : 1 );
+                    break;
+
+                case VERSION:
+                    res = k1.version.compareTo( k2.version );
+                    break;
+
+                default:
+                    res = _comparators.get( i ).compare( k1.node, k2.node );
+                    break;
+            }
+
+            if ( res == 0 )
+                continue;
+
+            if ( _kinds[i] == OTHER || _bigBetter[i] )
+                return res;
+
+            return -res;
+        }
+
+        return 0;
+    }
+    // -----------------------------------------------------------------------
+}
@@ -18,9 +18,8 @@
  */
 package org.apache.maven.mercury.metadata.sat;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
@@ -44,10 +43,14 @@ class SatContext
 
     Map<MetadataTreeNode, SatVar> variables;
 
+    /** variables by literal */
+    private SatVar[] _literals;
+
     // -----------------------------------------------------------------------
     public SatContext( int estimatedTreeSize )
     {
         variables = new HashMap<MetadataTreeNode, SatVar>( estimatedTreeSize );
+        _literals = new SatVar[estimatedTreeSize + 1];
     }
 
     // -----------------------------------------------------------------------
@@ -69,6 +72,18 @@ class SatContext
         var = new SatVar( n );
         variables.put( n, var );
 
+        int literal = var._literal;
+
+        if ( literal >= _literals.length )
+        {
+            SatVar[] literals = new SatVar[Math.max( literal + 1, 2 * _literals.length )];
+            System.arraycopy( _literals, 0, literals, 0, _literals.length );
+            _literals = literals;
+        }
+
+        if ( literal > 0 && _literals[literal] == null )
+            _literals[literal] = var;
+
         if ( LOG.isDebugEnabled() )
             LOG.debug( var.toString() );
 
@@ -78,21 +93,27 @@ class SatContext
     // -----------------------------------------------------------------------
     public ArtifactMetadata getMd( int literal )
     {
-        for ( SatVar v : variables.values() )
-            if ( v._literal == literal )
-                return v.getMd();
+        if ( literal < 1 || literal >= _literals.length )
+            return null;
+
+        SatVar v = _literals[literal];
 
-        return null;
+        return v == null ? null : v.getMd();
     }
 
     // -----------------------------------------------------------------------
-    private static final boolean isSolution( int m, int[] model )
+    /**
+     * positive literals of the model
+     */
+    private static final BitSet getSolution( int[] model )
     {
-        for ( int mm : model )
-            if ( mm == m )
-                return true;
+        BitSet res = new BitSet( model.length + 1 );
+
+        for ( int m : model )
+            if ( m > 0 )
+                res.set( m );
 
-        return false;
+        return res;
     }
 
     // -----------------------------------------------------------------------
@@ -110,41 +131,32 @@ class SatContext
         if ( model.length < 1 )
             throw new IllegalArgumentException( LANG.getMessage( "empty.model" ) );
 
-        int sz = 0;
+        BitSet solution = getSolution( model );
 
-        for ( int m : model )
-            if ( m > 0 )
-                ++sz;
-
-        if ( sz == 0 )
+        if ( solution.isEmpty() )
             return null;
 
-        MetadataTreeNode res = MetadataTreeNode.deepCopy( tree );
-
-        cleanTree( res, model );
-
-        return res;
+        return copySolution( tree, solution );
     }
 
     // -----------------------------------------------------------------------
-    private static final void cleanTree( MetadataTreeNode tn, int[] model )
+    /**
+     * same as deepCopy(), only the children in the solution are copied. Children of a view are read from the shared
+     * node - the view is not expanded
+     */
+    private static final MetadataTreeNode copySolution( MetadataTreeNode tn, BitSet solution )
     {
-        if ( !tn.hasChildren() )
-            return;
-
-        List<MetadataTreeNode> badKids = new ArrayList<MetadataTreeNode>();
+        MetadataTreeNode res = new MetadataTreeNode( tn.getMd(), tn.getParent(), tn.getQuery() );
+        res.setId( tn.getId() );
 
-        for ( MetadataTreeNode kid : tn.getChildren() )
-            if ( !isSolution( kid.getId(), model ) )
-                badKids.add( kid );
+        MetadataTreeNode target = tn.getTarget();
 
-        tn.getChildren().removeAll( badKids );
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+                if ( solution.get( kid.getId() ) )
+                    res.addChild( copySolution( kid, solution ) );
 
-        if ( !tn.hasChildren() )
-            return;
-
-        for ( MetadataTreeNode kid : tn.getChildren() )
-            cleanTree( kid, model );
+        return res;
     }
     // -----------------------------------------------------------------------
     // @Override
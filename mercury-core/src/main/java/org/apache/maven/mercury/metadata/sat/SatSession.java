@@ -0,0 +1,715 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata.sat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.MetadataTreeNode;
+import org.apache.maven.mercury.event.EventGenerator;
+import org.apache.maven.mercury.event.EventManager;
+import org.apache.maven.mercury.event.EventTypeEnum;
+import org.apache.maven.mercury.event.GenericEvent;
+import org.apache.maven.mercury.event.MercuryEventListener;
+import org.apache.maven.mercury.logging.IMercuryLogger;
+import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+import org.sat4j.core.VecInt;
+import org.sat4j.pb.IPBSolver;
+import org.sat4j.pb.SolverFactory;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.IConstr;
+import org.sat4j.specs.IVecInt;
+import org.sat4j.specs.TimeoutException;
+
+/**
+ * long lived solver for the repeated resolutions of the same project. A target - the node behind all the views of a
+ * shared subtree - keeps it's variable as long as the path it is first reached through does not change, so the
+ * constraints of an unchanged subtree stay in the solver between the resolutions. Only the constraints of the changed
+ * nodes are retracted and added. Single literal constraints and the optimization choices are passed as assumptions -
+ * nothing is fixed in the solver for good.
+ * <p/>
+ * Same encoding and policies as DefaultSatSolver: one variable per target, the buckets sorted by the closest depth.
+ * One resolution at a time, the calls are serialized
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class SatSession
+    implements EventGenerator
+{
+    private static final IMercuryLogger LOG = MercuryLoggerManager.getLogger( SatSession.class );
+
+    private static final Language LANG = new DefaultLanguage( SatSession.class );
+
+    /** start over when most of the variables belong to the nodes long gone */
+    private static final int GARBAGE_RATIO = 4;
+
+    private static final int MIN_GARBAGE = 1024;
+
+    private IPBSolver _solver;
+
+    /** variable of the first parent, query and metadata of a target -> variable */
+    private Map<String, Integer> _vars;
+
+    /** the constraints in the solver by signature */
+    private Map<String, IConstr> _constraints;
+
+    private int _nVars;
+
+    private int _added;
+
+    private int _removed;
+
+    private EventManager _eventManager;
+
+    // -----------------------------------------------------------------------
+    public SatSession()
+    {
+        reset();
+    }
+
+    // -----------------------------------------------------------------------
+    public SatSession( EventManager eventManager )
+    {
+        this();
+
+        _eventManager = eventManager;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * forget all the constraints
+     */
+    public void reset()
+    {
+        _solver = SolverFactory.newCompetPBResMixedConstraintsObjective();
+        _vars = new HashMap<String, Integer>( 256 );
+        _constraints = new HashMap<String, IConstr>( 1024 );
+        _nVars = 0;
+    }
+
+    // -----------------------------------------------------------------------
+    private int newVar()
+    {
+        _solver.newVar( ++_nVars );
+
+        return _nVars;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return a solver for one tree, using this session
+     */
+    public SatSolver createSolver( final MetadataTreeNode tree )
+        throws SatException
+    {
+        if ( tree == null )
+            throw new SatException( LANG.getMessage( "null.tree.arg" ) );
+
+        return new SatSolver()
+        {
+            private List<Comparator<MetadataTreeNode>> _comparators;
+
+            public void applyPolicies( List<Comparator<MetadataTreeNode>> comparators )
+            {
+                _comparators = comparators;
+            }
+
+            public List<ArtifactMetadata> solve()
+                throws SatException
+            {
+                return SatSession.this.solve( tree, _comparators );
+            }
+
+            public MetadataTreeNode solveAsTree()
+                throws SatException
+            {
+                return SatSession.this.solveAsTree( tree, _comparators );
+            }
+
+            public void register( MercuryEventListener listener )
+            {
+                SatSession.this.register( listener );
+            }
+
+            public void unRegister( MercuryEventListener listener )
+            {
+                SatSession.this.unRegister( listener );
+            }
+
+            public void setEventManager( EventManager eventManager )
+            {
+                SatSession.this.setEventManager( eventManager );
+            }
+        };
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return constraints added by the last solve
+     */
+    public int getAddedCount()
+    {
+        return _added;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return constraints retracted by the last solve
+     */
+    public int getRemovedCount()
+    {
+        return _removed;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * @return constraints in the solver
+     */
+    public int getConstraintCount()
+    {
+        return _constraints.size();
+    }
+
+    // -----------------------------------------------------------------------
+    public synchronized List<ArtifactMetadata> solve( MetadataTreeNode tree,
+                                                      List<Comparator<MetadataTreeNode>> comparators )
+        throws SatException
+    {
+        Map<MetadataTreeNode, Integer> vars = new IdentityHashMap<MetadataTreeNode, Integer>( 256 );
+
+        boolean[] model = findModel( tree, comparators, vars );
+
+        if ( model == null )
+            throw new SatException( LANG.getMessage( "no.solution", tree.toString() ) );
+
+        Set<ArtifactMetadata> res = new LinkedHashSet<ArtifactMetadata>( vars.size() );
+
+        collect( tree, vars, model, res );
+
+        return new ArrayList<ArtifactMetadata>( res );
+    }
+
+    // -----------------------------------------------------------------------
+    public synchronized MetadataTreeNode solveAsTree( MetadataTreeNode tree,
+                                                      List<Comparator<MetadataTreeNode>> comparators )
+        throws SatException
+    {
+        Map<MetadataTreeNode, Integer> vars = new IdentityHashMap<MetadataTreeNode, Integer>( 256 );
+
+        boolean[] model = findModel( tree, comparators, vars );
+
+        if ( model == null )
+            return null;
+
+        return copySolution( tree, vars, model );
+    }
+
+    // -----------------------------------------------------------------------
+    private static void collect( MetadataTreeNode node, Map<MetadataTreeNode, Integer> vars, boolean[] model,
+                                 Set<ArtifactMetadata> res )
+    {
+        collect( node.getTarget(), vars, model, res, new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+    }
+
+    // -----------------------------------------------------------------------
+    private static void collect( MetadataTreeNode target, Map<MetadataTreeNode, Integer> vars, boolean[] model,
+                                 Set<ArtifactMetadata> res, Map<MetadataTreeNode, MetadataTreeNode> visited )
+    {
+        if ( visited.put( target, target ) != null || !model[vars.get( target )] )
+            return;
+
+        res.add( target.getMd() );
+
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+                collect( kid.getTarget(), vars, model, res, visited );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same as SatContext.copySolution() - children of a view are read from the target, the view is not expanded
+     */
+    private static MetadataTreeNode copySolution( MetadataTreeNode tn, Map<MetadataTreeNode, Integer> vars,
+                                                  boolean[] model )
+    {
+        MetadataTreeNode res = new MetadataTreeNode( tn.getMd(), tn.getParent(), tn.getQuery() );
+        res.setId( tn.getId() );
+
+        MetadataTreeNode target = tn.getTarget();
+
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+                if ( model[vars.get( kid.getTarget() )] )
+                    res.addChild( copySolution( kid, vars, model ) );
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * bring the solver in sync with the tree and find the optimal model
+     *
+     * @return model by variable, null if there is no solution
+     */
+    private boolean[] findModel( MetadataTreeNode tree, List<Comparator<MetadataTreeNode>> comparators,
+                                 Map<MetadataTreeNode, Integer> vars )
+        throws SatException
+    {
+        if ( tree == null )
+            throw new SatException( LANG.getMessage( "null.tree.arg" ) );
+
+        GenericEvent event = null;
+
+        try
+        {
+            if ( _eventManager != null )
+                event = new GenericEvent( EventTypeEnum.satSolver, SatSolver.EVENT_SOLVE, tree.toString() );
+
+            assignVars( tree, null, vars );
+
+            if ( _nVars > GARBAGE_RATIO * vars.size() && _nVars > MIN_GARBAGE )
+            {
+                reset();
+                vars.clear();
+                assignVars( tree, null, vars );
+            }
+
+            // the constraints of this tree
+            Map<String, SatSimplifier.Constraint> constraints =
+                new LinkedHashMap<String, SatSimplifier.Constraint>( 2 * vars.size() );
+
+            encodeTree( tree, vars, constraints );
+
+            List<List<Integer>> buckets = encodeBuckets( tree, comparators, vars, constraints );
+
+            IVecInt assumptions = new VecInt( 16 );
+
+            sync( constraints, assumptions );
+
+            if ( _eventManager != null )
+                event.setInfo( "added " + _added + ", removed " + _removed + ", constraints " + _constraints.size() );
+
+            if ( LOG.isDebugEnabled() )
+                LOG.debug( "session: added " + _added + ", removed " + _removed + ", constraints "
+                    + _constraints.size() + ", variables " + _nVars );
+
+            return optimize( buckets, assumptions );
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                event.stop();
+                _eventManager.fireEvent( event );
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * one variable per target, keyed by the first path to it
+     */
+    private void assignVars( MetadataTreeNode node, Integer parentVar, Map<MetadataTreeNode, Integer> vars )
+    {
+        MetadataTreeNode target = node.getTarget();
+
+        if ( vars.containsKey( target ) )
+            return;
+
+        ArtifactMetadata query = node.getQuery();
+
+        String key = parentVar + "|" + ( query == null ? "" : query.toString() ) + ">" + node.getMd().toString();
+
+        Integer var = _vars.get( key );
+
+        if ( var == null )
+        {
+            var = newVar();
+            _vars.put( key, var );
+        }
+
+        vars.put( target, var );
+
+        if ( target.hasChildren() )
+            for ( MetadataTreeNode kid : target.getChildren() )
+                assignVars( kid, var, vars );
+    }
+
+    // -----------------------------------------------------------------------
+    private static void add( Map<String, SatSimplifier.Constraint> constraints, int[] lits, int[] coeffs, int degree )
+    {
+        StringBuilder sb = new StringBuilder( 16 * lits.length );
+
+        for ( int i = 0; i < lits.length; i++ )
+            sb.append( coeffs[i] ).append( 'x' ).append( lits[i] ).append( ' ' );
+
+        sb.append( ">=" ).append( degree );
+
+        constraints.put( sb.toString(), new SatSimplifier.Constraint( lits, coeffs, degree ) );
+    }
+
+    // -----------------------------------------------------------------------
+    private static int[] ones( int len, int one )
+    {
+        int[] res = new int[len];
+
+        for ( int i = 0; i < len; i++ )
+            res[i] = one;
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same constraints as DefaultSatSolver.addTree(): every target is encoded once, a node seen through views implies
+     * one of it's parents, a node added to several parents as is implies all of them
+     */
+    private void encodeTree( MetadataTreeNode tree, Map<MetadataTreeNode, Integer> vars,
+                             Map<String, SatSimplifier.Constraint> constraints )
+        throws SatException
+    {
+        Map<Integer, Set<Integer>> parents = new LinkedHashMap<Integer, Set<Integer>>( 2 * vars.size() );
+
+        Set<Integer> viewed = new HashSet<Integer>( 2 * vars.size() );
+
+        Map<MetadataTreeNode, MetadataTreeNode> visited =
+            new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>( 2 * vars.size() );
+
+        MetadataTreeNode root = tree.getTarget();
+
+        visited.put( root, root );
+
+        encodeNode( root, vars, constraints, parents, viewed, visited );
+
+        for ( Map.Entry<Integer, Set<Integer>> e : parents.entrySet() )
+        {
+            int kidVar = e.getKey();
+
+            Set<Integer> ps = e.getValue();
+
+            if ( !viewed.contains( kidVar ) )
+            {
+                for ( Integer p : ps )
+                    add( constraints, new int[] { p, kidVar }, new int[] { 1, -1 }, 0 );
+
+                continue;
+            }
+
+            int[] lits = new int[ps.size() + 1];
+            int[] coeffs = ones( lits.length, 1 );
+
+            int i = 0;
+
+            for ( Integer p : ps )
+                lits[i++] = p;
+
+            // Sparents - kid >= 0
+            lits[i] = kidVar;
+            coeffs[i] = -1;
+
+            add( constraints, lits, coeffs, 0 );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    private void encodeNode( MetadataTreeNode node, Map<MetadataTreeNode, Integer> vars,
+                             Map<String, SatSimplifier.Constraint> constraints, Map<Integer, Set<Integer>> parents,
+                             Set<Integer> viewed, Map<MetadataTreeNode, MetadataTreeNode> visited )
+        throws SatException
+    {
+        if ( node.getMd() == null )
+            throw new SatException( "found a node without metadata" );
+
+        int nodeVar = vars.get( node );
+
+        if ( node.getParent() == null )
+            add( constraints, new int[] { nodeVar }, new int[] { 1 }, 1 );
+
+        if ( !node.hasChildren() )
+            return;
+
+        List<ArtifactMetadata> queries = node.getQueries();
+
+        if ( queries == null || queries.size() < 1 )
+            return;
+
+        for ( ArtifactMetadata q : queries )
+        {
+            String queryGA = q.getGA();
+
+            List<Integer> range = new ArrayList<Integer>( 4 );
+
+            for ( MetadataTreeNode kid : node.getChildren() )
+                if ( queryGA.equals( kid.getMd().getGA() ) )
+                {
+                    int kidVar = vars.get( kid.getTarget() );
+
+                    range.add( kidVar );
+
+                    // implication to parent
+                    Set<Integer> ps = parents.get( kidVar );
+
+                    if ( ps == null )
+                    {
+                        ps = new LinkedHashSet<Integer>( 4 );
+                        parents.put( kidVar, ps );
+                    }
+
+                    ps.add( nodeVar );
+
+                    if ( kid.isShared() )
+                        viewed.add( kidVar );
+                }
+
+            if ( range.size() < 1 )
+                throw new SatException( "No children for query " + queryGA );
+
+            if ( range.size() > 1 )
+            {
+                int[] lits = toArray( range );
+
+                if ( !q.isOptional() )
+                    add( constraints, lits, ones( lits.length, 1 ), 1 );
+
+                add( constraints, lits, ones( lits.length, -1 ), -1 );
+            }
+        }
+
+        for ( MetadataTreeNode kid : node.getChildren() )
+        {
+            MetadataTreeNode target = kid.getTarget();
+
+            if ( visited.put( target, target ) == null )
+                encodeNode( target, vars, constraints, parents, viewed, visited );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    private static int[] toArray( List<Integer> list )
+    {
+        int[] res = new int[list.size()];
+
+        for ( int i = 0; i < res.length; i++ )
+            res[i] = list.get( i );
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same buckets as DefaultSatSolver.applyPolicies()
+     *
+     * @return bucket variables, the best first
+     */
+    private List<List<Integer>> encodeBuckets( MetadataTreeNode tree, List<Comparator<MetadataTreeNode>> comparators,
+                                               Map<MetadataTreeNode, Integer> vars,
+                                               Map<String, SatSimplifier.Constraint> constraints )
+    {
+        List<List<Integer>> res = new ArrayList<List<Integer>>( 128 );
+
+        if ( comparators == null || comparators.size() < 1 )
+            return res;
+
+        Map<String, List<MetadataTreeNode>> buckets = new LinkedHashMap<String, List<MetadataTreeNode>>( 128 );
+
+        DefaultSatSolver.fillTargetBuckets( buckets, tree, new IdentityHashMap<MetadataTreeNode, MetadataTreeNode>() );
+        DefaultSatSolver.sortBuckets( buckets, comparators, DefaultSatSolver.getDepths( tree ) );
+
+        for ( List<MetadataTreeNode> bucket : buckets.values() )
+        {
+            if ( bucket.isEmpty() )
+                continue;
+
+            List<Integer> bucketVars = new ArrayList<Integer>( bucket.size() );
+
+            for ( MetadataTreeNode n : bucket )
+                bucketVars.add( vars.get( n ) );
+
+            int[] lits = toArray( bucketVars );
+
+            add( constraints, lits, ones( lits.length, -1 ), -1 );
+            add( constraints, lits, ones( lits.length, 1 ), 1 );
+
+            res.add( bucketVars );
+        }
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * retract the constraints the tree does not have any more, add the new ones. Single literal constraints become
+     * assumptions
+     */
+    private void sync( Map<String, SatSimplifier.Constraint> constraints, IVecInt assumptions )
+        throws SatException
+    {
+        _added = 0;
+        _removed = 0;
+
+        for ( Iterator<Map.Entry<String, IConstr>> i = _constraints.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<String, IConstr> e = i.next();
+
+            if ( constraints.containsKey( e.getKey() ) )
+                continue;
+
+            if ( e.getValue() != null )
+                _solver.removeConstr( e.getValue() );
+
+            i.remove();
+            ++_removed;
+        }
+
+        for ( Map.Entry<String, SatSimplifier.Constraint> e : constraints.entrySet() )
+        {
+            SatSimplifier.Constraint c = e.getValue();
+
+            if ( c.lits.length == 1 )
+            {
+                // x >= 1 or -x >= 0, the rest always holds
+                if ( c.coeffs[0] > 0 && c.degree > 0 )
+                    assumptions.push( c.lits[0] );
+                else if ( c.coeffs[0] < 0 && c.degree > c.coeffs[0] )
+                    assumptions.push( -c.lits[0] );
+
+                continue;
+            }
+
+            if ( _constraints.containsKey( e.getKey() ) )
+                continue;
+
+            try
+            {
+                _constraints.put( e.getKey(), SatSimplifier.addTo( c, _solver ) );
+                ++_added;
+            }
+            catch ( ContradictionException ex )
+            {
+                // the solver has to be rebuilt once the tree is fixed
+                reset();
+                throw new SatException( ex );
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * same objective as DefaultSatSolver. It is mixed radix - every bucket outweighs all the buckets before it - so
+     * the optimum is found bucket by bucket, the last bucket first: the best candidate, that is still satisfiable,
+     * goes to the assumptions. Nothing is added to the solver
+     *
+     * @return model by variable, null if there is no solution
+     */
+    private boolean[] optimize( List<List<Integer>> buckets, IVecInt assumptions )
+        throws SatException
+    {
+        try
+        {
+            if ( !_solver.isSatisfiable( assumptions ) )
+                return null;
+
+            boolean[] res = getModel();
+
+            for ( int b = buckets.size() - 1; b >= 0; b-- )
+            {
+                List<Integer> bucket = buckets.get( b );
+
+                int bucketSize = bucket.size();
+
+                if ( bucketSize < 2 )
+                    continue;
+
+                for ( int i = 0; i < bucketSize; i++ )
+                {
+                    int lit = bucket.get( i );
+
+                    // the current model is as good as it gets for this bucket
+                    if ( res[lit] )
+                    {
+                        assumptions.push( lit );
+                        break;
+                    }
+
+                    assumptions.push( lit );
+
+                    if ( _solver.isSatisfiable( assumptions ) )
+                    {
+                        res = getModel();
+                        break;
+                    }
+
+                    assumptions.pop();
+                }
+            }
+
+            return res;
+        }
+        catch ( TimeoutException e )
+        {
+            throw new SatException( e );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    private boolean[] getModel()
+    {
+        boolean[] res = new boolean[_nVars + 1];
+
+        for ( int m : _solver.model() )
+            if ( m > 0 && m <= _nVars )
+                res[m] = true;
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    public void register( MercuryEventListener listener )
+    {
+        if ( _eventManager == null )
+            _eventManager = new EventManager();
+
+        _eventManager.register( listener );
+    }
+
+    public void setEventManager( EventManager eventManager )
+    {
+        _eventManager = eventManager;
+    }
+
+    public void unRegister( MercuryEventListener listener )
+    {
+        if ( _eventManager != null )
+            _eventManager.unRegister( listener );
+    }
+    // -----------------------------------------------------------------------
+}
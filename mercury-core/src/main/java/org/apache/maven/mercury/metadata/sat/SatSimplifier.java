@@ -0,0 +1,433 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.metadata.sat;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.pb.IPBSolver;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.IConstr;
+
+/**
+ * pre-solve stage: collects the constraints of the tree - all of them are sums of +1/-1 weighted literals - and
+ * fixes every literal they force, starting with the root and the single candidate buckets. Only the constraints,
+ * still open after that, go to the sat4j solver.
+ *
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+class SatSimplifier
+{
+    static final byte UNDEFINED = 0;
+
+    static final byte TRUE = 1;
+
+    static final byte FALSE = -1;
+
+    /** literals are 1..nVars */
+    private int _nVars;
+
+    private byte[] _values;
+
+    private final List<Constraint> _constraints = new ArrayList<Constraint>( 256 );
+
+    /** constraints of every literal */
+    private final List<List<Constraint>> _occurrences;
+
+    private int _fixed;
+
+    // -----------------------------------------------------------------------
+    /**
+     * sum( coeffs[i] * lits[i] ) >= degree
+     */
+    static class Constraint
+    {
+        final int[] lits;
+
+        final int[] coeffs;
+
+        final int degree;
+
+        boolean queued;
+
+        Constraint( int[] lits, int[] coeffs, int degree )
+        {
+            this.lits = lits;
+            this.coeffs = coeffs;
+            this.degree = degree;
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    SatSimplifier( int nVars )
+    {
+        _nVars = nVars;
+        _values = new byte[nVars + 1];
+        _occurrences = new ArrayList<List<Constraint>>( nVars + 1 );
+
+        for ( int i = 0; i <= nVars; i++ )
+            _occurrences.add( null );
+    }
+
+    // -----------------------------------------------------------------------
+    void addAtLeast( int[] lits, int degree )
+    {
+        add( lits, ones( lits.length, 1 ), degree );
+    }
+
+    // -----------------------------------------------------------------------
+    void addAtMost( int[] lits, int degree )
+    {
+        add( lits, ones( lits.length, -1 ), -degree );
+    }
+
+    // -----------------------------------------------------------------------
+    void add( int[] lits, int[] coeffs, int degree )
+    {
+        Constraint c = new Constraint( lits, coeffs, degree );
+
+        _constraints.add( c );
+
+        for ( int lit : lits )
+        {
+            ensureVar( lit );
+
+            List<Constraint> occ = _occurrences.get( lit );
+
+            if ( occ == null )
+            {
+                occ = new ArrayList<Constraint>( 4 );
+                _occurrences.set( lit, occ );
+            }
+
+            occ.add( c );
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * the tree might be numbered beyond it's node count
+     */
+    private void ensureVar( int lit )
+    {
+        if ( lit <= _nVars )
+            return;
+
+        byte[] values = new byte[lit + 1];
+        System.arraycopy( _values, 0, values, 0, _values.length );
+        _values = values;
+
+        for ( int i = _nVars + 1; i <= lit; i++ )
+            _occurrences.add( null );
+
+        _nVars = lit;
+    }
+
+    // -----------------------------------------------------------------------
+    private static int[] ones( int len, int one )
+    {
+        int[] res = new int[len];
+
+        for ( int i = 0; i < len; i++ )
+            res[i] = one;
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * fix all the forced literals
+     *
+     * @return false if the constraints contradict each other
+     */
+    boolean propagate()
+    {
+        List<Constraint> queue = new ArrayList<Constraint>( _constraints );
+
+        for ( Constraint c : queue )
+            c.queued = true;
+
+        return propagate( queue );
+    }
+
+    // -----------------------------------------------------------------------
+    private boolean propagate( List<Constraint> queue )
+    {
+        // queue is used as a stack, order does not matter for the fixpoint
+        while ( !queue.isEmpty() )
+        {
+            Constraint c = queue.remove( queue.size() - 1 );
+
+            c.queued = false;
+
+            int max = 0;
+
+            for ( int i = 0; i < c.lits.length; i++ )
+            {
+                byte v = _values[c.lits[i]];
+
+                if ( v == UNDEFINED )
+                    max += c.coeffs[i] > 0 ? c.coeffs[i] : 0;
+                else if ( v == TRUE )
+                    max += c.coeffs[i];
+            }
+
+            if ( max < c.degree )
+            {
+                for ( Constraint q : queue )
+                    q.queued = false;
+
+                return false;
+            }
+
+            for ( int i = 0; i < c.lits.length; i++ )
+            {
+                int lit = c.lits[i];
+
+                // cannot afford to lose this literal's best contribution
+                if ( _values[lit] != UNDEFINED || max - Math.abs( c.coeffs[i] ) >= c.degree )
+                    continue;
+
+                _values[lit] = c.coeffs[i] > 0 ? TRUE : FALSE;
+                ++_fixed;
+
+                for ( Constraint o : _occurrences.get( lit ) )
+                    if ( !o.queued )
+                    {
+                        o.queued = true;
+                        queue.add( o );
+                    }
+            }
+        }
+
+        return true;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * set the literal and propagate it
+     *
+     * @return false if it contradicts the constraints
+     */
+    private boolean assume( int lit )
+    {
+        _values[lit] = TRUE;
+        ++_fixed;
+
+        List<Constraint> occ = _occurrences.get( lit );
+
+        if ( occ == null )
+            return true;
+
+        List<Constraint> queue = new ArrayList<Constraint>( occ );
+
+        for ( Constraint c : queue )
+            c.queued = true;
+
+        return propagate( queue );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * greedy assignment, no search: in every bucket the first candidate, that does not contradict the constraints,
+     * is taken. No backtracking, so it might fail
+     *
+     * @param buckets candidate literals, the most important bucket first, the best candidate first
+     * @return complete model, null if the choices ran into a contradiction
+     */
+    int[] dive( List<int[]> buckets )
+    {
+        for ( int[] bucket : buckets )
+        {
+            boolean decided = false;
+
+            for ( int lit : bucket )
+                if ( _values[lit] == TRUE )
+                {
+                    decided = true;
+                    break;
+                }
+
+            for ( int i = 0; !decided && i < bucket.length; i++ )
+            {
+                if ( _values[bucket[i]] != UNDEFINED )
+                    continue;
+
+                byte[] values = new byte[_values.length];
+                System.arraycopy( _values, 0, values, 0, values.length );
+                int fixed = _fixed;
+
+                decided = assume( bucket[i] );
+
+                if ( !decided )
+                {
+                    _values = values;
+                    _fixed = fixed;
+                }
+            }
+
+            if ( !decided )
+                return null;
+        }
+
+        // the rest is false - has to hold
+        for ( Constraint c : _constraints )
+        {
+            int sum = 0;
+
+            for ( int i = 0; i < c.lits.length; i++ )
+                if ( _values[c.lits[i]] == TRUE )
+                    sum += c.coeffs[i];
+
+            if ( sum < c.degree )
+                return null;
+        }
+
+        return getModel( null, null );
+    }
+
+    // -----------------------------------------------------------------------
+    byte getValue( int lit )
+    {
+        return _values[lit];
+    }
+
+    // -----------------------------------------------------------------------
+    int getVarCount()
+    {
+        return _nVars;
+    }
+
+    // -----------------------------------------------------------------------
+    int getFixedCount()
+    {
+        return _fixed;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * constraints, that are not satisfied by the fixed literals alone, reduced to the undefined literals
+     */
+    List<Constraint> getResidual()
+    {
+        List<Constraint> res = new ArrayList<Constraint>( 32 );
+
+        for ( Constraint c : _constraints )
+        {
+            int fixedSum = 0;
+            int min = 0;
+            int open = 0;
+
+            for ( int i = 0; i < c.lits.length; i++ )
+            {
+                byte v = _values[c.lits[i]];
+
+                if ( v == UNDEFINED )
+                {
+                    min += c.coeffs[i] < 0 ? c.coeffs[i] : 0;
+                    ++open;
+                }
+                else if ( v == TRUE )
+                    fixedSum += c.coeffs[i];
+            }
+
+            if ( fixedSum + min >= c.degree )
+                continue;
+
+            int[] lits = new int[open];
+            int[] coeffs = new int[open];
+
+            for ( int i = 0, j = 0; i < c.lits.length; i++ )
+                if ( _values[c.lits[i]] == UNDEFINED )
+                {
+                    lits[j] = c.lits[i];
+                    coeffs[j++] = c.coeffs[i];
+                }
+
+            res.add( new Constraint( lits, coeffs, c.degree - fixedSum ) );
+        }
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * cardinality constraints are passed as such, the rest as pseudo boolean
+     */
+    static IConstr addTo( Constraint c, IPBSolver solver )
+        throws ContradictionException
+    {
+        boolean allPositive = true;
+        boolean allNegative = true;
+
+        for ( int cf : c.coeffs )
+        {
+            allPositive &= cf == 1;
+            allNegative &= cf == -1;
+        }
+
+        if ( allPositive )
+            return solver.addAtLeast( new VecInt( c.lits ), c.degree );
+        else if ( allNegative )
+            return solver.addAtMost( new VecInt( c.lits ), -c.degree );
+        else
+            return solver.addPseudoBoolean( new VecInt( c.lits ), SatHelper.getBigOnes( c.coeffs ), true,
+                                            BigInteger.valueOf( c.degree ) );
+    }
+
+    // -----------------------------------------------------------------------
+    /**
+     * complete model: fixed literals plus the solver's model. Literals decided by neither are false
+     *
+     * @param model sat4j model of the residual problem, null if there was none
+     * @param residual the residual problem. Literals outside of it are not constrained, sat4j's choice is ignored
+     */
+    int[] getModel( int[] model, List<Constraint> residual )
+    {
+        byte[] values = new byte[_nVars + 1];
+
+        System.arraycopy( _values, 0, values, 0, values.length );
+
+        if ( model != null )
+        {
+            boolean[] open = new boolean[_nVars + 1];
+
+            for ( Constraint c : residual )
+                for ( int lit : c.lits )
+                    open[lit] = true;
+
+            for ( int m : model )
+                if ( m > 0 && m <= _nVars && open[m] )
+                    values[m] = TRUE;
+        }
+
+        int[] res = new int[_nVars];
+
+        for ( int lit = 1; lit <= _nVars; lit++ )
+            res[lit - 1] = values[lit] == TRUE ? lit : -lit;
+
+        return res;
+    }
+
+    // -----------------------------------------------------------------------
+    // -----------------------------------------------------------------------
+}
@@ -37,6 +37,17 @@ public interface SatSolver
 
     public static final String EVENT_CREATE_SOLVER = "create.sat.solver";
 
+    public static final String EVENT_PRESOLVE = "presolve";
+
+    public static final String EVENT_BOUNDED_SOLVE = "bounded.solve";
+
+    /** results of the bounded solve event */
+    public static final String BOUNDED_SOLVE_OPTIMAL = "optimal";
+
+    public static final String BOUNDED_SOLVE_BEST = "best.found";
+
+    public static final String BOUNDED_SOLVE_GREEDY = "greedy";
+
     /**
      * @param sorts - policies expressed as sorted list of node sorters - from most important to the least
      * @throws SatException
@@ -50,4 +61,11 @@ public interface SatSolver
      */
     public List<ArtifactMetadata> solve()
         throws SatException;
+
+    /**
+     * @return the solution as a subtree of the original tree, null if there is none
+     * @throws SatException
+     */
+    public MetadataTreeNode solveAsTree()
+        throws SatException;
 }
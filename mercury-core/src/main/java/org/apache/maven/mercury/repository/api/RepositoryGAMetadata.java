@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.TreeSet;
 
 import org.apache.maven.mercury.artifact.ArtifactCoordinates;
+import org.apache.maven.mercury.artifact.CoordinatePool;
 import org.apache.maven.mercury.artifact.version.VersionComparator;
 import org.apache.maven.mercury.repository.metadata.Metadata;
 import org.apache.maven.mercury.repository.metadata.MetadataException;
@@ -75,7 +76,11 @@ public class RepositoryGAMetadata
         if ( md.getVersioning() != null )
         {
             vers = md.getVersioning().getVersions();
-            this.versions.addAll( vers );
+
+            // the same versions show up in the metadata of every repository
+            if ( vers != null )
+                for ( String v : vers )
+                    this.versions.add( CoordinatePool.intern( v ) );
         }
 
         this.lastCheck = TimeUtil.getUTCTimestampAsLong();
@@ -146,4 +146,9 @@ public class RepositoryUpdateIntervalPolicy
         return res;
     }
 
+    @Override
+    public String toString()
+    {
+        return UPDATE_POLICY_NAME_INTERVAL + ":" + interval;
+    }
 }
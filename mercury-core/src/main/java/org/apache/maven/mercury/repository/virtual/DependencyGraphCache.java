@@ -0,0 +1,504 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.repository.virtual;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.Quality;
+import org.apache.maven.mercury.artifact.QualityEnum;
+import org.apache.maven.mercury.builder.api.DependencyProcessor;
+import org.apache.maven.mercury.logging.IMercuryLogger;
+import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.apache.maven.mercury.repository.api.LocalRepository;
+import org.apache.maven.mercury.repository.api.RemoteRepository;
+import org.apache.maven.mercury.repository.api.Repository;
+import org.apache.maven.mercury.repository.api.RepositoryReader;
+import org.apache.maven.mercury.repository.api.RepositoryUpdatePolicy;
+import org.apache.maven.mercury.repository.local.m2.ArtifactLocation;
+import org.apache.maven.mercury.util.FileLockBundle;
+import org.apache.maven.mercury.util.FileUtil;
+import org.apache.maven.mercury.util.Util;
+import org.codehaus.plexus.lang.DefaultLanguage;
+import org.codehaus.plexus.lang.Language;
+
+/**
+ * dependency graph cache: GAV -> dependencies, as they were read by the DependencyProcessor. Thread safe, can be
+ * shared by any number of VirtualRepositoryReader's (and thus DependencyBuilder's). Entries remember the repository
+ * they were read from and expire according to its update policy. Entries of a local repository expire when the POM
+ * changes. Optionally persisted under the local repository's metadata cache folder.
+ * <p/>
+ * Dependencies are stored unfiltered, so the same entry serves all scopes.
+ * 
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class DependencyGraphCache
+{
+    /** subfolder of the metadata cache folder */
+    public static final String GRAPH_CACHE_DIR = "graph";
+
+    private static final String DEPS_EXT = ".deps";
+
+    private static final IMercuryLogger LOG = MercuryLoggerManager.getLogger( DependencyGraphCache.class );
+
+    private static final Language LANG = new DefaultLanguage( DependencyGraphCache.class );
+
+    static volatile Map<String, DependencyGraphCache> fsCaches =
+        Collections.synchronizedMap( new HashMap<String, DependencyGraphCache>( 2 ) );
+
+    private Map<String, Entry> _entries = new ConcurrentHashMap<String, Entry>( 512 );
+
+    /** if not null - persist entries here */
+    private File _root;
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * one cached graph node
+     */
+    static class Entry
+    {
+        String repoId;
+
+        /** when the dependencies were read, millis - the update policies compare millis */
+        long timestamp;
+
+        List<ArtifactMetadata> dependencies;
+
+        /** POM the dependencies were read from - local repositories only */
+        long pomModified;
+
+        long pomSize = -1L;
+
+        Entry( String repoId, long timestamp, List<ArtifactMetadata> dependencies )
+        {
+            this.repoId = repoId;
+            this.timestamp = timestamp;
+            this.dependencies = dependencies;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * in-memory only cache
+     */
+    public DependencyGraphCache()
+    {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private DependencyGraphCache( File root )
+    {
+        _root = root;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * access to all known persistent graph caches
+     * 
+     * @param localRepositoryRoot root folder of the local repository. Cache is stored in it's metadata cache folder
+     */
+    public static DependencyGraphCache getCache( File localRepositoryRoot )
+        throws IOException
+    {
+        if ( localRepositoryRoot == null || ( localRepositoryRoot.exists() && localRepositoryRoot.isFile() ) )
+            throw new IllegalArgumentException( LANG.getMessage( "bad.graph.cache.root",
+                                                                 localRepositoryRoot == null ? "null"
+                                                                                 : localRepositoryRoot.getAbsolutePath() ) );
+
+        File root =
+            new File( new File( localRepositoryRoot, VirtualRepositoryReader.METADATA_CACHE_DIR ), GRAPH_CACHE_DIR );
+
+        String key = root.getCanonicalPath();
+
+        synchronized ( fsCaches )
+        {
+            DependencyGraphCache gc = fsCaches.get( key );
+
+            if ( gc == null )
+            {
+                gc = new DependencyGraphCache( root );
+                fsCaches.put( key, gc );
+            }
+
+            return gc;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public boolean isPersistent()
+    {
+        return _root != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * find cached dependencies of bmd, read from the repository behind rr
+     * 
+     * @return copy of bmd with dependencies and tracker set, or null if there is no valid entry for this repository
+     */
+    public ArtifactMetadata findDependencies( ArtifactMetadata bmd, RepositoryReader rr )
+    {
+        String key = getKey( bmd, rr );
+
+        Entry e = _entries.get( key );
+
+        if ( e == null && _root != null )
+        {
+            e = load( bmd, rr );
+
+            if ( e != null )
+                _entries.put( key, e );
+        }
+
+        if ( e == null || !e.repoId.equals( rr.getRepository().getId() ) )
+            return null;
+
+        if ( expired( e, bmd, rr.getRepository() ) )
+        {
+            _entries.remove( key );
+            return null;
+        }
+
+        ArtifactMetadata md = new ArtifactMetadata( bmd );
+        md.setDependencies( copy( e.dependencies ) );
+        md.setTracker( rr );
+
+        return md;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * remember dependencies of md, as read from the repository behind rr
+     */
+    public void saveDependencies( ArtifactMetadata md, RepositoryReader rr )
+    {
+        if ( md.getDependencies() == null )
+            return;
+
+        Repository repo = rr.getRepository();
+
+        // local snapshots get rebuilt all the time
+        if ( repo.isLocal() && isSnapshot( md ) )
+            return;
+
+        Entry e = new Entry( repo.getId(), System.currentTimeMillis(), copy( md.getDependencies() ) );
+
+        if ( repo instanceof LocalRepository )
+        {
+            File pom = getPom( md, (LocalRepository) repo );
+
+            // nothing to check the entry against
+            if ( pom == null )
+                return;
+
+            e.pomModified = pom.lastModified();
+            e.pomSize = pom.length();
+        }
+
+        _entries.put( getKey( md, rr ), e );
+
+        if ( _root != null )
+            store( md, rr, e );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * clear in-memory entries. Persisted ones stay on disk and still obey repository update policies
+     */
+    public void clear()
+    {
+        _entries.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static boolean expired( Entry e, ArtifactMetadata bmd, Repository repo )
+    {
+        // a release can be installed again with the same version
+        if ( repo instanceof LocalRepository )
+        {
+            File pom = getPom( bmd, (LocalRepository) repo );
+
+            return pom == null || pom.lastModified() != e.pomModified || pom.length() != e.pomSize;
+        }
+
+        if ( !( repo instanceof RemoteRepository ) )
+            return false;
+
+        RepositoryUpdatePolicy up = ( (RemoteRepository) repo ).getUpdatePolicy();
+
+        return up != null && up.timestampExpired( e.timestamp, new Quality( bmd.getVersion() ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * @return the POM in the m2 layout, null if there is none
+     */
+    private static File getPom( ArtifactMetadata bmd, LocalRepository repo )
+    {
+        File dir = repo.getDirectory();
+
+        if ( dir == null )
+            return null;
+
+        File pom =
+            new File( dir, bmd.getGroupId().replace( '.', '/' ) + "/" + bmd.getArtifactId() + "/"
+                + ArtifactLocation.calculateVersionDir( bmd.getVersion() ) + "/" + bmd.getArtifactId() + "-"
+                + bmd.getVersion() + ".pom" );
+
+        return pom.isFile() ? pom : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static boolean isSnapshot( ArtifactMetadata md )
+    {
+        return md.getVersion() == null || new Quality( md.getVersion() ).getQuality() == QualityEnum.snapshot;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String getProcessorName( RepositoryReader rr )
+    {
+        DependencyProcessor dp = rr.getDependencyProcessor();
+
+        return dp == null ? "null" : dp.getClass().getName();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String getKey( ArtifactMetadata bmd, RepositoryReader rr )
+    {
+        return getProcessorName( rr ) + "|" + bmd.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static List<ArtifactMetadata> copy( List<ArtifactMetadata> deps )
+    {
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( deps.size() );
+
+        for ( ArtifactMetadata dep : deps )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( dep );
+            md.setOptional( dep.isOptional() );
+            md.setInclusions( dep.getInclusions() );
+            md.setExclusions( dep.getExclusions() );
+            md.setTracker( null );
+
+            res.add( md );
+        }
+
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private File getFile( ArtifactMetadata bmd, RepositoryReader rr )
+    {
+        File dir =
+            new File( _root, bmd.getGroupId().replace( '.', '/' ) + "/" + bmd.getArtifactId() + "/" + bmd.getVersion() );
+
+        return new File( dir, getProcessorName( rr ) + ( bmd.hasClassifier() ? "-" + bmd.getClassifier() : "" ) + "."
+            + bmd.getType() + DEPS_EXT );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private Entry load( ArtifactMetadata bmd, RepositoryReader rr )
+    {
+        File f = getFile( bmd, rr );
+
+        if ( !f.exists() )
+            return null;
+
+        InputStream in = null;
+
+        try
+        {
+            Properties p = new Properties();
+
+            in = new FileInputStream( f );
+
+            p.load( in );
+
+            String repoId = p.getProperty( "repository" );
+
+            if ( repoId == null )
+            {
+                if ( LOG.isWarnEnabled() )
+                    LOG.warn( LANG.getMessage( "graph.cache.no.repository", f.getAbsolutePath() ) );
+
+                return null;
+            }
+
+            int count = Integer.parseInt( p.getProperty( "count" ) );
+
+            List<ArtifactMetadata> deps = new ArrayList<ArtifactMetadata>( count );
+
+            for ( int i = 0; i < count; i++ )
+            {
+                String prefix = "dep." + i;
+
+                ArtifactMetadata dep = new ArtifactMetadata( p.getProperty( prefix ) );
+                dep.setScope( p.getProperty( prefix + ".scope" ) );
+                dep.setOptional( p.getProperty( prefix + ".optional" ) );
+                dep.setInclusions( parseList( p.getProperty( prefix + ".inclusions" ) ) );
+                dep.setExclusions( parseList( p.getProperty( prefix + ".exclusions" ) ) );
+
+                deps.add( dep );
+            }
+
+            Entry e = new Entry( repoId, Long.parseLong( p.getProperty( "timestamp" ) ), deps );
+
+            e.pomModified = Long.parseLong( p.getProperty( "pom.modified", "0" ) );
+            e.pomSize = Long.parseLong( p.getProperty( "pom.size", "-1" ) );
+
+            return e;
+        }
+        catch ( Exception e )
+        {
+            if ( LOG.isWarnEnabled() )
+                LOG.warn( LANG.getMessage( "graph.cache.read.error", f.getAbsolutePath(), e.getMessage() ) );
+
+            return null;
+        }
+        finally
+        {
+            if ( in != null )
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException e )
+                {
+                }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private void store( ArtifactMetadata bmd, RepositoryReader rr, Entry e )
+    {
+        File f = getFile( bmd, rr );
+
+        FileLockBundle lock = null;
+
+        OutputStream out = null;
+
+        try
+        {
+            f.getParentFile().mkdirs();
+
+            lock = FileUtil.lockDir( f.getParentFile().getCanonicalPath(), 500L, 5L );
+
+            Properties p = new Properties();
+
+            p.setProperty( "repository", e.repoId );
+            p.setProperty( "timestamp", "" + e.timestamp );
+            p.setProperty( "count", "" + e.dependencies.size() );
+
+            if ( e.pomSize >= 0 )
+            {
+                p.setProperty( "pom.modified", "" + e.pomModified );
+                p.setProperty( "pom.size", "" + e.pomSize );
+            }
+
+            int i = 0;
+
+            for ( ArtifactMetadata dep : e.dependencies )
+            {
+                String prefix = "dep." + i++;
+
+                p.setProperty( prefix, dep.toString() );
+                p.setProperty( prefix + ".scope", dep.getScope() );
+                p.setProperty( prefix + ".optional", "" + dep.isOptional() );
+
+                if ( dep.hasInclusions() )
+                    p.setProperty( prefix + ".inclusions", join( dep.getInclusions() ) );
+
+                if ( dep.hasExclusions() )
+                    p.setProperty( prefix + ".exclusions", join( dep.getExclusions() ) );
+            }
+
+            out = new FileOutputStream( f );
+
+            p.store( out, bmd.toString() );
+        }
+        catch ( IOException ex )
+        {
+            if ( LOG.isWarnEnabled() )
+                LOG.warn( LANG.getMessage( "graph.cache.write.error", f.getAbsolutePath(), ex.getMessage() ) );
+        }
+        finally
+        {
+            if ( out != null )
+                try
+                {
+                    out.close();
+                }
+                catch ( IOException ex )
+                {
+                }
+
+            if ( lock != null )
+                lock.release();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static String join( Collection<ArtifactMetadata> mds )
+    {
+        StringBuilder sb = new StringBuilder( 64 * mds.size() );
+
+        String comma = "";
+
+        for ( ArtifactMetadata md : mds )
+        {
+            sb.append( comma ).append( md.toString() );
+            comma = ",";
+        }
+
+        return sb.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static List<ArtifactMetadata> parseList( String s )
+    {
+        if ( Util.isEmpty( s ) )
+            return null;
+
+        String[] gavs = s.split( "," );
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( gavs.length );
+
+        for ( String gav : gavs )
+            res.add( new ArtifactMetadata( gav ) );
+
+        return res;
+    }
+    // ----------------------------------------------------------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------------------------------------------------------
+}
@@ -25,9 +25,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.maven.mercury.artifact.Artifact;
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
@@ -35,6 +43,7 @@ import org.apache.maven.mercury.artifact.Quality;
 import org.apache.maven.mercury.artifact.api.ArtifactListProcessor;
 import org.apache.maven.mercury.artifact.api.ArtifactListProcessorException;
 import org.apache.maven.mercury.artifact.version.DefaultArtifactVersion;
+import org.apache.maven.mercury.artifact.version.VersionCache;
 import org.apache.maven.mercury.builder.api.DependencyProcessor;
 import org.apache.maven.mercury.builder.api.MetadataReader;
 import org.apache.maven.mercury.builder.api.MetadataReaderException;
@@ -96,8 +105,19 @@ public class VirtualRepositoryReader
     /** file system cache subfolder */
     public static final String METADATA_CACHE_DIR = ".cache";
 
-    /** minimum # of queue elements to consider parallelization */
-    private static int MIN_PARALLEL = 5;
+    /** minimum # of queue elements to consider parallelization, 0 - never */
+    public static final String SYSTEM_PROPERTY_PARALLEL_MIN = "mercury.reader.parallel.min";
+
+    private static final int MIN_PARALLEL = Util.getIntProperty( SYSTEM_PROPERTY_PARALLEL_MIN, 5 );
+
+    /** maximum # of parallel reads for one artifact query */
+    private static final int MAX_PARALLEL = 8;
+
+    /** query all the repositories at once, not one after another */
+    public static final String SYSTEM_PROPERTY_PARALLEL_READ = "mercury.reader.parallel";
+
+    /** shared by all the readers, idle threads go away */
+    private static ExecutorService _readPool;
 
     private static final Language LANG = new DefaultLanguage( VirtualRepositoryReader.class );
 
@@ -121,7 +141,18 @@ public class VirtualRepositoryReader
     private boolean _initialized = false;
 
     private EventManager _eventManager;
+
+    /** dependencies, shared across readers */
+    private DependencyGraphCache _graphCache;
+
+    private boolean _parallel = Boolean.parseBoolean( System.getProperty( SYSTEM_PROPERTY_PARALLEL_READ, "false" ) );
+
+    private int _minParallel = MIN_PARALLEL;
     
+    /**
+     * max number of version queries, whose lists of available versions are kept in memory, 0 - not kept. Not the same
+     * as VersionCache.SYSTEM_PARAMETER_VERSION_PARSE_CACHE_SIZE, that limits the parsed version strings
+     */
     public static final String SYSTEM_PROPERTY_VERSION_CACHE_SIZE = "mercury.version.cache.size";
     
     private static final int _versionCacheSize = Integer.valueOf( System.getProperty( SYSTEM_PROPERTY_VERSION_CACHE_SIZE, "1024" ) ); 
@@ -194,6 +225,85 @@ public class VirtualRepositoryReader
         _repositories.add( repo );
     }
 
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public void setGraphCache( DependencyGraphCache graphCache )
+    {
+        _graphCache = graphCache;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public DependencyGraphCache getGraphCache()
+    {
+        return _graphCache;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * find the reader of the repository with this id
+     * 
+     * @return the reader or null, if there is no such readable repository
+     */
+    public RepositoryReader getReader( String repoId )
+        throws RepositoryException
+    {
+        init();
+
+        for ( RepositoryReader rr : _repositoryReaders )
+            if ( rr != null && rr.getRepository().getId().equals( repoId ) )
+                return rr;
+
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * in parallel mode all the repositories are queried at once, the results are still taken in the repository order
+     */
+    public void setParallel( boolean parallel )
+    {
+        _parallel = parallel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public boolean isParallel()
+    {
+        return _parallel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * artifact queries of this size and bigger are read on the read pool, 0 - never
+     */
+    public void setMinParallel( int minParallel )
+    {
+        _minParallel = minParallel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public int getMinParallel()
+    {
+        return _minParallel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private static synchronized ExecutorService getReadPool()
+    {
+        if ( _readPool == null )
+        {
+            _readPool = Executors.newCachedThreadPool( new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "mercury-reader" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        }
+
+        return _readPool;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------------------
     public void setProcessors( Map<String, ArtifactListProcessor> processors )
     {
@@ -387,8 +497,6 @@ public class VirtualRepositoryReader
 
             ArtifactListProcessor tp = _processors == null ? null : _processors.get( ArtifactListProcessor.FUNCTION_TP );
 
-            GenericEvent eventRead = null;
-
             List<ArtifactMetadata> qList = new ArrayList<ArtifactMetadata>( query.size() );
 //            qList.addAll( query );
             MetadataResults res = readCachedVersions( query, qList );
@@ -396,9 +504,13 @@ public class VirtualRepositoryReader
             if( Util.isEmpty( qList ) )
                 return res;
 
-            for ( RepositoryReader rr : _repositoryReaders )
+            if ( _parallel )
             {
-                try
+                res = readVersionsParallel( qList, tp, res );
+            }
+            else
+            {
+                for ( RepositoryReader rr : _repositoryReaders )
                 {
                     // all found
                     if ( qList.isEmpty() )
@@ -406,84 +518,7 @@ public class VirtualRepositoryReader
                         break;
                     }
 
-                    if ( _eventManager != null )
-                    {
-                        eventRead =
-                            new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_VERSIONS_FROM_REPO,
-                                              rr.getRepository().getId() );
-                    }
-
-                    MetadataResults repoRes = rr.readVersions( qList );
-
-                    if ( repoRes != null && repoRes.hasExceptions() )
-                    {
-                        if ( LOG.isWarnEnabled() )
-                        {
-                            LOG.warn( repoRes.getExceptions().toString() );
-                        }
-                    }
-
-                    if ( repoRes != null && repoRes.hasResults() )
-                    {
-                        for ( ArtifactMetadata key : repoRes.getResults().keySet() )
-                        {
-                            List<ArtifactMetadata> rorRes = repoRes.getResult( key );
-
-                            if ( tp != null )
-                            {
-                                try
-                                {
-                                    tp.configure( key );
-                                    rorRes = tp.process( rorRes );
-                                }
-                                catch ( ArtifactListProcessorException e )
-                                {
-                                    throw new RepositoryException( e );
-                                }
-                            }
-
-                            if ( Util.isEmpty( rorRes ) )
-                            {
-                                eventRead.setResult( "none found" );
-                                continue;
-                            }
-
-                            for ( ArtifactMetadata bmd : rorRes )
-                            {
-                                bmd.setTracker( rr );
-                            }
-
-                            if ( res == null )
-                            {
-                                res = new MetadataResults( key, rorRes );
-                            }
-                            else
-                            {
-                                res.add( key, rorRes );
-                            }
-
-                            if ( ( !key.isVirtual() && key.isSingleton() )
-                                || ( key.isVirtual() && rr.getRepository().isSufficient() ) )
-                            {
-                                // fixed release is found or virtual is found
-                                // in a sufficient repo - no more scanning
-                                qList.remove( key );
-                            }
-                        }
-                    }
-
-                    if ( _eventManager != null )
-                    {
-                        eventRead.setResult( "repo done" );
-                    }
-                }
-                finally
-                {
-                    if ( _eventManager != null )
-                    {
-                        eventRead.stop();
-                        _eventManager.fireEvent( eventRead );
-                    }
+                    res = readVersions( rr, qList, tp, res );
                 }
             }
 
@@ -504,231 +539,918 @@ public class VirtualRepositoryReader
         }
     }
 
-    private void processSingletons( MetadataResults res )
+    /** one repository, only the queries still open */
+    private MetadataResults readVersions( RepositoryReader rr, List<ArtifactMetadata> qList, ArtifactListProcessor tp,
+                                          MetadataResults res )
+        throws RepositoryException
     {
-        if ( !res.hasResults() )
+        GenericEvent eventRead = null;
+
+        try
         {
-            return;
-        }
+            if ( _eventManager != null )
+            {
+                eventRead =
+                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_VERSIONS_FROM_REPO,
+                                      rr.getRepository().getId() );
+            }
 
-        Map<ArtifactMetadata, List<ArtifactMetadata>> m = res.getResults();
+            MetadataResults repoRes = rr.readVersions( qList );
 
-        for ( ArtifactMetadata key : m.keySet() )
+            res = mergeVersions( rr, repoRes, qList, tp, res, eventRead );
+
+            if ( _eventManager != null )
+            {
+                eventRead.setResult( "repo done" );
+            }
+
+            return res;
+        }
+        finally
         {
-            processSingletons( key, res.getResult( key ) );
+            if ( _eventManager != null )
+            {
+                eventRead.stop();
+                _eventManager.fireEvent( eventRead );
+            }
         }
     }
 
-    /** order all found versions per query, then leave only the last one hanging */
-    private void processSingletons( ArtifactMetadata key, List<ArtifactMetadata> res )
+    /**
+     * all the repositories get all the queries at once. Results are merged in the repository order, exactly as the
+     * sequential scan would see them: a repository's results for a query are dropped if an earlier repository settled
+     * it. Reads not needed any more are cancelled
+     */
+    private MetadataResults readVersionsParallel( final List<ArtifactMetadata> qList, ArtifactListProcessor tp,
+                                                  MetadataResults res )
+        throws RepositoryException
     {
-        if ( Util.isEmpty( res ) || !DefaultArtifactVersion.isVirtual( key.getVersion() ) )
-        {
-            return;
-        }
+        ExecutorService pool = getReadPool();
 
-        TreeSet<ArtifactMetadata> ts = new TreeSet<ArtifactMetadata>( new Comparator<ArtifactMetadata>()
+        List<RepositoryReader> readers = new ArrayList<RepositoryReader>( _repositoryReaders.length );
+        List<Future<MetadataResults>> futures = new ArrayList<Future<MetadataResults>>( _repositoryReaders.length );
+
+        for ( final RepositoryReader rr : _repositoryReaders )
         {
-            public int compare( ArtifactMetadata o1, ArtifactMetadata o2 )
+            if ( rr == null )
             {
-                String v1 = o1.getVersion();
-                String v2 = o2.getVersion();
+                continue;
+            }
 
-                if ( o1.isVirtualSnapshot() && o1.getTimeStamp() != null )
-                    v1 = v1.replace( Artifact.SNAPSHOT_VERSION, o1.getTimeStamp() + "-00" );
+            readers.add( rr );
 
-                if ( o2.isVirtualSnapshot() && o2.getTimeStamp() != null )
-                    v2 = v2.replace( Artifact.SNAPSHOT_VERSION, o2.getTimeStamp() + "-00" );
+            futures.add( pool.submit( new Callable<MetadataResults>()
+            {
+                public MetadataResults call()
+                    throws Exception
+                {
+                    GenericEvent eventRead = null;
 
-                DefaultArtifactVersion av1 = new DefaultArtifactVersion( v1 );
-                DefaultArtifactVersion av2 = new DefaultArtifactVersion( v2 );
+                    try
+                    {
+                        if ( _eventManager != null )
+                        {
+                            eventRead =
+                                new GenericEvent( EventTypeEnum.virtualRepositoryReader,
+                                                  EVENT_READ_VERSIONS_FROM_REPO, rr.getRepository().getId() );
+                        }
 
-                return av1.compareTo( av2 );
-            }
+                        // every reader gets its own copy, qList shrinks as the results come
+                        MetadataResults repoRes = rr.readVersions( new ArrayList<ArtifactMetadata>( qList ) );
 
-        } );
-        ts.addAll( res );
+                        if ( _eventManager != null )
+                        {
+                            eventRead.setResult( "repo done" );
+                        }
 
-        ArtifactMetadata single = ts.last();
+                        return repoRes;
+                    }
+                    finally
+                    {
+                        if ( _eventManager != null )
+                        {
+                            eventRead.stop();
+                            _eventManager.fireEvent( eventRead );
+                        }
+                    }
+                }
+            } ) );
+        }
 
-        // Oleg: -SNAPSHOT should always win
-        // if( key.isVirtualSnapshot() )
-        // {
-        // ArtifactMetadata first = ts.first();
-        //            
-        // if( first.isVirtualSnapshot() )
-        // single = first;
-        // }
+        try
+        {
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                // all found
+                if ( qList.isEmpty() )
+                {
+                    break;
+                }
 
-        res.clear();
+                res = mergeVersions( readers.get( i ), getResult( futures.get( i ) ), qList, tp, res, null );
+            }
+        }
+        finally
+        {
+            // the rest is not needed
+            cancel( futures );
+        }
 
-        res.add( single );
+        return res;
     }
 
-    // ----------------------------------------------------------------------------------------------------------------------------
-    public ArtifactMetadata readDependencies( ArtifactMetadata bmd )
-        throws IllegalArgumentException, RepositoryException
+    /**
+     * wait for the read, unwrap its failure
+     */
+    private static <T> T getResult( Future<T> future )
+        throws RepositoryException
     {
-        if ( bmd == null )
+        try
         {
-            throw new IllegalArgumentException( "null bmd supplied" );
+            return future.get();
         }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
 
-        GenericEvent event = null;
+            if ( cause instanceof RepositoryException )
+            {
+                throw (RepositoryException) cause;
+            }
 
-        try
-        {
-            if ( _eventManager != null )
+            if ( cause instanceof RuntimeException )
             {
-                event =
-                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_DEPENDENCIES, bmd.toString() );
+                throw (RuntimeException) cause;
             }
 
-            init();
+            throw new RepositoryException( cause );
+        }
+        catch ( CancellationException e )
+        {
+            throw new RepositoryException( e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException( e );
+        }
+    }
 
-            List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>( 1 );
-            query.add( bmd );
+    /**
+     * cancel the reads nobody waits for any more
+     */
+    private static void cancel( List<? extends Future<?>> futures )
+    {
+        for ( Future<?> f : futures )
+        {
+            f.cancel( true );
+        }
+    }
 
-            ArtifactMetadata md = new ArtifactMetadata( bmd );
+    /**
+     * add the repository's results for the open queries, settled queries are taken out of qList
+     */
+    private MetadataResults mergeVersions( RepositoryReader rr, MetadataResults repoRes, List<ArtifactMetadata> qList,
+                                           ArtifactListProcessor tp, MetadataResults res, GenericEvent eventRead )
+        throws RepositoryException
+    {
+        if ( repoRes != null && repoRes.hasExceptions() )
+        {
+            if ( LOG.isWarnEnabled() )
+            {
+                LOG.warn( repoRes.getExceptions().toString() );
+            }
+        }
 
-            RepositoryReader[] repos = _repositoryReaders;
+        if ( repoRes == null || !repoRes.hasResults() )
+        {
+            return res;
+        }
 
-            Object tracker = bmd.getTracker();
+        for ( ArtifactMetadata key : repoRes.getResults().keySet() )
+        {
+            // settled by an earlier repository
+            if ( !qList.contains( key ) )
+            {
+                continue;
+            }
+
+            List<ArtifactMetadata> rorRes = repoRes.getResult( key );
+
+            if ( tp != null )
+            {
+                try
+                {
+                    tp.configure( key );
+                    rorRes = tp.process( rorRes );
+                }
+                catch ( ArtifactListProcessorException e )
+                {
+                    throw new RepositoryException( e );
+                }
+            }
+
+            if ( Util.isEmpty( rorRes ) )
+            {
+                if ( eventRead != null )
+                {
+                    eventRead.setResult( "none found" );
+                }
+                continue;
+            }
+
+            for ( ArtifactMetadata bmd : rorRes )
+            {
+                bmd.setTracker( rr );
+            }
+
+            if ( res == null )
+            {
+                res = new MetadataResults( key, rorRes );
+            }
+            else
+            {
+                res.add( key, rorRes );
+            }
+
+            if ( ( !key.isVirtual() && key.isSingleton() )
+                || ( key.isVirtual() && rr.getRepository().isSufficient() ) )
+            {
+                // fixed release is found or virtual is found
+                // in a sufficient repo - no more scanning
+                qList.remove( key );
+            }
+        }
+
+        return res;
+    }
+
+    private void processSingletons( MetadataResults res )
+    {
+        if ( !res.hasResults() )
+        {
+            return;
+        }
+
+        Map<ArtifactMetadata, List<ArtifactMetadata>> m = res.getResults();
+
+        for ( ArtifactMetadata key : m.keySet() )
+        {
+            processSingletons( key, res.getResult( key ) );
+        }
+    }
+
+    /** order all found versions per query, then leave only the last one hanging */
+    private void processSingletons( ArtifactMetadata key, List<ArtifactMetadata> res )
+    {
+        if ( Util.isEmpty( res ) || !DefaultArtifactVersion.isVirtual( key.getVersion() ) )
+        {
+            return;
+        }
+
+        TreeSet<ArtifactMetadata> ts = new TreeSet<ArtifactMetadata>( new Comparator<ArtifactMetadata>()
+        {
+            public int compare( ArtifactMetadata o1, ArtifactMetadata o2 )
+            {
+                String v1 = o1.getVersion();
+                String v2 = o2.getVersion();
+
+                if ( o1.isVirtualSnapshot() && o1.getTimeStamp() != null )
+                    v1 = v1.replace( Artifact.SNAPSHOT_VERSION, o1.getTimeStamp() + "-00" );
+
+                if ( o2.isVirtualSnapshot() && o2.getTimeStamp() != null )
+                    v2 = v2.replace( Artifact.SNAPSHOT_VERSION, o2.getTimeStamp() + "-00" );
+
+                DefaultArtifactVersion av1 = VersionCache.getVersion( v1 );
+                DefaultArtifactVersion av2 = VersionCache.getVersion( v2 );
+
+                return av1.compareTo( av2 );
+            }
+
+        } );
+        ts.addAll( res );
+
+        ArtifactMetadata single = ts.last();
+
+        // Oleg: -SNAPSHOT should always win
+        // if( key.isVirtualSnapshot() )
+        // {
+        // ArtifactMetadata first = ts.first();
+        //            
+        // if( first.isVirtualSnapshot() )
+        // single = first;
+        // }
+
+        res.clear();
+
+        res.add( single );
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    public ArtifactMetadata readDependencies( ArtifactMetadata bmd )
+        throws IllegalArgumentException, RepositoryException
+    {
+        if ( bmd == null )
+        {
+            throw new IllegalArgumentException( "null bmd supplied" );
+        }
+
+        GenericEvent event = null;
+
+        try
+        {
+            if ( _eventManager != null )
+            {
+                event =
+                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_DEPENDENCIES, bmd.toString() );
+            }
+
+            init();
+
+            List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>( 1 );
+            query.add( bmd );
+
+            ArtifactMetadata md = readDependenciesBatch( query ).get( 0 );
+
+            if ( _eventManager != null && md.getDependencies() == null )
+            {
+                event.setResult( "not found" );
+            }
+
+            return md;
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                event.stop();
+                _eventManager.fireEvent( event );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * read dependencies for a whole collection of GAVs. Queries are grouped by the repository they came from
+     * (tracker), so that each repository is asked only once; the ones without a tracker are looked up across all
+     * repositories in order, asking each one only for those, not yet found.
+     * 
+     * @param query GAVs to read dependencies for
+     * @return list of copies of the query elements, in the query order, with dependencies and tracker set. If
+     *         dependencies for a GAV are not found - its copy has null dependencies
+     */
+    public List<ArtifactMetadata> readDependencies( Collection<ArtifactMetadata> query )
+        throws IllegalArgumentException, RepositoryException
+    {
+        if ( Util.isEmpty( query ) )
+        {
+            throw new IllegalArgumentException( "empty query supplied" );
+        }
+
+        GenericEvent event = null;
+
+        try
+        {
+            if ( _eventManager != null )
+            {
+                event =
+                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_DEPENDENCIES, "batch of "
+                        + query.size() );
+            }
+
+            init();
+
+            return readDependenciesBatch( query );
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                event.stop();
+                _eventManager.fireEvent( event );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private List<ArtifactMetadata> readDependenciesBatch( Collection<ArtifactMetadata> query )
+        throws RepositoryException
+    {
+        Map<ArtifactMetadata, ArtifactMetadata> found =
+            new HashMap<ArtifactMetadata, ArtifactMetadata>( query.size() * 2 );
+
+        Map<RepositoryReader, List<ArtifactMetadata>> buckets = sortByRepo( query );
+
+        List<ArtifactMetadata> leftovers = buckets.remove( RepositoryReader.NULL_READER );
+
+        // do we know where this metadata came from ?
+        for ( Map.Entry<RepositoryReader, List<ArtifactMetadata>> e : buckets.entrySet() )
+        {
+            readDependencies( e.getKey(), e.getValue(), found );
+        }
+
+        if ( leftovers != null )
+        {
+            for ( RepositoryReader rr : _repositoryReaders )
+            {
+                readDependencies( rr, leftovers, found );
+
+                List<ArtifactMetadata> notFound = new ArrayList<ArtifactMetadata>( leftovers.size() );
+
+                for ( ArtifactMetadata bmd : leftovers )
+                {
+                    if ( !found.containsKey( bmd ) )
+                    {
+                        notFound.add( bmd );
+                    }
+                }
+
+                if ( notFound.isEmpty() )
+                {
+                    break;
+                }
+
+                leftovers = notFound;
+            }
+        }
+
+        List<ArtifactMetadata> res = new ArrayList<ArtifactMetadata>( query.size() );
+
+        for ( ArtifactMetadata bmd : query )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( bmd );
+
+            ArtifactMetadata fmd = found.get( bmd );
+
+            if ( fmd != null )
+            {
+                md.setDependencies( fmd.getDependencies() );
+                md.setTracker( fmd.getTracker() );
+            }
+
+            res.add( md );
+        }
+
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * one batched dependency read from a single repository. Found GAVs are added to found map
+     */
+    private void readDependencies( RepositoryReader rr, List<ArtifactMetadata> query,
+                                   Map<ArtifactMetadata, ArtifactMetadata> found )
+        throws RepositoryException
+    {
+        GenericEvent eventRead = null;
+
+        try
+        {
+            if ( _eventManager != null )
+            {
+                eventRead =
+                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_DEPENDENCIES_FROM_REPO,
+                                      rr.getRepository().getId() );
+            }
+
+            if ( _graphCache != null )
+            {
+                query = readCachedDependencies( rr, query, found );
+
+                if ( query.isEmpty() )
+                {
+                    if ( _eventManager != null )
+                    {
+                        eventRead.setResult( "found in graph cache" );
+                    }
+
+                    return;
+                }
+            }
+
+            MetadataResults res = rr.readDependencies( query );
+
+            if ( res == null )
+            {
+                return;
+            }
+
+            if ( res.hasExceptions() )
+            {
+                if ( LOG.isWarnEnabled() )
+                {
+                    LOG.warn( query + " dependecies: error : " + res.getExceptions().toString() );
+                }
+            }
+
+            int count = 0;
+
+            for ( ArtifactMetadata bmd : query )
+            {
+                if ( res.hasResults( bmd ) )
+                {
+                    ArtifactMetadata md = new ArtifactMetadata( bmd );
+                    md.setDependencies( res.getResult( bmd ) );
+                    md.setTracker( rr );
+
+                    found.put( bmd, md );
+
+                    if ( _graphCache != null )
+                    {
+                        _graphCache.saveDependencies( md, rr );
+                    }
+
+                    ++count;
+
+                    if ( LOG.isDebugEnabled() )
+                    {
+                        LOG.debug( bmd + " dependecies found : " + md.getDependencies() );
+                    }
+                }
+            }
+
+            if ( _eventManager != null )
+            {
+                eventRead.setInfo( eventRead.getInfo() + ", found: " + count + " of " + query.size() );
+            }
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                eventRead.stop();
+                _eventManager.fireEvent( eventRead );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * serve what's possible from the graph cache
+     * 
+     * @return the part of the query, not found in the cache
+     */
+    private List<ArtifactMetadata> readCachedDependencies( RepositoryReader rr, List<ArtifactMetadata> query,
+                                                           Map<ArtifactMetadata, ArtifactMetadata> found )
+    {
+        List<ArtifactMetadata> leftovers = new ArrayList<ArtifactMetadata>( query.size() );
+
+        for ( ArtifactMetadata bmd : query )
+        {
+            ArtifactMetadata md = _graphCache.findDependencies( bmd, rr );
+
+            if ( md == null )
+            {
+                leftovers.add( bmd );
+            }
+            else
+            {
+                found.put( bmd, md );
+            }
+        }
+
+        return leftovers;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * split query into repository buckets
+     */
+    private Map<RepositoryReader, List<ArtifactMetadata>> sortByRepo( Collection<? extends ArtifactMetadata> query )
+    {
+        HashMap<RepositoryReader, List<ArtifactMetadata>> res = null;
+
+        List<ArtifactMetadata> rejects = null;
+
+        for ( ArtifactMetadata bmd : query )
+        {
+            Object tracker = bmd.getTracker();
+
+            // do we know where this metadata came from ?
+            if ( tracker != null && RepositoryReader.class.isAssignableFrom( tracker.getClass() ) )
+            {
+                RepositoryReader rr = (RepositoryReader) tracker;
+
+                if ( res == null )
+                {
+                    res = new HashMap<RepositoryReader, List<ArtifactMetadata>>();
+                }
+
+                List<ArtifactMetadata> rl = res.get( rr );
+
+                if ( rl == null )
+                {
+                    rl = new ArrayList<ArtifactMetadata>();
+                    res.put( rr, rl );
+                }
+
+                rl.add( bmd );
+
+            }
+            else
+            {
+                if ( rejects == null )
+                {
+                    rejects = new ArrayList<ArtifactMetadata>();
+                }
+
+                rejects.add( bmd );
+            }
+        }
+
+        if ( rejects != null )
+        {
+            if ( res == null )
+            {
+                res = new HashMap<RepositoryReader, List<ArtifactMetadata>>();
+            }
+
+            res.put( RepositoryReader.NULL_READER, rejects );
+        }
+
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * query is big enough to spread it over the read pool
+     */
+    private boolean isParallel( int querySize )
+    {
+        return _minParallel > 0 && querySize >= _minParallel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * read repository-qualified buckets, each one from its own repository. Big queries read all the buckets at once,
+     * the results are still processed in the bucket order
+     */
+    private void readQualifiedBuckets( final Map<RepositoryReader, List<ArtifactMetadata>> buckets, int querySize,
+                                       ArtifactResults res )
+        throws RepositoryException
+    {
+        List<RepositoryReader> readers = new ArrayList<RepositoryReader>( buckets.size() );
+
+        for ( RepositoryReader rr : buckets.keySet() )
+        {
+            if ( !RepositoryReader.NULL_READER.equals( rr ) )
+            {
+                readers.add( rr );
+            }
+        }
+
+        if ( readers.size() < 2 || !isParallel( querySize ) )
+        {
+            for ( RepositoryReader rr : readers )
+            {
+                mergeQualifiedArtifacts( rr, readQualifiedArtifacts( rr, buckets.get( rr ) ), res );
+            }
+
+            return;
+        }
+
+        ExecutorService pool = getReadPool();
+
+        List<Future<ArtifactResults>> futures = new ArrayList<Future<ArtifactResults>>( readers.size() );
+
+        for ( final RepositoryReader rr : readers )
+        {
+            futures.add( pool.submit( new Callable<ArtifactResults>()
+            {
+                public ArtifactResults call()
+                    throws Exception
+                {
+                    return readQualifiedArtifacts( rr, buckets.get( rr ) );
+                }
+            } ) );
+        }
+
+        try
+        {
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                mergeQualifiedArtifacts( readers.get( i ), getResult( futures.get( i ) ), res );
+            }
+        }
+        finally
+        {
+            // nothing to wait for if one of them failed
+            cancel( futures );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private ArtifactResults readQualifiedArtifacts( RepositoryReader rr, List<ArtifactMetadata> query )
+        throws RepositoryException
+    {
+        GenericEvent eventRead = null;
+
+        try
+        {
+            if ( _eventManager != null )
+            {
+                eventRead =
+                    new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_ARTIFACTS_FROM_REPO_QUALIFIED,
+                                      rr.getRepository().getId() );
+            }
+
+            return rr.readArtifacts( query );
+        }
+        finally
+        {
+            if ( _eventManager != null )
+            {
+                eventRead.stop();
+                _eventManager.fireEvent( eventRead );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private void mergeQualifiedArtifacts( RepositoryReader rr, ArtifactResults rrRes, ArtifactResults res )
+        throws RepositoryException
+    {
+        if ( rrRes == null )
+        {
+            return;
+        }
+
+        if ( rrRes.hasExceptions() )
+        {
+            throw new RepositoryException( LANG.getMessage( "error.reading.existing.artifact",
+                                                            rrRes.getExceptions().toString(),
+                                                            rr.getRepository().getId() ) );
+        }
 
-            // do we know where this metadata came from ?
-            if ( tracker != null && RepositoryReader.class.isAssignableFrom( tracker.getClass() ) )
-            {
-                repos = new RepositoryReader[] { (RepositoryReader) tracker };
-            }
+        if ( rrRes.hasResults() )
+        {
+            saveArtifacts( rr, rrRes, res );
+        }
+    }
 
-            GenericEvent eventRead = null;
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * unqualified artifacts - the first repository that has it wins. Big queries are split into chunks, every chunk
+     * scans the repositories in order on the read pool, so that an artifact is still downloaded only once
+     */
+    private void readUnqualifiedArtifacts( List<ArtifactMetadata> leftovers, ArtifactResults res )
+        throws RepositoryException
+    {
+        int qSize = leftovers.size();
 
-            for ( RepositoryReader rr : repos )
-            {
-                try
-                {
-                    if ( _eventManager != null )
-                    {
-                        eventRead =
-                            new GenericEvent( EventTypeEnum.virtualRepositoryReader, EVENT_READ_DEPENDENCIES_FROM_REPO,
-                                              rr.getRepository().getId() );
-                    }
+        if ( !isParallel( qSize ) )
+        {
+            mergeUnqualifiedArtifacts( scanRepositories( leftovers ), res );
 
-                    MetadataResults res = rr.readDependencies( query );
+            return;
+        }
 
-                    if ( res != null )
-                    {
-                        if ( res.hasExceptions() )
-                        {
-                            if ( LOG.isWarnEnabled() )
-                            {
-                                LOG.warn( bmd + " dependecies: error : " + res.getExceptions().toString() );
-                            }
-                        }
+        int chunkSize = Math.max( _minParallel, ( qSize + MAX_PARALLEL - 1 ) / MAX_PARALLEL );
 
-                        if ( res.hasResults( bmd ) )
-                        {
-                            md.setDependencies( res.getResult( bmd ) );
-                            md.setTracker( rr );
+        ExecutorService pool = getReadPool();
 
-                            if ( _eventManager != null )
-                            {
-                                eventRead.setInfo( eventRead.getInfo() + ", found: " + md.getDependencies() );
-                            }
+        List<Future<Map<RepositoryReader, ArtifactResults>>> futures =
+            new ArrayList<Future<Map<RepositoryReader, ArtifactResults>>>( MAX_PARALLEL );
 
-                            if ( LOG.isDebugEnabled() )
-                            {
-                                LOG.debug( bmd + " dependecies found : " + md.getDependencies() );
-                            }
+        for ( int from = 0; from < qSize; from += chunkSize )
+        {
+            final List<ArtifactMetadata> chunk =
+                new ArrayList<ArtifactMetadata>( leftovers.subList( from, Math.min( qSize, from + chunkSize ) ) );
 
-                            return md;
-                        }
-                    }
-                }
-                finally
+            futures.add( pool.submit( new Callable<Map<RepositoryReader, ArtifactResults>>()
+            {
+                public Map<RepositoryReader, ArtifactResults> call()
+                    throws Exception
                 {
-                    if ( _eventManager != null )
-                    {
-                        eventRead.stop();
-                        _eventManager.fireEvent( eventRead );
-                    }
+                    return scanRepositories( chunk );
                 }
-            }
+            } ) );
+        }
 
-            if ( _eventManager != null )
+        try
+        {
+            for ( Future<Map<RepositoryReader, ArtifactResults>> f : futures )
             {
-                event.setResult( "not found" );
+                mergeUnqualifiedArtifacts( getResult( f ), res );
             }
-
-            return md;
         }
         finally
         {
-            if ( _eventManager != null )
-            {
-                event.stop();
-                _eventManager.fireEvent( event );
-            }
+            // nothing to wait for if one of them failed
+            cancel( futures );
         }
     }
 
     // ----------------------------------------------------------------------------------------------------------------------------
     /**
-     * split query into repository buckets
+     * read the query from the repositories in order, every repository gets only what was not found before
+     * 
+     * @return results by repository, in the repository order
      */
-    private Map<RepositoryReader, List<ArtifactMetadata>> sortByRepo( Collection<? extends ArtifactMetadata> query )
+    private Map<RepositoryReader, ArtifactResults> scanRepositories( List<ArtifactMetadata> query )
+        throws RepositoryException
     {
-        HashMap<RepositoryReader, List<ArtifactMetadata>> res = null;
+        Map<RepositoryReader, ArtifactResults> res =
+            new LinkedHashMap<RepositoryReader, ArtifactResults>( _repositoryReaders.length );
 
-        List<ArtifactMetadata> rejects = null;
+        List<ArtifactMetadata> qList = new ArrayList<ArtifactMetadata>( query );
 
-        for ( ArtifactMetadata bmd : query )
+        for ( RepositoryReader rr : _repositoryReaders )
         {
-            Object tracker = bmd.getTracker();
+            if ( qList.isEmpty() )
+            {
+                break;
+            }
 
-            // do we know where this metadata came from ?
-            if ( tracker != null && RepositoryReader.class.isAssignableFrom( tracker.getClass() ) )
+            if ( rr == null )
             {
-                RepositoryReader rr = (RepositoryReader) tracker;
+                continue;
+            }
 
-                if ( res == null )
+            GenericEvent eventRead = null;
+
+            try
+            {
+                if ( _eventManager != null )
                 {
-                    res = new HashMap<RepositoryReader, List<ArtifactMetadata>>();
+                    eventRead =
+                        new GenericEvent( EventTypeEnum.virtualRepositoryReader,
+                                          EVENT_READ_ARTIFACTS_FROM_REPO_UNQUALIFIED, rr.getRepository().getId() );
                 }
 
-                List<ArtifactMetadata> rl = res.get( rr );
+                ArtifactResults rrRes = rr.readArtifacts( qList );
 
-                if ( rl == null )
+                if ( rrRes == null )
                 {
-                    rl = new ArrayList<ArtifactMetadata>();
-                    res.put( rr, rl );
+                    continue;
                 }
 
-                rl.add( bmd );
+                res.put( rr, rrRes );
 
+                if ( !rrRes.hasExceptions() && rrRes.hasResults() )
+                {
+                    qList.removeAll( rrRes.getResults().keySet() );
+                }
             }
-            else
+            finally
             {
-                if ( rejects == null )
+                if ( _eventManager != null )
                 {
-                    rejects = new ArrayList<ArtifactMetadata>();
+                    eventRead.stop();
+                    _eventManager.fireEvent( eventRead );
                 }
+            }
+        }
 
-                rejects.add( bmd );
+        return res;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------------------
+    private void mergeUnqualifiedArtifacts( Map<RepositoryReader, ArtifactResults> repoRes, ArtifactResults res )
+        throws RepositoryException
+    {
+        for ( Map.Entry<RepositoryReader, ArtifactResults> e : repoRes.entrySet() )
+        {
+            ArtifactResults rrRes = e.getValue();
+
+            if ( rrRes.hasExceptions() )
+            {
+                res.addError( rrRes );
+            }
+            else if ( rrRes.hasResults() )
+            {
+                saveArtifacts( e.getKey(), rrRes, res );
             }
         }
+    }
 
-        if ( rejects != null )
+    // ----------------------------------------------------------------------------------------------------------------------------
+    /**
+     * add repository results to res and copy them to the local repository. Always called by the thread that reads
+     * the query, local repository writes are never concurrent
+     */
+    private void saveArtifacts( RepositoryReader rr, ArtifactResults rrRes, ArtifactResults res )
+        throws RepositoryException
+    {
+        String repoId = rr.getRepository().getId();
+
+        for ( ArtifactMetadata bm : rrRes.getResults().keySet() )
         {
-            if ( res == null )
+            List<Artifact> al = rrRes.getResults( bm );
+
+            res.addAll( bm, al );
+
+            // don't write local artifacts back to the same repo
+            if ( _localRepository != null && repoId.equals( _localRepository.getId() ) )
             {
-                res = new HashMap<RepositoryReader, List<ArtifactMetadata>>();
+                continue;
             }
 
-            res.put( RepositoryReader.NULL_READER, rejects );
+            if ( _localRepositoryWriter != null )
+            {
+                _localRepositoryWriter.writeArtifacts( al );
+            }
         }
-
-        return res;
     }
 
     // ----------------------------------------------------------------------------------------------------------------------------
@@ -770,67 +1492,7 @@ public class VirtualRepositoryReader
             res = new ArtifactResults();
 
             // first read repository-qualified Artifacts
-            for ( RepositoryReader rr : buckets.keySet() )
-            {
-                if ( RepositoryReader.NULL_READER.equals( rr ) )
-                {
-                    continue;
-                }
-
-                String repoId = rr.getRepository().getId();
-
-                GenericEvent eventRead = null;
-
-                try
-                {
-                    if ( _eventManager != null )
-                    {
-                        eventRead =
-                            new GenericEvent( EventTypeEnum.virtualRepositoryReader,
-                                              EVENT_READ_ARTIFACTS_FROM_REPO_QUALIFIED, repoId );
-                    }
-
-                    List<ArtifactMetadata> rrQuery = buckets.get( rr );
-
-                    ArtifactResults rrRes = rr.readArtifacts( rrQuery );
-
-                    if ( rrRes.hasExceptions() )
-                    {
-                        throw new RepositoryException( LANG.getMessage( "error.reading.existing.artifact",
-                                                                        rrRes.getExceptions().toString(),
-                                                                        rr.getRepository().getId() ) );
-                    }
-
-                    if ( rrRes.hasResults() )
-                    {
-                        for ( ArtifactMetadata bm : rrRes.getResults().keySet() )
-                        {
-                            List<Artifact> al = rrRes.getResults( bm );
-
-                            res.addAll( bm, al );
-
-                            // don't write local artifacts back to the same repo
-                            if ( _localRepository != null && repoId.equals( _localRepository.getId() ) )
-                            {
-                                continue;
-                            }
-
-                            if ( _localRepositoryWriter != null )
-                            {
-                                _localRepositoryWriter.writeArtifacts( al );
-                            }
-                        }
-                    }
-                }
-                finally
-                {
-                    if ( _eventManager != null )
-                    {
-                        eventRead.stop();
-                        _eventManager.fireEvent( eventRead );
-                    }
-                }
-            }
+            readQualifiedBuckets( buckets, query.size(), res );
 
             // then process unqualified virtuals
             if ( !Util.isEmpty( leftovers ) )
@@ -914,65 +1576,7 @@ public class VirtualRepositoryReader
             // then search all repos for unqualified Artifacts
             if ( !Util.isEmpty( leftovers ) )
             {
-                for ( RepositoryReader rr : _repositoryReaders )
-                {
-                    if ( leftovers.isEmpty() )
-                    {
-                        break;
-                    }
-
-                    String repoId = rr.getRepository().getId();
-
-                    GenericEvent eventRead = null;
-
-                    try
-                    {
-                        if ( _eventManager != null )
-                        {
-                            eventRead =
-                                new GenericEvent( EventTypeEnum.virtualRepositoryReader,
-                                                  EVENT_READ_ARTIFACTS_FROM_REPO_UNQUALIFIED, repoId );
-                        }
-
-                        ArtifactResults rrRes = rr.readArtifacts( leftovers );
-
-                        if ( rrRes.hasExceptions() )
-                        {
-                            res.addError( rrRes );
-                        }
-                        else if ( rrRes.hasResults() )
-                        {
-                            for ( ArtifactMetadata bm : rrRes.getResults().keySet() )
-                            {
-                                List<Artifact> al = rrRes.getResults( bm );
-
-                                res.addAll( bm, al );
-
-                                leftovers.remove( bm );
-
-                                // don't write local artifacts back to the same repo
-                                if ( _localRepository != null && repoId.equals( _localRepository.getId() ) )
-                                {
-                                    continue;
-                                }
-
-                                if ( _localRepositoryWriter != null )
-                                {
-                                    _localRepositoryWriter.writeArtifacts( al );
-                                }
-
-                            }
-                        }
-                    }
-                    finally
-                    {
-                        if ( _eventManager != null )
-                        {
-                            eventRead.stop();
-                            _eventManager.fireEvent( eventRead );
-                        }
-                    }
-                }
+                readUnqualifiedArtifacts( leftovers, res );
             }
 
             return res;
@@ -1163,63 +1767,7 @@ public class VirtualRepositoryReader
             // then search all repos for unqualified Artifacts
             if ( !Util.isEmpty( leftovers ) )
             {
-                for ( RepositoryReader rr : _repositoryReaders )
-                {
-                    if ( leftovers.isEmpty() )
-                    {
-                        break;
-                    }
-
-                    String repoId = rr.getRepository().getId();
-
-                    try
-                    {
-                        if ( _eventManager != null )
-                        {
-                            eventRead =
-                                new GenericEvent( EventTypeEnum.virtualRepositoryReader,
-                                                  EVENT_READ_ARTIFACTS_FROM_REPO_UNQUALIFIED, repoId );
-                        }
-
-                        ArtifactResults rrRes = rr.readArtifacts( leftovers );
-
-                        if ( rrRes.hasExceptions() )
-                        {
-                            res.addError( rrRes );
-                        }
-                        else if ( rrRes.hasResults() )
-                        {
-                            for ( ArtifactMetadata bm : rrRes.getResults().keySet() )
-                            {
-                                List<Artifact> al = rrRes.getResults( bm );
-
-                                res.addAll( bm, al );
-
-                                leftovers.remove( bm );
-
-                                // don't write local artifacts back to the same repo
-                                if ( _localRepository != null && repoId.equals( _localRepository.getId() ) )
-                                {
-                                    continue;
-                                }
-
-                                if ( _localRepositoryWriter != null )
-                                {
-                                    _localRepositoryWriter.writeArtifacts( al );
-                                }
-
-                            }
-                        }
-                    }
-                    finally
-                    {
-                        if ( _eventManager != null )
-                        {
-                            eventRead.stop();
-                            _eventManager.fireEvent( eventRead );
-                        }
-                    }
-                }
+                readUnqualifiedArtifacts( leftovers, res );
             }
             
             res.reOrderResults( query );
@@ -80,6 +80,34 @@ public class Util
             monitor.message( msg );
     }
 
+    /**
+     * integer system property, dflt if it is not set or is not a number
+     */
+    public static final int getIntProperty( String name, int dflt )
+    {
+        return (int) getLongProperty( name, dflt );
+    }
+
+    /**
+     * long system property, dflt if it is not set or is not a number
+     */
+    public static final long getLongProperty( String name, long dflt )
+    {
+        String val = System.getProperty( name );
+
+        if ( isEmpty( val ) )
+            return dflt;
+
+        try
+        {
+            return Long.parseLong( val.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return dflt;
+        }
+    }
+
     public static final String convertLength( long sz )
     {
         if ( sz < 5000L )
@@ -36,4 +36,120 @@ public class ArtifactMetadataTest
 
         assertEquals( "jar", md.getType() );
     }
+
+    public void testIdentityKey()
+    {
+        ArtifactMetadata md1 = new ArtifactMetadata( "a:a:1" );
+        ArtifactMetadata md2 = new ArtifactMetadata( "a:a:1::jar" );
+
+        assertEquals( md1, md2 );
+        assertEquals( md1.hashCode(), md2.hashCode() );
+
+        // the cached key follows the coordinates
+        md2.setVersion( "2" );
+        assertFalse( md1.equals( md2 ) );
+
+        md1.setVersion( "2" );
+        assertEquals( md1, md2 );
+        assertEquals( md1.hashCode(), md2.hashCode() );
+
+        md1.setClassifier( "sources" );
+        assertFalse( md1.equals( md2 ) );
+        assertEquals( "a:a:2:sources:jar", md1.toString() );
+
+        md2.setType( "test-jar" );
+        assertFalse( md1.equals( md2 ) );
+        assertEquals( new ArtifactMetadata( "a:a:2:tests:jar" ), md2 );
+    }
+
+    public void testKeyFollowsSetters()
+    {
+        ArtifactMetadata orig = new ArtifactMetadata( "g:a:1:c:jar" );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( "g:a:1:c:jar" );
+
+            // the key is cached by the first hash
+            assertEquals( orig.hashCode(), md.hashCode() );
+
+            switch ( i )
+            {
+                case 0: md.setGroupId( "h" ); break;
+                case 1: md.setArtifactId( "b" ); break;
+                case 2: md.setVersion( "2" ); break;
+                case 3: md.setClassifier( "d" ); break;
+                default: md.setType( "zip" );
+            }
+
+            assertFalse( md.toString(), orig.equals( md ) );
+            assertFalse( md.toString(), orig.hashCode() == md.hashCode() );
+            assertEquals( new ArtifactMetadata( md.toString() ), md );
+            assertEquals( new ArtifactMetadata( md.toString() ).hashCode(), md.hashCode() );
+        }
+    }
+
+    public void testKeyFollowsScope()
+    {
+        ArtifactMetadata md = new ArtifactMetadata( "g:a:1" );
+        int hash = md.hashCode();
+
+        // the scope is not a coordinate
+        md.setScope( "test" );
+        assertEquals( hash, md.hashCode() );
+        assertEquals( new ArtifactMetadata( "g:a:1" ), md );
+
+        // but the key of a subclass might include it
+        ArtifactMetadata compile = scoped( "compile" );
+        ArtifactMetadata md2 = scoped( "compile" );
+
+        assertEquals( compile, md2 );
+        assertEquals( compile.hashCode(), md2.hashCode() );
+
+        md2.setScope( "test" );
+
+        assertFalse( compile.equals( md2 ) );
+        assertEquals( "g:a:1::jar:test".hashCode(), md2.hashCode() );
+
+        md2.setArtifactScope( ArtifactScopeEnum.compile );
+
+        assertEquals( compile, md2 );
+        assertEquals( compile.hashCode(), md2.hashCode() );
+    }
+
+    private static ArtifactMetadata scoped( String scope )
+    {
+        ArtifactMetadata md = new ArtifactMetadata( "g:a:1" )
+        {
+            @Override
+            public String toString()
+            {
+                return super.toString() + ":" + getScope();
+            }
+        };
+
+        md.setScope( scope );
+
+        return md;
+    }
+
+    public void testPooledCoordinates()
+    {
+        ArtifactMetadata md1 = new ArtifactMetadata( new String( "org.apache:a:1.0" ) );
+
+        ArtifactMetadata md2 = new ArtifactMetadata();
+        md2.setGroupId( new String( "org.apache" ) );
+        md2.setArtifactId( new String( "a" ) );
+        md2.setVersion( new String( "1.0" ) );
+
+        assertSame( md1.getGroupId(), md2.getGroupId() );
+        assertSame( md1.getArtifactId(), md2.getArtifactId() );
+        assertSame( md1.getVersion(), md2.getVersion() );
+
+        assertEquals( md1, md2 );
+
+        ArtifactCoordinates coord = new ArtifactCoordinates( new String( "org.apache" ), "b", "2.0" );
+
+        assertSame( md1.getGroupId(), coord.getGroupId() );
+    }
 }
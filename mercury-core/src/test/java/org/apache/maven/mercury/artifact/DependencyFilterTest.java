@@ -106,4 +106,51 @@ public class DependencyFilterTest
         assertFalse( a4.allowDependency( new ArtifactMetadata( "c:c:1.0.0" ) ) );
     }
 
+    public void testRangeFilterReset()
+        throws VersionException
+    {
+        ArtifactMetadata md = new ArtifactMetadata( "x:x:1" );
+
+        ArrayList<ArtifactMetadata> ranges = new ArrayList<ArtifactMetadata>();
+        ranges.add( new ArtifactMetadata( "b:b:[1,2)" ) );
+        ranges.add( new ArtifactMetadata( "b:b:[3,4)" ) );
+        md.setExclusions( ranges );
+
+        assertFalse( md.allowDependency( new ArtifactMetadata( "b:b:1.5" ) ) );
+        assertTrue( md.allowDependency( new ArtifactMetadata( "b:b:2.5" ) ) );
+        assertFalse( md.allowDependency( new ArtifactMetadata( "b:b:3.0.1" ) ) );
+
+        // compiled filter is dropped with the new exclusions
+        md.setExclusions( exc );
+
+        assertTrue( md.allowDependency( new ArtifactMetadata( "b:b:1.5" ) ) );
+        assertFalse( md.allowDependency( new ArtifactMetadata( "b:b:2.0.1" ) ) );
+        assertFalse( md.allowDependency( new ArtifactMetadata( "c:c:1.0.0" ) ) );
+    }
+
+    public void testBadRangeFailsPerGA()
+        throws VersionException
+    {
+        ArtifactMetadata md = new ArtifactMetadata( "x:x:1" );
+
+        ArrayList<ArtifactMetadata> ranges = new ArrayList<ArtifactMetadata>();
+        ranges.add( new ArtifactMetadata( "b:b:[1,2)" ) );
+        ranges.add( new ArtifactMetadata( "d:d:[1,2" ) );
+        md.setExclusions( ranges );
+
+        // the bad range is only looked at for d:d
+        assertFalse( md.allowDependency( new ArtifactMetadata( "b:b:1.5" ) ) );
+        assertTrue( md.allowDependency( new ArtifactMetadata( "c:c:1.0.0" ) ) );
+
+        try
+        {
+            md.allowDependency( new ArtifactMetadata( "d:d:1.0" ) );
+            fail( "bad range accepted" );
+        }
+        catch ( VersionException e )
+        {
+            System.out.println( e.getMessage() );
+        }
+    }
+
 }
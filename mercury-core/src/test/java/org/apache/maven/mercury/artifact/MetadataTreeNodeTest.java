@@ -0,0 +1,205 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.maven.mercury.artifact;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Oleg Gusakov
+ * @version $Id$
+ */
+public class MetadataTreeNodeTest
+    extends TestCase
+{
+    MetadataTreeNode root;
+
+    MetadataTreeNode b;
+
+    // ----------------------------------------------------------------------------------------------
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        // a -> b -> c
+        // a -> d -> b -> c, second b is shared
+        ArtifactMetadata bq = new ArtifactMetadata( "b:b:1" );
+        ArtifactMetadata cq = new ArtifactMetadata( "c:c:1" );
+        ArtifactMetadata dq = new ArtifactMetadata( "d:d:1" );
+
+        root = new MetadataTreeNode( new ArtifactMetadata( "a:a:1" ), null, null );
+
+        b = new MetadataTreeNode( bq, root, bq );
+        b.addChild( new MetadataTreeNode( cq, b, cq ) ).addQuery( cq );
+
+        MetadataTreeNode d = new MetadataTreeNode( dq, root, dq );
+        d.addChild( MetadataTreeNode.share( b, d, bq ) ).addQuery( bq );
+
+        root.addChild( b ).addQuery( bq );
+        root.addChild( d ).addQuery( dq );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    private static String dump( MetadataTreeNode node )
+        throws Exception
+    {
+        StringWriter sw = new StringWriter();
+        MetadataTreeNode.showNode( node, 0, sw );
+        return sw.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testCount()
+        throws Exception
+    {
+        assertEquals( 6, root.countNodes() );
+        assertEquals( 4, root.countDistinctNodes() );
+        assertEquals( 4, root.getMaxDepth( 0 ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testSameAsCopy()
+        throws Exception
+    {
+        MetadataTreeNode copy = MetadataTreeNode.deepCopy( root );
+
+        assertEquals( dump( copy ), dump( root ) );
+        assertEquals( 6, copy.countNodes() );
+
+        System.out.println( dump( root ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testPathView()
+        throws Exception
+    {
+        MetadataTreeNode d = root.getChildren().get( 1 );
+        MetadataTreeNode sb = d.getChildren().get( 0 );
+
+        assertTrue( sb.isShared() );
+        assertNotSame( b, sb );
+        assertSame( b.getMd(), sb.getMd() );
+        assertEquals( b.getQueries(), sb.getQueries() );
+        assertSame( d, sb.getParent() );
+        assertEquals( 2, sb.getDepth() );
+
+        MetadataTreeNode sc = sb.getChildren().get( 0 );
+
+        assertSame( sb, sc.getParent() );
+        assertEquals( 3, sc.getDepth() );
+
+        // views are stable, original is intact
+        assertSame( sc, sb.getChildren().get( 0 ) );
+        assertSame( b, b.getChildren().get( 0 ).getParent() );
+
+        // views are numbered as the shared node
+        MetadataTreeNode.reNumber( root, 1 );
+
+        assertEquals( 4, root.countTargets() );
+        assertEquals( 2, sb.getId() );
+        assertEquals( 3, sc.getId() );
+        assertEquals( 3, b.getChildren().get( 0 ).getId() );
+        assertEquals( 4, d.getId() );
+
+        // changed view is not a view any more
+        ArtifactMetadata eq = new ArtifactMetadata( "e:e:1" );
+        sb.addChild( new MetadataTreeNode( eq, sb, eq ) ).addQuery( eq );
+
+        assertFalse( sb.isShared() );
+        assertEquals( 2, sb.getQueries().size() );
+        assertEquals( 1, b.getQueries().size() );
+        // its children are still views
+        assertEquals( 6, root.countTargets() );
+    }
+    // ----------------------------------------------------------------------------------------------
+    public void testCompactStore()
+        throws Exception
+    {
+        CompactMetadataTree store = CompactMetadataTree.compact( root );
+
+        MetadataTreeNode croot = store.getRoot();
+
+        // shared b is stored once, the second path to it is a reference
+        assertEquals( 5, store.size() );
+        assertEquals( 1, store.getReferenceCount() );
+        assertEquals( 4, store.getMetadataCount() );
+        assertEquals( 6, croot.countNodes() );
+        assertEquals( 4, croot.countDistinctNodes() );
+        assertEquals( 4, croot.getMaxDepth( 0 ) );
+        assertEquals( dump( root ), dump( croot ) );
+
+        MetadataTreeNode d = croot.getChildren().get( 1 );
+        MetadataTreeNode cb = d.getChildren().get( 0 );
+        MetadataTreeNode cc = cb.getChildren().get( 0 );
+
+        assertTrue( cb.isShared() );
+        assertTrue( cc.isShared() );
+        assertSame( croot.getChildren().get( 0 ), cb.getTarget() );
+
+        // views are stable
+        assertSame( d, cb.getParent() );
+        assertSame( cb, cc.getParent() );
+        assertSame( cc, cb.getChildren().get( 0 ) );
+        assertSame( b.getMd(), cb.getMd() );
+        assertEquals( b.getQueries(), cb.getQueries() );
+        assertEquals( 3, cc.getDepth() );
+        assertEquals( 2, cb.countNodes() );
+
+        // views are numbered as the shared node
+        MetadataTreeNode.reNumber( croot, 1 );
+
+        assertEquals( 4, croot.countTargets() );
+        assertEquals( 2, cb.getId() );
+        assertEquals( 3, cc.getId() );
+        assertEquals( 4, d.getId() );
+
+        croot.createNames( 0, 0 );
+        assertEquals( cc.getMd().toScopedString() + ":3.0", cc.getName() );
+
+        // child added to an earlier node breaks the pre-order, and is seen on both paths
+        ArtifactMetadata eq = new ArtifactMetadata( "e:e:1" );
+        croot.getChildren().get( 0 ).addChild( new MetadataTreeNode( eq, null, eq ) ).addQuery( eq );
+
+        assertEquals( 8, croot.countNodes() );
+        assertEquals( 5, croot.countDistinctNodes() );
+
+        MetadataTreeNode.reNumber( croot, 1 );
+
+        assertEquals( 4, croot.getChildren().get( 0 ).getChildren().get( 1 ).getId() );
+        assertEquals( 2, cb.getId() );
+        assertEquals( 5, d.getId() );
+
+        // released views are created again, the store is intact
+        store.releaseViews();
+
+        assertNotSame( d, croot.getChildren().get( 1 ) );
+        assertEquals( 5, croot.getChildren().get( 1 ).getId() );
+        assertEquals( 8, croot.countNodes() );
+
+        MetadataTreeNode copy = MetadataTreeNode.deepCopy( croot );
+
+        assertEquals( dump( croot ), dump( copy ) );
+
+        System.out.println( dump( croot ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------------------------
+}
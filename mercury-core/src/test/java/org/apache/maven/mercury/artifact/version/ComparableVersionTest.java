@@ -177,6 +177,21 @@ public class ComparableVersionTest
         checkVersionsOrder( "2.0.1-xyz", "2.0.1-123" );
     }
 
+    public void testBigNumbers()
+    {
+        // around the long range
+        checkVersionsOrder( "1.999999999999999999", "1.9223372036854775807" );
+        checkVersionsOrder( "1.9223372036854775807", "1.9223372036854775808" );
+        checkVersionsOrder( "1.9223372036854775808", "1.100000000000000000000" );
+        checkVersionsOrder( "2.0.0-1", "2.0.0-100000000000000000000" );
+
+        checkVersionsEqual( "1.0000000000000000000001", "1.1" );
+        checkVersionsEqual( "1.000000000000000000000", "1" );
+        checkVersionsEqual( "100000000000000000000.0", "100000000000000000000" );
+
+        assertEquals( "1.9223372036854775808", new ComparableVersion( "1.9223372036854775808" ).toString() );
+    }
+
     public void testLocaleIndependent()
     {
         Locale orig = Locale.getDefault();
@@ -19,6 +19,10 @@ package org.apache.maven.mercury.artifact.version;
  * under the License.
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 /**
@@ -177,6 +181,42 @@ public class DefaultArtifactVersionTest
         assertEquals( v1.hashCode(), v2.hashCode() );
     }
 
+    public void testVersionCache()
+    {
+        VersionCache.clear();
+
+        DefaultArtifactVersion v1 = VersionCache.getVersion( "1.2.3-alpha-1" );
+        DefaultArtifactVersion v2 = VersionCache.getVersion( "1.2.3-alpha-1" );
+
+        assertSame( v1, v2 );
+        assertEquals( "alpha-1", v1.getQualifier() );
+
+        try
+        {
+            v1.parseVersion( "2.0" );
+            fail( "a shared version changed" );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            System.out.println( e.getMessage() );
+        }
+
+        assertEquals( "alpha-1", VersionCache.getVersion( "1.2.3-alpha-1" ).getQualifier() );
+
+        List<String> versions = new ArrayList<String>( 500 );
+
+        for ( int i = 0; i < 500; i++ )
+            versions.add( "1." + ( ( i * 7 ) % 500 ) );
+
+        Collections.sort( versions, new VersionComparator() );
+
+        assertEquals( "1.0", versions.get( 0 ) );
+        assertEquals( "1.499", versions.get( 499 ) );
+
+        // every string parsed once
+        assertEquals( 501, VersionCache.size() );
+    }
+
     private void assertVersionOlder( String left, String right )
     {
         assertTrue( left + " should be older than " + right,
@@ -18,21 +18,41 @@
  */
 package org.apache.maven.mercury.metadata;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.StringWriter;
+import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
+import org.apache.maven.mercury.artifact.ArtifactQueryList;
 import org.apache.maven.mercury.artifact.ArtifactScopeEnum;
+import org.apache.maven.mercury.artifact.CompactMetadataTree;
+import org.apache.maven.mercury.artifact.DefaultArtifact;
 import org.apache.maven.mercury.artifact.MetadataTreeNode;
 import org.apache.maven.mercury.builder.api.DependencyProcessor;
+import org.apache.maven.mercury.crypto.basic.ChecksumCalculator;
 import org.apache.maven.mercury.logging.IMercuryLogger;
 import org.apache.maven.mercury.logging.MercuryLoggerManager;
+import org.apache.maven.mercury.repository.api.ArtifactResults;
 import org.apache.maven.mercury.repository.api.Repository;
+import org.apache.maven.mercury.repository.api.RepositoryReader;
+import org.apache.maven.mercury.repository.api.RepositoryUpdateIntervalPolicy;
 import org.apache.maven.mercury.repository.local.m2.LocalRepositoryM2;
 import org.apache.maven.mercury.repository.local.m2.MetadataProcessorMock;
+import org.apache.maven.mercury.repository.remote.m2.RemoteRepositoryM2;
+import org.apache.maven.mercury.repository.virtual.DependencyGraphCache;
+import org.apache.maven.mercury.repository.virtual.VirtualRepositoryReader;
+import org.apache.maven.mercury.transport.api.Server;
+import org.apache.maven.mercury.util.FileUtil;
 
 /**
  * @author Oleg Gusakov
@@ -317,5 +337,736 @@ public class DependencyTreeBuilderTest
         // assertTrue( "no c:c:2 in the result", assertHasArtifact( res, "c:c:2" ) );
     }
     // ----------------------------------------------------------------------------------------------
+    public void testCompactTree()
+        throws Exception
+    {
+        DependencyBuilder cmt = new DependencyTreeBuilder( reps, null, null, null );
+        cmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_COMPACT_TREE, "true" );
+
+        String[] gavs = new String[] { "a:a:4", "a:a:3", "a:a:2" };
+
+        for ( String gav : gavs )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( gav );
+
+            MetadataTreeNode tree = mt.buildTree( md, ArtifactScopeEnum.compile );
+            MetadataTreeNode compact = cmt.buildTree( md, ArtifactScopeEnum.compile );
+
+            assertTrue( compact instanceof CompactMetadataTree.Node );
+            assertEquals( tree.countNodes(), compact.countNodes() );
+            assertEquals( tree.countDistinctNodes(), compact.countDistinctNodes() );
+            assertEquals( tree.countTargets(), compact.countTargets() );
+
+            // built in the store, shared subtrees are not copied
+            CompactMetadataTree store = ( (CompactMetadataTree.Node) compact ).getTree();
+            assertEquals( tree.countTargets() + store.getReferenceCount(), store.size() );
+
+            List<ArtifactMetadata> expected = mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( gav ), null, null );
+            List<ArtifactMetadata> res = cmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( gav ), null, null );
+
+            System.out.println( "testCompactTree: " + gav + " -> " + res + ", " + store.size() + " stored nodes, "
+                + store.getReferenceCount() + " references" );
+
+            assertEquals( sorted( expected ), sorted( res ) );
+        }
+
+        // batch roots share subtrees - they are built into one store, as references
+        List<ArtifactQueryList> roots = new ArrayList<ArtifactQueryList>( 2 );
+        roots.add( new ArtifactQueryList( "a:a:4" ) );
+        roots.add( new ArtifactQueryList( "a:a:4", "c:c:2" ) );
+
+        for ( boolean jointly : new boolean[] { false, true } )
+        {
+            List<List<ArtifactMetadata>> expected =
+                mt.resolveConflicts( ArtifactScopeEnum.compile, roots, null, null, jointly );
+            List<List<ArtifactMetadata>> res =
+                cmt.resolveConflicts( ArtifactScopeEnum.compile, roots, null, null, jointly );
+
+            System.out.println( "testCompactTree: batch, jointly=" + jointly + " -> " + res );
+
+            for ( int i = 0; i < roots.size(); i++ )
+                assertEquals( sorted( expected.get( i ) ), sorted( res.get( i ) ) );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testPruneTree()
+        throws Exception
+    {
+        DependencyBuilder pmt = new DependencyTreeBuilder( reps, null, null, null );
+        pmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_PRUNE_TREE, "true" );
+
+        // n:r:1 -> n:b:1, n:a:1 -> n:b:2 -> n:c:2, n:c:1: n:b:1 is committed closer to the root, n:b:2 is not expanded
+        ArtifactMetadata r1 = new ArtifactMetadata( "n:r:1" );
+
+        assertEquals( 6, mt.buildTree( r1, ArtifactScopeEnum.compile ).countNodes() );
+        assertEquals( 4, pmt.buildTree( r1, ArtifactScopeEnum.compile ).countNodes() );
+
+        // n:r:2 -> n:b:1, n:a:2 -> n:b:3 -> n:d:1: nothing else brings n:d, the dropped n:b:3 is added back
+        ArtifactMetadata r2 = new ArtifactMetadata( "n:r:2" );
+
+        assertEquals( 5, mt.buildTree( r2, ArtifactScopeEnum.compile ).countNodes() );
+        assertEquals( 5, pmt.buildTree( r2, ArtifactScopeEnum.compile ).countNodes() );
+
+        // p:p:1 -> b:b:1, a:a:3 -> b:b:2, a:a:3 has a range - not for nearest wins, the dropped versions are added back
+        ArtifactMetadata p1 = new ArtifactMetadata( "p:p:1" );
+
+        assertEquals( 6, mt.buildTree( p1, ArtifactScopeEnum.compile ).countNodes() );
+        assertEquals( 6, pmt.buildTree( p1, ArtifactScopeEnum.compile ).countNodes() );
+
+        String[][] queries =
+            new String[][] { { "n:r:1" }, { "n:r:2" }, { "p:p:1" }, { "b:b:1", "a:a:3" },
+                { "a:a:4" }, { "a:a:3" }, { "a:a:2" }, { "a:a:4", "c:c:2" } };
+
+        for ( String[] gavs : queries )
+        {
+            List<ArtifactMetadata> expected = mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( gavs ), null, null );
+            List<ArtifactMetadata> res = pmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( gavs ), null, null );
+
+            System.out.println( "testPruneTree: " + Arrays.asList( gavs ) + " -> " + res );
+
+            assertEquals( sorted( expected ), sorted( res ) );
+        }
+
+        assertTrue( assertHasArtifact( pmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "n:r:2" ), null, null ), "n:d:1" ) );
+
+        List<ArtifactQueryList> roots = new ArrayList<ArtifactQueryList>( 3 );
+        roots.add( new ArtifactQueryList( "n:r:1" ) );
+        roots.add( new ArtifactQueryList( "n:r:2" ) );
+        roots.add( new ArtifactQueryList( "p:p:1" ) );
+
+        for ( int threads : new int[] { 0, 4 } )
+        {
+            DependencyBuilder bmt = new DependencyTreeBuilder( reps, null, null, null );
+            bmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_PRUNE_TREE, "true" );
+            bmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_TREE_BUILD_THREADS, "" + threads );
+
+            for ( boolean jointly : new boolean[] { false, true } )
+            {
+                List<List<ArtifactMetadata>> expected = mt.resolveConflicts( ArtifactScopeEnum.compile, roots, null, null, jointly );
+                List<List<ArtifactMetadata>> res = bmt.resolveConflicts( ArtifactScopeEnum.compile, roots, null, null, jointly );
+
+                for ( int i = 0; i < roots.size(); i++ )
+                    assertEquals( "different classpath for root " + i + ", threads " + threads + ", jointly " + jointly,
+                                  sorted( expected.get( i ) ), sorted( res.get( i ) ) );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testPruneTreeScopesAtOnce()
+        throws Exception
+    {
+        DependencyBuilder pmt = new DependencyTreeBuilder( reps, null, null, null );
+        pmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_PRUNE_TREE, "true" );
+
+        List<ArtifactScopeEnum> scopes =
+            Arrays.asList( new ArtifactScopeEnum[] { ArtifactScopeEnum.compile, ArtifactScopeEnum.test } );
+
+        // n:r:3 -> n:b:2 (test), n:a:3 -> n:b:1: n:b:1 must not lose to the test scoped n:b:2 in compile scope
+        Map<ArtifactScopeEnum, List<ArtifactMetadata>> res =
+            pmt.resolveConflicts( scopes, new ArtifactQueryList( "n:r:3" ), null, null );
+
+        System.out.println( "testPruneTreeScopesAtOnce: " + res );
+
+        for ( ArtifactScopeEnum scope : scopes )
+        {
+            List<ArtifactMetadata> expected = mt.resolveConflicts( scope, new ArtifactQueryList( "n:r:3" ), null, null );
+
+            assertEquals( "different classpath in scope " + scope, sorted( expected ), sorted( res.get( scope ) ) );
+        }
+
+        assertTrue( assertHasArtifact( res.get( ArtifactScopeEnum.compile ), "n:b:1" ) );
+        assertTrue( assertHasArtifact( res.get( ArtifactScopeEnum.test ), "n:b:2" ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testBatchResolution()
+        throws Exception
+    {
+        String[][] queries = new String[][] { { "a:a:4" }, { "a:a:2" }, { "a:a:3" }, { "a:a:4", "c:c:2" } };
+
+        List<ArtifactQueryList> roots = new ArrayList<ArtifactQueryList>( queries.length );
+
+        for ( String[] gavs : queries )
+            roots.add( new ArtifactQueryList( gavs ) );
+
+        for ( int threads : new int[] { 0, 4 } )
+        {
+            DependencyBuilder bmt = new DependencyTreeBuilder( reps, null, null, null );
+            bmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_TREE_BUILD_THREADS, "" + threads );
+
+            List<List<ArtifactMetadata>> res =
+                bmt.resolveConflicts( ArtifactScopeEnum.compile, roots, null, null, false );
+
+            assertEquals( roots.size(), res.size() );
+
+            for ( int i = 0; i < queries.length; i++ )
+            {
+                DependencyBuilder single = new DependencyTreeBuilder( reps, null, null, null );
+
+                List<ArtifactMetadata> expected =
+                    single.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( queries[i] ), null,
+                                             null );
+
+                assertEquals( "different classpath for root " + i + ", threads " + threads, sorted( expected ),
+                              sorted( res.get( i ) ) );
+            }
+        }
+
+        // solved together, a:a:4 has to agree with c:c:2 of the other root
+        List<ArtifactQueryList> aligned = new ArrayList<ArtifactQueryList>( 2 );
+        aligned.add( new ArtifactQueryList( "a:a:4" ) );
+        aligned.add( new ArtifactQueryList( "c:c:2" ) );
+
+        List<List<ArtifactMetadata>> separate = mt.resolveConflicts( ArtifactScopeEnum.compile, aligned, null, null, false );
+        List<List<ArtifactMetadata>> joint = mt.resolveConflicts( ArtifactScopeEnum.compile, aligned, null, null, true );
+
+        System.out.println( "testBatchResolution: separate " + separate + ", joint " + joint );
+
+        assertTrue( assertHasArtifact( separate.get( 0 ), "c:c:3" ) );
+        assertTrue( assertHasArtifact( joint.get( 0 ), "c:c:2" ) );
+        assertTrue( assertHasArtifact( joint.get( 0 ), "a:a:4" ) );
+        assertEquals( 1, joint.get( 1 ).size() );
+        assertTrue( assertHasArtifact( joint.get( 1 ), "c:c:2" ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    /**
+     * repository with the same id as the test one, but nothing in it
+     */
+    private static List<Repository> createEmptyRepos()
+        throws Exception
+    {
+        File emptyDir = new File( "./target/emptyRepo" );
+        FileUtil.delete( emptyDir );
+        emptyDir.mkdirs();
+
+        List<Repository> emptyReps = new ArrayList<Repository>( 1 );
+        emptyReps.add( new LocalRepositoryM2( "local", emptyDir, new MetadataProcessorMock() ) );
+
+        return emptyReps;
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testDependencyLock()
+        throws Exception
+    {
+        DependencyLock lock = new DependencyLock();
+        mt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, lock );
+
+        List<ArtifactMetadata> res =
+            mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:4" ), null, null );
+        MetadataTreeNode tree =
+            mt.resolveConflictsAsTree( ArtifactScopeEnum.test, new ArtifactQueryList( "a:a:4" ), null, null );
+
+        // other artifacts in the same scope - one more request
+        List<ArtifactMetadata> other =
+            mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "c:c:2" ), null, null );
+
+        assertTrue( lock.isLocked( ArtifactScopeEnum.compile ) );
+        assertTrue( lock.isLocked( ArtifactScopeEnum.test ) );
+        assertFalse( lock.isLocked( ArtifactScopeEnum.runtime ) );
+
+        // there are no binaries in the test repository
+        File bin = new File( "./target/lock/bin.jar" );
+        FileUtil.writeRawData( bin, "binary" );
+
+        ArtifactResults ar = new ArtifactResults();
+        for ( ArtifactMetadata md : res )
+        {
+            DefaultArtifact a = new DefaultArtifact( new ArtifactMetadata( md.toString() ) );
+            a.setFile( bin );
+            ar.add( md, a );
+        }
+        lock.verifyChecksums( ar.getResults() );
+
+        File lockFile = new File( "./target/lock/mercury.lock" );
+        lock.write( lockFile );
+
+        System.out.println( "testDependencyLock:\n" + FileUtil.readRawDataAsString( lockFile ) );
+
+        DependencyLock replayed = DependencyLock.read( lockFile );
+
+        // nothing can be read from the empty repository
+        DependencyBuilder rmt = new DependencyTreeBuilder( createEmptyRepos(), null, null, null );
+        rmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, replayed );
+
+        List<ArtifactMetadata> cp =
+            rmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:4" ), null, null );
+        assertEquals( sorted( res ), sorted( cp ) );
+        assertNotNull( cp.get( 0 ).getTracker() );
+
+        List<ArtifactMetadata> otherCp =
+            rmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "c:c:2" ), null, null );
+        assertEquals( sorted( other ), sorted( otherCp ) );
+        assertNotNull( otherCp.get( 0 ).getTracker() );
+
+        MetadataTreeNode flat =
+            rmt.resolveConflictsAsTree( ArtifactScopeEnum.test, new ArtifactQueryList( "a:a:4" ), null, null );
+        assertEquals( tree.getMd().toString(), flat.getMd().toString() );
+        assertEquals( tree.countDistinctNodes(), flat.countNodes() );
+
+        replayed.verifyChecksums( ar.getResults() );
+
+        // different request of the same artifacts
+        try
+        {
+            rmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:3" ), null, null );
+            fail( "stale lock replayed" );
+        }
+        catch ( MetadataTreeException e )
+        {
+        }
+
+        // different binary
+        FileUtil.writeRawData( bin, "changed binary" );
+        try
+        {
+            replayed.verifyChecksums( ar.getResults() );
+            fail( "changed binary passed" );
+        }
+        catch ( MetadataTreeException e )
+        {
+        }
+
+        // binary in the local repository - checksum is taken when locking
+        File localBin = new File( repoDir, "a/a/4/a-4.jar" );
+        FileUtil.writeRawData( localBin, "binary" );
+
+        try
+        {
+            DependencyLock locked = new DependencyLock();
+            DependencyBuilder lmt = new DependencyTreeBuilder( reps, null, null, null );
+            lmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, locked );
+            lmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:4" ), null, null );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            locked.write( out );
+            assertTrue( out.toString().indexOf( a4Sha1() ) > 0 );
+
+            // the changed bin.jar was never verified against this lock, it still fails
+            try
+            {
+                locked.verifyChecksums( ar.getResults() );
+                fail( "changed binary passed the checksum taken at lock time" );
+            }
+            catch ( MetadataTreeException e )
+            {
+            }
+        }
+        finally
+        {
+            localBin.delete();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    private static String a4Sha1()
+        throws Exception
+    {
+        return ChecksumCalculator.encodeToAsciiHex( MessageDigest.getInstance( "SHA-1" ).digest( "binary".getBytes( "utf-8" ) ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testResolutionCache()
+        throws Exception
+    {
+        File cacheDir = new File( repoDir, VirtualRepositoryReader.METADATA_CACHE_DIR + "/"
+            + ResolutionCache.RESOLUTION_CACHE_DIR );
+        FileUtil.delete( cacheDir );
+
+        ResolutionCache cache = ResolutionCache.getCache( repoDir );
+        assertTrue( cache.isPersistent() );
+
+        mt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE, cache );
+
+        List<ArtifactMetadata> res =
+            mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:4" ), null, null );
+        assertEquals( 1, cache.size() );
+        assertTrue( cacheDir.exists() );
+
+        // same repository id, but nothing in it - only the cache can answer
+        List<Repository> emptyReps = createEmptyRepos();
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            DependencyBuilder cmt = new DependencyTreeBuilder( emptyReps, null, null, null );
+            cmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE, cache );
+
+            List<ArtifactMetadata> cached =
+                cmt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( "a:a:4" ), null, null );
+
+            System.out.println( "testResolutionCache, pass " + i + ": " + cached );
+
+            assertEquals( "different classpath, pass " + i, sorted( res ), sorted( cached ) );
+            assertNotNull( cached.get( 0 ).getTracker() );
+
+            // second pass reads the cache from disk
+            cache.clear();
+        }
+
+        // different scope - different request
+        DependencyBuilder cmt = new DependencyTreeBuilder( emptyReps, null, null, null );
+        cmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE, cache );
+        List<ArtifactMetadata> other =
+            cmt.resolveConflicts( ArtifactScopeEnum.test, new ArtifactQueryList( "a:a:4" ), null, null );
+        System.out.println( "testResolutionCache, test scope: " + other );
+        assertTrue( "test scope should not come from the cache", other == null
+            || !sorted( res ).equals( sorted( other ) ) );
+
+        // size bound
+        ResolutionCache small = new ResolutionCache( 2 );
+        mt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE, small );
+
+        for ( String gav : new String[] { "a:a:2", "a:a:3", "a:a:4" } )
+            mt.resolveConflicts( ArtifactScopeEnum.compile, new ArtifactQueryList( gav ), null, null );
+
+        assertEquals( 2, small.size() );
+
+        // comparator settings and the whole management entry are part of the key
+        ArtifactQueryList q = new ArtifactQueryList( "a:a:4" );
+        List<Object> newer = new ArrayList<Object>();
+        newer.add( new ClassicVersionComparator() );
+        List<Object> older = new ArrayList<Object>();
+        older.add( new ClassicVersionComparator( false ) );
+
+        assertFalse( ResolutionCache.fingerprint( ArtifactScopeEnum.compile, q, null, null, null, reps, newer )
+                     .equals( ResolutionCache.fingerprint( ArtifactScopeEnum.compile, q, null, null, null, reps, older ) ) );
+
+        Map<String, ArtifactMetadata> managed = new HashMap<String, ArtifactMetadata>();
+        managed.put( "c:c:null", new ArtifactMetadata( "c:c:2" ) );
+        String plain = ResolutionCache.fingerprint( ArtifactScopeEnum.compile, q, null, null, managed, reps, newer );
+
+        ArtifactMetadata excluding = new ArtifactMetadata( "c:c:2" );
+        excluding.setExclusions( Arrays.asList( new ArtifactMetadata[] { new ArtifactMetadata( "b:b:1" ) } ) );
+        managed.put( "c:c:null", excluding );
+
+        assertFalse( plain.equals( ResolutionCache.fingerprint( ArtifactScopeEnum.compile, q, null, null, managed,
+                                                                reps, newer ) ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testResolutionCacheExpiry()
+        throws Exception
+    {
+        RemoteRepositoryM2 remote =
+            new RemoteRepositoryM2( new Server( "remote", new URL( "http://localhost/repo" ) ), processor );
+
+        List<Repository> remoteReps = new ArrayList<Repository>( 1 );
+        remoteReps.add( remote );
+
+        ResolutionCache cache = new ResolutionCache();
+
+        List<ArtifactMetadata> cp = new ArrayList<ArtifactMetadata>( 2 );
+        cp.add( new ArtifactMetadata( "a:a:4" ) );
+        cp.add( new ArtifactMetadata( "b:b:1" ) );
+
+        cache.save( "key", cp );
+
+        remote.setUpdatePolicy( RepositoryUpdateIntervalPolicy.UPDATE_POLICY_DAILY );
+        assertNotNull( "saved just now, not a day ago", cache.find( "key", remoteReps, null ) );
+
+        remote.setUpdatePolicy( new RepositoryUpdateIntervalPolicy().setInterval( 1000L ) );
+        assertNotNull( "saved just now, not a second ago", cache.find( "key", remoteReps, null ) );
+
+        Thread.sleep( 2100L );
+
+        assertNull( "saved more than a second ago", cache.find( "key", remoteReps, null ) );
+        assertEquals( 0, cache.size() );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    private static List<String> sorted( List<ArtifactMetadata> res )
+    {
+        if ( res == null )
+            return null;
+
+        List<String> gavs = new ArrayList<String>( res.size() );
+
+        for ( ArtifactMetadata md : res )
+            gavs.add( md.toString() );
+
+        Collections.sort( gavs );
+
+        return gavs;
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testResolveScopesAtOnce()
+        throws Exception
+    {
+        List<ArtifactScopeEnum> scopes =
+            Arrays.asList( new ArtifactScopeEnum[] { ArtifactScopeEnum.compile, ArtifactScopeEnum.test,
+                ArtifactScopeEnum.runtime, ArtifactScopeEnum.provided } );
+
+        String[][] queries = new String[][] { { "a:a:4" }, { "a:a:4", "c:c:2" } };
+
+        for ( String[] gavs : queries )
+        {
+            List<ArtifactMetadata> mds = new ArrayList<ArtifactMetadata>( gavs.length );
+
+            for ( String gav : gavs )
+                mds.add( new ArtifactMetadata( gav ) );
+
+            Map<ArtifactScopeEnum, List<ArtifactMetadata>> res =
+                mt.resolveConflicts( scopes, new ArtifactQueryList( mds ), null, null );
+
+            assertNotNull( res );
+            assertEquals( scopes, new ArrayList<ArtifactScopeEnum>( res.keySet() ) );
+
+            System.out.println( "testResolveScopesAtOnce " + mds + ": " + res );
+
+            for ( ArtifactScopeEnum scope : scopes )
+            {
+                DependencyBuilder single = new DependencyTreeBuilder( reps, null, null, null );
+
+                List<ArtifactMetadata> expected = single.resolveConflicts( scope, new ArtifactQueryList( mds ), null, null );
+
+                assertEquals( "different classpath for " + mds + " in scope " + scope, sorted( expected ),
+                              sorted( res.get( scope ) ) );
+            }
+        }
+
+        // a:a:4 has a test dependency on b:b:2
+        Map<ArtifactScopeEnum, List<ArtifactMetadata>> res =
+            mt.resolveConflicts( scopes, new ArtifactQueryList( "a:a:4" ), null, null );
+
+        assertFalse( sorted( res.get( ArtifactScopeEnum.compile ) ).equals( sorted( res.get( ArtifactScopeEnum.test ) ) ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    //       b:b:1 - d:d:1 - e:e:1
+    //      /
+    // a:a:1 - c:c:1 (test)
+    //      \
+    //       d:d:1 - a view of the one under b:b:1
+    // ----------------------------------------------------------------------------------------------
+    public void testFilterScopeKeepsViews()
+        throws Exception
+    {
+        ArtifactMetadata a = new ArtifactMetadata( "t:a:1" );
+        ArtifactMetadata b = new ArtifactMetadata( "t:b:1" );
+        ArtifactMetadata c = new ArtifactMetadata( "t:c:1" );
+        ArtifactMetadata d = new ArtifactMetadata( "t:d:1" );
+        ArtifactMetadata e = new ArtifactMetadata( "t:e:1" );
+
+        c.setArtifactScope( ArtifactScopeEnum.test );
+
+        MetadataTreeNode na = new MetadataTreeNode( a, null, null ).addQuery( b ).addQuery( c ).addQuery( d );
+        MetadataTreeNode nb = new MetadataTreeNode( b, na, b ).addQuery( d );
+        MetadataTreeNode nd = new MetadataTreeNode( d, nb, d ).addQuery( e );
+
+        nd.addChild( new MetadataTreeNode( e, nd, e ) );
+        nb.addChild( nd );
+        na.addChild( nb ).addChild( new MetadataTreeNode( c, na, c ) ).addChild( MetadataTreeNode.share( nd, na, d ) );
+
+        MetadataTreeNode compile = DependencyTreeBuilder.filterScope( na, ArtifactScopeEnum.compile );
+
+        assertEquals( 6, compile.countNodes() );
+        assertEquals( 4, compile.countTargets() );
+        assertEquals( 2, compile.getQueries().size() );
+
+        List<MetadataTreeNode> kids = compile.getChildren();
+
+        assertEquals( 2, kids.size() );
+
+        // the copy of the view is a view of the copied d:d:1
+        MetadataTreeNode dView = kids.get( 1 );
+
+        assertTrue( dView.isShared() );
+        assertSame( kids.get( 0 ).getChildren().get( 0 ), dView.getTarget() );
+        assertSame( compile, dView.getParent() );
+
+        MetadataTreeNode test = DependencyTreeBuilder.filterScope( na, ArtifactScopeEnum.test );
+
+        assertEquals( 7, test.countNodes() );
+        assertEquals( 5, test.countTargets() );
+
+        // the source tree is as it was
+        assertEquals( 7, na.countNodes() );
+        assertEquals( 5, na.countTargets() );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    private static String dump( MetadataTreeNode root )
+        throws Exception
+    {
+        StringWriter sw = new StringWriter();
+        MetadataTreeNode.showNode( root, 0, sw );
+        return sw.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testParallelBuildTree()
+        throws Exception
+    {
+        DependencyBuilder pmt = new DependencyTreeBuilder( reps, null, null, null );
+        pmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_TREE_BUILD_THREADS, "4" );
+
+        for ( String gav : new String[] { "a:a:2", "a:a:3", "a:a:4" } )
+        {
+            MetadataTreeNode seq = mt.buildTree( new ArtifactMetadata( gav ), ArtifactScopeEnum.compile );
+            MetadataTreeNode par = pmt.buildTree( new ArtifactMetadata( gav ), ArtifactScopeEnum.compile );
+
+            assertEquals( "different tree for " + gav, dump( seq ), dump( par ) );
+            assertEquals( "different resolution for " + gav, mt.resolveConflicts( seq ).toString(),
+                          pmt.resolveConflicts( par ).toString() );
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testParallelBuildTreeManaged()
+        throws Exception
+    {
+        ArtifactMetadata managed = new ArtifactMetadata( "a:a:3" );
+        List<ArtifactMetadata> exclusions = new ArrayList<ArtifactMetadata>();
+        exclusions.add( new ArtifactMetadata( "c:c:3" ) );
+        managed.setExclusions( exclusions );
+
+        Map<String, ArtifactMetadata> versionMap = new HashMap<String, ArtifactMetadata>();
+        // test POMs do not declare dependency types
+        versionMap.put( "a:a:null", managed );
+
+        DependencyBuilder smt = new DependencyTreeBuilder( reps, null, null, null );
+        smt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, versionMap );
+
+        DependencyBuilder pmt = new DependencyTreeBuilder( reps, null, null, null );
+        pmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, versionMap );
+        pmt.setOption( DependencyBuilder.SYSTEM_PROPERTY_TREE_BUILD_THREADS, "4" );
+
+        MetadataTreeNode seq = smt.buildTree( new ArtifactMetadata( "p:p:1" ), ArtifactScopeEnum.compile );
+        MetadataTreeNode par = pmt.buildTree( new ArtifactMetadata( "p:p:1" ), ArtifactScopeEnum.compile );
+
+        assertEquals( dump( seq ), dump( par ) );
+
+        List<ArtifactMetadata> res = pmt.resolveConflicts( par );
+
+        System.out.println( "testParallelBuildTreeManaged: " + res );
+
+        assertTrue( assertHasArtifact( res, "a:a:3" ) );
+        assertFalse( assertHasArtifact( res, "c:c:3" ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testBatchReadDependencies()
+        throws Exception
+    {
+        VirtualRepositoryReader vr = new VirtualRepositoryReader( reps );
+
+        List<ArtifactMetadata> query = new ArrayList<ArtifactMetadata>();
+        for ( String gav : new String[] { "a:a:2", "b:b:2", "c:c:3", "x:x:1" } )
+            query.add( new ArtifactMetadata( gav ) );
+
+        List<ArtifactMetadata> res = vr.readDependencies( query );
+
+        assertNotNull( res );
+        assertEquals( query.size(), res.size() );
+
+        for ( int i = 0; i < query.size(); i++ )
+        {
+            ArtifactMetadata single = vr.readDependencies( query.get( i ) );
+
+            assertEquals( query.get( i ), res.get( i ) );
+            assertEquals( "different dependencies for " + single, String.valueOf( single.getDependencies() ),
+                          String.valueOf( res.get( i ).getDependencies() ) );
+            assertEquals( single.getTracker(), res.get( i ).getTracker() );
+        }
+
+        assertNotNull( res.get( 0 ).getDependencies() );
+        assertNull( res.get( 3 ).getDependencies() );
+
+        System.out.println( "testBatchReadDependencies: " + res );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testGraphCache()
+        throws Exception
+    {
+        File cacheDir = new File( repoDir, VirtualRepositoryReader.METADATA_CACHE_DIR + "/"
+            + DependencyGraphCache.GRAPH_CACHE_DIR );
+        FileUtil.delete( cacheDir );
+
+        DependencyGraphCache cache = DependencyGraphCache.getCache( repoDir );
+        assertTrue( cache.isPersistent() );
+
+        String seq = dump( mt.buildTree( new ArtifactMetadata( "a:a:4" ), ArtifactScopeEnum.compile ) );
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            DependencyBuilder cmt = new DependencyTreeBuilder( reps, null, null, null );
+            cmt.setOption( DependencyBuilder.CONFIGURATION_PROPERTY_GRAPH_CACHE, cache );
+
+            assertEquals( "different tree, pass " + i, seq,
+                          dump( cmt.buildTree( new ArtifactMetadata( "a:a:4" ), ArtifactScopeEnum.compile ) ) );
+
+            // second pass reads the cache from disk
+            cache.clear();
+        }
+
+        assertTrue( cacheDir.exists() );
+
+        VirtualRepositoryReader vr = new VirtualRepositoryReader( reps );
+        vr.init();
+
+        ArtifactMetadata md = vr.readDependencies( new ArtifactMetadata( "a:a:4" ) );
+        ArtifactMetadata cached = cache.findDependencies( new ArtifactMetadata( "a:a:4" ), localRepo.getReader() );
+
+        assertNotNull( cached );
+        assertEquals( md.getDependencies().toString(), cached.getDependencies().toString() );
+        assertNull( cache.findDependencies( new ArtifactMetadata( "x:x:1" ), localRepo.getReader() ) );
+
+        // same release installed again
+        File pom = new File( repoDir, "a/a/4/a-4.pom" );
+        long modified = pom.lastModified();
+
+        try
+        {
+            assertTrue( pom.setLastModified( modified + 10000L ) );
+
+            assertNull( cache.findDependencies( new ArtifactMetadata( "a:a:4" ), localRepo.getReader() ) );
+        }
+        finally
+        {
+            pom.setLastModified( modified );
+        }
+
+        // no repository - no entry
+        File deps = new File( cacheDir, "a/a/4/" + MetadataProcessorMock.class.getName() + ".jar.deps" );
+        assertTrue( deps.exists() );
+
+        FileUtil.writeRawData( deps, "timestamp=0\ncount=0\n" );
+        cache.clear();
+
+        assertNull( cache.findDependencies( new ArtifactMetadata( "a:a:4" ), localRepo.getReader() ) );
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    public void testGraphCacheExpiry()
+        throws Exception
+    {
+        RemoteRepositoryM2 remote =
+            new RemoteRepositoryM2( new Server( "remote", new URL( "http://localhost/repo" ) ), processor );
+
+        RepositoryReader rr = remote.getReader();
+
+        DependencyGraphCache cache = new DependencyGraphCache();
+
+        ArtifactMetadata md = new ArtifactMetadata( "a:a:4" );
+        md.setDependencies( Arrays.asList( new ArtifactMetadata[] { new ArtifactMetadata( "c:c:3" ) } ) );
+
+        cache.saveDependencies( md, rr );
+
+        remote.setUpdatePolicy( RepositoryUpdateIntervalPolicy.UPDATE_POLICY_DAILY );
+        assertNotNull( "read just now, not a day ago", cache.findDependencies( new ArtifactMetadata( "a:a:4" ), rr ) );
+
+        remote.setUpdatePolicy( new RepositoryUpdateIntervalPolicy().setInterval( 1000L ) );
+        assertNotNull( "read just now, not a second ago", cache.findDependencies( new ArtifactMetadata( "a:a:4" ), rr ) );
+
+        Thread.sleep( 2100L );
+
+        assertNull( "read more than a second ago", cache.findDependencies( new ArtifactMetadata( "a:a:4" ), rr ) );
+    }
+    // ----------------------------------------------------------------------------------------------
     // ----------------------------------------------------------------------------------------------
 }
@@ -19,18 +19,31 @@
 package org.apache.maven.mercury.metadata.sat;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
 import org.apache.maven.mercury.artifact.ArtifactMetadata;
 import org.apache.maven.mercury.artifact.MetadataTreeNode;
 import org.apache.maven.mercury.metadata.ClassicDepthComparator;
 import org.apache.maven.mercury.metadata.ClassicVersionComparator;
+import org.sat4j.core.Vec;
+import org.sat4j.core.VecInt;
+import org.sat4j.pb.IPBSolver;
+import org.sat4j.pb.ObjectiveFunction;
+import org.sat4j.specs.IVec;
+import org.sat4j.specs.IVecInt;
 
 /**
  * @author <a href="oleg@codehaus.org">Oleg Gusakov</a>
@@ -192,6 +205,86 @@ public class DefaultSatSolverTest
         assertEquals( "bad second element's depth", 2, second.getDepth() );
     }
 
+    // ----------------------------------------------------------------------
+    public void testSortLargeBucket()
+    {
+        title = "testSortLargeBucket";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        MetadataTreeNode root = new MetadataTreeNode( new ArtifactMetadata( "a:a:1" ), null, null );
+        MetadataTreeNode deep = new MetadataTreeNode( new ArtifactMetadata( "d:d:1" ), root, null );
+        root.addChild( deep );
+
+        // what an open range brings: hundreds of versions, on two levels, with duplicates
+        int versions = 500;
+
+        for ( int i = 0; i < versions; i++ )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( "b:b:1." + ( ( i * 7 ) % versions ) );
+
+            root.addChild( new MetadataTreeNode( md, root, md ) );
+            deep.addChild( new MetadataTreeNode( md, deep, md ) );
+            root.addChild( new MetadataTreeNode( md, root, md ) );
+        }
+
+        List<Comparator<MetadataTreeNode>> comparators = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        comparators.add( new ClassicDepthComparator() );
+        comparators.add( new ClassicVersionComparator() );
+
+        Map<String, List<MetadataTreeNode>> buckets = new HashMap<String, List<MetadataTreeNode>>( 4 );
+        DefaultSatSolver.fillBuckets( buckets, root );
+
+        long start = System.currentTimeMillis();
+
+        DefaultSatSolver.sortBuckets( buckets, comparators );
+
+        System.out.println( "sorted in " + ( System.currentTimeMillis() - start ) + " millis" );
+
+        List<MetadataTreeNode> bucket = buckets.get( "b:b" );
+
+        // deeper duplicates of the same GAV lose to the closer ones
+        assertEquals( versions, bucket.size() );
+
+        for ( int i = 0; i < versions; i++ )
+        {
+            MetadataTreeNode n = bucket.get( i );
+
+            assertEquals( 1, n.getDepth() );
+            assertEquals( "1." + ( versions - 1 - i ), n.getMd().getVersion() );
+        }
+
+        // a comparator, the key does not know about, still decides the ties
+        comparators.add( 0, new Comparator<MetadataTreeNode>()
+        {
+            public int compare( MetadataTreeNode n1, MetadataTreeNode n2 )
+            {
+                boolean even1 = n1.getMd().getVersion().hashCode() % 2 == 0;
+                boolean even2 = n2.getMd().getVersion().hashCode() % 2 == 0;
+
+                return even1 == even2 ? 0 : ( even1 ? 1 : -1 );
+            }
+        } );
+
+        buckets.clear();
+        DefaultSatSolver.fillBuckets( buckets, root );
+        DefaultSatSolver.sortBuckets( buckets, comparators );
+
+        bucket = buckets.get( "b:b" );
+
+        assertEquals( versions, bucket.size() );
+
+        for ( int i = 1; i < versions; i++ )
+            for ( Comparator<MetadataTreeNode> c : comparators )
+            {
+                int res = c.compare( bucket.get( i - 1 ), bucket.get( i ) );
+
+                assertTrue( res >= 0 );
+
+                if ( res > 0 )
+                    break;
+            }
+    }
+
     // ----------------------------------------------------------------------
     //
     // a1
@@ -485,6 +578,798 @@ public class DefaultSatSolverTest
         assertEquals( 4, res.countNodes() );
 
     }
+    // ----------------------------------------------------------------------
+    /**
+     * the original objective: 2^k for every candidate of every multi-version bucket
+     */
+    static class PowerOfTwoSatSolver
+        extends DefaultSatSolver
+    {
+        public PowerOfTwoSatSolver( MetadataTreeNode tree )
+            throws SatException
+        {
+            super( tree );
+        }
+
+        @Override
+        protected void setObjective( Map<String, List<MetadataTreeNode>> buckets )
+            throws SatException
+        {
+            IVecInt vars = new VecInt( 128 );
+            IVec<BigInteger> coeffs = new Vec<BigInteger>( 128 );
+
+            int count = 0;
+
+            for ( List<MetadataTreeNode> bucket : buckets.values() )
+                if ( bucket.size() > 1 )
+                    for ( MetadataTreeNode n : bucket )
+                    {
+                        vars.push( _context.findOrAdd( n ).getLiteral() );
+                        coeffs.push( TWO.pow( count++ ) );
+                    }
+
+            if ( !vars.isEmpty() )
+                _solver.setObjectiveFunction( new ObjectiveFunction( vars, coeffs ) );
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // r:r:1 -> g0:g0:[1,3] ... gN:gN:[1,3], each gi:gi:3 -> g(i+1):g(i+1):1
+    // every bucket has 3 candidates at depth 1 and the deeper version 1 of the next GA
+    // ----------------------------------------------------------------------
+    private static MetadataTreeNode createWideTree( int buckets )
+    {
+        return createWideTree( buckets, true );
+    }
+
+    // ----------------------------------------------------------------------
+    // not chained - every bucket is a conflict of it's own
+    // ----------------------------------------------------------------------
+    private static MetadataTreeNode createWideTree( int buckets, boolean chained )
+    {
+        ArtifactMetadata rmd = new ArtifactMetadata( "r:r:1" );
+
+        MetadataTreeNode root = new MetadataTreeNode( rmd, null, null );
+
+        for ( int i = 0; i < buckets; i++ )
+        {
+            ArtifactMetadata q = new ArtifactMetadata( "g" + i + ":g" + i + ":[1,3]" );
+
+            root.addQuery( q );
+
+            for ( int v = 1; v <= 3; v++ )
+            {
+                ArtifactMetadata md = new ArtifactMetadata( "g" + i + ":g" + i + ":" + v );
+
+                MetadataTreeNode n = new MetadataTreeNode( md, root, q );
+
+                if ( chained && v == 3 && i < buckets - 1 )
+                {
+                    ArtifactMetadata next = new ArtifactMetadata( "g" + ( i + 1 ) + ":g" + ( i + 1 ) + ":1" );
+
+                    n.addQuery( next ).addChild( new MetadataTreeNode( next, n, next ) );
+                }
+
+                root.addChild( n );
+            }
+        }
+
+        return root;
+    }
+
+    // ----------------------------------------------------------------------
+    public void testObjectiveEncoding()
+        throws SatException
+    {
+        title = "testObjectiveEncoding";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        // the ranked objective picks the same optimum as a power of two per candidate
+        for ( int buckets : new int[] { 1, 10, 25 } )
+        {
+            MetadataTreeNode tree = createWideTree( buckets );
+
+            DefaultSatSolver old = new PowerOfTwoSatSolver( tree );
+            old.applyPolicies( cl );
+            List<ArtifactMetadata> oldRes = old.solve();
+
+            DefaultSatSolver ranked = new DefaultSatSolver( tree );
+            ranked.applyPolicies( cl );
+            List<ArtifactMetadata> res = ranked.solve();
+
+            assertEquals( buckets + 1, res.size() );
+            assertEquals( oldRes.size(), res.size() );
+            assertTrue( res.containsAll( oldRes ) );
+
+            for ( ArtifactMetadata md : res )
+                if ( !md.getGroupId().equals( "r" ) )
+                    assertEquals( "3", md.getVersion() );
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // a:a:1 - b:b:1 - c:c:1
+    // ----------------------------------------------------------------------
+    public void testPresolve()
+        throws SatException
+    {
+        title = "testPresolve";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( c1 );
+        MetadataTreeNode nc1 = new MetadataTreeNode( c1, nb1, c1 );
+
+        na1.addChild( nb1 );
+        nb1.addChild( nc1 );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        ss = (DefaultSatSolver) DefaultSatSolver.create( na1 );
+
+        ss.applyPolicies( cl );
+
+        // nothing to choose from - sat4j is not involved
+        ss._solver = notCalled();
+
+        List<ArtifactMetadata> res = ss.solve();
+
+        assertEquals( 3, ss._simplifier.getFixedCount() );
+        assertEquals( 0, ss._simplifier.getResidual().size() );
+
+        assertEquals( 3, res.size() );
+        assertTrue( res.contains( a1 ) );
+        assertTrue( res.contains( b1 ) );
+        assertTrue( res.contains( c1 ) );
+
+        MetadataTreeNode solution = ss.solveAsTree();
+
+        assertNotNull( solution );
+        assertEquals( 3, solution.countNodes() );
+
+        // wide tree: every bucket keeps 3 open candidates, propagation only fixes the root
+        MetadataTreeNode tree = createWideTree( 20 );
+
+        ss = new DefaultSatSolver( tree );
+        ss.applyPolicies( cl );
+        res = ss.solve();
+
+        assertEquals( 21, res.size() );
+        assertEquals( 1, ss._simplifier.getFixedCount() );
+        assertTrue( ss._simplifier.getResidual().size() > 0 );
+    }
+
+    // ----------------------------------------------------------------------
+    // a:a:1 - b:b:1 - d:d:1
+    //       \ c:c:1 - d:d:1
+    // ----------------------------------------------------------------------
+    public void testPresolveNoConflicts()
+        throws SatException
+    {
+        title = "testPresolveNoConflicts";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( c1 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( d1 );
+        MetadataTreeNode nc1 = new MetadataTreeNode( c1, na1, c1 ).addQuery( d1 );
+
+        na1.addChild( nb1 ).addChild( nc1 );
+        nb1.addChild( new MetadataTreeNode( d1, nb1, d1 ) );
+        nc1.addChild( new MetadataTreeNode( d1, nc1, d1 ) );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        // the same version twice is not a conflict
+        ss = new DefaultSatSolver( na1 );
+        ss.applyPolicies( cl );
+        ss._solver = notCalled();
+
+        List<ArtifactMetadata> res = ss.solve();
+
+        // the second d:d:1 is not in the bucket, it is left out of the model
+        assertEquals( 4, ss._simplifier.getFixedCount() );
+        assertEquals( 0, ss._simplifier.getResidual().size() );
+        assertEquals( 4, res.size() );
+
+        // every node fixed by propagation
+        MetadataTreeNode root = createLargeTree( 5, 4 );
+
+        ss = new DefaultSatSolver( root );
+        ss.applyPolicies( cl );
+        ss._solver = notCalled();
+
+        res = ss.solve();
+
+        assertEquals( 26, ss._simplifier.getFixedCount() );
+        assertEquals( 0, ss._simplifier.getResidual().size() );
+        assertEquals( 26, res.size() );
+        assertEquals( 26, ss.solveAsTree().countNodes() );
+    }
+
+    // ----------------------------------------------------------------------
+    /**
+     * sat4j stand-in, that fails the test when it is used
+     */
+    private static IPBSolver notCalled()
+    {
+        InvocationHandler fail = new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                throw new AssertionFailedError( "sat4j called: " + method.getName() );
+            }
+        };
+
+        return (IPBSolver) Proxy.newProxyInstance( IPBSolver.class.getClassLoader(),
+                                                   new Class<?>[] { IPBSolver.class }, fail );
+    }
+
+    // ----------------------------------------------------------------------
+    public void testComponents()
+        throws SatException
+    {
+        title = "testComponents";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        for ( boolean chained : new boolean[] { false, true } )
+            for ( int buckets : new int[] { 10, 100, 400 } )
+            {
+                MetadataTreeNode tree = createWideTree( buckets, chained );
+
+                long start = System.currentTimeMillis();
+
+                DefaultSatSolver single = new DefaultSatSolver( tree );
+                single.applyPolicies( cl );
+                List<ArtifactMetadata> singleRes = single.solve();
+
+                long singleTime = System.currentTimeMillis() - start;
+
+                // default: only the big enough components are split off, then every component on it's own
+                for ( int minSize : new int[] { 0, 1 } )
+                {
+                    start = System.currentTimeMillis();
+
+                    DefaultSatSolver parallel = new DefaultSatSolver( tree );
+                    parallel.setThreads( 4 );
+                    if ( minSize > 0 )
+                        parallel.setMinComponentSize( minSize );
+                    parallel.applyPolicies( cl );
+                    List<ArtifactMetadata> res = parallel.solve();
+
+                    long time = System.currentTimeMillis() - start;
+
+                    System.out.println( buckets + ( chained ? " chained" : " independent" ) + " buckets: single solver "
+                        + singleTime + " millis, components " + ( minSize > 0 ? "of " + minSize + "+ " : "" ) + time
+                        + " millis" );
+
+                    assertEquals( buckets + 1, res.size() );
+                    assertEquals( singleRes.size(), res.size() );
+                    assertTrue( res.containsAll( singleRes ) );
+
+                    for ( ArtifactMetadata md : res )
+                        if ( !md.getGroupId().equals( "r" ) )
+                            assertEquals( "3", md.getVersion() );
+
+                    MetadataTreeNode solution = parallel.solveAsTree();
+
+                    assertNotNull( solution );
+                    assertEquals( buckets + 1, solution.countNodes() );
+                }
+            }
+    }
+
+    // ----------------------------------------------------------------------
+    // r:r:1 -> g0:a0:1 ... gN:aN:1, each gi:ai:1 -> gi:b0:1 ... gi:bM:1
+    // ----------------------------------------------------------------------
+    private static MetadataTreeNode createLargeTree( int width, int depth )
+    {
+        MetadataTreeNode root = new MetadataTreeNode( new ArtifactMetadata( "r:r:1" ), null, null );
+
+        for ( int i = 0; i < width; i++ )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( "g" + i + ":a" + i + ":1" );
+
+            MetadataTreeNode n = new MetadataTreeNode( md, root, md );
+
+            root.addQuery( md ).addChild( n );
+
+            for ( int j = 0; j < depth; j++ )
+            {
+                ArtifactMetadata kmd = new ArtifactMetadata( "g" + i + ":b" + j + ":1" );
+
+                n.addQuery( kmd ).addChild( new MetadataTreeNode( kmd, n, kmd ) );
+            }
+        }
+
+        return root;
+    }
+
+    // ----------------------------------------------------------------------
+    // no conflicts - every node is in the solution, the solution tree has the shape of the tree
+    // ----------------------------------------------------------------------
+    public void testLargeTreeSolution()
+        throws SatException
+    {
+        title = "testLargeTreeSolution";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        int width = 5;
+        int depth = 4;
+
+        MetadataTreeNode root = createLargeTree( width, depth );
+
+        int nNodes = 1 + width * ( depth + 1 );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        ss = new DefaultSatSolver( root );
+        ss.applyPolicies( cl );
+
+        List<ArtifactMetadata> res = ss.solve();
+
+        assertEquals( nNodes, res.size() );
+
+        MetadataTreeNode solution = ss.solveAsTree();
+
+        assertNotNull( solution );
+        assertEquals( nNodes, solution.countNodes() );
+        assertEquals( width, solution.getChildren().size() );
+
+        for ( MetadataTreeNode n : solution.getChildren() )
+        {
+            assertEquals( depth, n.getChildren().size() );
+
+            for ( MetadataTreeNode kid : n.getChildren() )
+                assertEquals( n.getMd().getGroupId(), kid.getMd().getGroupId() );
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // c:c:1 - d:d:1
+    // /
+    // a:a:1 - b:b:1 - c:c:2
+    // ----------------------------------------------------------------------
+    public void testNearestWins()
+        throws SatException
+    {
+        title = "testNearestWins";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( c1 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( c2 );
+        MetadataTreeNode nc1 = new MetadataTreeNode( c1, na1, c1 ).addQuery( d1 );
+
+        na1.addChild( nb1 ).addChild( nc1 );
+        nb1.addChild( new MetadataTreeNode( c2, nb1, c2 ) );
+        nc1.addChild( new MetadataTreeNode( d1, nc1, d1 ) );
+
+        assertTrue( NearestWinsSatSolver.canSolve( na1, cl ) );
+
+        NearestWinsSatSolver nearest = new NearestWinsSatSolver( na1 );
+        nearest.applyPolicies( cl );
+
+        assertTrue( nearest.isExact() );
+
+        List<ArtifactMetadata> res = nearest.solve();
+
+        System.out.println( "nearest wins: " + res );
+
+        ss = new DefaultSatSolver( na1 );
+        ss.applyPolicies( cl );
+        List<ArtifactMetadata> satRes = ss.solve();
+
+        System.out.println( "sat: " + satRes );
+
+        assertEquals( 4, res.size() );
+        assertEquals( satRes.size(), res.size() );
+        assertTrue( res.containsAll( satRes ) );
+        assertTrue( res.contains( c1 ) );
+
+        assertEquals( 4, nearest.solveAsTree().countNodes() );
+
+        // d:d:1 only comes with the deeper c:c:2 now - nearest wins would drop it, pseudo boolean solution would not
+        na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( c1 );
+        nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( c2 );
+        nc1 = new MetadataTreeNode( c1, na1, c1 );
+        MetadataTreeNode nc2 = new MetadataTreeNode( c2, nb1, c2 ).addQuery( d1 );
+
+        na1.addChild( nb1 ).addChild( nc1 );
+        nb1.addChild( nc2 );
+        nc2.addChild( new MetadataTreeNode( d1, nc2, d1 ) );
+
+        nearest = new NearestWinsSatSolver( na1 );
+        nearest.applyPolicies( cl );
+
+        assertFalse( nearest.isExact() );
+        assertNull( nearest.solveAsTree() );
+
+        try
+        {
+            nearest.solve();
+            fail( "nearest wins should not give a solution here" );
+        }
+        catch ( SatException e )
+        {
+            System.out.println( "expected: " + e.getMessage() );
+        }
+
+        // ranges are not for nearest wins
+        assertFalse( NearestWinsSatSolver.canSolve( createWideTree( 2, false ), cl ) );
+
+        List<Comparator<MetadataTreeNode>> reversed = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        reversed.add( new ClassicDepthComparator() );
+        reversed.add( new ClassicVersionComparator( false ) );
+
+        assertFalse( NearestWinsSatSolver.canSolve( na1, reversed ) );
+
+        // large tree without conflicts
+        MetadataTreeNode root = createLargeTree( 50, 999 );
+
+        long start = System.currentTimeMillis();
+
+        nearest = new NearestWinsSatSolver( root );
+        nearest.applyPolicies( cl );
+        res = nearest.solve();
+
+        long nearestTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+
+        ss = new DefaultSatSolver( root );
+        ss.applyPolicies( cl );
+        satRes = ss.solve();
+
+        long satTime = System.currentTimeMillis() - start;
+
+        System.out.println( res.size() + " nodes: nearest wins " + nearestTime + " millis, sat " + satTime + " millis" );
+
+        assertEquals( satRes.size(), res.size() );
+        assertTrue( new HashSet<ArtifactMetadata>( res ).containsAll( satRes ) );
+    }
+
+    // ----------------------------------------------------------------------
+    public void testTimeout()
+        throws SatException
+    {
+        title = "testTimeout";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        int buckets = 400;
+
+        MetadataTreeNode tree = createWideTree( buckets );
+
+        // plenty of time
+        ss = new DefaultSatSolver( tree );
+        ss.setTimeout( 60000L );
+        ss.applyPolicies( cl );
+        List<ArtifactMetadata> res = ss.solve();
+
+        assertTrue( ss.isOptimal() );
+        assertEquals( buckets + 1, res.size() );
+
+        for ( ArtifactMetadata md : res )
+            if ( !md.getGroupId().equals( "r" ) )
+                assertEquals( "3", md.getVersion() );
+
+        // no time at all - best model so far or the greedy one, which one depends on the machine: only a valid model
+        // is guaranteed
+        for ( int threads : new int[] { 1, 4 } )
+        {
+            ss = new DefaultSatSolver( createWideTree( buckets, threads == 1 ) );
+            ss.setTimeout( 1L );
+            ss.setThreads( threads );
+            ss.applyPolicies( cl );
+            res = ss.solve();
+
+            System.out.println( threads + " threads, 1 millis: " + ( ss.isOptimal() ? "optimal" : "not optimal" ) );
+
+            assertEquals( buckets + 1, res.size() );
+
+            Set<String> gas = new HashSet<String>( 2 * res.size() );
+
+            for ( ArtifactMetadata md : res )
+                assertTrue( "two versions of " + md.getGA(), gas.add( md.getGA() ) );
+
+            assertEquals( buckets + 1, ss.solveAsTree().countNodes() );
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    public void testSession()
+        throws SatException
+    {
+        title = "testSession";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        SatSession session = new SatSession();
+
+        // same as testSingleVersionResolution - the deeper bucket decides
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( b2 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( c2 );
+        MetadataTreeNode nb2 = new MetadataTreeNode( b2, na1, b2 ).addQuery( c1 );
+
+        na1.addChild( nb1 ).addChild( nb2 );
+        nb1.addChild( new MetadataTreeNode( c2, nb1, c2 ) );
+        nb2.addChild( new MetadataTreeNode( c1, nb2, c1 ) );
+
+        List<ArtifactMetadata> res = session.solve( na1, cl );
+
+        assertEquals( 3, res.size() );
+        assertTrue( res.contains( a1 ) );
+        assertTrue( res.contains( b1 ) );
+        assertTrue( res.contains( c2 ) );
+
+        assertEquals( 3, session.solveAsTree( na1, cl ).countNodes() );
+
+        session.reset();
+
+        int buckets = 100;
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            int n = i == 2 ? buckets + 1 : buckets;
+
+            // a new tree every time, as the builder would make it
+            MetadataTreeNode tree = createWideTree( n );
+
+            long start = System.currentTimeMillis();
+
+            SatSolver solver = session.createSolver( tree );
+            solver.applyPolicies( cl );
+            res = solver.solve();
+
+            long time = System.currentTimeMillis() - start;
+
+            System.out.println( n + " buckets: added " + session.getAddedCount() + ", removed "
+                + session.getRemovedCount() + ", " + session.getConstraintCount() + " constraints, " + time + " millis" );
+
+            ss = new DefaultSatSolver( tree );
+            ss.applyPolicies( cl );
+            List<ArtifactMetadata> satRes = ss.solve();
+
+            assertEquals( n + 1, res.size() );
+            assertEquals( satRes.size(), res.size() );
+            assertTrue( res.containsAll( satRes ) );
+
+            if ( i == 0 )
+                assertEquals( 0, session.getRemovedCount() );
+            else if ( i == 1 )
+            {
+                // nothing changed
+                assertEquals( 0, session.getAddedCount() );
+                assertEquals( 0, session.getRemovedCount() );
+            }
+            else
+            {
+                // one more bucket - only it's constraints change
+                assertTrue( session.getAddedCount() > 0 );
+                assertTrue( session.getAddedCount() < 20 );
+                assertTrue( session.getRemovedCount() < 20 );
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    //       d:d:1 - c:c:2
+    //      /
+    // a:a:1 - b:b:1 - d:d:1 - c:c:2
+    //               \
+    //                c:c:1
+    //
+    // the first d:d:1 is a view of the second one
+    // ----------------------------------------------------------------------
+    public void testSharedSubtree()
+        throws SatException
+    {
+        title = "testSharedSubtree";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( d1 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( d1 ).addQuery( c1 );
+        MetadataTreeNode nd1 = new MetadataTreeNode( d1, nb1, d1 ).addQuery( c2 );
+
+        nd1.addChild( new MetadataTreeNode( c2, nd1, c2 ) );
+        nb1.addChild( nd1 ).addChild( new MetadataTreeNode( c1, nb1, c1 ) );
+
+        MetadataTreeNode view = MetadataTreeNode.share( nd1, na1, d1 );
+
+        na1.addChild( nb1 ).addChild( view );
+
+        ss = new DefaultSatSolver( na1 );
+
+        assertEquals( 7, na1.countNodes() );
+        assertEquals( 5, na1.countTargets() );
+        assertEquals( nd1.getId(), view.getId() );
+        assertEquals( 5, ss._context.variables.size() );
+
+        ss.applyPolicies( cl );
+
+        List<ArtifactMetadata> res = ss.solve();
+
+        System.out.println( "shared: " + res );
+
+        // c:c:2 is 2 levels down through the view - same as c:c:1, the newer one wins
+        assertEquals( 4, res.size() );
+        assertTrue( res.contains( d1 ) );
+        assertTrue( res.contains( c2 ) );
+        assertFalse( res.contains( c1 ) );
+
+        assertEquals( 6, ss.solveAsTree().countNodes() );
+
+        // nearest wins takes the shared subtree once too, at the closer depth
+        assertTrue( NearestWinsSatSolver.canSolve( na1, cl ) );
+
+        NearestWinsSatSolver nearest = new NearestWinsSatSolver( na1 );
+        nearest.applyPolicies( cl );
+
+        assertTrue( nearest.isExact() );
+
+        List<ArtifactMetadata> nearestRes = nearest.solve();
+
+        assertEquals( res.size(), nearestRes.size() );
+        assertTrue( nearestRes.containsAll( res ) );
+
+        MetadataTreeNode solution = nearest.solveAsTree();
+
+        assertEquals( 4, solution.countNodes() );
+
+        for ( MetadataTreeNode kid : solution.getChildren() )
+            assertSame( solution, kid.getParent() );
+
+        // the session encodes the shared subtree once as well
+        SatSession session = new SatSession();
+
+        List<ArtifactMetadata> sessionRes = session.solve( na1, cl );
+
+        assertEquals( res.size(), sessionRes.size() );
+        assertTrue( sessionRes.containsAll( res ) );
+        assertEquals( 6, session.solveAsTree( na1, cl ).countNodes() );
+
+        assertTrue( view.isShared() );
+    }
+
+    // ----------------------------------------------------------------------
+    //       b:b:1 - c:c:1
+    //      /
+    // a:a:1
+    //      \
+    //       d:d:1 - c:c:2
+    //
+    // both c's are on the same level, the newer one replaces the first one
+    // ----------------------------------------------------------------------
+    public void testNearestWinsSameLevel()
+        throws SatException
+    {
+        title = "testNearestWinsSameLevel";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        MetadataTreeNode na1 = new MetadataTreeNode( a1, null, null ).addQuery( b1 ).addQuery( d1 );
+        MetadataTreeNode nb1 = new MetadataTreeNode( b1, na1, b1 ).addQuery( c1 );
+        MetadataTreeNode nd1 = new MetadataTreeNode( d1, na1, d1 ).addQuery( c2 );
+
+        nb1.addChild( new MetadataTreeNode( c1, nb1, c1 ) );
+        nd1.addChild( new MetadataTreeNode( c2, nd1, c2 ) );
+        na1.addChild( nb1 ).addChild( nd1 );
+
+        NearestWinsSatSolver nearest = new NearestWinsSatSolver( na1 );
+        nearest.applyPolicies( cl );
+
+        List<ArtifactMetadata> res = nearest.solve();
+
+        assertEquals( 4, res.size() );
+        assertTrue( res.contains( c2 ) );
+        assertFalse( res.contains( c1 ) );
+
+        MetadataTreeNode solution = nearest.solveAsTree();
+
+        assertEquals( 4, solution.countNodes() );
+
+        Set<String> gas = new HashSet<String>( 8 );
+
+        collectGAs( solution, gas );
+
+        assertEquals( 4, gas.size() );
+    }
+
+    // ----------------------------------------------------------------------
+    private static void collectGAs( MetadataTreeNode node, Set<String> gas )
+    {
+        assertTrue( "two versions of " + node.getMd().getGA(), gas.add( node.getMd().getGA() ) );
+
+        if ( node.hasChildren() )
+            for ( MetadataTreeNode kid : node.getChildren() )
+                collectGAs( kid, gas );
+    }
+
+    // ----------------------------------------------------------------------
+    // l0 - x0 - l1 - x1 - l2 ...
+    //    \     /    \     /
+    //      y0         y1
+    //
+    // every l is built under x and shared under y: 2^n paths to the bottom
+    // ----------------------------------------------------------------------
+    public void testNearestWinsDiamonds()
+        throws SatException
+    {
+        title = "testNearestWinsDiamonds";
+        System.out.println( "\n\n==========================\n" + title + "\n" );
+
+        List<Comparator<MetadataTreeNode>> cl = new ArrayList<Comparator<MetadataTreeNode>>( 2 );
+        cl.add( new ClassicDepthComparator() );
+        cl.add( new ClassicVersionComparator() );
+
+        int n = 40;
+
+        MetadataTreeNode l = new MetadataTreeNode( new ArtifactMetadata( "t:l" + n + ":1" ), null, null );
+
+        for ( int i = n - 1; i >= 0; i-- )
+        {
+            ArtifactMetadata xmd = new ArtifactMetadata( "t:x" + i + ":1" );
+            ArtifactMetadata ymd = new ArtifactMetadata( "t:y" + i + ":1" );
+
+            MetadataTreeNode x = new MetadataTreeNode( xmd, null, xmd ).addQuery( l.getMd() );
+            MetadataTreeNode y = new MetadataTreeNode( ymd, null, ymd ).addQuery( l.getMd() );
+
+            x.addChild( l );
+            y.addChild( MetadataTreeNode.share( l, y, l.getMd() ) );
+
+            l = new MetadataTreeNode( new ArtifactMetadata( "t:l" + i + ":1" ), null, null ).addQuery( xmd ).addQuery( ymd );
+            l.addChild( x ).addChild( y );
+        }
+
+        long start = System.currentTimeMillis();
+
+        assertTrue( NearestWinsSatSolver.canSolve( l, cl ) );
+
+        NearestWinsSatSolver nearest = new NearestWinsSatSolver( l );
+        nearest.applyPolicies( cl );
+
+        assertTrue( nearest.isExact() );
+
+        List<ArtifactMetadata> res = nearest.solve();
+
+        MetadataTreeNode solution = nearest.solveAsTree();
+
+        System.out.println( res.size() + " GAs in " + ( System.currentTimeMillis() - start ) + " millis" );
+
+        assertEquals( 3 * n + 1, res.size() );
+        assertEquals( 3 * n + 1, solution.countNodes() );
+    }
+
     // ----------------------------------------------------------------------
     // ----------------------------------------------------------------------
 }
@@ -214,6 +214,57 @@ public class VirtualRepositoryReaderTest
 
     }
 
+    public void testReadArtifactsParallel()
+        throws Exception
+    {
+        int n = 12;
+
+        List<Artifact> arts = new ArrayList<Artifact>( n );
+        List<ArtifactMetadata> q = new ArrayList<ArtifactMetadata>( n + 1 );
+
+        for ( int i = 0; i < n; i++ )
+        {
+            ArtifactMetadata md = new ArtifactMetadata( "a:a" + i + ":1.0:text:txt" );
+            Artifact a = new DefaultArtifact( md );
+            File bin = File.createTempFile( "vr-", "-test.txt" );
+            bin.deleteOnExit();
+            FileUtil.writeRawData( bin, "test" + i );
+            a.setFile( bin );
+
+            arts.add( a );
+            q.add( new ArtifactMetadata( md ) );
+        }
+
+        _localRepo.getWriter().writeArtifacts( arts );
+
+        // only the remote repo has this one
+        ArtifactMetadata remote = new ArtifactMetadata( "org.apache.maven.mercury:mercury-repo-virtual:1.0.0-alpha-2" );
+        q.add( 5, remote );
+
+        _vr.setMinParallel( 2 );
+
+        ArtifactResults res = _vr.readArtifacts( q );
+
+        assertNotNull( res );
+
+        assertFalse( res.hasExceptions() );
+
+        for ( ArtifactMetadata md : q )
+        {
+            assertTrue( "not found " + md, res.hasResults( md ) );
+
+            File f = res.getResults( md ).get( 0 ).getFile();
+
+            assertNotNull( f );
+
+            assertTrue( f.exists() );
+        }
+
+        System.out.println( "parallel read: " + res.getResults().size() + " artifacts" );
+
+        assertEquals( q.size(), res.getResults().size() );
+    }
+
     public void testReadRelease()
         throws Exception
     {
@@ -243,6 +294,34 @@ public class VirtualRepositoryReaderTest
 
     }
 
+    public void testReadReleaseParallel()
+        throws Exception
+    {
+        _vr.setParallel( true );
+
+        ArtifactMetadata bmd = new ArtifactMetadata( _artifactCoordRelease );
+        List<ArtifactMetadata> q = new ArrayList<ArtifactMetadata>();
+        q.add( bmd );
+
+        Listener l = new Listener();
+        _vr.register( l );
+
+        MetadataResults res = _vr.readVersions( q );
+
+        assertNotNull( res );
+
+        assertFalse( res.hasExceptions() );
+
+        assertTrue( res.hasResults( bmd ) );
+
+        System.out.println( "parallel: " + res.getResult( bmd ) );
+
+        // let events propagate
+        Thread.sleep( 2000L );
+
+        assertTrue( l.localEventCount > 0 );
+    }
+
     // ========================================================================
     class Listener
         implements MercuryEventListener
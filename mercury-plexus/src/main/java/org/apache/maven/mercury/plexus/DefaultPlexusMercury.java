@@ -19,6 +19,7 @@
 package org.apache.maven.mercury.plexus;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -46,14 +47,18 @@ import org.apache.maven.mercury.logging.IMercuryLogger;
 import org.apache.maven.mercury.logging.MercuryLoggerManager;
 import org.apache.maven.mercury.metadata.DependencyBuilder;
 import org.apache.maven.mercury.metadata.DependencyBuilderFactory;
+import org.apache.maven.mercury.metadata.DependencyLock;
 import org.apache.maven.mercury.metadata.MetadataTreeException;
+import org.apache.maven.mercury.metadata.ResolutionCache;
 import org.apache.maven.mercury.repository.api.ArtifactResults;
+import org.apache.maven.mercury.repository.api.LocalRepository;
 import org.apache.maven.mercury.repository.api.MetadataResults;
 import org.apache.maven.mercury.repository.api.Repository;
 import org.apache.maven.mercury.repository.api.RepositoryException;
 import org.apache.maven.mercury.repository.api.RepositoryWriter;
 import org.apache.maven.mercury.repository.local.m2.LocalRepositoryM2;
 import org.apache.maven.mercury.repository.remote.m2.RemoteRepositoryM2;
+import org.apache.maven.mercury.repository.virtual.DependencyGraphCache;
 import org.apache.maven.mercury.repository.virtual.VirtualRepositoryReader;
 import org.apache.maven.mercury.transport.api.Credentials;
 import org.apache.maven.mercury.transport.api.Server;
@@ -86,6 +91,26 @@ public class DefaultPlexusMercury
     @Configuration( name = "allowCircularDependencies", value = "true" )
     boolean _allowCircularDependencies = true;
 
+    /** keep the dependency graph cache in the local repository, so that it survives the JVM */
+    @Configuration( name = "persistentGraphCache", value = "false" )
+    boolean _persistentGraphCache = false;
+
+    /** dependency graph cache, shared by all resolutions of this component */
+    private DependencyGraphCache _graphCache = new DependencyGraphCache();
+
+    /** remember resolved classpaths and return them for the identical requests */
+    @Configuration( name = "resolutionCache", value = "false" )
+    boolean _useResolutionCache = false;
+
+    /** keep the resolved classpaths in the local repository, so that they survive the JVM */
+    @Configuration( name = "persistentResolutionCache", value = "false" )
+    boolean _persistentResolutionCache = false;
+
+    private ResolutionCache _resolutionCache = new ResolutionCache();
+
+    /** if set - locked scopes are replayed, the rest recorded, and the binaries read are checked against it */
+    private DependencyLock _lock;
+
     @Requirement
     private Map<String, DependencyProcessor> _dependencyProcessors;
 
@@ -125,6 +150,96 @@ public class DefaultPlexusMercury
         _allowCircularDependencies = allow;
     }
 
+    // ---------------------------------------------------------------
+    public void setPersistentGraphCache( boolean persistent )
+    {
+        _persistentGraphCache = persistent;
+    }
+
+    // ---------------------------------------------------------------
+    public void setResolutionCache( boolean use, boolean persistent )
+    {
+        _useResolutionCache = use;
+        _persistentResolutionCache = persistent;
+    }
+
+    // ---------------------------------------------------------------
+    public void setDependencyLock( DependencyLock lock )
+    {
+        _lock = lock;
+    }
+
+    // ---------------------------------------------------------------
+    public DependencyLock getDependencyLock()
+    {
+        return _lock;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * persistent cache lives in the first local repository, in-memory one is shared by everybody
+     */
+    private DependencyGraphCache getGraphCache( List<Repository> repos )
+        throws RepositoryException
+    {
+        if ( !_persistentGraphCache || Util.isEmpty( repos ) )
+        {
+            return _graphCache;
+        }
+
+        for ( Repository repo : repos )
+        {
+            if ( repo instanceof LocalRepository )
+            {
+                try
+                {
+                    return DependencyGraphCache.getCache( ( (LocalRepository) repo ).getDirectory() );
+                }
+                catch ( IOException e )
+                {
+                    throw new RepositoryException( e );
+                }
+            }
+        }
+
+        return _graphCache;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * same as the graph cache, null if resolutions are not cached
+     */
+    private ResolutionCache getResolutionCache( List<Repository> repos )
+        throws RepositoryException
+    {
+        if ( !_useResolutionCache )
+        {
+            return null;
+        }
+
+        if ( !_persistentResolutionCache || Util.isEmpty( repos ) )
+        {
+            return _resolutionCache;
+        }
+
+        for ( Repository repo : repos )
+        {
+            if ( repo instanceof LocalRepository )
+            {
+                try
+                {
+                    return ResolutionCache.getCache( ( (LocalRepository) repo ).getDirectory() );
+                }
+                catch ( IOException e )
+                {
+                    throw new RepositoryException( e );
+                }
+            }
+        }
+
+        return _resolutionCache;
+    }
+
     // ---------------------------------------------------------------
     public RemoteRepositoryM2 constructRemoteRepositoryM2( String id, URL serverUrl, String serverUser,
                                                            String serverPass, URL proxyUrl, String proxyUser,
@@ -242,6 +357,18 @@ public class DefaultPlexusMercury
         
         Map<ArtifactMetadata, List<Artifact>> am = ar.getResults();
 
+        if ( _lock != null )
+        {
+            try
+            {
+                _lock.verifyChecksums( am );
+            }
+            catch ( MetadataTreeException e )
+            {
+                throw new RepositoryException( e );
+            }
+        }
+
         List<Artifact> al = new ArrayList<Artifact>();
         for ( Map.Entry<ArtifactMetadata, List<Artifact>> e : am.entrySet() )
         {
@@ -313,7 +440,12 @@ public class DefaultPlexusMercury
                                                  Util.mapOf( new Object[][] {
                                                      { DependencyBuilder.SYSTEM_PROPERTY_ALLOW_CIRCULAR_DEPENDENCIES,
                                                          "" + _allowCircularDependencies },
-                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, config } } ) );
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, config },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_GRAPH_CACHE,
+                                                         getGraphCache( repos ) },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE,
+                                                         getResolutionCache( repos ) },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, _lock } } ) );
 
             List<ArtifactMetadata> res = depBuilder.resolveConflicts( scope, artifacts, inclusions, exclusions );
 
@@ -327,6 +459,52 @@ public class DefaultPlexusMercury
         }
     }
 
+    // ---------------------------------------------------------------
+    public Map<ArtifactScopeEnum, List<ArtifactMetadata>> resolve( List<Repository> repos,
+                                                                   Collection<ArtifactScopeEnum> scopes,
+                                                                   ArtifactQueryList artifacts,
+                                                                   ArtifactInclusionList inclusions,
+                                                                   ArtifactExclusionList exclusions,
+                                                                   Map<String, ?> config )
+        throws RepositoryException
+    {
+        if ( Util.isEmpty( artifacts ) || artifacts.isEmpty() )
+        {
+            throw new IllegalArgumentException( LANG.getMessage( "no.artifacts" ) );
+        }
+
+        try
+        {
+            DependencyBuilder depBuilder =
+                DependencyBuilderFactory.create(
+                                                 DependencyBuilderFactory.JAVA_DEPENDENCY_MODEL,
+                                                 repos,
+                                                 null,
+                                                 null,
+                                                 null,
+                                                 Util.mapOf( new Object[][] {
+                                                     { DependencyBuilder.SYSTEM_PROPERTY_ALLOW_CIRCULAR_DEPENDENCIES,
+                                                         "" + _allowCircularDependencies },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, config },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_GRAPH_CACHE,
+                                                         getGraphCache( repos ) },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_RESOLUTION_CACHE,
+                                                         getResolutionCache( repos ) },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, _lock } } ) );
+
+            Map<ArtifactScopeEnum, List<ArtifactMetadata>> res =
+                depBuilder.resolveConflicts( scopes, artifacts, inclusions, exclusions );
+
+            depBuilder.close();
+
+            return res;
+        }
+        catch ( MetadataTreeException e )
+        {
+            throw new RepositoryException( e );
+        }
+    }
+
     public MetadataTreeNode resolveAsTree( List<Repository> repos, ArtifactScopeEnum scope,
                                            ArtifactQueryList artifacts, ArtifactInclusionList inclusions,
                                            ArtifactExclusionList exclusions, Map<String, ?> config )
@@ -349,7 +527,10 @@ public class DefaultPlexusMercury
                                                  Util.mapOf( new Object[][] {
                                                      { DependencyBuilder.SYSTEM_PROPERTY_ALLOW_CIRCULAR_DEPENDENCIES,
                                                          "" + _allowCircularDependencies },
-                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, config } } ) );
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_VERSION_MAP, config },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_GRAPH_CACHE,
+                                                         getGraphCache( repos ) },
+                                                     { DependencyBuilder.CONFIGURATION_PROPERTY_LOCK, _lock } } ) );
 
             MetadataTreeNode res = depBuilder.resolveConflictsAsTree( scope, artifacts, inclusions, exclusions );
 
@@ -199,6 +199,20 @@ public interface PlexusMercury
                                            ArtifactExclusionList exclusions, Map<String, ?> config )
         throws RepositoryException;
 
+    /**
+     * resolve Artifact dependencies for several scopes at once. The dependency tree is built only once
+     * 
+     * @param scopes scopes to resolve for
+     * @return classpath for each of the requested scopes
+     * @throws RepositoryException
+     */
+    Map<ArtifactScopeEnum, List<ArtifactMetadata>> resolve( List<Repository> repos,
+                                                            Collection<ArtifactScopeEnum> scopes,
+                                                            ArtifactQueryList artifacts,
+                                                            ArtifactInclusionList inclusions,
+                                                            ArtifactExclusionList exclusions, Map<String, ?> config )
+        throws RepositoryException;
+
     MetadataTreeNode resolveAsTree( List<Repository> repos, ArtifactScopeEnum scope,
                                            ArtifactQueryList artifacts, ArtifactInclusionList inclusions,
                                            ArtifactExclusionList exclusions )